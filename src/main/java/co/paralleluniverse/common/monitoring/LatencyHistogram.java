@@ -0,0 +1,220 @@
+/*
+ * Copyright (c) 2011-2014, Parallel Universe Software Co. All rights reserved.
+ *
+ * This program and the accompanying materials are dual-licensed under
+ * either the terms of the Eclipse Public License v1.0 as published by
+ * the Eclipse Foundation
+ *
+ *   or (per the licensee's choosing)
+ *
+ * under the terms of the GNU Lesser General Public License version 3.0
+ * as published by the Free Software Foundation.
+ */
+package co.paralleluniverse.common.monitoring;
+
+import com.codahale.metrics.Reservoir;
+import com.codahale.metrics.Snapshot;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A fixed-size, log-linear latency histogram (in the spirit of HdrHistogram).
+ * <p>
+ * Values are counted in buckets whose width grows with the magnitude of the value, so that every recorded value is represented
+ * with a relative error of at most {@code 1/32} (about 3%). Recording never allocates; only taking a snapshot does. The histogram
+ * is also a metrics {@link Reservoir}, so it can back a {@link com.codahale.metrics.Timer} (see {@link Metrics#timer(String, Reservoir)})
+ * in place of the default, allocating, sampling reservoir.
+ */
+public class LatencyHistogram implements Reservoir {
+    private static final int SUB_BUCKET_BITS = 6;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS; // values below this are counted exactly
+    private static final int HALF_SUB_BUCKETS = SUB_BUCKETS >> 1;
+    private static final int MAX_EXPONENT = 40; // larger values (> ~18 minutes in nanoseconds) are clamped
+    static final long MAX_VALUE = (1L << (MAX_EXPONENT + 1)) - 1;
+    static final int NUM_BUCKETS = index(MAX_VALUE) + 1;
+    private final AtomicLongArray counts = new AtomicLongArray(NUM_BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    public void record(long value) {
+        if (value < 0)
+            value = 0;
+        counts.incrementAndGet(index(Math.min(value, MAX_VALUE)));
+        count.incrementAndGet();
+        sum.addAndGet(value);
+        for (;;) {
+            final long currentMax = max.get();
+            if (value <= currentMax || max.compareAndSet(currentMax, value))
+                break;
+        }
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    public void reset() {
+        for (int i = 0; i < NUM_BUCKETS; i++)
+            counts.set(i, 0);
+        count.set(0);
+        sum.set(0);
+        max.set(0);
+    }
+
+    @Override
+    public void update(long value) {
+        record(value);
+    }
+
+    @Override
+    public int size() {
+        return (int) Math.min(count.get(), Integer.MAX_VALUE);
+    }
+
+    @Override
+    public HistogramSnapshot getSnapshot() {
+        final long[] cs = new long[NUM_BUCKETS];
+        long n = 0;
+        for (int i = 0; i < NUM_BUCKETS; i++) {
+            cs[i] = counts.get(i);
+            n += cs[i];
+        }
+        return new HistogramSnapshot(cs, n, sum.get(), max.get());
+    }
+
+    static int index(long value) {
+        if (value < SUB_BUCKETS)
+            return (int) value;
+        final int exponent = 63 - Long.numberOfLeadingZeros(value); // >= SUB_BUCKET_BITS
+        final int shift = exponent - SUB_BUCKET_BITS + 1;
+        return shift * HALF_SUB_BUCKETS + (int) (value >>> shift); // value >>> shift is in [HALF_SUB_BUCKETS, SUB_BUCKETS)
+    }
+
+    static long lowestValue(int index) {
+        if (index < SUB_BUCKETS)
+            return index;
+        final int shift = index / HALF_SUB_BUCKETS - 1;
+        return (long) (index - shift * HALF_SUB_BUCKETS) << shift;
+    }
+
+    static long highestValue(int index) {
+        return index + 1 < NUM_BUCKETS ? lowestValue(index + 1) - 1 : MAX_VALUE;
+    }
+
+    /**
+     * A snapshot of a {@link LatencyHistogram}.
+     * Values returned are representative (bucket midpoint) values, accurate to within the histogram's precision.
+     */
+    public static class HistogramSnapshot extends Snapshot {
+        private final long[] counts;
+        private final long count;
+        private final long sum;
+        private final long max;
+
+        HistogramSnapshot(long[] counts, long count, long sum, long max) {
+            super(new long[0]);
+            this.counts = counts;
+            this.count = count;
+            this.sum = sum;
+            this.max = max;
+        }
+
+        @Override
+        public double getValue(double quantile) {
+            if (quantile < 0.0 || quantile > 1.0)
+                throw new IllegalArgumentException(quantile + " is not in [0..1]");
+            if (count == 0)
+                return 0.0;
+            final long rank = Math.max(1, (long) Math.ceil(quantile * count));
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank)
+                    return Math.min(representative(i), max);
+            }
+            return max;
+        }
+
+        @Override
+        public int size() {
+            return (int) Math.min(count, Integer.MAX_VALUE);
+        }
+
+        @Override
+        public long getMax() {
+            return max;
+        }
+
+        @Override
+        public long getMin() {
+            for (int i = 0; i < counts.length; i++) {
+                if (counts[i] > 0)
+                    return lowestValue(i);
+            }
+            return 0;
+        }
+
+        @Override
+        public double getMean() {
+            return count == 0 ? 0.0 : (double) sum / count;
+        }
+
+        @Override
+        public double getStdDev() {
+            if (count <= 1)
+                return 0.0;
+            final double mean = getMean();
+            double variance = 0.0;
+            for (int i = 0; i < counts.length; i++) {
+                if (counts[i] > 0) {
+                    final double diff = representative(i) - mean;
+                    variance += diff * diff * counts[i];
+                }
+            }
+            return Math.sqrt(variance / (count - 1));
+        }
+
+        /**
+         * Returns one representative value per non-empty bucket.
+         */
+        @Override
+        public long[] getValues() {
+            int n = 0;
+            for (int i = 0; i < counts.length; i++) {
+                if (counts[i] > 0)
+                    n++;
+            }
+            final long[] values = new long[n];
+            n = 0;
+            for (int i = 0; i < counts.length; i++) {
+                if (counts[i] > 0)
+                    values[n++] = representative(i);
+            }
+            return values;
+        }
+
+        @Override
+        public void dump(OutputStream output) {
+            final PrintWriter out = new PrintWriter(output);
+            try {
+                for (int i = 0; i < counts.length; i++) {
+                    if (counts[i] > 0)
+                        out.printf("%d-%d: %d%n", lowestValue(i), highestValue(i), counts[i]);
+                }
+            } finally {
+                out.close();
+            }
+        }
+
+        private static long representative(int index) {
+            return (lowestValue(index) + highestValue(index)) >>> 1;
+        }
+    }
+}
@@ -19,6 +19,7 @@ import com.codahale.metrics.Meter;
 import com.codahale.metrics.Metric;
 import com.codahale.metrics.MetricRegistry;
 import com.codahale.metrics.MetricSet;
+import com.codahale.metrics.Reservoir;
 import com.codahale.metrics.Timer;
 
 /**
@@ -62,6 +63,20 @@ public class Metrics {
         return metrics.timer(name);
     }
 
+    /**
+     * Returns the timer registered under the given name, or registers a new one backed by the given reservoir.
+     */
+    public static Timer timer(String name, Reservoir reservoir) {
+        final Metric existing = metrics.getMetrics().get(name);
+        if (existing instanceof Timer)
+            return (Timer) existing;
+        try {
+            return metrics.register(name, new Timer(reservoir));
+        } catch (IllegalArgumentException e) {
+            return (Timer) metrics.getMetrics().get(name); // registered concurrently
+        }
+    }
+
     public static boolean remove(String name) {
         return metrics.remove(name);
     }
@@ -0,0 +1,87 @@
+/*
+ * Copyright (c) 2014, Parallel Universe Software Co. All rights reserved.
+ *
+ * This program and the accompanying materials are dual-licensed under
+ * either the terms of the Eclipse Public License v1.0 as published by
+ * the Eclipse Foundation
+ *
+ *   or (per the licensee's choosing)
+ *
+ * under the terms of the GNU Lesser General Public License version 3.0
+ * as published by the Free Software Foundation.
+ */
+package co.paralleluniverse.common.util;
+
+import com.google.common.util.concurrent.Uninterruptibles;
+
+/**
+ * A cheap, low-resolution wall clock.
+ * <p>
+ * While the clock is {@link #start() started}, the time is read by a single daemon thread every {@link #RESOLUTION_MILLIS}
+ * milliseconds and cached in a volatile field, so reading it costs a volatile read rather than a call to
+ * {@link System#currentTimeMillis()}. Use it for timeouts and ages that can tolerate that much error. When no one has started
+ * the clock, it simply returns {@link System#currentTimeMillis()}.
+ * <p>
+ * Starts and stops are counted: the thread runs from the first call to {@link #start()} until the matching last call to
+ * {@link #stop()}.
+ */
+public final class CoarseClock {
+    public static final long RESOLUTION_MILLIS = 5;
+    private static final long STOPPED = -1;
+    private static volatile long now = STOPPED;
+    private static Thread ticker;
+    private static int users;
+
+    /**
+     * Starts the clock's thread unless it is already running.
+     */
+    public static synchronized void start() {
+        if (users++ > 0)
+            return;
+        now = System.currentTimeMillis();
+        ticker = new Thread("galaxy-coarse-clock") {
+            @Override
+            public void run() {
+                try {
+                    for (;;) {
+                        Thread.sleep(RESOLUTION_MILLIS);
+                        now = System.currentTimeMillis();
+                    }
+                } catch (InterruptedException e) {
+                }
+            }
+        };
+        ticker.setDaemon(true);
+        ticker.start();
+    }
+
+    /**
+     * Stops the clock's thread if this call matches the first call to {@link #start()}.
+     */
+    public static synchronized void stop() {
+        if (users == 0)
+            throw new IllegalStateException("The clock has not been started");
+        if (--users > 0)
+            return;
+        ticker.interrupt();
+        Uninterruptibles.joinUninterruptibly(ticker); // so that it doesn't write the time after we've cleared it
+        ticker = null;
+        now = STOPPED;
+    }
+
+    static synchronized boolean isRunning() {
+        return ticker != null;
+    }
+
+    /**
+     * Returns the current time in milliseconds, as of at most {@link #RESOLUTION_MILLIS} (give or take the scheduler's
+     * precision) ago.
+     */
+    public static long currentTimeMillis() {
+        final long t = now;
+        return t != STOPPED ? t : System.currentTimeMillis();
+    }
+
+    private CoarseClock() {
+    }
+}
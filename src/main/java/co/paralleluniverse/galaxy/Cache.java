@@ -40,4 +40,20 @@ public interface Cache {
      * @return The cacheListener of this line
      */
     CacheListener getListener(long id);
+
+    /**
+     * Sets whether the given item is kept up-to-date on the nodes sharing it (write-update mode).
+     * <p>
+     * Normally, a write to an item invalidates all other nodes' copies of it, and each of them must then request the item anew
+     * when it next reads it. If write-update is turned on for an item, then whenever this node writes it, it pushes the new
+     * version to the nodes whose copies have been invalidated by the write, as soon as the write has been backed up (as with
+     * {@link Store#push(long, short[]) push}). This is appropriate for items that are read often by many nodes, and
+     * written rarely.
+     * <p>
+     * The setting only affects writes done by this node, and is lost if the item is evicted from the local cache.
+     *
+     * @param id    The item's ID.
+     * @param value {@code true} to turn write-update on for the item; {@code false} to turn it off.
+     */
+    void setWriteUpdate(long id, boolean value);
 }
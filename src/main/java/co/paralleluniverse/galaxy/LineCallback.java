@@ -0,0 +1,45 @@
+/*
+ * Galaxy
+ * Copyright (c) 2012-2014, Parallel Universe Software Co. All rights reserved.
+ *
+ * This program and the accompanying materials are dual-licensed under
+ * either the terms of the Eclipse Public License v1.0 as published by
+ * the Eclipse Foundation
+ *
+ *   or (per the licensee's choosing)
+ *
+ * under the terms of the GNU Lesser General Public License version 3.0
+ * as published by the Free Software Foundation.
+ */
+package co.paralleluniverse.galaxy;
+
+/**
+ * A callback notified when an asynchronous {@link Store} operation completes.
+ *
+ * <p>
+ * Unlike the operations returning a future, operations taking a callback don't allocate a future; the callback is invoked
+ * directly by the thread completing the operation. That is either the calling thread (if the operation completes immediately) or
+ * one of Galaxy's communication threads. Callbacks must therefore return quickly and must never block. In particular, they may not
+ * call any of the {@link Store}'s blocking methods, nor wait on any of its futures; an attempt to do so will fail with an
+ * {@link IllegalStateException} if the operation would have blocked.
+ *
+ * @param <T> The type of the operation's result.
+ * @see Store#getAsync(long, LineCallback)
+ */
+public interface LineCallback<T> {
+    /**
+     * Called when the operation has completed successfully.
+     *
+     * @param id     The item's ID.
+     * @param result The operation's result.
+     */
+    void completed(long id, T result);
+
+    /**
+     * Called when the operation has failed.
+     *
+     * @param id        The item's ID.
+     * @param exception The cause of the failure.
+     */
+    void failed(long id, Throwable exception);
+}
@@ -15,6 +15,13 @@ package co.paralleluniverse.galaxy;
 
 import java.nio.ByteBuffer;
 
+/**
+ * A function that is shipped to, and run by, the owner of a data item.
+ * <p>
+ * If the function is declared as a {@code LineFunction<Void>}, the owner does not send back a result; instead, the invoking
+ * call returns as soon as the owner has run the function, just as it would have with a result. The invoker's later operations
+ * on the item observe it.
+ */
 public interface LineFunction<T> extends java.io.Serializable {
     public interface LineAccess extends java.io.Serializable {
         ByteBuffer getForRead();
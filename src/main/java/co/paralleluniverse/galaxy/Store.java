@@ -588,6 +588,45 @@ public interface Store extends Cache {
      */
     ListenableFuture<Persistable> getAsync(long id, short nodeHint, Persistable object);
 
+    /**
+     * Retrieves a given data item asynchronously, and passes its contents to the given callback.
+     *
+     * <p>
+     * Like {@link #getAsync(long) getAsync(long)}, but doesn't allocate a future. See {@link LineCallback} for the
+     * restrictions placed on the callback.
+     *
+     * @param id       The item's ID.
+     * @param callback The callback to be called with the contents of the item when the operation completes.
+     */
+    void getAsync(long id, LineCallback<byte[]> callback);
+
+    /**
+     * Retrieves a given data item asynchronously into a {@link Persistable}, and passes it to the given callback.
+     *
+     * <p>
+     * Like {@link #getAsync(long, co.paralleluniverse.common.io.Persistable) getAsync(long, Persistable)}, but doesn't
+     * allocate a future. See {@link LineCallback} for the restrictions placed on the callback.
+     *
+     * @param id       The item's ID.
+     * @param object   The object into which the contents of the item will be written.
+     * @param callback The callback to be called with the passed object when the operation completes.
+     */
+    void getAsync(long id, Persistable object, LineCallback<Persistable> callback);
+
+    /**
+     * Retrieves a given data item asynchronously, using a hint as to its {@link #getx(long, StoreTransaction) owner} in
+     * the cluster, and passes its contents to the given callback.
+     *
+     * <p>
+     * Like {@link #getAsync(long, short) getAsync(long, short)}, but doesn't allocate a future. See {@link LineCallback}
+     * for the restrictions placed on the callback.
+     *
+     * @param id       The item's ID.
+     * @param nodeHint The ID of the node the data item is probably owned by.
+     * @param callback The callback to be called with the contents of the item when the operation completes.
+     */
+    void getAsync(long id, short nodeHint, LineCallback<byte[]> callback);
+
     /**
      * Retrieves a given data item asynchronously, using a hint as to its {@link #getx(long, StoreTransaction) owner} in
      * the cluster. Unlike the direct hint given in {@link #get(long, short) get(long, short)}, the hinted node here is
@@ -15,9 +15,11 @@ package co.paralleluniverse.galaxy.berkeleydb;
 
 import static co.paralleluniverse.common.logging.LoggingUtils.hex;
 import co.paralleluniverse.common.spring.Component;
+import co.paralleluniverse.galaxy.server.BatchOwnerDB;
 import co.paralleluniverse.galaxy.server.MainMemoryDB;
 import co.paralleluniverse.galaxy.server.MainMemoryEntry;
 import com.google.common.base.Throwables;
+import com.google.common.primitives.Ints;
 import com.google.common.primitives.Longs;
 import com.google.common.primitives.Shorts;
 import com.sleepycat.bind.tuple.TupleBinding;
@@ -45,20 +47,40 @@ import com.sleepycat.je.SecondaryDatabase;
 import com.sleepycat.je.SecondaryKeyCreator;
 import com.sleepycat.je.Transaction;
 import com.sleepycat.je.TransactionConfig;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import it.unimi.dsi.fastutil.longs.LongArrayList;
-import it.unimi.dsi.fastutil.longs.LongIterator;
 import java.beans.ConstructorProperties;
 import java.io.File;
 import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.jmx.export.annotation.ManagedAttribute;
 
 /**
+ * A {@link MainMemoryDB} that uses BerkeleyDB Java Edition.
+ * <p>
+ * All lines are owned by the server after it restarts. Rather than resetting the owner of every line when the server starts, each
+ * owner record is tagged with the <i>epoch</i> in which it has been written, where the epoch is incremented (durably) whenever the
+ * database is opened, and records written in an earlier epoch are treated as if their owner were the server. The owner index is
+ * likewise keyed by owner and epoch, so that {@link #removeOwner(short) removeOwner} never visits stale records.
+ * Whether the database has been closed cleanly is recorded as well, and reported when it is next opened. Nothing is read at startup
+ * unless {@code preloadOwners} is set, in which case the owner records are loaded into BDB's cache.
+ * <p>
+ * Removing an owner is handled similarly: the epoch is incremented, and the owner's records written in earlier epochs are treated as
+ * if their owner were the server (a node may rejoin the cluster and own lines again in a later epoch). This is all
+ * {@link #removeOwner(short) removeOwner} does before returning; the records are then rewritten in the background, in
+ * chunks, each in its own (short) transaction, by {@code removeOwnerThreads} threads.
  *
  * @author pron
  */
-public class BerkeleyDB extends Component implements MainMemoryDB {
+public class BerkeleyDB extends Component implements BatchOwnerDB {
     // Note: class must be public for Spring's auto generated javax.management.modelmbean.RequiredModelMBean to expose @ManagedAttribute
 
     private static final Logger LOG = LoggerFactory.getLogger(BerkeleyDB.class);
@@ -67,11 +89,25 @@ public class BerkeleyDB extends Component implements MainMemoryDB {
     private SecondaryDatabase ownerIndex;
     private Database mainStore;
     private Database allocationDirectory;
+    private Database metadata;
     private final TupleBinding<MainMemoryEntry> entryBinding;
-    private static final DatabaseEntry SERVER = new DatabaseEntry(Shorts.toByteArray((short) 0));
+    private static final short SERVER = 0;
+    private static final String OWNER_INDEX = "ownerEpochIndex";
+    private static final String OLD_OWNER_INDEX = "ownerIndex"; // keyed by owner alone
+    private static final DatabaseEntry EPOCH_KEY = new DatabaseEntry(new byte[]{'e'});
+    private static final DatabaseEntry CLEAN_SHUTDOWN_KEY = new DatabaseEntry(new byte[]{'c'});
+    private volatile int epoch;
+    private int openEpoch; // the epoch in which the database has been opened; records written earlier are stale
+    private final ConcurrentMap<Short, Integer> removedOwners = new ConcurrentHashMap<Short, Integer>(); // owner -> the last epoch in which it was removed
+    private boolean recoveredFromCrash;
     private final String envHome;
     private boolean truncate = false;
     private Durability.SyncPolicy durability = Durability.SyncPolicy.WRITE_NO_SYNC;
+    private boolean preloadOwners = false;
+    private int removeOwnerThreads = 2;
+    private int removeOwnerChunkSize = 1000;
+    private ExecutorService removeOwnerExecutor;
+    private final AtomicInteger pendingRemoveOwnerTasks = new AtomicInteger();
 
     @ConstructorProperties({"name", "envHome"})
     public BerkeleyDB(String name, String envHome) {
@@ -101,11 +137,56 @@ public class BerkeleyDB extends Component implements MainMemoryDB {
         return truncate;
     }
 
+    public void setPreloadOwners(boolean preloadOwners) {
+        assertDuringInitialization();
+        this.preloadOwners = preloadOwners;
+    }
+
+    @ManagedAttribute
+    public boolean isPreloadOwners() {
+        return preloadOwners;
+    }
+
+    public void setRemoveOwnerThreads(int removeOwnerThreads) {
+        assertDuringInitialization();
+        this.removeOwnerThreads = removeOwnerThreads;
+    }
+
+    @ManagedAttribute
+    public int getRemoveOwnerThreads() {
+        return removeOwnerThreads;
+    }
+
+    public void setRemoveOwnerChunkSize(int removeOwnerChunkSize) {
+        assertDuringInitialization();
+        this.removeOwnerChunkSize = removeOwnerChunkSize;
+    }
+
+    @ManagedAttribute
+    public int getRemoveOwnerChunkSize() {
+        return removeOwnerChunkSize;
+    }
+
+    @ManagedAttribute(description = "The number of pending tasks rewriting the owner records of removed nodes")
+    public int getPendingRemoveOwnerTasks() {
+        return pendingRemoveOwnerTasks.get();
+    }
+
     @ManagedAttribute(currencyTimeLimit = -1, description = "The BDB environment directory")
     public String getEnvHome() {
         return envHome;
     }
 
+    @ManagedAttribute(description = "The number of times the database has been opened or an owner has been removed")
+    public int getEpoch() {
+        return epoch;
+    }
+
+    @ManagedAttribute(currencyTimeLimit = -1, description = "Whether the database had not been closed cleanly before it was opened")
+    public boolean isRecoveredFromCrash() {
+        return recoveredFromCrash;
+    }
+
     @Override
     public void init() throws Exception {
         super.init();
@@ -118,15 +199,44 @@ public class BerkeleyDB extends Component implements MainMemoryDB {
             ownerDirectory.close();
             mainStore.close();
             allocationDirectory.close();
+            metadata.close();
             truncate();
         }
         openOrCreate();
 
-        PreloadConfig ownerDirectoryPreloadConfig = new PreloadConfig();
-        this.ownerDirectory.preload(ownerDirectoryPreloadConfig);
+        if (preloadOwners)
+            ownerDirectory.preload(new PreloadConfig()); // reads all owner records, so startup takes time proportional to their number
+
+        newEpoch(); // all existing owner records become stale, so the server now owns all lines
 
-        if (!truncate)
-            resetOwners();
+        this.removeOwnerExecutor = Executors.newFixedThreadPool(removeOwnerThreads,
+                new ThreadFactoryBuilder().setNameFormat("bdb-removeOwner-%d").setDaemon(true).build());
+    }
+
+    /**
+     * Increments the epoch, and clears the clean-shutdown marker. This is committed synchronously, because were the new epoch lost in a
+     * crash, records written during this run would appear current after the next start.
+     */
+    private void newEpoch() {
+        final DatabaseEntry value = new DatabaseEntry();
+        final Transaction txn = env.beginTransaction(null, new TransactionConfig().setDurability(Durability.COMMIT_SYNC));
+        try {
+            final int lastEpoch = metadata.get(txn, EPOCH_KEY, value, LockMode.RMW) == OperationStatus.SUCCESS ? Ints.fromByteArray(value.getData()) : 0;
+            final boolean cleanShutdown = metadata.delete(txn, CLEAN_SHUTDOWN_KEY) == OperationStatus.SUCCESS;
+            this.recoveredFromCrash = lastEpoch > 0 && !cleanShutdown;
+            this.epoch = lastEpoch + 1; // records written before epochs were introduced have epoch 0
+            this.openEpoch = epoch;
+            metadata.put(txn, EPOCH_KEY, new DatabaseEntry(Ints.toByteArray(epoch)));
+            txn.commit();
+        } catch (Exception e) {
+            LOG.error("Exception during DB operation. Aborting transaction.", e);
+            txn.abort();
+            throw Throwables.propagate(e);
+        }
+        if (recoveredFromCrash)
+            LOG.warn("Database has not been closed cleanly. Epoch: {}", epoch);
+        else
+            LOG.info("Database epoch: {}", epoch);
     }
 
     private void openOrCreate() throws DatabaseException, IllegalStateException, DatabaseExistsException, DatabaseNotFoundException, IllegalArgumentException {
@@ -134,7 +244,11 @@ public class BerkeleyDB extends Component implements MainMemoryDB {
         this.ownerDirectory = env.openDatabase(null, "ownerDirecotry",
                 new DatabaseConfig().setAllowCreate(true).setTransactional(true));
 
-        this.ownerIndex = env.openSecondaryDatabase(null, "ownerIndex", ownerDirectory,
+        if (env.getDatabaseNames().contains(OLD_OWNER_INDEX)) {
+            LOG.info("Removing old owner index. A new one will be built.");
+            env.removeDatabase(null, OLD_OWNER_INDEX);
+        }
+        this.ownerIndex = env.openSecondaryDatabase(null, OWNER_INDEX, ownerDirectory,
                 ((SecondaryConfig) (new SecondaryConfig().setAllowCreate(true).setSortedDuplicates(true).setTransactional(true))).setAllowPopulate(true).setKeyCreator(new OwnerKeyCreator()));
 
         this.mainStore = env.openDatabase(null, "mainStore",
@@ -142,6 +256,9 @@ public class BerkeleyDB extends Component implements MainMemoryDB {
 
         this.allocationDirectory = env.openDatabase(null, "allocationDirectory",
                 new DatabaseConfig().setAllowCreate(true).setTransactional(true));
+
+        this.metadata = env.openDatabase(null, "metadata",
+                new DatabaseConfig().setAllowCreate(true).setTransactional(true));
     }
 
     public void truncate() {
@@ -149,7 +266,7 @@ public class BerkeleyDB extends Component implements MainMemoryDB {
         Transaction txn = env.beginTransaction(null, TransactionConfig.DEFAULT);
         try {
             env.truncateDatabase(txn, "ownerDirecotry", false);
-            env.truncateDatabase(txn, "ownerIndex", false);
+            env.truncateDatabase(txn, OWNER_INDEX, false);
             txn.commit();
             env.truncateDatabase(null, "mainStore", false);
             env.truncateDatabase(null, "allocationDirectory", false);
@@ -169,7 +286,7 @@ public class BerkeleyDB extends Component implements MainMemoryDB {
         try {
             OperationStatus status;
 
-            value.setData(Shorts.toByteArray(newNode));
+            value.setData(ownerRecord(newNode));
             if (oldNode < 0) {
                 status = ownerDirectory.putNoOverwrite(txn, key, value);
                 if (status == OperationStatus.SUCCESS) {
@@ -181,7 +298,7 @@ public class BerkeleyDB extends Component implements MainMemoryDB {
 
             status = ownerDirectory.get(txn, key, value, LockMode.RMW);
             if (status == OperationStatus.SUCCESS) {
-                final short curOldNode = Shorts.fromByteArray(value.getData());
+                final short curOldNode = owner(value.getData());
                 if (LOG.isDebugEnabled())
                     LOG.debug("CAS owner of {}: current old node: {} wanted old node: {}", new Object[]{hex(id), curOldNode, oldNode});
                 if (oldNode != curOldNode) {
@@ -192,7 +309,7 @@ public class BerkeleyDB extends Component implements MainMemoryDB {
                 }
 
                 LOG.debug("CAS owner succeeded.");
-                value.setData(Shorts.toByteArray(newNode));
+                value.setData(ownerRecord(newNode));
                 ownerDirectory.put(txn, key, value);
                 txn.commit();
                 return newNode;
@@ -212,48 +329,153 @@ public class BerkeleyDB extends Component implements MainMemoryDB {
     }
 
     @Override
-    public void removeOwner(short node) {
-        final boolean trace = LOG.isTraceEnabled();
-        final Transaction txn = null;
-//        final Transaction txn = env.beginTransaction(null, TransactionConfig.DEFAULT);
-//        try {
-        final LongArrayList lines = new LongArrayList();
+    public void setOwners(long[] ids, short[] owners, int count) {
+        final DatabaseEntry key = new DatabaseEntry();
+        final DatabaseEntry value = new DatabaseEntry();
 
-        final DatabaseEntry sKey = new DatabaseEntry(Shorts.toByteArray(node));
+        final Transaction txn = env.beginTransaction(null, null);
+        try {
+            for (int i = 0; i < count; i++) {
+                key.setData(Longs.toByteArray(ids[i]));
+                if (ownerDirectory.get(txn, key, value, LockMode.RMW) != OperationStatus.SUCCESS)
+                    continue; // deleted
+                value.setData(ownerRecord(owners[i]));
+                ownerDirectory.put(txn, key, value);
+            }
+            txn.commit();
+        } catch (Exception e) {
+            LOG.error("Exception during DB operation. Aborting transaction.", e);
+            txn.abort();
+            throw Throwables.propagate(e);
+        }
+    }
+
+    /**
+     * Makes the server the owner of all lines currently owned by the given node. The node's records are only marked as removed (by
+     * advancing the epoch); they are rewritten in the background.
+     */
+    @Override
+    public synchronized void removeOwner(final short node) {
+        final int removedEpoch = epoch;
+        final Transaction txn = env.beginTransaction(null, new TransactionConfig().setDurability(Durability.COMMIT_SYNC)); // see newEpoch
+        try {
+            metadata.put(txn, EPOCH_KEY, new DatabaseEntry(Ints.toByteArray(removedEpoch + 1)));
+            txn.commit();
+        } catch (Exception e) {
+            LOG.error("Exception during DB operation. Aborting transaction.", e);
+            txn.abort();
+            throw Throwables.propagate(e);
+        }
+        this.epoch = removedEpoch + 1;
+        removedOwners.put(node, removedEpoch);
+        LOG.info("Removed owner {}. Epoch: {}", node, epoch);
+
+        submitRemoveOwnerTask(new Runnable() {
+            @Override
+            public void run() {
+                reassignOwner(node, removedEpoch);
+            }
+        });
+    }
+
+    /**
+     * Finds the records of the removed owner using the owner index, and submits them, in chunks, to be rewritten.
+     */
+    private void reassignOwner(final short node, final int removedEpoch) {
+        final boolean trace = LOG.isTraceEnabled();
+        final DatabaseEntry sKey = new DatabaseEntry(ownerRecord(node, openEpoch)); // only records from the current run
         final DatabaseEntry pKey = new DatabaseEntry();
         final DatabaseEntry data = new DatabaseEntry();
 
-        try (SecondaryCursor cursor = ownerIndex.openCursor(txn, null)) {
-            OperationStatus retVal = cursor.getSearchKey(sKey, pKey, data, LockMode.DEFAULT);
-            while (retVal == OperationStatus.SUCCESS) {
+        int count = 0;
+        LongArrayList chunk = new LongArrayList(removeOwnerChunkSize);
+        try (SecondaryCursor cursor = ownerIndex.openCursor(null, null)) {
+            // the cursor doesn't lock the records, so they can be rewritten by other threads while it's open
+            OperationStatus retVal = cursor.getSearchKeyRange(sKey, pKey, data, LockMode.READ_UNCOMMITTED);
+            while (retVal == OperationStatus.SUCCESS && recordOwner(sKey.getData()) == node && epoch(sKey.getData()) <= removedEpoch
+                    && !removeOwnerExecutor.isShutdown()) {
                 final long id = Longs.fromByteArray(pKey.getData());
                 if (trace)
                     LOG.trace("Owner of {}: {} -> 0", id, node);
 
-                lines.add(id); // cursor.getPrimaryDatabase().put(null, pKey, SERVER); - causes deadlock
-                retVal = cursor.getNextDup(sKey, pKey, data, LockMode.DEFAULT);
+                chunk.add(id);
+                count++;
+                if (chunk.size() >= removeOwnerChunkSize) {
+                    submitChunk(node, removedEpoch, chunk);
+                    chunk = new LongArrayList(removeOwnerChunkSize);
+                }
+                retVal = cursor.getNext(sKey, pKey, data, LockMode.READ_UNCOMMITTED);
+            }
+        }
+        if (!chunk.isEmpty())
+            submitChunk(node, removedEpoch, chunk);
+        LOG.info("Reassigning {} lines of removed owner {}", count, node);
+    }
+
+    private void submitChunk(final short node, final int removedEpoch, final LongArrayList ids) {
+        submitRemoveOwnerTask(new Runnable() {
+            @Override
+            public void run() {
+                reassignLines(node, removedEpoch, ids);
+            }
+        });
+    }
+
+    private void reassignLines(short node, int removedEpoch, LongArrayList ids) {
+        if (removeOwnerExecutor.isShutdown())
+            return;
+        final DatabaseEntry key = new DatabaseEntry();
+        final DatabaseEntry value = new DatabaseEntry();
+        final DatabaseEntry server = new DatabaseEntry(ownerRecord(SERVER));
+
+        final Transaction txn = env.beginTransaction(null, null);
+        try {
+            for (int i = 0; i < ids.size(); i++) {
+                key.setData(Longs.toByteArray(ids.getLong(i)));
+                if (ownerDirectory.get(txn, key, value, LockMode.RMW) != OperationStatus.SUCCESS)
+                    continue;
+                final byte[] record = value.getData();
+                if (recordOwner(record) == node && epoch(record) >= openEpoch && epoch(record) <= removedEpoch) // not since changed
+                    ownerDirectory.put(txn, key, server);
             }
+            txn.commit();
+        } catch (Exception e) {
+            // the records are still treated as the server's, so nothing is lost but the cleanup
+            LOG.warn("Exception while reassigning lines of removed owner " + node + ". Aborting transaction.", e);
+            txn.abort();
         }
+    }
 
-        byte[] longArray = new byte[8];
-        for (LongIterator it = lines.iterator(); it.hasNext();) {
-            toByteArray(it.next(), longArray);
-            pKey.setData(longArray);
-            ownerDirectory.put(null, pKey, SERVER);
+    private void submitRemoveOwnerTask(final Runnable task) {
+        pendingRemoveOwnerTasks.incrementAndGet();
+        try {
+            removeOwnerExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        task.run();
+                    } catch (Exception e) {
+                        LOG.error("Exception while reassigning lines of removed owner", e);
+                    } finally {
+                        pendingRemoveOwnerTasks.decrementAndGet();
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) { // closing
+            pendingRemoveOwnerTasks.decrementAndGet();
         }
-//            txn.commit();
-//        } catch (Exception e) {
-//            LOG.error("Exception while removing. Aborting.", e);
-//            txn.abort();
-//            throw Throwables.propagate(e);
-//        }
     }
 
+    /**
+     * Eagerly sets the server as the owner of all lines. This isn't required when the database is opened, as all owner records
+     * written before then are stale.
+     */
     public void resetOwners() {
         final boolean trace = LOG.isTraceEnabled();
 
         final DatabaseEntry key = new DatabaseEntry();
         final DatabaseEntry data = new DatabaseEntry();
+        final DatabaseEntry server = new DatabaseEntry(ownerRecord(SERVER));
 
         try (DiskOrderedCursor cursor = ownerDirectory.openCursor(new DiskOrderedCursorConfig().setKeysOnly(true))) {
             OperationStatus retVal = cursor.getNext(key, data, null);
@@ -261,7 +483,7 @@ public class BerkeleyDB extends Component implements MainMemoryDB {
                 if (trace)
                     LOG.trace("Owner of {} -> 0", Longs.fromByteArray(key.getData()));
 
-                ownerDirectory.put(null, key, SERVER);
+                ownerDirectory.put(null, key, server);
                 retVal = cursor.getNext(key, data, null);
             }
         }
@@ -298,7 +520,7 @@ public class BerkeleyDB extends Component implements MainMemoryDB {
             OperationStatus retVal = cursor.getSearchKeyRange(key, data, null);
 
             if (retVal == OperationStatus.SUCCESS) {
-                ownerDirectory.put(null, key, SERVER);
+                ownerDirectory.put(null, key, new DatabaseEntry(ownerRecord(SERVER)));
                 return Shorts.fromByteArray(data.getData());
             } else if (retVal == OperationStatus.NOTFOUND)
                 return (short) -1;
@@ -334,7 +556,7 @@ public class BerkeleyDB extends Component implements MainMemoryDB {
 
         mainStore.put((Transaction) txn, key, dbEntry);
         // try to write owner, but only if nonexistent (i.e will happen at first put only)
-        ownerDirectory.putNoOverwrite((Transaction) txn, key, new DatabaseEntry(Shorts.toByteArray(owner)));
+        ownerDirectory.putNoOverwrite((Transaction) txn, key, new DatabaseEntry(ownerRecord(owner)));
     }
 
     @Override
@@ -383,13 +605,63 @@ public class BerkeleyDB extends Component implements MainMemoryDB {
 
     @Override
     public void close() {
+        // Unfinished reassignments aren't needed, as all records become stale when the database is reopened, so the tasks stop once
+        // they see the executor has been shut down. They're not interrupted, as that would invalidate the BDB environment.
+        removeOwnerExecutor.shutdown();
+        try {
+            if (!removeOwnerExecutor.awaitTermination(10, TimeUnit.SECONDS))
+                LOG.warn("Owner reassignment threads haven't terminated");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        metadata.put(null, CLEAN_SHUTDOWN_KEY, new DatabaseEntry(new byte[]{1})); // durable once the environment is closed
         ownerIndex.close();
         ownerDirectory.close();
         mainStore.close();
         allocationDirectory.close();
+        metadata.close();
         env.close();
     }
 
+    /**
+     * Returns an owner record, written in the current epoch.
+     */
+    private byte[] ownerRecord(short owner) {
+        return ownerRecord(owner, epoch);
+    }
+
+    private static byte[] ownerRecord(short owner, int epoch) {
+        final byte[] record = new byte[6];
+        record[0] = (byte) (owner >> 8);
+        record[1] = (byte) owner;
+        record[2] = (byte) (epoch >> 24);
+        record[3] = (byte) (epoch >> 16);
+        record[4] = (byte) (epoch >> 8);
+        record[5] = (byte) epoch;
+        return record;
+    }
+
+    /**
+     * Returns the owner in an owner record, or the server if the record is stale, or if its owner has been removed since it's been
+     * written.
+     */
+    private short owner(byte[] record) {
+        final int recordEpoch = epoch(record);
+        if (recordEpoch < openEpoch)
+            return SERVER;
+        final short owner = recordOwner(record);
+        final Integer removedEpoch = removedOwners.get(owner);
+        return removedEpoch != null && recordEpoch <= removedEpoch ? SERVER : owner;
+    }
+
+    private static short recordOwner(byte[] record) {
+        return Shorts.fromBytes(record[0], record[1]);
+    }
+
+    private static int epoch(byte[] record) {
+        return record.length < 6 ? 0 : Ints.fromBytes(record[2], record[3], record[4], record[5]);
+    }
+
     private static class MainMemoryTupleBinding extends TupleBinding<MainMemoryEntry> {
 
         @Override
@@ -415,7 +687,8 @@ public class BerkeleyDB extends Component implements MainMemoryDB {
 
         @Override
         public boolean createSecondaryKey(SecondaryDatabase secondary, DatabaseEntry key, DatabaseEntry data, DatabaseEntry result) {
-            result.setData(data.getData());
+            final byte[] record = data.getData();
+            result.setData(ownerRecord(recordOwner(record), epoch(record)));
             return true;
         }
 
@@ -452,8 +725,8 @@ public class BerkeleyDB extends Component implements MainMemoryDB {
         try (Cursor cursor = ownerDirectory.openCursor(null, CursorConfig.DEFAULT)) {
             while (cursor.getNext(key, value, LockMode.DEFAULT) == OperationStatus.SUCCESS) {
                 long id = Longs.fromByteArray(key.getData());
-                short owner = Shorts.fromByteArray(value.getData());
-                ps.println("Id : " + hex(id) + " owner: " + owner + "");
+                short owner = owner(value.getData());
+                ps.println("Id : " + hex(id) + " owner: " + owner + " epoch: " + epoch(value.getData()));
             }
         }
     }
@@ -481,8 +754,8 @@ public class BerkeleyDB extends Component implements MainMemoryDB {
         try (SecondaryCursor cursor = ownerIndex.openCursor(null, CursorConfig.DEFAULT)) {
             while (cursor.getNext(sKey, pKey, value, LockMode.DEFAULT) == OperationStatus.SUCCESS) {
                 long id = Longs.fromByteArray(pKey.getData());
-                short owner = Shorts.fromByteArray(sKey.getData());
-                ps.println("Owner: " + owner + " id : " + hex(id));
+                short owner = recordOwner(sKey.getData());
+                ps.println("Owner: " + owner + " epoch: " + epoch(sKey.getData()) + " id : " + hex(id));
             }
         }
     }
@@ -42,6 +42,18 @@ public interface Backup {
 
     Iterator<BACKUP> iterOwned();
 
+    /**
+     * Returns a compact summary of the versions of the lines owned by this node, which a slave sends to its master when it connects,
+     * so that the master only replicates the lines the slave doesn't already have (see {@link #iterOwned(long[]) iterOwned(summary)}).
+     */
+    long[] summarizeOwned();
+
+    /**
+     * Iterates over the owned lines that are not up to date in a slave, given the slave's {@link #summarizeOwned() summary}.
+     * Some lines that are up to date may be returned as well, but no line that isn't will be skipped.
+     */
+    Iterator<BACKUP> iterOwned(long[] summary);
+
     void receive(Message message);
 
     void slavesAck(long id);
@@ -23,6 +23,8 @@ import co.paralleluniverse.galaxy.core.Message.BACKUP;
 import co.paralleluniverse.galaxy.core.Message.BACKUP_PACKET;
 import co.paralleluniverse.galaxy.core.Message.BACKUP_PACKETACK;
 import co.paralleluniverse.galaxy.core.Message.INV;
+import com.google.common.base.Predicate;
+import com.google.common.collect.Iterators;
 import java.beans.ConstructorProperties;
 import java.lang.reflect.Proxy;
 import java.nio.ByteBuffer;
@@ -49,6 +51,7 @@ public class BackupImpl extends ClusterService implements Backup {
     // The trick here is to allow fast updates w/o copying the line buffer with each update (and generating garbage in the process).
     // We just want to mark updated lines, and copy their contents periodically during flushes.
     private static final Logger LOG = LoggerFactory.getLogger(BackupImpl.class);
+    private static final int LINES_PER_SUMMARY_BUCKET = 16;
     private long maxDelayNanos = TimeUnit.NANOSECONDS.convert(10, TimeUnit.MILLISECONDS);
     private final Comm serverComm;
     private final SlaveComm slaveComm;
@@ -471,7 +474,72 @@ public class BackupImpl extends ClusterService implements Backup {
 
     @Override
     public Iterator<BACKUP> iterOwned() {
-        final Iterator<Cache.CacheLine> it = cache.ownedIterator();
+        return backups(cache.ownedIterator());
+    }
+
+    /**
+     * The summary has a digest of the (id, version) pairs of the lines in each of a number of buckets (by line id), so a slave that has
+     * been briefly disconnected only needs to be sent the buckets containing lines that have changed in the meantime.
+     * A new slave has no lines, and so sends an empty summary, and is sent all lines.
+     */
+    @Override
+    public long[] summarizeOwned() {
+        return summarize(Integer.highestOneBit(cache.ownedCount() / LINES_PER_SUMMARY_BUCKET));
+    }
+
+    @Override
+    public Iterator<BACKUP> iterOwned(final long[] summary) {
+        if (summary.length == 0)
+            return iterOwned();
+        if (Integer.bitCount(summary.length) != 1) {
+            LOG.warn("Invalid summary ({} buckets). Replicating all lines.", summary.length);
+            return iterOwned();
+        }
+
+        final long[] digests = summarize(summary.length);
+        int stale = 0;
+        for (int i = 0; i < digests.length; i++) {
+            if (digests[i] != summary[i])
+                stale++;
+        }
+        LOG.info("{} of {} buckets in slave summary are stale", stale, summary.length);
+
+        return backups(Iterators.filter(cache.ownedIterator(), new Predicate<CacheLine>() {
+            @Override
+            public boolean apply(CacheLine line) {
+                final int bucket = summaryBucket(line.getId(), summary.length);
+                return digests[bucket] != summary[bucket];
+            }
+        }));
+    }
+
+    private long[] summarize(int buckets) {
+        final long[] digests = new long[buckets];
+        if (buckets == 0)
+            return digests;
+        for (Iterator<CacheLine> it = cache.ownedIterator(); it.hasNext();) {
+            final CacheLine line = it.next();
+            synchronized (line) {
+                digests[summaryBucket(line.getId(), buckets)] += mix(mix(line.getId()) ^ line.getVersion());
+            }
+        }
+        return digests;
+    }
+
+    private static int summaryBucket(long id, int buckets) {
+        return (int) mix(id) & (buckets - 1);
+    }
+
+    private static long mix(long x) { // MurmurHash3's finalizer
+        x ^= x >>> 33;
+        x *= 0xff51afd7ed558ccdL;
+        x ^= x >>> 33;
+        x *= 0xc4ceb9fe1a85ec53L;
+        x ^= x >>> 33;
+        return x;
+    }
+
+    private Iterator<BACKUP> backups(final Iterator<CacheLine> it) {
         return new Iterator<BACKUP>() {
             @Override
             public boolean hasNext() {
@@ -480,7 +548,7 @@ public class BackupImpl extends ClusterService implements Backup {
 
             @Override
             public BACKUP next() {
-                final Cache.CacheLine line = it.next();
+                final CacheLine line = it.next();
                 synchronized (line) {
                     monitor.addReplicationBackup(1);
                     return (BACKUP) Message.BACKUP(line.getId(), line.getVersion(), line.getData()).cloneDataBuffers();
@@ -503,7 +571,10 @@ public class BackupImpl extends ClusterService implements Backup {
             case BACKUP_PACKET:
                 if (getCluster().isMaster())
                     LOG.warn("Received backup packet while master: {}", message);
-                else {
+                else if (((BACKUP_PACKET) message).getId() < 0) { // a chunk of the replication stream; acked just like a backup packet
+                    monitor.addReplicationBackup(((BACKUP_PACKET) message).getBackups().size());
+                    handleReceivedBackupPacket((BACKUP_PACKET) message);
+                } else {
                     monitor.addBackupPacket();
                     monitor.addBackups(((BACKUP_PACKET) message).getBackups().size());
                     handleReceivedBackupPacket((BACKUP_PACKET) message);
@@ -59,6 +59,16 @@ public class BackupNullImpl extends ClusterService implements Backup {
         return (Iterator<BACKUP>) Collections.EMPTY_SET.iterator();
     }
 
+    @Override
+    public long[] summarizeOwned() {
+        return new long[0];
+    }
+
+    @Override
+    public Iterator<BACKUP> iterOwned(long[] summary) {
+        return iterOwned();
+    }
+
     @Override
     public boolean startBackup() {
         return false;
@@ -18,14 +18,15 @@ import co.paralleluniverse.common.collection.LongObjectProcedure;
 import co.paralleluniverse.common.io.Checksum;
 import co.paralleluniverse.common.io.HashFunctionChecksum;
 import co.paralleluniverse.common.io.Persistable;
-import co.paralleluniverse.common.io.Persistables;
 import co.paralleluniverse.common.io.VersionedPersistable;
 import static co.paralleluniverse.common.logging.LoggingUtils.hex;
+import co.paralleluniverse.common.util.CoarseClock;
 import co.paralleluniverse.common.util.DegenerateInvocationHandler;
 import co.paralleluniverse.common.util.Enums;
 import co.paralleluniverse.galaxy.CacheListener;
 import co.paralleluniverse.galaxy.Cluster;
 import co.paralleluniverse.galaxy.ItemState;
+import co.paralleluniverse.galaxy.LineCallback;
 import co.paralleluniverse.galaxy.LineFunction;
 import co.paralleluniverse.galaxy.RefNotFoundException;
 import co.paralleluniverse.galaxy.TimeoutException;
@@ -36,10 +37,14 @@ import co.paralleluniverse.galaxy.core.Transaction.RollbackInfo;
 import com.google.common.base.Throwables;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.googlecode.concurrentlinkedhashmap.ConcurrentLinkedHashMap;
 import com.googlecode.concurrentlinkedhashmap.EvictionListener;
 import com.googlecode.concurrentlinkedhashmap.Weigher;
+import it.unimi.dsi.fastutil.longs.LongCollection;
 import it.unimi.dsi.fastutil.longs.LongIterator;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+import it.unimi.dsi.fastutil.longs.LongSet;
 import it.unimi.dsi.fastutil.shorts.ShortArraySet;
 import it.unimi.dsi.fastutil.shorts.ShortIterator;
 import it.unimi.dsi.fastutil.shorts.ShortOpenHashSet;
@@ -50,21 +55,25 @@ import java.nio.ByteBuffer;
 import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collection;
 import java.util.Collections;
 import java.util.ConcurrentModificationException;
 import java.util.Iterator;
-import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Queue;
 import java.util.Set;
 import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.CopyOnWriteArraySet;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 import org.cliffc.high_scale_lib.NonBlockingHashMapLong;
@@ -88,7 +97,9 @@ public class Cache extends ClusterService implements MessageReceiver, NodeChange
      */
     static final long MAX_RESERVED_REF_ID = 0xffffffffL;
     private static final boolean STALE_READS = true;
+    private static final long OWNER_CLOCK_MASK = (1L << 48) - 1;
     private static final int SHARER_SET_DEFAULT_SIZE = 10;
+    private static final int INLINE_SHARERS = 4; // sharers kept in the line itself, with no set allocated
     private static final Logger LOG = LoggerFactory.getLogger(Cache.class);
     private long timeout = 200000;
     private int maxItemSize = 1024;
@@ -103,8 +114,11 @@ public class Cache extends ClusterService implements MessageReceiver, NodeChange
     //
     private final NonBlockingHashMapLong<CacheLine> owned;
     private final ConcurrentMap<Long, CacheLine> shared;
-    private final NonBlockingHashMapLong<ArrayList<Op>> pendingOps;
-    private final NonBlockingHashMapLong<LinkedHashSet<LineMessage>> pendingMessages;
+    private final NonBlockingHashMapLong<Op> orphanedOps; // pending ops of discarded lines, waiting for the line to be re-created
+    private final NonBlockingHashMapLong<LineMessage> orphanedMessages;
+    private final NodeLineIndex ownerIndex = new NodeLineIndex();    // lines by owner
+    private final NodeLineIndex sharerIndex = new NodeLineIndex();   // lines by sharer
+    private final NodeLineIndex pendingIndex = new NodeLineIndex();  // lines by the sender of a pending message
     private ConcurrentLinkedDeque<CacheLine> freeLineList;
     private ConcurrentLinkedDeque<ShortSet> freeSharerSetList;
     private final ThreadLocal<Queue<Message>> shortCircuitMessage = new ThreadLocal<Queue<Message>>();
@@ -115,11 +129,26 @@ public class Cache extends ClusterService implements MessageReceiver, NodeChange
     private boolean synchronous = false;
     private final Set<NodeEvent> nodeEvents = new CopyOnWriteArraySet<NodeEvent>();
     private long maxStaleReadMillis = 500;
+    private int hotLinesSamplingRate = 0;
+    private int hotLinesTopK = 20;
+    private HotLineProfiler hotLines;
+    private int multicastInvalidationThreshold = 0;
+    private boolean earlyPublish = false;
+    private int ownerHintsCapacity = 1 << 16;
+    private OwnerHints ownerHints;
+    private int prefetchDistance = 0;
+    private int stickyLineThreshold = 0;
+    private long stickyLineMillis = 10;
+    private boolean leasedSharing = false;
+    private ScheduledExecutorService leaseTimer;
+    private final AtomicBoolean clockStarted = new AtomicBoolean(); // shutdown() is called both when going offline and when destroyed
+    private final ThreadLocal<StrideDetector> strideDetector = new ThreadLocal<StrideDetector>();
+    private final ConcurrentMap<Thread, CacheLine> earlyPublished = new ConcurrentHashMap<Thread, CacheLine>(); // issuing thread -> the line it has modified before all of its sharers have INVACKed
+    private final AtomicBoolean earlyPublishReleased = new AtomicBoolean();
+    private final Queue<CacheLine> earlyPublishWaiters = new ConcurrentLinkedQueue<CacheLine>();
     //
     private final IdAllocator idAllocator;
     private final NonBlockingHashMapLong<OwnerClock> ownerClocks;
-    private final OwnerClock globalOwnerClock;
-    private final AtomicLong clock = new AtomicLong();
     private final ThreadLocal<Boolean> recursive = new ThreadLocal<Boolean>();
     private final ThreadLocal<Boolean> inNodeEventHandler = new ThreadLocal<Boolean>();
     private final List<CacheListener> listeners = new CopyOnWriteArrayList<CacheListener>();
@@ -152,6 +181,9 @@ public class Cache extends ClusterService implements MessageReceiver, NodeChange
             Op.Type.DEL,
             Op.Type.INVOKE,
             Op.Type.LSTN);
+    private static final long PREFETCH_OPS = Enums.setOf(
+            Op.Type.GET,
+            Op.Type.GETS);
     private static final long LOCKING_OPS = Enums.setOf(
             Op.Type.GETS,
             Op.Type.GETX,
@@ -194,11 +226,8 @@ public class Cache extends ClusterService implements MessageReceiver, NodeChange
 
         if (STALE_READS) {
             this.ownerClocks = new NonBlockingHashMapLong<OwnerClock>();
-            this.globalOwnerClock = getOwnerClock((short) -1);
-        } else {
+        } else
             this.ownerClocks = null;
-            this.globalOwnerClock = null;
-        }
 
         this.monitor.setMonitoredObject(this);
         getCluster().addNodeChangeListener(this);
@@ -207,8 +236,8 @@ public class Cache extends ClusterService implements MessageReceiver, NodeChange
 
         this.owned = new NonBlockingHashMapLong<CacheLine>();
         this.shared = buildSharedCache(maxCapacity);
-        this.pendingOps = new NonBlockingHashMapLong<ArrayList<Op>>();
-        this.pendingMessages = new NonBlockingHashMapLong<LinkedHashSet<LineMessage>>();
+        this.orphanedOps = new NonBlockingHashMapLong<Op>();
+        this.orphanedMessages = new NonBlockingHashMapLong<LineMessage>();
     }
 
     private ConcurrentMap<Long, CacheLine> buildSharedCache(long maxCapacity) {
@@ -318,6 +347,96 @@ public class Cache extends ClusterService implements MessageReceiver, NodeChange
         this.maxStaleReadMillis = maxStaleReadMillis;
     }
 
+    public void setHotLinesSamplingRate(int hotLinesSamplingRate) {
+        assertDuringInitialization();
+        this.hotLinesSamplingRate = hotLinesSamplingRate;
+    }
+
+    @ManagedAttribute
+    public int getHotLinesSamplingRate() {
+        return hotLinesSamplingRate;
+    }
+
+    public void setHotLinesTopK(int hotLinesTopK) {
+        assertDuringInitialization();
+        this.hotLinesTopK = hotLinesTopK;
+    }
+
+    @ManagedAttribute
+    public int getHotLinesTopK() {
+        return hotLinesTopK;
+    }
+
+    public void setMulticastInvalidationThreshold(int multicastInvalidationThreshold) {
+        assertDuringInitialization();
+        this.multicastInvalidationThreshold = multicastInvalidationThreshold;
+    }
+
+    @ManagedAttribute
+    public int getMulticastInvalidationThreshold() {
+        return multicastInvalidationThreshold;
+    }
+
+    public void setEarlyPublish(boolean earlyPublish) {
+        assertDuringInitialization();
+        this.earlyPublish = earlyPublish;
+    }
+
+    @ManagedAttribute
+    public boolean isEarlyPublish() {
+        return earlyPublish;
+    }
+
+    public void setOwnerHintsCapacity(int ownerHintsCapacity) {
+        assertDuringInitialization();
+        this.ownerHintsCapacity = ownerHintsCapacity;
+    }
+
+    @ManagedAttribute
+    public int getOwnerHintsCapacity() {
+        return ownerHintsCapacity;
+    }
+
+    public void setPrefetchDistance(int prefetchDistance) {
+        assertDuringInitialization();
+        this.prefetchDistance = prefetchDistance;
+    }
+
+    @ManagedAttribute
+    public int getPrefetchDistance() {
+        return prefetchDistance;
+    }
+
+    public void setStickyLineThreshold(int stickyLineThreshold) {
+        assertDuringInitialization();
+        this.stickyLineThreshold = stickyLineThreshold;
+    }
+
+    @ManagedAttribute
+    public int getStickyLineThreshold() {
+        return stickyLineThreshold;
+    }
+
+    public void setStickyLineMillis(long stickyLineMillis) {
+        assertDuringInitialization();
+        this.stickyLineMillis = stickyLineMillis;
+    }
+
+    @ManagedAttribute
+    public long getStickyLineMillis() {
+        return stickyLineMillis;
+    }
+
+    public void setLeasedSharing(boolean leasedSharing) {
+        assertDuringInitialization();
+        this.leasedSharing = leasedSharing;
+    }
+
+    @ManagedAttribute
+    public boolean isLeasedSharing() {
+        return leasedSharing;
+    }
+
     @Override
     public void init() throws Exception {
         super.init();
@@ -328,6 +447,25 @@ public class Cache extends ClusterService implements MessageReceiver, NodeChange
         this.freeLineList = reuseLines ? new ConcurrentLinkedDeque<CacheLine>() : null;
         this.freeSharerSetList = reuseSharerSets ? new ConcurrentLinkedDeque<ShortSet>() : null;
         this.broadcastsRoutedToServer = hasServer && ((AbstractComm) comm).isSendToServerInsteadOfMulticast(); // this is a special case that requires special handling b/c of potential consistency problems (see MainMemory)
+        if (hotLinesSamplingRate > 0) {
+            this.hotLines = new HotLineProfiler(hotLinesSamplingRate, hotLinesTopK);
+            monitor.setHotLineProfiler(hotLines);
+        }
+        if (ownerHintsCapacity > 0)
+            this.ownerHints = new OwnerHints(ownerHintsCapacity);
+        if (leasedSharing)
+            this.leaseTimer = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder().setNameFormat("galaxyCacheLeases-%d").setDaemon(true).build());
+        if (clockStarted.compareAndSet(false, true))
+            CoarseClock.start();
+    }
+
+    @Override
+    protected void shutdown() {
+        super.shutdown();
+        if (leaseTimer != null)
+            leaseTimer.shutdownNow();
+        if (clockStarted.compareAndSet(true, false))
+            CoarseClock.stop();
     }
 
     void allocatorReady() {
@@ -369,6 +507,10 @@ public class Cache extends ClusterService implements MessageReceiver, NodeChange
         return owned.values().iterator();
     }
 
+    int ownedCount() {
+        return owned.size();
+    }
+
     RefAllocator getRefAllocator() {
         return idAllocator.getRefAllocator();
     }
@@ -390,6 +532,9 @@ public class Cache extends ClusterService implements MessageReceiver, NodeChange
         public static final byte SLAVE = 1 << 2; // true when slave(s) think line is owned by us
         public static final byte DELETED = 1 << 3;
         public static final byte INCOMPLETE = 1 << 4;
+        public static final byte WRITE_UPDATE = 1 << 5; // push new versions to invalidated sharers rather than have them re-GET
+        public static final byte PREFETCHED = 1 << 6; // requested speculatively, and not yet accessed
+        public static final byte STICKY = (byte) (1 << 7); // the owner keeps the line, and runs remote writes itself (see keepSticky)
         private long id;                // 8
         private byte flags;             // 1
         //private short sem;              // 2
@@ -397,14 +542,26 @@ public class Cache extends ClusterService implements MessageReceiver, NodeChange
         private volatile State state;   // 4
         private State nextState;        // 4
         private volatile long version;  // 8
-        private long ownerClock;        // 8 must contain a counter that is monotonically increasing for each owner, e.g, the message id
+        private long ownerClock;        // 8 the owner (high 16 bits) whose clock stamped the line, and that clock's value
         private ByteBuffer data;        // 4
         private short parts;            // 2
         private short owner = -1;       // 2
-        private ShortSet sharers;       // 4
+        private long sharers;           // 8 up to INLINE_SHARERS sharers, 16 bits each (node + 1; 0 - empty)
+        private ShortSet moreSharers;   // 4 all of the sharers, once there are more than fit inline (null otherwise)
         private volatile CacheListener listener; // 4
+        private Op firstPendingOp;      // 4 pending ops/messages are kept in intrusive queues
+        private Op lastPendingOp;       // 4
+        private LineMessage firstPendingMessage; // 4
+        private LineMessage lastPendingMessage;  // 4
+        private long transitionStart;   // 8 nanoTime of the start of the current miss or invalidation (for monitoring)
+        private short[] writeUpdateTargets; // 4 sharers invalidated by the current write, to be pushed the new version (WRITE_UPDATE)
+        private long acquired;          // 8 when we last got the line (or, if STICKY, last ran or were refused a remote write)
+        private byte migrations;        // 1 consecutive ownership transfers shortly after the line was acquired
+        private long leaseExpires;      // 8 nanoTime when our S copy's lease lapses, or, if we own the line, when all granted leases do (0 - none)
+        private boolean publishWaiting; // 1 queued in earlyPublishWaiters
+        private boolean publishedEarly; // 1 in earlyPublished
         // =
-        // 49 (+ 8 = 57)
+        // 100 (+ 8 = 108)
 
         public long getId() {
             return id;
@@ -491,6 +648,80 @@ public class Cache extends ClusterService implements MessageReceiver, NodeChange
             return data != null ? data.capacity() : 0; // user's care about capacity, not actual usage
         }
 
+        boolean hasSharers() {
+            return moreSharers != null ? !moreSharers.isEmpty() : sharers != 0;
+        }
+
+        boolean isSharer(short node) {
+            if (moreSharers != null)
+                return moreSharers.contains(node);
+            return inlineSlot(node) >= 0;
+        }
+
+        int getSharerCount() {
+            if (moreSharers != null)
+                return moreSharers.size();
+            int count = 0;
+            for (int i = 0; i < INLINE_SHARERS; i++) {
+                if (inlineSharer(i) != 0)
+                    count++;
+            }
+            return count;
+        }
+
+        short[] getSharers() {
+            if (moreSharers != null)
+                return moreSharers.toShortArray();
+            final short[] nodes = new short[getSharerCount()];
+            int n = 0;
+            for (int i = 0; i < INLINE_SHARERS; i++) {
+                final int s = inlineSharer(i);
+                if (s != 0)
+                    nodes[n++] = (short) (s - 1);
+            }
+            return nodes;
+        }
+
+        /**
+         * @return {@code false} if the sharer has not been added because there's no room for it inline.
+         */
+        private boolean addInlineSharer(short node) {
+            int free = -1;
+            for (int i = 0; i < INLINE_SHARERS; i++) {
+                final int s = inlineSharer(i);
+                if (s == node + 1)
+                    return true;
+                if (s == 0 && free < 0)
+                    free = i;
+            }
+            if (free < 0)
+                return false;
+            sharers |= (long) (node + 1) << (free << 4);
+            return true;
+        }
+
+        private boolean removeInlineSharer(short node) {
+            final int i = inlineSlot(node);
+            if (i < 0)
+                return false;
+            sharers &= ~(0xFFFFL << (i << 4));
+            return true;
+        }
+
+        private int inlineSlot(short node) {
+            if (node < 0)
+                return -1; // -1 (no node) would match an empty slot
+            for (int i = 0; i < INLINE_SHARERS; i++) {
+                if (inlineSharer(i) == node + 1)
+                    return i;
+            }
+            return -1;
+        }
+
+        private int inlineSharer(int i) {
+            return (int) (sharers >>> (i << 4)) & 0xFFFF;
+        }
+
         public void rewind() {
             if (data != null)
                 data.rewind();
@@ -504,7 +735,7 @@ public class Cache extends ClusterService implements MessageReceiver, NodeChange
             if (nextState != null)
                 sb.append("(->").append(nextState).append(")");
             sb.append(" OWN: ").append(owner);
-            sb.append(" SHARE: ").append(sharers);
+            sb.append(" SHARE: ").append(Arrays.toString(getSharers()));
             sb.append(" VER: ").append(version);
             sb.append(" DATA: ").append(data != null ? "(" + size() + " bytes)" : "null");
             if (isLocked())
@@ -515,6 +746,12 @@ public class Cache extends ClusterService implements MessageReceiver, NodeChange
                 sb.append(" SLAVE");
             if (is(DELETED))
                 sb.append(" DELETED");
+            if (is(WRITE_UPDATE))
+                sb.append(" WRITE_UPDATE");
+            if (is(PREFETCHED))
+                sb.append(" PREFETCHED");
+            if (is(STICKY))
+                sb.append(" STICKY");
             return sb.toString();
         }
     }
@@ -555,6 +792,38 @@ public class Cache extends ClusterService implements MessageReceiver, NodeChange
             return Futures.immediateFuture(result);
     }
 
+    /**
+     * Runs a non-transactional op, and completes it through the given callback rather than through a future. If the op
+     * completes immediately, the callback is called on the calling thread; otherwise it is called by the thread completing
+     * the op (normally a comm thread).
+     */
+    public void doOpWithCallback(Op.Type type, long id, Object data, Object extra, LineCallback<?> callback) {
+        if (!getCluster().isMaster())
+            throw new IllegalStateException("Node is a slave. Cannot run grid operations");
+        @SuppressWarnings("unchecked") // the result passed to the callback is of the type the caller (StoreImpl) expects for the op
+        final LineCallback<Object> cb = (LineCallback<Object>) callback;
+
+        if (LOG.isDebugEnabled())
+            LOG.debug("Run(fast): Op.{}(line:{}{}{})", type, hex(id), ((data != null && LOG.isTraceEnabled()) ? ", data:" + data : ""), (extra != null ? ", extra:" + extra : ""));
+        Object result;
+        try {
+            result = runFastTrack(id, type, data, extra, null);
+            if (result == PENDING) {
+                final Op op = new Op(type, id, data, extra, null); // "slow" track
+                op.setCallback(cb);
+                result = runOp(op);
+                if (result == PENDING || (result == null && op.isCompleted()))
+                    return; // the callback will be (or has already been) called by completeOp/opException
+            }
+        } catch (Throwable t) {
+            Op.fail(cb, id, t);
+            return;
+        }
+        if (result instanceof Op)
+            throw new IllegalArgumentException("Op " + type + " is not supported with a callback");
+        Op.complete(cb, id, result);
+    }
+
     /**
      * This one blocks!
      *
@@ -610,13 +879,16 @@ public class Cache extends ClusterService implements MessageReceiver, NodeChange
                 line = createNewCacheLine(id);
         }
 
+        final long start = System.nanoTime();
         final Object res;
         synchronized (line) {
             res = handleOp(line, type, data, extra, txn, false, LINE_EVERYTHING_CHANGED, null);
         }
+        if (prefetchDistance > 0)
+            prefetch();
 
         if (res != PENDING)
-            monitor.addOp(type, 0);
+            monitor.addOp(type, System.nanoTime() - start);
         return res;
     }
 
@@ -641,9 +913,15 @@ public class Cache extends ClusterService implements MessageReceiver, NodeChange
             final Object res;
             synchronized (line) {
                 res = execOp(op, line);
+                if (earlyPublish)
+                    releaseEarlyPublish(line);
             }
 
+            if (prefetchDistance > 0)
+                prefetch();
             receiveShortCircuit();
+            if (earlyPublish)
+                wakeEarlyPublishWaiters();
 
             if (res instanceof Op)
                 return runOp((Op) res);
@@ -722,20 +1000,25 @@ public class Cache extends ClusterService implements MessageReceiver, NodeChange
         else {
             switch (type) {
                 case GET:
-                case GETS:
                     res = handleOpGet(line, type, data, nodeHint(extra), txn, lineChange);
                     break;
+                case GETS:
+                    if (leasedSharing) // a leased S copy can't be pinned, so we pin the line E instead (see grantLease)
+                        res = handleOpGetX(line, data, nodeHint(extra), txn, lineChange, true, op);
+                    else
+                        res = handleOpGet(line, type, data, nodeHint(extra), txn, lineChange);
+                    break;
                 case GETX:
-                    res = handleOpGetX(line, data, nodeHint(extra), txn, lineChange, pending);
+                    res = handleOpGetX(line, data, nodeHint(extra), txn, lineChange, pending, op);
                     break;
                 case GET_FROM_OWNER:
                     res = handleOpGetFromOwner(line, extra);
                     break;
                 case SET:
-                    res = handleOpSet(line, data, nodeHint(extra), txn, lineChange);
+                    res = handleOpSet(line, data, nodeHint(extra), txn, lineChange, op);
                     break;
                 case DEL:
-                    res = handleOpDel(line, nodeHint(extra), txn, lineChange);
+                    res = handleOpDel(line, nodeHint(extra), txn, lineChange, op);
                     break;
                 case SEND:
                     res = handleOpSend(line, extra, lineChange);
@@ -765,6 +1048,8 @@ public class Cache extends ClusterService implements MessageReceiver, NodeChange
                     monitor.addHit();
             }
             // addMiss and addInvalidates are handled by setNextState();
+            if (prefetchDistance > 0 && type.isOf(PREFETCH_OPS))
+                recordAccess(line, res == PENDING && line.getState() == State.I);
         }
 
         return res;
@@ -774,7 +1059,9 @@ public class Cache extends ClusterService implements MessageReceiver, NodeChange
         long duration = 0;
         if (pending) {
             assert op.getStartTime() != 0;
-            duration = (System.nanoTime() - op.getStartTime()) / 1000; // Microseconds
+            duration = System.nanoTime() - op.getStartTime();
+            if (hotLines != null)
+                hotLines.record(HotLineProfiler.Category.PENDING_WAIT, op.line, duration / 1000);
         }
         if (op.hasFuture()) {
             if (LOG.isDebugEnabled())
@@ -825,12 +1112,16 @@ public class Cache extends ClusterService implements MessageReceiver, NodeChange
     private void handlePendingOps(CacheLine line, int change) {
         if (line == null)
             return;
-        for (Iterator<Op> it = getPendingOps(line).iterator(); it.hasNext();) {
-            final Op op = it.next();
+        Op prev = null;
+        for (Op op = line.firstPendingOp; op != null;) {
+            final Op next = op.nextPending;
             if (LOG.isDebugEnabled())
                 LOG.debug("Handling pending op {}, change = {}", op, change);
             if (handleOp(line, op, true, change) != PENDING)
-                it.remove();
+                unlinkPendingOp(line, prev, op);
+            else
+                prev = op;
+            op = next;
         }
     }
 
@@ -843,6 +1134,8 @@ public class Cache extends ClusterService implements MessageReceiver, NodeChange
                 LOG.debug("Received: {}", message);
                 receive1(message);
                 receiveShortCircuit();
+                if (earlyPublish)
+                    wakeEarlyPublishWaiters();
             } finally {
                 recursive.remove();
             }
@@ -947,6 +1240,8 @@ public class Cache extends ClusterService implements MessageReceiver, NodeChange
         int change = handleMessage1(message, line);
         handlePendingOps(line, change);
         handlePendingMessagesAfterMessage(line, change);
+        if (earlyPublish)
+            releaseEarlyPublish(line);
     }
 
     private int handleMessage1(LineMessage message, CacheLine line) {
@@ -1071,21 +1366,21 @@ public class Cache extends ClusterService implements MessageReceiver, NodeChange
         int messageCount = 0;
         long totalDelay = 0;
 
-        final Collection<LineMessage> pending = getPendingMessages(line);
-        final int n = pending.size();
+        final int n = countPendingMessages(line);
         for (int i = 0; i < n; i++) {
-            final Iterator<LineMessage> it = pending.iterator();
-            if (!it.hasNext())
+            final LineMessage msg = pollPendingMessage(line);
+            if (msg == null)
                 break;
 
-            final LineMessage msg = it.next();
-            it.remove();
-
             LOG.debug("Handling pending message {}", msg);
             change |= handleMessage1(msg, line);
 
+            final long delay = now - msg.getTimestamp();
+            monitor.addMessageDelay(reason, delay);
+            if (hotLines != null && reason == CacheMonitor.MessageDelayReason.LOCK)
+                hotLines.record(HotLineProfiler.Category.LOCK_DELAY, line.getId(), delay / 1000);
             messageCount++;
-            totalDelay += now - msg.getTimestamp();
+            totalDelay += delay;
         }
 
         if (messageCount > 0)
@@ -1210,6 +1505,18 @@ public class Cache extends ClusterService implements MessageReceiver, NodeChange
             throw new AssertionError();
         }
     }
+
+    @Override
+    public void setWriteUpdate(long id, boolean value) {
+        CacheLine line = getLine(id);
+        if (line == null)
+            line = createNewCacheLine(id);
+        synchronized (line) {
+            line.set(CacheLine.WRITE_UPDATE, value);
+            if (!value)
+                line.writeUpdateTargets = null;
+        }
+    }
     //</editor-fold>
 
     //<editor-fold defaultstate="expanded" desc="Logic">
@@ -1235,11 +1542,29 @@ public class Cache extends ClusterService implements MessageReceiver, NodeChange
                         LOG.debug("Rolling back line {} to version {}. Modified = {}", hex(line.getId()), r.version, r.modified);
                     line.version = r.version;
                     line.set(CacheLine.MODIFIED, r.modified);
-                    writeData(line, r.data);
+                    final int oldSize = line.size();
+                    if (line.data != null)
+                        deallocateStorage(id, line.data);
+                    line.data = r.data; // the pre-image is now the line's again
+                    if (line.getState().isLessThan(State.O))
+                        putLine(id, line, oldSize, line.size()); // size changed
                     return true;
                 }
             }
         });
+        txn.clearRollbacks();
+    }
+
+    private void releaseRollbacks(Transaction txn) {
+        txn.forEachRollback(new LongObjectProcedure<RollbackInfo>() {
+            @Override
+            public boolean execute(long id, RollbackInfo r) {
+                if (r.data != null)
+                    deallocateStorage(id, r.data);
+                return true;
+            }
+        });
+        txn.clearRollbacks();
     }
 
     public void endTransaction(Transaction txn, boolean abort) throws InterruptedException {
@@ -1284,6 +1609,9 @@ public class Cache extends ClusterService implements MessageReceiver, NodeChange
         if (flush)
             backup.flush();
 
+        if (rollbackSupported)
+            releaseRollbacks(txn);
+
         for (CacheLine line : unmodified) {
             synchronized (line) {
                 handlePendingMessages(line, CacheMonitor.MessageDelayReason.LOCK);
@@ -1342,6 +1670,27 @@ public class Cache extends ClusterService implements MessageReceiver, NodeChange
     private void backupLine(CacheLine line) {
         line.set(CacheLine.SLAVE, true);
         backup.backup(line.getId(), line.getVersion());
+        if (line.writeUpdateTargets != null)
+            pushWriteUpdate(line);
+    }
+
+    /**
+     * Called once a write to a WRITE_UPDATE line has been committed. The sharers invalidated by the write are pushed the new
+     * version by a PUSH op, which, like one issued by the user, waits for the version to be backed up.
+     */
+    private void pushWriteUpdate(CacheLine line) {
+        final short[] toNodes = line.writeUpdateTargets;
+        line.writeUpdateTargets = null;
+        if (!line.is(CacheLine.WRITE_UPDATE))
+            return;
+        LOG.debug("Pushing write-update of line {} to {}", line, toNodes);
+        if (!line.is(CacheLine.MODIFIED)) { // already backed up
+            handleOpPush(line, toNodes, LINE_MODIFIED_CHANGED);
+            return;
+        }
+        final Op op = new Op(Op.Type.PUSH, line.getId(), (Object) toNodes, null);
+        op.setStartTime(System.nanoTime());
+        addPendingOp(line, op);
     }
     //</editor-fold>
 
@@ -1354,8 +1703,11 @@ public class Cache extends ClusterService implements MessageReceiver, NodeChange
         if (line.is(CacheLine.DELETED))
             handleDeleted(line);
 
+        if (leasedSharing && line.getState() == State.S && isLeaseLapsed(line))
+            expireLease(line);
+
         if (!transitionToS(line, nodeHint)) {
-            if (type != Op.Type.GETS && line.version > 0 && !isPossibleInconsistencies(line)) {
+            if (type != Op.Type.GETS && !leasedSharing && line.version > 0 && !isPossibleInconsistencies(line)) {
                 if (data != null) {
                     readData(line, (Persistable) data);
                     return null;
@@ -1375,7 +1727,7 @@ public class Cache extends ClusterService implements MessageReceiver, NodeChange
             return readData(line);
     }
 
-    private Object handleOpGetX(CacheLine line, Object data, short nodeHint, Transaction txn, int change, boolean pending) {
+    private Object handleOpGetX(CacheLine line, Object data, short nodeHint, Transaction txn, int change, boolean pending, Op op) {
         if ((change & (LINE_STATE_CHANGED | LINE_OWNER_CHANGED)) == 0)
             return PENDING;
 
@@ -1385,7 +1737,7 @@ public class Cache extends ClusterService implements MessageReceiver, NodeChange
         if (!pending)
             verifyNoUpgrade(line);
 
-        if (!transitionToE(line, nodeHint))
+        if (!transitionToE(line, nodeHint, txn, op))
             return PENDING;
 
         lockLine(line, txn); // we get here when were O (see transitionToE or E).
@@ -1431,47 +1783,49 @@ public class Cache extends ClusterService implements MessageReceiver, NodeChange
     private boolean transitionToO(CacheLine line, short nodeHint) {
         if (line.state.isLessThan(State.O)) {
             if (setNextState(line, State.O))
-                send(Message.GETX(getTarget(line, nodeHint), line.id));
+                send(Message.GETX(getTarget(line, nodeHint), line.id).setMigrate(line.is(CacheLine.STICKY)));
             return false;
         } else
             return true;
     }
 
     private boolean transitionToE(CacheLine line, short nodeHint) {
+        return transitionToE(line, nodeHint, null, (Thread) null); // writes requested by other nodes aren't ordered after ours
+    }
+
+    /**
+     * @param op the op (or {@code null} on the fast track, where it's run by the issuing thread)
+     */
+    private boolean transitionToE(CacheLine line, short nodeHint, Transaction txn, Op op) {
+        return transitionToE(line, nodeHint, txn, earlyPublish ? (op != null ? op.issuer : Thread.currentThread()) : null);
+    }
+
+    /**
+     * @param issuer the thread whose previous writes this write is ordered after, or {@code null} if it isn't ordered after any
+     *               (see publishEarly)
+     */
+    private boolean transitionToE(CacheLine line, short nodeHint, Transaction txn, Thread issuer) {
         if (!transitionToO(line, nodeHint))
             return false;
         assert !line.state.isLessThan(State.O);
 
         final boolean res;
 
+        if (leasedSharing && line.state == State.O)
+            dropLapsedLeases(line);
+
         if (line.state.isLessThan(State.E)) {
             if (setNextState(line, State.E)) {
-                assert !line.sharers.isEmpty();
-                for (ShortIterator it = line.sharers.iterator(); it.hasNext();) {
-                    final short sharer = it.next();
-                    if (sharer != Comm.SERVER) // we've already INVed server in handleMessagePutX
-                        send(Message.INV(sharer, line.getId(), line.getOwner())); // owner may not be us but the previous owner - see handleMessagePutX
-                }
+                assert line.hasSharers();
+                sendInvalidations(line);
+                if (line.is(CacheLine.WRITE_UPDATE))
+                    line.writeUpdateTargets = writeUpdateTargets(line);
+                if (leasedSharing)
+                    scheduleLeaseExpiry(line);
             }
-            res = false;
-            /*
-             * The following optimization has been temporarily disabled, due to the following scenario:
-             *
-             * Node A owns X and Y. B shares X and pins it. A modifies X, and doesn't wait for B's INVACK, which won't come until
-             * it unpins X. Then A also modifies Y (which can be published because it's not shared). B then requests Y and accepts it,
-             * but it is now inconsistent with X.
-             *
-             * An alternative solution will be to enable this optimization for a single line per transaction, so that A won't be able
-             * to modify Y until X is released and INVACKed by B.
-             */
-//            if (broadcastsRoutedToServer)
-//                res = !line.sharers.contains(Comm.SERVER); // in this particular case, we wait for server to INVACK (this case may have consistency problems, otherwise)
-//            else if (!hasServer)
-//                res = !line.sharers.contains(line.getOwner()); // getOwner still has the old owner. when it invacks, it means it has inved its slaves so we're safe.
-//            else
-//                res = true; // we don't wait for acks, but GET messages are kept pending until the transition
+            res = issuer != null && publishEarly(line, txn, issuer);
         } else
-            res = true;
+            res = issuer == null || mayPublish(line, issuer);
         // INVACKs cannot cause deadlocks (really? proof?), so we don't need to wait and see if they timeout.
 
         if (res)
@@ -1479,14 +1833,234 @@ public class Cache extends ClusterService implements MessageReceiver, NodeChange
         return res;
     }
 
-    private Object handleOpSet(CacheLine line, Object data, short nodeHint, Transaction txn, int change) {
+    /*
+     * Early publishing lets us modify a line before all of its sharers have INVACKed. This is safe as long as other nodes can't
+     * observe the modification before then (messages are held while the line is O with nextState E - see shouldHoldMessage), and
+     * as long as no later write issued by the same thread becomes visible before it. Otherwise, a sharer that has pinned X, and so
+     * delays its INVACK, could read a later modification of Y and still see the old X. So each thread may have only one line at a time
+     * published early, and only by an op that isn't part of a transaction with other lines, and while it is, the thread's writes to
+     * all other lines wait. Writes issued by other threads aren't ordered after it, and proceed (each may publish its own line early),
+     * so a thread that has read the new X locally is not prevented from publishing a write to Y before X's INVACKs arrive.
+     */
+    private boolean publishEarly(CacheLine line, Transaction txn, Thread issuer) {
+        if (txn != null && !isOnlyLine(txn, line.getId()))
+            return false;
+        if (broadcastsRoutedToServer ? line.isSharer(Comm.SERVER) // in this particular case, we wait for server to INVACK (this case may have consistency problems, otherwise)
+                : (!hasServer && line.isSharer(line.getOwner()))) // getOwner still has the old owner. when it invacks, it means it has inved its slaves so we're safe.
+            return false;
+        CacheLine early = earlyPublished.putIfAbsent(issuer, line);
+        if (early != null && early != line) {
+            awaitEarlyPublish(line); // we may get the chance before the INVACKs arrive
+            if ((early = earlyPublished.putIfAbsent(issuer, line)) != null && early != line) // in case it's been released before we were added
+                return false;
+        }
+        LOG.debug("Publishing line {} early", line);
+        line.publishedEarly = true;
+        return true;
+    }
+
+    private boolean mayPublish(CacheLine line, Thread issuer) {
+        final CacheLine early = earlyPublished.get(issuer);
+        if (early == null || early == line)
+            return true;
+        awaitEarlyPublish(line);
+        return earlyPublished.get(issuer) != early; // in case it's been released before we were added
+    }
+
+    /**
+     * Must be called when holding the line's lock.
+     */
+    private void awaitEarlyPublish(CacheLine line) {
+        if (!line.publishWaiting) { // an op retried by wakeEarlyPublishWaiters would otherwise queue the line again
+            line.publishWaiting = true;
+            earlyPublishWaiters.add(line);
+        }
+    }
+
+    private static boolean isOnlyLine(Transaction txn, long id) {
+        final LongCollection lines = txn.getLines();
+        return lines.isEmpty() || (lines.size() == 1 && lines.contains(id));
+    }
+
+    /**
+     * Must be called when holding the line's lock.
+     */
+    private void releaseEarlyPublish(CacheLine line) {
+        if (line.publishedEarly && !(line.getState() == State.O && line.getNextState() == State.E)) {
+            LOG.debug("Line {} no longer published early", line);
+            line.publishedEarly = false;
+            for (Map.Entry<Thread, CacheLine> entry : earlyPublished.entrySet()) {
+                if (entry.getValue() == line)
+                    earlyPublished.remove(entry.getKey(), line);
+            }
+            earlyPublishReleased.set(true);
+        }
+    }
+
+    /**
+     * Retries the ops waiting for a line published early to be released, if one has been. Ops still waiting (for another thread's
+     * line) are queued again, and retried after the next release. Must be called when not holding any line's lock.
+     */
+    private void wakeEarlyPublishWaiters() {
+        if (!earlyPublishReleased.compareAndSet(true, false))
+            return;
+        CacheLine line;
+        for (int n = earlyPublishWaiters.size(); n > 0 && (line = earlyPublishWaiters.poll()) != null; n--) {
+            synchronized (line) {
+                line.publishWaiting = false;
+                handlePendingOps(line, LINE_EVERYTHING_CHANGED);
+                releaseEarlyPublish(line);
+            }
+        }
+    }
+
+    /*
+     * With leased sharing, an S copy may only be read for maxStaleReadMillis after it was requested, and the owner remembers
+     * when the last lease it has granted lapses. Once it has, no sharer may still read the line, and the owner can take it to E
+     * without waiting for INVACKs. The sharer counts its lease from the time it sent the GET, and the owner from the time it
+     * sent the PUT, so the sharer's lease always lapses first (as long as the clocks run at the same rate).
+     *
+     * A PUT the owner pushes (PUSH or WRITE_UPDATE) answers no GET, so its receiver counts the lease from the time it got it,
+     * and the owner grants pushed copies twice the lease. This is safe as long as a PUT is delivered within maxStaleReadMillis.
+     *
+     * Because the owner doesn't wait for sharers whose leases have lapsed, it can't honor a pinned (GETS) S copy. So GETS
+     * pins the line E instead, like GETX: the line is isolated as before, but concurrent GETS of the same line by different
+     * nodes no longer share it.
+     */
+    private void grantLease(CacheLine line) {
+        grantLease(line, maxStaleReadMillis);
+    }
+
+    private void grantLease(CacheLine line, long millis) {
+        final long expires = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis);
+        if (line.leaseExpires == 0 || expires - line.leaseExpires > 0)
+            line.leaseExpires = expires;
+    }
+
+    private static boolean isLeaseLapsed(CacheLine line) {
+        return line.leaseExpires == 0 || System.nanoTime() - line.leaseExpires >= 0;
+    }
+
+    private void expireLease(CacheLine line) {
+        assert !line.isLocked(); // leased lines are pinned E (see grantLease)
+        LOG.debug("Lease of line {} has lapsed", line);
+        setNextState(line, null);
+        setState(line, State.I); // the owner no longer counts us as a sharer, so no INVACK
+        if (!line.is(CacheLine.DELETED))
+            fireLineInvalidated(line);
+    }
+
+    /**
+     * Removes the sharers whose leases have lapsed, and if none are left, completes the transition to E.
+     *
+     * @return {@code true} if the line is now E.
+     */
+    private boolean dropLapsedLeases(CacheLine line) {
+        if (!isLeaseLapsed(line))
+            return false;
+        for (short sharer : line.getSharers()) {
+            if (sharer != Comm.SERVER && sharer != line.getOwner()) // the server and the previous owner are INVed for the transfer of ownership (see handleMessagePutX)
+                removeSharer(line, sharer);
+        }
+        if (line.hasSharers())
+            return false;
+        LOG.debug("All leases of line {} have lapsed", line);
+        if (line.transitionStart != 0 && line.nextState == State.E) {
+            monitor.addInvalidationLatency(System.nanoTime() - line.transitionStart);
+            line.transitionStart = 0;
+        }
+        setState(line, line.is(CacheLine.DELETED) ? State.I : State.E);
+        setOwner(line, myNodeId());
+        return true;
+    }
+
+    private void scheduleLeaseExpiry(final CacheLine line) {
+        final long id = line.getId();
+        final long delay = line.leaseExpires != 0 ? line.leaseExpires - System.nanoTime() : 0;
+        leaseTimer.schedule(new Runnable() {
+            @Override
+            public void run() {
+                leaseExpired(line, id);
+            }
+        }, Math.max(delay, 0), TimeUnit.NANOSECONDS);
+    }
+
+    private void leaseExpired(CacheLine line, long id) {
+        recursive.set(Boolean.TRUE);
+        try {
+            synchronized (line) {
+                if (line.getId() != id || line.getState() != State.O || line.nextState != State.E)
+                    return; // INVACKed or gone
+                if (!dropLapsedLeases(line)) {
+                    if (!isLeaseLapsed(line))
+                        scheduleLeaseExpiry(line); // the timer fired a little early
+                    return; // otherwise, still waiting for the INVACKs of the server or the previous owner
+                }
+                final int change = LINE_STATE_CHANGED | LINE_OWNER_CHANGED;
+                handlePendingOps(line, change);
+                handlePendingMessagesAfterMessage(line, change);
+                if (earlyPublish)
+                    releaseEarlyPublish(line);
+            }
+            receiveShortCircuit();
+            if (earlyPublish)
+                wakeEarlyPublishWaiters();
+        } finally {
+            recursive.remove();
+        }
+    }
+
+    private void sendInvalidations(CacheLine line) {
+        if (shouldMulticastInvalidation(line)) {
+            // a single INV to all nodes, resent until each has INVACKed it; nodes that don't share the line simply INVACK it (see handleMessageInvalidate)
+            send(Message.INV((short) -1, line.getId(), line.getOwner()));
+            return;
+        }
+        for (short sharer : line.getSharers()) {
+            if (sharer != Comm.SERVER) // we've already INVed server in handleMessagePutX
+                send(Message.INV(sharer, line.getId(), line.getOwner())); // owner may not be us but the previous owner - see handleMessagePutX
+        }
+    }
+
+    private boolean shouldMulticastInvalidation(CacheLine line) {
+        if (multicastInvalidationThreshold <= 0 || broadcastsRoutedToServer || (hasServer && isReserved(line.getId())))
+            return false; // in these cases AbstractComm would send the broadcast to the server rather than to the peers
+        final int numSharers = line.getSharerCount() - (line.isSharer(Comm.SERVER) ? 1 : 0);
+        return numSharers >= multicastInvalidationThreshold;
+    }
+
+    private static short[] writeUpdateTargets(CacheLine line) {
+        final short[] sharers = line.getSharers();
+        int n = 0;
+        for (short sharer : sharers) {
+            if (sharer != Comm.SERVER)
+                sharers[n++] = sharer;
+        }
+        return n == 0 ? null : (n == sharers.length ? sharers : Arrays.copyOf(sharers, n));
+    }
+
+    private Object handleOpSet(CacheLine line, Object data, short nodeHint, Transaction txn, int change, Op op) {
+        if (op != null && op.getExtra() instanceof Message.INVOKE) {
+            if (isShippedToOwner(line, (Message.INVOKE) op.getExtra()))
+                return PENDING; // shipped to the owner; waiting for its MSGACK
+            op.setExtra(null); // the owner has given up the line (or has died), so the INVOKE won't be run; re-route the SET
+        }
         if ((change & (LINE_STATE_CHANGED | LINE_OWNER_CHANGED)) == 0)
             return PENDING;
 
         if (line.is(CacheLine.DELETED))
             handleDeleted(line);
 
-        if (!transitionToE(line, nodeHint))
+        if (txn == null && isStickyElsewhere(line)) {
+            if (op != null) { // when in slow track
+                final Message.INVOKE msg = Message.INVOKE(line.getOwner(), line.id, new SetFunction(toByteArray(data)));
+                send(msg);
+                op.setExtra(msg); // to match the MSGACK
+            }
+            return PENDING;
+        }
+
+        if (!transitionToE(line, nodeHint, txn, op))
             return PENDING;
 
         setData(line, data, txn);
@@ -1497,6 +2071,10 @@ public class Cache extends ClusterService implements MessageReceiver, NodeChange
         return null;
     }
 
+    private static boolean isShippedToOwner(CacheLine line, Message.INVOKE shipped) {
+        return line.is(CacheLine.STICKY) && line.getOwner() == shipped.getNode(); // a non-sticky CHNGD_OWNR clears STICKY
+    }
+
     private void handleDeleted(CacheLine line) {
         if (isReserved(line.getId())) {
             line.set(CacheLine.DELETED, false);
@@ -1545,11 +2123,11 @@ public class Cache extends ClusterService implements MessageReceiver, NodeChange
         return id;
     }
 
-    private Object handleOpDel(CacheLine line, short nodeHint, Transaction txn, int change) {
+    private Object handleOpDel(CacheLine line, short nodeHint, Transaction txn, int change, Op op) {
         if ((change & (LINE_STATE_CHANGED | LINE_OWNER_CHANGED)) == 0)
             return PENDING;
 
-        if (!transitionToE(line, nodeHint))
+        if (!transitionToE(line, nodeHint, txn, op))
             return PENDING;
 
         final long id = line.getId();
@@ -1559,7 +2137,7 @@ public class Cache extends ClusterService implements MessageReceiver, NodeChange
         if (hasServer()) {
             if (line.state == State.E)
                 setState(line, State.O);
-            line.sharers.add(Comm.SERVER);
+            addSharer(line, Comm.SERVER);
             send(Message.DEL(Comm.SERVER, id));
         } else
             setState(line, State.I);
@@ -1614,12 +2192,14 @@ public class Cache extends ClusterService implements MessageReceiver, NodeChange
         setState(line, State.O);
         final short[] toNodes = (short[]) extra;
         for (short s : toNodes)
-            line.sharers.add(s);
+            addSharer(line, s);
 
         for (short node : toNodes) {
             send(Message.PUT(node, line.id, line.version, readOnly(line.data)));
             line.rewind();
         }
+        if (leasedSharing)
+            grantLease(line, 2 * maxStaleReadMillis); // the receivers count their leases from when they get the PUT
         return null;
     }
 
@@ -1636,7 +2216,7 @@ public class Cache extends ClusterService implements MessageReceiver, NodeChange
 
         short toNode = (Short) extra;
         setOwner(line, toNode);
-        final short[] sharers = line.sharers.toShortArray();
+        final short[] sharers = line.getSharers();
         // TODO: maybe S, or, rather, transitional O. We could add this node to sharers and  if new owner dies, we become owner here and in the server
         setState(line, State.I);
 
@@ -1668,14 +2248,18 @@ public class Cache extends ClusterService implements MessageReceiver, NodeChange
     }
 
     private List<Message.MSG> getAndClearPendingMSGs(CacheLine line) {
+        if (line.firstPendingMessage == null)
+            return Collections.emptyList();
         final List<Message.MSG> ms = new ArrayList<>();
-        final Collection<LineMessage> msgs = getPendingMessages(line);
-        for (Iterator<LineMessage> it = msgs.iterator(); it.hasNext();) {
-            final LineMessage msg = it.next();
+        LineMessage prev = null;
+        for (LineMessage msg = line.firstPendingMessage; msg != null;) {
+            final LineMessage next = msg.nextPending;
             if (msg.getType() == Message.Type.MSG) {
                 ms.add((Message.MSG) msg);
-                it.remove();
-            }
+                unlinkPendingMessage(line, prev, msg);
+            } else
+                prev = msg;
+            msg = next;
         }
         return ms;
     }
@@ -1693,16 +2277,13 @@ public class Cache extends ClusterService implements MessageReceiver, NodeChange
                 short nodeHint = extra instanceof Short ? nodeHint(extra) : (short) -1;
                 final Message.INVOKE msg = Message.INVOKE(getTarget(line, nodeHint), line.id, f);
                 send(msg);
-                // We have to remember the message ID in order to process MSGACKs later
+                // We have to remember the message ID in order to process INVRES (or, for void functions, MSGACK) later
                 assert msg.getMessageId() > 0;
                 op.setExtra(msg);
-
-//                if (isVoidLineFunction(f)) // TODO!!
-//                    return null;
             }
             return PENDING;
         } else {
-            if (!transitionToE(line, (short) -1))
+            if (!transitionToE(line, (short) -1, txn, op))
                 return PENDING;
             Object res = execInvoke(line, f);
             if (txn == null && !line.isLocked())
@@ -1712,7 +2293,7 @@ public class Cache extends ClusterService implements MessageReceiver, NodeChange
     }
 
     private static short nodeHint(Object obj) {
-        return obj != null ? (Short) obj : -1;
+        return obj instanceof Short ? (Short) obj : -1; // a shipped SET keeps its INVOKE message in extra
     }
 
     private static short getTarget(CacheLine line, short nodeHint) {
@@ -1725,9 +2306,12 @@ public class Cache extends ClusterService implements MessageReceiver, NodeChange
     private void setData(CacheLine line, Object data, Transaction txn) {
         assert !line.state.isLessThan(State.O);
 
+        final boolean modified;
         if (txn != null && rollbackSupported && !txn.isRecorded(line.getId()))
-            txn.recordRollback(line.getId(), line.getVersion(), line.is(CacheLine.MODIFIED), line.getData() != null ? Persistables.toByteArray(line.getData()) : null);
-        if (writeData(line, data) || line.version == 0) { // first write always updates version, even if it's a null.
+            modified = writeDataAndRecordRollback(line, data, txn);
+        else
+            modified = writeData(line, data);
+        if (modified || line.version == 0) { // first write always updates version, even if it's a null.
             line.version++;
             line.set(CacheLine.MODIFIED, true);
             if (LOG.isDebugEnabled())
@@ -1745,7 +2329,9 @@ public class Cache extends ClusterService implements MessageReceiver, NodeChange
 
         int change = LINE_NO_CHANGE;
         change |= setState(line, State.O) ? LINE_STATE_CHANGED : 0;
-        line.sharers.add(msg.getNode());
+        addSharer(line, msg.getNode());
+        if (leasedSharing)
+            grantLease(line);
 
         send(Message.PUT(msg, line.id, line.version, readOnly(line.data)));
         line.rewind();
@@ -1757,15 +2343,24 @@ public class Cache extends ClusterService implements MessageReceiver, NodeChange
             return 0;
         relevantStates(line, State.E, State.O);
 
+        if (stickyLineThreshold > 0 && keepSticky(line, msg)) {
+            LOG.debug("Line {} is sticky. Not transferring it to {}", line, msg.getNode());
+            send(Message.CHNGD_OWNR(msg, line.id, myNodeId(), true).setSticky(true));
+            return LINE_NO_CHANGE;
+        }
+
+        if (hotLines != null)
+            hotLines.record(HotLineProfiler.Category.OWNERSHIP_TRANSFERS, line.getId(), 1);
+
         if (line.is(CacheLine.SLAVE)) {
             if (backup.inv(line.getId(), msg.getNode()))
                 line.set(CacheLine.SLAVE, false);
         }
 
         if (!hasServer && line.is(CacheLine.SLAVE))
-            line.sharers.add(myNodeId());
+            addSharer(line, myNodeId());
 
-        final short[] sharers = line.sharers.toShortArray(); // setState will nullify sharers
+        final short[] sharers = line.getSharers(); // setState will clear sharers
 
         int change = 0;
         // TODO: maybe S, or, rather, transitional O. We could add this node to sharers and  if new owner dies, we become owner here and in the server
@@ -1788,6 +2383,52 @@ public class Cache extends ClusterService implements MessageReceiver, NodeChange
         return change;
     }
 
+    /*
+     * Migratory contention - several nodes writing the same line in turn - makes the line ping-pong between them with
+     * PUTX/INV. When the line keeps being requested shortly after we've got it, we keep it ("sticky") and refuse GETXs with a
+     * sticky CHNGD_OWNR. The refused nodes then ship their (non-transactional) SETs to us as INVOKEs, so each write
+     * becomes a single round-trip. Writes that can't be shipped (GETX, and writes in transactions) resend the GETX with the
+     * migrate flag, which we always honor. Once no remote write has come in for stickyLineMillis, we hand the line over again.
+     */
+    private boolean keepSticky(CacheLine line, Message.GET msg) {
+        if (msg.isMigrate() || msg.isBroadcast() || msg.getNode() == Comm.SERVER) {
+            line.set(CacheLine.STICKY, false);
+            line.migrations = 0;
+            return false;
+        }
+
+        final long now = CoarseClock.currentTimeMillis();
+        final boolean contended = now - line.acquired < stickyLineMillis;
+        if (line.is(CacheLine.STICKY)) {
+            if (!contended) { // contention has subsided
+                line.set(CacheLine.STICKY, false);
+                line.migrations = 0;
+                return false;
+            }
+        } else {
+            line.migrations = contended ? (byte) Math.min(line.migrations + 1, Byte.MAX_VALUE) : 0;
+            if (line.migrations < stickyLineThreshold)
+                return false;
+            line.set(CacheLine.STICKY, true);
+        }
+        line.acquired = now;
+        return true;
+    }
+
+    /**
+     * Whether our writes to the line should be shipped to its (sticky) owner. We stop shipping them once we haven't been refused
+     * the line for a while, and try to get it again.
+     */
+    private boolean isStickyElsewhere(CacheLine line) {
+        if (!line.is(CacheLine.STICKY) || !line.state.isLessThan(State.O) || line.getOwner() < 0)
+            return false;
+        if (CoarseClock.currentTimeMillis() - line.acquired >= stickyLineMillis) {
+            line.set(CacheLine.STICKY, false);
+            return false;
+        }
+        return true;
+    }
+
     private static <M extends Message> M toOutgoing(M m, short node) {
         m.setOutgoing();
         m.setMessageId(-1);
@@ -1802,6 +2443,9 @@ public class Cache extends ClusterService implements MessageReceiver, NodeChange
             return LINE_NO_CHANGE;
 
         setOwnerClock(line, msg); // must be called before set owner
+        if (leasedSharing) // the lease is counted from our request, which the owner has received before granting it, or, if pushed, from now
+            line.leaseExpires = (line.transitionStart != 0 ? line.transitionStart : System.nanoTime()) + TimeUnit.MILLISECONDS.toNanos(maxStaleReadMillis);
+        recordMissLatency(line, msg);
 
         int change = LINE_NO_CHANGE;
         change |= setState(line, State.S) ? LINE_STATE_CHANGED : 0;
@@ -1819,6 +2463,7 @@ public class Cache extends ClusterService implements MessageReceiver, NodeChange
             LOG.warn("Got PUTX with version {} which is older than current version {}", msg.getVersion(), line.version);
             return LINE_NO_CHANGE;
         }
+        recordMissLatency(line, msg);
 
         final ShortSet sharers = new ShortArraySet((msg.getSharers() != null ? msg.getSharers().length : 0) + 1);
         if (msg.getSharers() != null) {
@@ -1836,10 +2481,15 @@ public class Cache extends ClusterService implements MessageReceiver, NodeChange
             change |= setOwner(line, myNodeId()) ? LINE_OWNER_CHANGED : 0;
         else
             setOwner(line, msg.getNode()); // We set owner to the PREVIOUS owner - used// change |= setOwner(line, cluster.getMyNodeId()) ? LINE_OWNER_CHANGED : 0;
-        line.sharers.addAll(sharers);
+        for (ShortIterator it = sharers.iterator(); it.hasNext();)
+            addSharer(line, it.nextShort());
         line.version = msg.getVersion();
         writeData(line, (Object) msg.getData());
         line.parts = (short) msg.getMessages();
+        line.set(CacheLine.STICKY, false);
+        line.acquired = CoarseClock.currentTimeMillis();
+        if (leasedSharing)
+            grantLease(line); // we don't know when the previous owner has granted its leases, but it was before now
 
         setOwnerClock(line, msg);
 
@@ -1850,15 +2500,29 @@ public class Cache extends ClusterService implements MessageReceiver, NodeChange
         return change;
     }
 
+    private void recordMissLatency(CacheLine line, LineMessage response) {
+        if (line.transitionStart != 0 && line.state.isLessThan(State.O)) {
+            monitor.addMissLatency(response.getType(), response.getNode(), System.nanoTime() - line.transitionStart);
+            line.transitionStart = 0;
+        }
+    }
+
     private int handleMessageInvalidate(Message.INV msg, CacheLine line) throws IrrelevantStateException {
         if (getCluster().isMaster())
             relevantStates(line, State.S, State.I, State.O);
         else
             relevantStates(line, State.I, State.E);
 
+        if (msg.isBroadcast() && line.getState() != State.S) { // a multicast INV of a line we don't share
+            send(Message.INVACK(msg));
+            return LINE_NO_CHANGE;
+        }
+
         assert line.getState().isLessThan(State.O) || msg.getNode() == Comm.SERVER || !getCluster().isMaster(); // We may get an INV from server when O if line has been transferred to another node as a result of some cluster failure
 
         final short owner = ((msg.getNode() == Comm.SERVER || msg.getNode() == getCluster().getMyNodeId()) ? msg.getPreviousOwner() : msg.getNode());
+        if (hotLines != null)
+            hotLines.record(HotLineProfiler.Category.OWNERSHIP_TRANSFERS, line.getId(), 1);
         int change = LINE_NO_CHANGE;
         setNextState(line, null);
         change |= setState(line, State.I) ? LINE_STATE_CHANGED : 0;
@@ -1910,10 +2574,16 @@ public class Cache extends ClusterService implements MessageReceiver, NodeChange
         }
 
         // invack from peer
+        if (msg.isResponse() && line.getState() != State.O && (multicastInvalidationThreshold > 0 || leasedSharing))
+            return LINE_NO_CHANGE; // a late INVACK to a multicast INV, from a node that wasn't a sharer, or from a sharer whose lease has lapsed
         relevantStates(line, State.O);
         int change = LINE_NO_CHANGE;
-        line.sharers.remove(msg.getNode());
-        if (line.sharers.isEmpty()) {
+        removeSharer(line, msg.getNode());
+        if (!line.hasSharers()) {
+            if (line.transitionStart != 0) {
+                monitor.addInvalidationLatency(System.nanoTime() - line.transitionStart);
+                line.transitionStart = 0;
+            }
             change |= setState(line, line.is(CacheLine.DELETED) ? State.I : State.E) ? LINE_STATE_CHANGED : 0;
             change |= setOwner(line, myNodeId()) ? LINE_OWNER_CHANGED : 0;
             change |= LINE_STATE_CHANGED;
@@ -1943,6 +2613,15 @@ public class Cache extends ClusterService implements MessageReceiver, NodeChange
     private int handleMessageChngdOwnr(Message.CHNGD_OWNR msg, CacheLine line) throws IrrelevantStateException {
         relevantStates(line, State.I, State.S); // S doesn't mean we're certain about the owner b/c transfer of ownership (PUTX) is done before sending INVs.
 
+        if (msg.isSticky()) { // the owner keeps the line; we'll ship our writes to it (or insist, if we can't)
+            setOwner(line, msg.getNode());
+            line.set(CacheLine.STICKY, true);
+            line.acquired = CoarseClock.currentTimeMillis();
+            setNextState(line, null);
+            return LINE_OWNER_CHANGED;
+        }
+        line.set(CacheLine.STICKY, false);
+
         if (msg.getNewOwner() != -1 && getCluster().getMaster(msg.getNewOwner()) == null) {
             // either the node that sent the message has not received a node removal event for the new owner
             // or that we have not received a node addition event.
@@ -1993,39 +2672,39 @@ public class Cache extends ClusterService implements MessageReceiver, NodeChange
     }
 
     private int handleMessageMsgAck(LineMessage ack, CacheLine line) throws IrrelevantStateException {
-        Op sendOp = null;
+        Op ackedOp = null;
 
         int change = LINE_NO_CHANGE;
         change |= setOwner(line, ack.getNode()) ? LINE_OWNER_CHANGED : 0;
 
-        final Collection<Op> pending = getPendingOps(line);
-        for (Iterator<Op> it = pending.iterator(); it.hasNext();) {
-            final Op op = it.next();
-            if (op.type == Op.Type.SEND) {
-                final Message.MSG msg = (Message.MSG) op.getExtra();
-                if (msg.getMessageId() == ack.getMessageId()) {
-                    sendOp = op;
+        for (Op op = line.firstPendingOp; op != null; op = op.nextPending) {
+            if (op.type == Op.Type.SEND || op.type == Op.Type.INVOKE || op.type == Op.Type.SET) { // INVOKEs of void functions (and so shipped SETs) are acked with a MSGACK
+                final Object msg = op.getExtra();
+                if (msg instanceof LineMessage && ((LineMessage) msg).getMessageId() == ack.getMessageId()) {
+                    ackedOp = op;
                     break;
                 }
             }
         }
-        if (sendOp != null) {
-            completeOp(line, sendOp, null, true);
-            removePendingOp(line, sendOp);
+        if (ackedOp != null) {
+            completeOp(line, ackedOp, null, true);
+            removePendingOp(line, ackedOp);
         }
         return change;
     }
 
     private int handleMessageTimeout(LineMessage msg, CacheLine line) throws IrrelevantStateException {
-        for (Iterator<Op> it = getPendingOps(line).iterator(); it.hasNext();) {
-            final Op op = it.next();
+        for (Op op = line.firstPendingOp; op != null;) {
+            final Op next = op.nextPending;
+            unlinkPendingOp(line, null, op);
             if (!op.hasFuture())
                 op.createFuture();
             LOG.warn("TIMEOUT: {}", op);
             op.setException(new TimeoutException("Timeout while processing op " + op + ": " + msg));
-            it.remove();
+            op = next;
         }
         line.nextState = null;
+        line.transitionStart = 0;
         // TODO: push? send to owner?
         return LINE_STATE_CHANGED;
     }
@@ -2085,18 +2764,21 @@ public class Cache extends ClusterService implements MessageReceiver, NodeChange
 
         final Object invokeRes = execInvoke(line, msg.getFunction());
         backupLine(line);
+        if (line.is(CacheLine.STICKY))
+            line.acquired = CoarseClock.currentTimeMillis(); // contention continues
 
         fireLineReceived(line);
 
-        send(Message.INVRES(msg, line.id, invokeRes));
+        if (!msg.isVoidFunction())
+            send(Message.INVRES(msg, line.id, invokeRes));
+        else
+            send(Message.MSGACK(msg)); // no result to return; acked when the INVRES would have been sent, with the same durability
         return LINE_EVERYTHING_CHANGED;
     }
 
     private int handleMessageInvRes(INVRES res, CacheLine line) {
         Op invokeOp = null;
-        final Collection<Op> pending = getPendingOps(line);
-        for (Iterator<Op> it = pending.iterator(); it.hasNext();) {
-            final Op op = it.next();
+        for (Op op = line.firstPendingOp; op != null; op = op.nextPending) {
             if (op.type == Op.Type.INVOKE) {
                 Message.INVOKE msg = (Message.INVOKE) op.getExtra();
                 if (msg.getMessageId() == res.getMessageId()) {
@@ -2125,36 +2807,39 @@ public class Cache extends ClusterService implements MessageReceiver, NodeChange
     private boolean isPossibleInconsistencies(CacheLine line) {
         assert line.getState() == State.I;
         final short owner = line.getOwner();
-        if (System.currentTimeMillis() - line.timeAccessed > maxStaleReadMillis)
+        if (CoarseClock.currentTimeMillis() - line.timeAccessed > maxStaleReadMillis)
             return true;
         if (owner == -1)
             return false;
-        final OwnerClock oc = ownerClocks.get(owner);
+        final OwnerClock oc = ownerClocks.get(stampOwner(line.getOwnerClock()));
         if (oc == null)
             return false;
-        long lastPut = Math.max(oc.lastPut.get(), globalOwnerClock.lastPut.get());
-        return line.getOwnerClock() <= lastPut;
+        return stampTime(line.getOwnerClock()) <= oc.lastPut.get();
     }
 
+    /*
+     * Each owner has its own logical clock, so that messages concerning different owners don't contend on a single counter.
+     * A line is stamped with the clock of its owner at the time, and the stamp records which clock that was, so that it is only
+     * ever compared with that clock's PUTs. A PUT of a line with an unknown owner (-1) advances the last PUT of all owners.
+     */
     private void setOwnerClock(CacheLine line, Message msg) {
         if (!STALE_READS)
             return;
 
-        final long _clock = clock.incrementAndGet(); // msg.getMessageId();
-        line.setOwnerClock(_clock);
+        final short owner = line.getOwner(); // for INV, the node that invalidated the line; for PUT, the owner until now
+        final OwnerClock oc = getOwnerClock(owner);
+        final long _clock = oc.clock.incrementAndGet();
+        line.setOwnerClock(stamp(owner, _clock));
 
-        final short owner; // owner is the node that invalidates/invalidated the line
         switch (msg.getType()) {
             case INV:
-                owner = msg.getNode();
-                getOwnerClock(owner).invCounter.incrementAndGet();
+                oc.invCounter.incrementAndGet();
                 break;
 
             case PUT:
             case PUTX:
             case MSG:
-                owner = line.getOwner();
-                setOwnerClockPut(owner, getOwnerClock(owner), _clock);
+                setOwnerClockPut(owner, oc, _clock);
                 break;
             default:
                 break;
@@ -2164,32 +2849,50 @@ public class Cache extends ClusterService implements MessageReceiver, NodeChange
     private void setOwnerClockPut(Message msg) {
         final short owner = msg.getNode();
         final OwnerClock oc = getOwnerClock(owner);
-        final long _clock = clock.incrementAndGet(); // msg.getMessageId();
-        setOwnerClockPut(owner, oc, _clock);
+        setOwnerClockPut(owner, oc, oc.clock.get());
     }
 
     private void setOwnerClockPut(short owner, OwnerClock oc, long clock) {
+        if (owner >= 0) {
+            if (advanceLastPut(oc, clock)) {
+                monitor.addStalePurge(oc.invCounter.get());
+                oc.invCounter.set(0);
+            }
+        } else {
+            boolean purged = false;
+            int count = 0;
+            for (OwnerClock oc1 : ownerClocks.values()) { // counting is approximate due to concurrent updates, but it's only used for monitoring.
+                if (advanceLastPut(oc1, oc1.clock.get())) {
+                    purged = true;
+                    count += oc1.invCounter.get();
+                    oc1.invCounter.set(0);
+                }
+            }
+            if (purged)
+                monitor.addStalePurge(count);
+        }
+    }
+
+    private static boolean advanceLastPut(OwnerClock oc, long clock) {
         for (;;) {
             final long current = oc.lastPut.get();
             if (clock <= current)
-                break;
-            if (oc.lastPut.compareAndSet(current, clock)) {
-                if (owner >= 0) {
-                    monitor.addStalePurge(oc.invCounter.get());
-                    oc.invCounter.set(0);
-                } else {
-                    int count = 0;
-                    for (OwnerClock oc1 : ownerClocks.values()) { // counting is approximate due to concurrent updates, but it's only used for monitoring.
-                        count += oc1.invCounter.get();
-                        oc1.invCounter.set(0);
-                    }
-                    monitor.addStalePurge(count);
+                return false;
+            if (oc.lastPut.compareAndSet(current, clock))
+                return true;
+        }
+    }
 
-                }
+    private static long stamp(short owner, long clock) {
+        return ((long) owner << 48) | (clock & OWNER_CLOCK_MASK);
+    }
 
-                break;
-            }
-        }
+    private static short stampOwner(long stamp) {
+        return (short) (stamp >>> 48);
+    }
+
+    private static long stampTime(long stamp) {
+        return stamp & OWNER_CLOCK_MASK;
     }
 
     private OwnerClock getOwnerClock(short owner) {
@@ -2204,6 +2907,7 @@ public class Cache extends ClusterService implements MessageReceiver, NodeChange
     }
 
     private static class OwnerClock {
+        public final AtomicLong clock = new AtomicLong();
         public final AtomicLong lastPut = new AtomicLong();
         public final AtomicInteger invCounter = new AtomicInteger();
     }
@@ -2219,14 +2923,18 @@ public class Cache extends ClusterService implements MessageReceiver, NodeChange
         inNodeEventHandler.set(Boolean.TRUE);
         nodeEvents.add(event);
         try {
-            processLines(new LinePredicate() {
+            processLines(linesOf(node, true), new LinePredicate() {
                 @Override
                 public boolean processLine(CacheLine line) {
                     // remove pending messages from node
-                    for (Iterator<LineMessage> it = getPendingMessages(line).iterator(); it.hasNext();) {
-                        LineMessage message = it.next();
+                    LineMessage prev = null;
+                    for (LineMessage message = line.firstPendingMessage; message != null;) {
+                        final LineMessage next = message.nextPending;
                         if (message.getNode() == node)
-                            it.remove();
+                            unlinkPendingMessage(line, prev, message);
+                        else
+                            prev = message;
+                        message = next;
                     }
                     processLineOnNodeEvent(line, node, newOwner);
                     return true;
@@ -2236,6 +2944,8 @@ public class Cache extends ClusterService implements MessageReceiver, NodeChange
             nodeEvents.remove(event);
             inNodeEventHandler.remove();
         }
+        if (earlyPublish)
+            wakeEarlyPublishWaiters();
     }
 
     @Override
@@ -2244,7 +2954,7 @@ public class Cache extends ClusterService implements MessageReceiver, NodeChange
         inNodeEventHandler.set(Boolean.TRUE);
         nodeEvents.add(event);
         try {
-            processLines(new LinePredicate() {
+            processLines(linesOf(node, false), new LinePredicate() {
                 @Override
                 public boolean processLine(CacheLine line) {
                     // we don't inform slave of sharers, so it assumes its lines are E, therefore we must INV shared
@@ -2257,6 +2967,8 @@ public class Cache extends ClusterService implements MessageReceiver, NodeChange
             nodeEvents.remove(event);
             inNodeEventHandler.remove();
         }
+        if (earlyPublish)
+            wakeEarlyPublishWaiters();
     }
 
     @Override
@@ -2294,14 +3006,16 @@ public class Cache extends ClusterService implements MessageReceiver, NodeChange
                     LOG.debug("processLineOnNodeEvent: OOPS. CME. Retrying");
                 }
             } while (!stop);
-        } else if (line.getState() == State.O && line.sharers.remove(node)) {
+        } else if (line.getState() == State.O && removeSharer(line, node)) {
             if (LOG.isDebugEnabled())
                 LOG.debug("Node {} switched/removed - removing from sharers of line {}", node, line);
-            if (line.sharers.isEmpty()) {
+            if (!line.hasSharers()) {
                 setState(line, State.E);
                 handlePendingOps(line, LINE_STATE_CHANGED);
             }
         }
+        if (earlyPublish)
+            releaseEarlyPublish(line);
     }
 
     private static final class NodeEvent {
@@ -2338,10 +3052,16 @@ public class Cache extends ClusterService implements MessageReceiver, NodeChange
             return false;
         if (line.nextState == null || nextState == null || line.nextState.isLessThan(nextState)) {
             line.nextState = nextState;
-            if (nextState == State.S | nextState == State.O)
+            if (nextState == State.S | nextState == State.O) {
                 monitor.addMiss();
-            if (nextState == State.E)
-                monitor.addInvalidate(line.sharers.size());
+                line.transitionStart = System.nanoTime();
+            }
+            if (nextState == State.E) {
+                monitor.addInvalidate(line.getSharerCount());
+                line.transitionStart = System.nanoTime();
+            }
+            if (nextState == null)
+                line.transitionStart = 0;
             return true;
         } else
             return false;
@@ -2365,12 +3085,9 @@ public class Cache extends ClusterService implements MessageReceiver, NodeChange
 //            if (state.isLessThan(State.O) && !line.getState().isLessThan(State.O))
 //                line.timeAccessed = System.currentTimeMillis();
             line.state = state;
-            if (line.sharers == null || !state.isLessThan(State.O))
-                line.sharers = allocateSharerSet(SHARER_SET_DEFAULT_SIZE);
-            else if (line.sharers != null || state.isLessThan(State.O)) {
-                deallocateSharerSet(line.id, line.sharers);
-                line.sharers = null;
-            }
+            if (state == State.I && line.is(CacheLine.PREFETCHED))
+                prefetchWasted(line);
+            clearSharers(line);
             return true;
         } else
             return false;
@@ -2382,17 +3099,149 @@ public class Cache extends ClusterService implements MessageReceiver, NodeChange
         if (owner != oldOwner) {
             if (LOG.isDebugEnabled())
                 LOG.debug("Set owner {} {} -> {}", hex(line.getId()), line.owner, owner);
+            ownerIndex.remove(oldOwner, line.id);
             line.owner = owner;
+            ownerIndex.add(owner, line.id);
+            return true;
+        } else
+            return false;
+    }
+
+    /*
+     * Sharers are kept inline in the line, and only a line with more than INLINE_SHARERS sharers is given a set, which it keeps
+     * until its state changes.
+     */
+    private void addSharer(CacheLine line, short node) {
+        final boolean added;
+        if (line.moreSharers != null)
+            added = line.moreSharers.add(node);
+        else if (line.isSharer(node))
+            added = false;
+        else {
+            added = true;
+            if (!line.addInlineSharer(node)) {
+                final ShortSet set = allocateSharerSet(SHARER_SET_DEFAULT_SIZE);
+                for (short s : line.getSharers())
+                    set.add(s);
+                set.add(node);
+                line.moreSharers = set;
+                line.sharers = 0;
+            }
+        }
+        if (added)
+            sharerIndex.add(node, line.id);
+    }
+
+    private boolean removeSharer(CacheLine line, short node) {
+        if (line.moreSharers != null ? line.moreSharers.remove(node) : line.removeInlineSharer(node)) {
+            sharerIndex.remove(node, line.id);
             return true;
         } else
             return false;
     }
 
+    private void clearSharers(CacheLine line) {
+        if (line.moreSharers != null) {
+            for (ShortIterator it = line.moreSharers.iterator(); it.hasNext();)
+                sharerIndex.remove(it.nextShort(), line.id);
+            line.moreSharers.clear();
+            deallocateSharerSet(line.id, line.moreSharers);
+            line.moreSharers = null;
+        } else {
+            for (short sharer : line.getSharers())
+                sharerIndex.remove(sharer, line.id);
+        }
+        line.sharers = 0;
+    }
+
     private void accessLine(CacheLine line) {
         if (line != null) {
             if (line.getState().isLessThan(State.O))
-                line.timeAccessed = System.currentTimeMillis();
+                line.timeAccessed = CoarseClock.currentTimeMillis();
+        }
+    }
+
+    /**
+     * Feeds the calling thread's stride detector with read misses and with first reads of prefetched lines (which would have been
+     * misses), so that a stream keeps being prefetched ahead of the reader. The prefetch itself is issued by {@link #prefetch()},
+     * once the line's lock is released.
+     */
+    private void recordAccess(CacheLine line, boolean miss) {
+        if (line.is(CacheLine.PREFETCHED)) {
+            if (line.getState() == State.I && line.nextState == null)
+                prefetchWasted(line); // the owner didn't have it
+            else {
+                line.set(CacheLine.PREFETCHED, false);
+                monitor.addPrefetchHit();
+                miss = true;
+            }
+        }
+        if (!miss)
+            return;
+
+        StrideDetector detector = strideDetector.get();
+        if (detector == null) {
+            detector = new StrideDetector();
+            strideDetector.set(detector);
+        }
+        short owner = line.getOwner();
+        if (owner < 0) { // we don't know this line's owner yet; guess it's the owner of the line preceding it in the stream
+            final CacheLine previous = getLine(line.getId() - detector.getStride());
+            owner = previous != null ? previous.getOwner() : -1;
+        }
+        detector.access(line.getId(), owner);
+    }
+
+    /**
+     * Sends speculative GETs for the next {@code prefetchDistance} lines of the calling thread's stream, if one has just been
+     * detected. All GETs go to the same node, back to back, so a comm that batches messages (like
+     * {@link co.paralleluniverse.galaxy.netty.UDPComm UDPComm}) sends them together.
+     */
+    private void prefetch() {
+        final StrideDetector detector = strideDetector.get();
+        if (detector == null || !detector.hasPrefetch())
+            return;
+        final long stride = detector.getStride();
+        final short owner = detector.getPrefetchOwner();
+        long id = detector.getPrefetchStart();
+        detector.clearPrefetch();
+
+        int count = 0;
+        for (int i = 0; i < prefetchDistance; i++, id += stride) {
+            if (prefetchLine(id, owner))
+                count++;
+        }
+        if (count > 0)
+            monitor.addPrefetch(count);
+    }
+
+    private boolean prefetchLine(long id, short owner) {
+        if (id <= MAX_RESERVED_REF_ID || getLine(id) != null)
+            return false;
+        if (ownerHints != null) {
+            final short hint = ownerHints.remove(id);
+            if (hint >= 0)
+                owner = hint;
         }
+        if (owner == myNodeId())
+            return false;
+
+        final CacheLine line = createNewCacheLine(id, owner);
+        synchronized (line) {
+            if (line.getId() != id || line.getState() != State.I || line.nextState != null || line.getOwner() < 0)
+                return false; // someone got to it first
+            LOG.debug("Prefetching {} from {}", hex(id), line.getOwner());
+            line.set(CacheLine.PREFETCHED, true);
+            line.nextState = State.S; // not through setNextState, as this is not a miss
+            line.transitionStart = System.nanoTime();
+            send(Message.GET(line.getOwner(), id));
+            return true;
+        }
+    }
+
+    private void prefetchWasted(CacheLine line) {
+        line.set(CacheLine.PREFETCHED, false);
+        monitor.addPrefetchWaste();
     }
 
     private boolean writeData(CacheLine line, Object data) {
@@ -2489,6 +3338,25 @@ public class Cache extends ClusterService implements MessageReceiver, NodeChange
         return true;
     }
 
+    /**
+     * The first write to a line in a transaction doesn't overwrite the line's buffer, but writes to a new one, and the old buffer
+     * is kept as the pre-image until the transaction ends (so the pre-image is never copied). If the data turns out not to have
+     * changed, the old buffer is kept and nothing is recorded.
+     */
+    private boolean writeDataAndRecordRollback(CacheLine line, Object data, Transaction txn) {
+        final ByteBuffer preImage = line.data;
+        line.data = null;
+        writeData(line, data);
+        if ((compareBeforeWrite || preImage == null) && (preImage == null ? line.data == null : preImage.equals(line.data))) {
+            if (line.data != null)
+                deallocateStorage(line.id, line.data);
+            line.data = preImage;
+            return false;
+        }
+        txn.recordRollback(line.getId(), line.getVersion(), line.is(CacheLine.MODIFIED), preImage);
+        return true;
+    }
+
     private boolean writeNull(CacheLine line) {
         if (line.data == null)
             return false;
@@ -2510,6 +3378,41 @@ public class Cache extends ClusterService implements MessageReceiver, NodeChange
         return res;
     }
 
+    private static byte[] toByteArray(Object data) {
+        if (data == null)
+            return new byte[0];
+        if (data instanceof byte[])
+            return (byte[]) data;
+        if (data instanceof ByteBuffer) {
+            final ByteBuffer buffer = ((ByteBuffer) data).duplicate();
+            final byte[] array = new byte[buffer.remaining()];
+            buffer.get(array);
+            return array;
+        }
+        final Persistable object = (Persistable) data;
+        final ByteBuffer buffer = ByteBuffer.allocate(object.size());
+        object.write(buffer);
+        return buffer.array();
+    }
+
+    /**
+     * A SET shipped to the owner of a sticky line.
+     */
+    static class SetFunction implements LineFunction<Void> {
+        private static final long serialVersionUID = 1L;
+        private final byte[] data;
+
+        SetFunction(byte[] data) {
+            this.data = data;
+        }
+
+        @Override
+        public Void invoke(LineFunction.LineAccess lineAccess) {
+            lineAccess.getForWrite(data.length).put(data);
+            return null;
+        }
+    }
+
     private class LineAccess implements LineFunction.LineAccess {
         final CacheLine line;
         boolean flip;
@@ -2525,11 +3428,13 @@ public class Cache extends ClusterService implements MessageReceiver, NodeChange
 
         @Override
         public ByteBuffer getForWrite(int size) {
-            if (size >= 0 && line.data.capacity() < size)
+            if (size >= 0 && (line.data == null || line.data.capacity() < size))
                 extendLineData(size);
             line.version++;
             line.set(CacheLine.MODIFIED, true);
             flip = size >= 0;
+            if (flip) // the function writes the line's new contents, of up to size bytes, which may be more or less than the current ones
+                return (ByteBuffer) line.getData().clear().limit(size);
             return (ByteBuffer) line.getData().rewind();
         }
 
@@ -2537,9 +3442,11 @@ public class Cache extends ClusterService implements MessageReceiver, NodeChange
             if (LOG.isDebugEnabled())
                 LOG.debug("Extend storage to {} bytes for line {}", size, hex(line.getId()));
             ByteBuffer allocated = allocateStorage(size);
-            allocated.put((ByteBuffer) line.data.rewind());
+            if (line.data != null) {
+                allocated.put((ByteBuffer) line.data.rewind());
+                deallocateStorage(line.id, line.data);
+            }
             allocated.flip();
-            deallocateStorage(line.id, line.data);
             line.data = allocated;
         }
     }
@@ -2596,13 +3503,21 @@ public class Cache extends ClusterService implements MessageReceiver, NodeChange
     }
 
     private CacheLine createNewCacheLine(long id) {
+        return createNewCacheLine(id, (short) -1);
+    }
+
+    private CacheLine createNewCacheLine(long id, short owner) {
         CacheLine line = allocateCacheLine();
         line.id = id;
+        line.owner = owner;
+        ownerIndex.add(owner, id);
+        adoptOrphanedPending(line);
         return putLine(id, line, 0, 0);
     }
 
     private CacheLine createNewCacheLine(Op op) {
-        return createNewCacheLine(op.line);
+        // if we've evicted the line, we start with the owner we knew, so that the request goes straight to it
+        return createNewCacheLine(op.line, ownerHints != null ? ownerHints.remove(op.line) : (short) -1);
     }
 
     private CacheLine createNewCacheLine(Message message) {
@@ -2613,33 +3528,48 @@ public class Cache extends ClusterService implements MessageReceiver, NodeChange
     void evictLine(CacheLine line, boolean invack) {
         final long id = line.getId();
         final int oldSize = line.size();
+        if (ownerHints != null && line.getOwner() >= 0 && line.getOwner() != myNodeId() && !line.is(CacheLine.DELETED))
+            ownerHints.put(id, line.getOwner());
         discardLine(line, invack);
         removeLine(id, line, oldSize);
     }
 
     private void discardLine(CacheLine line, boolean invack) {
         LOG.debug("Evicted {}", line);
+        if (line.is(CacheLine.PREFETCHED))
+            prefetchWasted(line);
         fireLineEvicted(line);
         final long id = line.getId();
         deallocateStorage(id, line.data);
         if (invack && line.getState() == State.S)
             send(Message.INVACK(line.getOwner(), line.getId()));
+        orphanPending(line);
         clearLine(line);
         deallocateCacheLine(id, line);
     }
 
     private void clearLine(CacheLine line) {
-        if (line.sharers != null)
-            deallocateSharerSet(line.id, line.sharers);
+        ownerIndex.remove(line.owner, line.id);
+        for (LineMessage m = line.firstPendingMessage; m != null; m = m.nextPending)
+            pendingIndex.remove(m.getNode(), line.id);
+        clearSharers(line);
         line.id = 0;
         line.clearFlags();
         //line.timeAccessed = 0;
         line.state = State.I;
         line.nextState = null;
         line.owner = -1;
-        line.sharers = null;
         line.version = 0;
         line.data = null;
+        line.transitionStart = 0;
+        line.writeUpdateTargets = null;
+        line.acquired = 0;
+        line.migrations = 0;
+        line.leaseExpires = 0;
+        line.firstPendingOp = null;
+        line.lastPendingOp = null;
+        line.firstPendingMessage = null;
+        line.lastPendingMessage = null;
     }
 
     void lockLine(CacheLine line, Transaction txn) {
@@ -2719,8 +3649,12 @@ public class Cache extends ClusterService implements MessageReceiver, NodeChange
         final CacheLine old;
         if (line.getState().isLessThan(State.O)) {
             old = shared.put(id, line); // to make sure eviction data is updated we must put rather than putIfAbsent
-            if (old != null && old != line)
+            if (old != null && old != line) {
                 evictLine(old, false);
+                synchronized (line) {
+                    adoptOrphanedPending(line); // pick up whatever was pending on the replaced line
+                }
+            }
             return line;
         } else {
             old = owned.putIfAbsent(id, line);
@@ -2743,33 +3677,40 @@ public class Cache extends ClusterService implements MessageReceiver, NodeChange
             return;
         op.createFuture();
 
-        ArrayList<Op> ops = pendingOps.get(op.line);
-        if (ops == null) {
-            ops = new ArrayList<Op>();
-            pendingOps.put(op.line, ops);
-        }
-        ops.add(op);
+        op.nextPending = null;
+        if (line.lastPendingOp == null)
+            line.firstPendingOp = op;
+        else
+            line.lastPendingOp.nextPending = op;
+        line.lastPendingOp = op;
     }
 
     /**
-     * Returns, but DOES NOT CLEAR the pending ops queue.
+     * Unlinks {@code op} from the line's pending-ops queue, given its predecessor in the queue ({@code null} if it's the first).
      */
-    private Collection<Op> getPendingOps(CacheLine line) {
-        ArrayList<Op> ops = pendingOps.get(line.getId());
-        return (ops != null ? ops : Collections.EMPTY_LIST);
+    private void unlinkPendingOp(CacheLine line, Op prev, Op op) {
+        final Op next = op.nextPending;
+        if (prev == null)
+            line.firstPendingOp = next;
+        else
+            prev.nextPending = next;
+        if (line.lastPendingOp == op)
+            line.lastPendingOp = prev;
+        op.nextPending = null;
     }
 
     private void removePendingOp(CacheLine line, Op op) {
-        ArrayList<Op> ops = pendingOps.get(op.line);
-        if (ops == null)
-            return;
-        ops.remove(op);
-        if (ops.isEmpty())
-            pendingOps.remove(op.line);
+        Op prev = null;
+        for (Op o = line.firstPendingOp; o != null; prev = o, o = o.nextPending) {
+            if (o == op) {
+                unlinkPendingOp(line, prev, o);
+                return;
+            }
+        }
     }
 
     private boolean hasPendingOp(CacheLine line, Op.Type opType) {
-        for (Op op : getPendingOps(line)) {
+        for (Op op = line.firstPendingOp; op != null; op = op.nextPending) {
             if (op.type == opType)
                 return true;
         }
@@ -2777,65 +3718,161 @@ public class Cache extends ClusterService implements MessageReceiver, NodeChange
     }
 
     private void addPendingMessage(CacheLine line, LineMessage message) {
-        LinkedHashSet<LineMessage> msgs = pendingMessages.get(line.getId());
-        if (msgs == null) {
-            msgs = new LinkedHashSet<LineMessage>();
-            pendingMessages.put(line.getId(), msgs);
-        }
-        msgs.add(message);
+        if (message.nextPending != null || line.lastPendingMessage == message)
+            return; // already queued
+        if (line.lastPendingMessage == null)
+            line.firstPendingMessage = message;
+        else
+            line.lastPendingMessage.nextPending = message;
+        line.lastPendingMessage = message;
+        pendingIndex.add(message.getNode(), line.id);
         if (LOG.isDebugEnabled())
             LOG.debug("addPendingMessage {} to line {}", message, line);
     }
 
+    private void unlinkPendingMessage(CacheLine line, LineMessage prev, LineMessage message) {
+        final LineMessage next = message.nextPending;
+        if (prev == null)
+            line.firstPendingMessage = next;
+        else
+            prev.nextPending = next;
+        if (line.lastPendingMessage == message)
+            line.lastPendingMessage = prev;
+        message.nextPending = null;
+        if (!hasPendingMessagesFrom(line, message.getNode()))
+            pendingIndex.remove(message.getNode(), line.id);
+    }
+
+    private boolean hasPendingMessagesFrom(CacheLine line, short node) {
+        for (LineMessage m = line.firstPendingMessage; m != null; m = m.nextPending) {
+            if (m.getNode() == node)
+                return true;
+        }
+        return false;
+    }
+
+    private LineMessage pollPendingMessage(CacheLine line) {
+        final LineMessage message = line.firstPendingMessage;
+        if (message != null)
+            unlinkPendingMessage(line, null, message);
+        return message;
+    }
+
     private boolean hasPendingMessages(CacheLine line) {
-        final Collection<LineMessage> msgs = pendingMessages.get(line.getId());
-        return msgs != null && !msgs.isEmpty();
+        return line.firstPendingMessage != null;
     }
 
     private boolean hasPendingBlockingMessages(CacheLine line) {
-        final Collection<LineMessage> msgs = pendingMessages.get(line.getId());
-        if (msgs == null || msgs.isEmpty())
-            return false;
-        for (LineMessage m : msgs) {
+        for (LineMessage m = line.firstPendingMessage; m != null; m = m.nextPending) {
             if (!(m instanceof Message.MSG))
                 return true;
         }
         return false;
     }
 
+    private int countPendingMessages(CacheLine line) {
+        int n = 0;
+        for (LineMessage m = line.firstPendingMessage; m != null; m = m.nextPending)
+            n++;
+        return n;
+    }
+
     /**
-     * Returns and CLEARS the pending messages queue.
+     * Keeps the pending queues of a line that's being discarded, so that they're picked up by the line object that replaces it.
      */
-    private Set<LineMessage> getAndClearPendingMessages(CacheLine line) {
-        Set<LineMessage> msgs = pendingMessages.remove(line.getId());
-        if (msgs == null)
-            msgs = Collections.emptySet();
-        return msgs;
+    private void orphanPending(CacheLine line) {
+        final long id = line.getId();
+        if (line.firstPendingOp != null) {
+            final Op orphans = orphanedOps.remove(id);
+            if (orphans != null) {
+                Op last = orphans;
+                while (last.nextPending != null)
+                    last = last.nextPending;
+                last.nextPending = line.firstPendingOp;
+                orphanedOps.put(id, orphans);
+            } else
+                orphanedOps.put(id, line.firstPendingOp);
+        }
+        if (line.firstPendingMessage != null) {
+            final LineMessage orphans = orphanedMessages.remove(id);
+            if (orphans != null) {
+                LineMessage last = orphans;
+                while (last.nextPending != null)
+                    last = last.nextPending;
+                last.nextPending = line.firstPendingMessage;
+                orphanedMessages.put(id, orphans);
+            } else
+                orphanedMessages.put(id, line.firstPendingMessage);
+        }
     }
 
-    private Set<LineMessage> getPendingMessages(CacheLine line) {
-        Set<LineMessage> msgs = pendingMessages.get(line.getId());
-        if (msgs == null)
-            msgs = Collections.emptySet();
-        return msgs;
+    private void adoptOrphanedPending(CacheLine line) {
+        final long id = line.getId();
+        final Op ops = orphanedOps.remove(id);
+        if (ops != null) {
+            Op last = ops;
+            while (last.nextPending != null)
+                last = last.nextPending;
+            if (line.lastPendingOp == null)
+                line.firstPendingOp = ops;
+            else
+                line.lastPendingOp.nextPending = ops;
+            line.lastPendingOp = last;
+        }
+        final LineMessage msgs = orphanedMessages.remove(id);
+        if (msgs != null) {
+            LineMessage last = msgs;
+            pendingIndex.add(last.getNode(), id);
+            while (last.nextPending != null) {
+                last = last.nextPending;
+                pendingIndex.add(last.getNode(), id);
+            }
+            if (line.lastPendingMessage == null)
+                line.firstPendingMessage = msgs;
+            else
+                line.lastPendingMessage.nextPending = msgs;
+            line.lastPendingMessage = last;
+        }
     }
 
     interface LinePredicate {
         boolean processLine(CacheLine line);
     }
 
-    private void processLines(LinePredicate lp) {
-        for (ConcurrentMap<Long, CacheLine> map : new ConcurrentMap[]{owned, shared}) {
-            for (Iterator<CacheLine> it = map.values().iterator(); it.hasNext();) {
-                CacheLine line = it.next();
+    /**
+     * Returns the IDs of the lines the given node owns or shares, and, optionally, those with messages from the node pending.
+     */
+    private LongSet linesOf(short node, boolean pendingMessages) {
+        final LongSet ids = new LongOpenHashSet();
+        for (long id : ownerIndex.get(node))
+            ids.add(id);
+        for (long id : sharerIndex.get(node))
+            ids.add(id);
+        if (pendingMessages) {
+            for (long id : pendingIndex.get(node))
+                ids.add(id);
+        }
+        return ids;
+    }
+
+    private void processLines(LongCollection ids, LinePredicate lp) {
+        for (LongIterator it = ids.iterator(); it.hasNext();) {
+            final long id = it.nextLong();
+            for (;;) {
+                final CacheLine line = getLine(id);
+                if (line == null)
+                    break;
                 final boolean retain;
                 synchronized (line) {
+                    if (line.getId() != id)
+                        continue; // the line has been discarded (and possibly reused) in the meantime
                     retain = lp.processLine(line);
                     if (!retain)
                         discardLine(line, false);
                 }
                 if (!retain)
-                    it.remove();
+                    removeLine(id, line, 0);
+                break;
             }
         }
     }
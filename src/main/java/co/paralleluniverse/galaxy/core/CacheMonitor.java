@@ -20,13 +20,33 @@ package co.paralleluniverse.galaxy.core;
 interface CacheMonitor {
     void setMonitoredObject(Object obj);
 
+    /**
+     * Called (once, during initialization) only if hot-line profiling is enabled.
+     */
+    void setHotLineProfiler(HotLineProfiler profiler);
+
     void addMessageReceived(Message.Type msg);
 
     void addMessageSent(Message.Type msg);
 
     void addMessageHandlingDelay(int numDelayed, long totalDelayNanos, MessageDelayReason reason);
 
-    void addOp(Op.Type type, long durationMicroSeconds);
+    /**
+     * Records the time a single message has been held pending (e.g. while its line was locked).
+     */
+    void addMessageDelay(MessageDelayReason reason, long delayNanos);
+
+    void addOp(Op.Type type, long durationNanos);
+
+    /**
+     * Records the round-trip time of a miss, from sending the GET/GETX to receiving the {@code response} (PUT/PUTX) from {@code owner}.
+     */
+    void addMissLatency(Message.Type response, short owner, long durationNanos);
+
+    /**
+     * Records the time from sending INVs to the line's sharers until the last INVACK has been received.
+     */
+    void addInvalidationLatency(long durationNanos);
 
     void addHit();
 
@@ -38,6 +58,21 @@ interface CacheMonitor {
     
     void addStalePurge(int num);
 
+    /**
+     * Records the number of lines requested speculatively by the prefetcher.
+     */
+    void addPrefetch(int num);
+
+    /**
+     * Called when a prefetched line is accessed for the first time.
+     */
+    void addPrefetchHit();
+
+    /**
+     * Called when a prefetched line is evicted or invalidated before it has been accessed.
+     */
+    void addPrefetchWaste();
+
     enum MessageDelayReason {
         LOCK, BACKUP, OTHER
     }
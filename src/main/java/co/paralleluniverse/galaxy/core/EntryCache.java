@@ -0,0 +1,93 @@
+/*
+ * Galaxy
+ * Copyright (c) 2012-2014, Parallel Universe Software Co. All rights reserved.
+ *
+ * This program and the accompanying materials are dual-licensed under
+ * either the terms of the Eclipse Public License v1.0 as published by
+ * the Eclipse Foundation
+ *
+ *   or (per the licensee's choosing)
+ *
+ * under the terms of the GNU Lesser General Public License version 3.0
+ * as published by the Free Software Foundation.
+ */
+package co.paralleluniverse.galaxy.core;
+
+import co.paralleluniverse.galaxy.server.MainMemoryEntry;
+import com.googlecode.concurrentlinkedhashmap.ConcurrentLinkedHashMap;
+import com.googlecode.concurrentlinkedhashmap.Weigher;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * A bounded cache of the most recently read store entries, used by the server to serve lines it owns.
+ * <p>
+ * The cache is bounded by the total size of the data it holds (plus a small per-entry overhead); the least recently used entries
+ * are evicted first. The entries' data is kept on the heap, in the very arrays returned by the store, so caching an entry costs
+ * no allocation or copy. It isn't moved off-heap: a buffer allocated per entry would be costly to allocate and release, and a
+ * pooled one could be reused by a new entry while the PUTX that wraps it, sent for an evicted entry, is still waiting to be written. The cache is not write-through: it must be invalidated whenever
+ * the line is written or deleted, and it relies on the server handling the messages concerning a single line one at a time, so
+ * that a read can't race with the write that invalidates it.
+ */
+class EntryCache {
+    private static final int ENTRY_OVERHEAD = 64;
+    private final ConcurrentMap<Long, Entry> entries;
+
+    /**
+     * @param maxSize the maximum total size, in bytes, of the cached entries.
+     */
+    EntryCache(long maxSize) {
+        this.entries = new ConcurrentLinkedHashMap.Builder<Long, Entry>().initialCapacity(1000).maximumWeightedCapacity(maxSize).weigher(new Weigher<Entry>() {
+            @Override
+            public int weightOf(Entry entry) {
+                return ENTRY_OVERHEAD + entry.data.capacity();
+            }
+        }).build();
+    }
+
+    int size() {
+        return entries.size();
+    }
+
+    /**
+     * Returns the cached entry of the given line.
+     *
+     * @return the line's entry, or {@code null} if the line isn't cached.
+     */
+    Entry get(long id) {
+        return entries.get(id);
+    }
+
+    /**
+     * Caches a line's entry, which has just been read from the store. The entry's data array is kept, and must not be modified.
+     *
+     * @return the cached entry.
+     */
+    Entry put(long id, MainMemoryEntry entry) {
+        final ByteBuffer data = entry.data != null ? ByteBuffer.wrap(entry.data) : ByteBuffer.allocate(0);
+        final Entry e = new Entry(entry.version, data.asReadOnlyBuffer()); // the store doesn't keep the array, so we own it
+        entries.put(id, e);
+        return e;
+    }
+
+    void invalidate(long id) {
+        entries.remove(id);
+    }
+
+    static class Entry {
+        final long version;
+        private final ByteBuffer data;
+
+        Entry(long version, ByteBuffer data) {
+            this.version = version;
+            this.data = data;
+        }
+
+        /**
+         * Returns the entry's data as a new (read-only) buffer, whose position and limit may be freely modified.
+         */
+        ByteBuffer getData() {
+            return data.duplicate();
+        }
+    }
+}
@@ -0,0 +1,158 @@
+/*
+ * Galaxy
+ * Copyright (c) 2012-2014, Parallel Universe Software Co. All rights reserved.
+ *
+ * This program and the accompanying materials are dual-licensed under
+ * either the terms of the Eclipse Public License v1.0 as published by
+ * the Eclipse Foundation
+ *
+ *   or (per the licensee's choosing)
+ *
+ * under the terms of the GNU Lesser General Public License version 3.0
+ * as published by the Free Software Foundation.
+ */
+package co.paralleluniverse.galaxy.core;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A sampling tracker of the lines that cause the most contention.
+ * <p>
+ * For each {@link Category}, sampled events are counted (weighted) in a count-min sketch, and the lines with the highest estimated
+ * counts are kept in a small top-K table. Recording a non-sampled event costs a single random number.
+ */
+class HotLineProfiler {
+    enum Category {
+        /**
+         * The line has been taken from us by a GETX or an INV. Weight: 1.
+         */
+        OWNERSHIP_TRANSFERS,
+        /**
+         * Ops waited for the line. Weight: wait time in microseconds.
+         */
+        PENDING_WAIT,
+        /**
+         * Messages have been held because the line was locked. Weight: delay in microseconds.
+         */
+        LOCK_DELAY
+    }
+    private static final int DEPTH = 4;
+    private static final int WIDTH_BITS = 12;
+    private static final long[] SEEDS = {0x9E3779B97F4A7C15L, 0xC2B2AE3D27D4EB4FL, 0x165667B19E3779F9L, 0xD6E8FEB86659FD93L};
+    private final int samplingRate;
+    private final int topK;
+    private final Tracker[] trackers;
+
+    /**
+     * @param samplingRate one in {@code samplingRate} events is recorded
+     * @param topK the number of lines to track in each category
+     */
+    HotLineProfiler(int samplingRate, int topK) {
+        if (samplingRate < 1)
+            throw new IllegalArgumentException("samplingRate must be positive: " + samplingRate);
+        if (topK < 1)
+            throw new IllegalArgumentException("topK must be positive: " + topK);
+        this.samplingRate = samplingRate;
+        this.topK = topK;
+        this.trackers = new Tracker[Category.values().length];
+        for (int i = 0; i < trackers.length; i++)
+            trackers[i] = new Tracker(topK);
+    }
+
+    public int getSamplingRate() {
+        return samplingRate;
+    }
+
+    public int getTopK() {
+        return topK;
+    }
+
+    public void record(Category category, long id, long weight) {
+        if (samplingRate > 1 && ThreadLocalRandom.current().nextInt(samplingRate) != 0)
+            return;
+        trackers[category.ordinal()].add(id, Math.max(weight, 1));
+    }
+
+    /**
+     * Returns the hottest lines in the given category, hottest first, as "{@code id: estimate}" strings, where the estimate has
+     * been scaled up by the sampling rate.
+     */
+    public String[] getHotLines(Category category) {
+        return trackers[category.ordinal()].getTop(samplingRate);
+    }
+
+    public void reset() {
+        for (Tracker t : trackers)
+            t.reset();
+    }
+
+    private static class Tracker {
+        private final AtomicLongArray sketch = new AtomicLongArray(DEPTH << WIDTH_BITS);
+        private final long[] ids;
+        private final long[] counts;
+        private int size;
+
+        Tracker(int topK) {
+            this.ids = new long[topK];
+            this.counts = new long[topK];
+        }
+
+        void add(long id, long weight) {
+            long estimate = Long.MAX_VALUE;
+            for (int i = 0; i < DEPTH; i++)
+                estimate = Math.min(estimate, sketch.addAndGet(cell(i, id), weight));
+            offer(id, estimate);
+        }
+
+        private static int cell(int row, long id) {
+            long h = (id ^ (id >>> 33)) * SEEDS[row];
+            h ^= h >>> 29;
+            return (row << WIDTH_BITS) | (int) (h & ((1 << WIDTH_BITS) - 1));
+        }
+
+        private synchronized void offer(long id, long estimate) {
+            int min = -1;
+            for (int i = 0; i < size; i++) {
+                if (ids[i] == id) {
+                    counts[i] = Math.max(counts[i], estimate);
+                    return;
+                }
+                if (min < 0 || counts[i] < counts[min])
+                    min = i;
+            }
+            if (size < ids.length) {
+                ids[size] = id;
+                counts[size] = estimate;
+                size++;
+            } else if (estimate > counts[min]) {
+                ids[min] = id;
+                counts[min] = estimate;
+            }
+        }
+
+        synchronized String[] getTop(int scale) {
+            final Integer[] order = new Integer[size];
+            for (int i = 0; i < size; i++)
+                order[i] = i;
+            Arrays.sort(order, new Comparator<Integer>() {
+                @Override
+                public int compare(Integer a, Integer b) {
+                    return Long.compare(counts[b], counts[a]);
+                }
+            });
+            final String[] top = new String[size];
+            for (int i = 0; i < size; i++)
+                top[i] = Long.toHexString(ids[order[i]]) + ": " + counts[order[i]] * scale;
+            return top;
+        }
+
+        synchronized void reset() {
+            for (int i = 0; i < sketch.length(); i++)
+                sketch.set(i, 0);
+            size = 0;
+        }
+    }
+}
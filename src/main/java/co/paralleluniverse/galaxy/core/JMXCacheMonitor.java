@@ -13,6 +13,7 @@
  */
 package co.paralleluniverse.galaxy.core;
 
+import co.paralleluniverse.common.monitoring.LatencyHistogram;
 import co.paralleluniverse.common.monitoring.PeriodicMonitor;
 import co.paralleluniverse.galaxy.monitoring.CacheMXBean;
 import co.paralleluniverse.galaxy.monitoring.Counter;
@@ -36,11 +37,21 @@ class JMXCacheMonitor extends PeriodicMonitor implements CacheMonitor, CacheMXBe
     private final Counter missesCounter = new Counter();
     private final Counter invalidatesCounter = new Counter();
     private final Counter stalePurgesCounter = new Counter();
+    private final Counter prefetchesCounter = new Counter();
+    private final Counter prefetchHitsCounter = new Counter();
+    private final Counter prefetchWasteCounter = new Counter();
+    private final LatencyMonitor missLatencyGet = new LatencyMonitor();
+    private final LatencyMonitor missLatencyGetX = new LatencyMonitor();
+    private final LatencyMonitor invalidationLatency = new LatencyMonitor();
+    private volatile HotLineProfiler hotLineProfiler;
     private int hits;
     private int staleHits;
     private int misses;
     private int invalidates;
     private int stalePurges;
+    private int prefetches;
+    private int prefetchHits;
+    private int prefetchWaste;
 
     @ConstructorProperties({"name"})
     public JMXCacheMonitor(String name) {
@@ -65,18 +76,27 @@ class JMXCacheMonitor extends PeriodicMonitor implements CacheMonitor, CacheMXBe
             om.collectAndResetCounters();
         for (DelayedMessageMonitor dm : messageDelayMonitors.values())
             dm.collectAndResetCounters();
+        missLatencyGet.collectAndResetCounters();
+        missLatencyGetX.collectAndResetCounters();
+        invalidationLatency.collectAndResetCounters();
 
         hits = (int) hitsCounter.get();
         staleHits = (int) staleHitsCounter.get();
         misses = (int) missesCounter.get();
         invalidates = (int) invalidatesCounter.get();
         stalePurges = (int)stalePurgesCounter.get();
+        prefetches = (int) prefetchesCounter.get();
+        prefetchHits = (int) prefetchHitsCounter.get();
+        prefetchWaste = (int) prefetchWasteCounter.get();
         
         hitsCounter.reset();
         staleHitsCounter.reset();
         missesCounter.reset();
         invalidatesCounter.reset();
         stalePurgesCounter.reset();
+        prefetchesCounter.reset();
+        prefetchHitsCounter.reset();
+        prefetchWasteCounter.reset();
     }
 
     @Override
@@ -87,11 +107,22 @@ class JMXCacheMonitor extends PeriodicMonitor implements CacheMonitor, CacheMXBe
             om.reset();
         for (DelayedMessageMonitor dm : messageDelayMonitors.values())
             dm.reset();
+        missLatencyGet.reset();
+        missLatencyGetX.reset();
+        invalidationLatency.reset();
         hitsCounter.reset();
         staleHitsCounter.reset();
         missesCounter.reset();
         invalidatesCounter.reset();
         stalePurgesCounter.reset();
+        prefetchesCounter.reset();
+        prefetchHitsCounter.reset();
+        prefetchWasteCounter.reset();
+    }
+
+    @Override
+    public void setHotLineProfiler(HotLineProfiler profiler) {
+        this.hotLineProfiler = profiler;
     }
 
     @Override
@@ -125,9 +156,26 @@ class JMXCacheMonitor extends PeriodicMonitor implements CacheMonitor, CacheMXBe
     }
 
     @Override
-    public void addOp(Op.Type type, long durationMicroSeconds) {
-        if (durationMicroSeconds > 0)
-            opMonitors.get(type).addOp(durationMicroSeconds);
+    public void addOp(Op.Type type, long durationNanos) {
+        opMonitors.get(type).addOp(durationNanos);
+    }
+
+    @Override
+    public void addMissLatency(Message.Type response, short owner, long durationNanos) {
+        if (response == Message.Type.PUTX)
+            missLatencyGetX.addLatency(durationNanos);
+        else
+            missLatencyGet.addLatency(durationNanos);
+    }
+
+    @Override
+    public void addInvalidationLatency(long durationNanos) {
+        invalidationLatency.addLatency(durationNanos);
+    }
+
+    @Override
+    public void addMessageDelay(MessageDelayReason reason, long delayNanos) {
+        messageDelayMonitors.get(reason).addMessageDelay(delayNanos);
     }
 
     @Override
@@ -142,6 +190,21 @@ class JMXCacheMonitor extends PeriodicMonitor implements CacheMonitor, CacheMXBe
         stalePurgesCounter.add(num);
     }
 
+    @Override
+    public void addPrefetch(int num) {
+        prefetchesCounter.add(num);
+    }
+
+    @Override
+    public void addPrefetchHit() {
+        prefetchHitsCounter.inc();
+    }
+
+    @Override
+    public void addPrefetchWaste() {
+        prefetchWasteCounter.inc();
+    }
+
     ////////////////////////////////////////////
     private static class MessageMonitor {
         private final Counter messagesSentCounter = new Counter();
@@ -190,6 +253,7 @@ class JMXCacheMonitor extends PeriodicMonitor implements CacheMonitor, CacheMXBe
         private long maxTime;
         private final long[] rawHistogram;
         private final float[] histogram;
+        private final LatencyMonitor latency = new LatencyMonitor();
 
         OpMonitor(long... histogramBins) {
             this.histogramBins = histogramBins;
@@ -212,8 +276,15 @@ class JMXCacheMonitor extends PeriodicMonitor implements CacheMonitor, CacheMXBe
             return histogram;
         }
 
-        void addOp(long duration) {
+        long[] getLatencyPercentiles() {
+            return latency.getPercentiles();
+        }
+
+        void addOp(long durationNanos) {
             numOpsCounter.inc();
+            latency.addLatency(durationNanos);
+
+            final long duration = durationNanos / 1000; // histogram bins are in microseconds
 
             if (duration == 0) {
                 histogramCounters[0].inc();
@@ -243,6 +314,7 @@ class JMXCacheMonitor extends PeriodicMonitor implements CacheMonitor, CacheMXBe
         }
 
         synchronized void collect() {
+            latency.collect();
             numOps = (int) numOpsCounter.get();
             maxTime = maxTimeCounter.get();
             long sum = 0;
@@ -258,6 +330,7 @@ class JMXCacheMonitor extends PeriodicMonitor implements CacheMonitor, CacheMXBe
         }
 
         void reset() {
+            latency.reset();
             numOpsCounter.reset();
             maxTimeCounter.set(0);
             for (Counter histogramCounter : histogramCounters)
@@ -268,12 +341,21 @@ class JMXCacheMonitor extends PeriodicMonitor implements CacheMonitor, CacheMXBe
     private class DelayedMessageMonitor {
         private final Counter messagesCounter = new Counter();
         private final Counter delayCounter = new Counter();
+        private final LatencyMonitor messageDelay = new LatencyMonitor();
         private int messages;
         private long totalDelay;
 
         void addDelay(long nanos) {
             delayCounter.add(TimeUnit.MICROSECONDS.convert(nanos, TimeUnit.NANOSECONDS));
         }
+
+        void addMessageDelay(long nanos) {
+            messageDelay.addLatency(nanos);
+        }
+
+        long[] getMessageDelayPercentiles() {
+            return messageDelay.getPercentiles();
+        }
         
         void addMessages(int num) {
             messagesCounter.add(num);
@@ -293,6 +375,7 @@ class JMXCacheMonitor extends PeriodicMonitor implements CacheMonitor, CacheMXBe
         }
 
         void collect() {
+            messageDelay.collect();
             messages = (int) messagesCounter.get();
             
             double secondsSinceLast = getMillisSinceLastCollect() / 1000.0;
@@ -300,11 +383,47 @@ class JMXCacheMonitor extends PeriodicMonitor implements CacheMonitor, CacheMXBe
         }
 
         void reset() {
+            messageDelay.reset();
             messagesCounter.reset();
             messagesCounter.reset();
         }
     }
 
+    /**
+     * Collects a {@link LatencyHistogram} into the percentiles reported by {@link CacheMXBean}.
+     */
+    private static class LatencyMonitor {
+        private static final double[] PERCENTILES = {0.5, 0.9, 0.99, 0.999};
+        private final LatencyHistogram histogram = new LatencyHistogram();
+        private long[] percentiles = new long[PERCENTILES.length + 1];
+
+        void addLatency(long nanos) {
+            histogram.record(nanos);
+        }
+
+        synchronized long[] getPercentiles() {
+            return percentiles;
+        }
+
+        void collectAndResetCounters() {
+            collect();
+            reset();
+        }
+
+        synchronized void collect() {
+            final LatencyHistogram.HistogramSnapshot snapshot = histogram.getSnapshot();
+            final long[] ps = new long[PERCENTILES.length + 1];
+            for (int i = 0; i < PERCENTILES.length; i++)
+                ps[i] = TimeUnit.NANOSECONDS.toMicros((long) snapshot.getValue(PERCENTILES[i]));
+            ps[PERCENTILES.length] = TimeUnit.NANOSECONDS.toMicros(snapshot.getMax());
+            this.percentiles = ps;
+        }
+
+        void reset() {
+            histogram.reset();
+        }
+    }
+
     private int getNumOp(Op.Type ot) {
         return opMonitors.get(ot).getNumOps();
     }
@@ -313,6 +432,10 @@ class JMXCacheMonitor extends PeriodicMonitor implements CacheMonitor, CacheMXBe
         return opMonitors.get(ot).getHistogram();
     }
 
+    private long[] getOpLatency(Op.Type ot) {
+        return opMonitors.get(ot).getLatencyPercentiles();
+    }
+
     private int getNumMessagesReceived(Message.Type mt) {
         return messageMonitors.get(mt).getReceived();
     }
@@ -361,6 +484,46 @@ class JMXCacheMonitor extends PeriodicMonitor implements CacheMonitor, CacheMXBe
         return getOpHistogram(Op.Type.SET);
     }
 
+    @Override
+    public long[] getOpLatencyGet() {
+        return getOpLatency(Op.Type.GET);
+    }
+
+    @Override
+    public long[] getOpLatencyGetS() {
+        return getOpLatency(Op.Type.GETS);
+    }
+
+    @Override
+    public long[] getOpLatencyGetX() {
+        return getOpLatency(Op.Type.GETX);
+    }
+
+    @Override
+    public long[] getOpLatencySet() {
+        return getOpLatency(Op.Type.SET);
+    }
+
+    @Override
+    public long[] getOpLatencyInvoke() {
+        return getOpLatency(Op.Type.INVOKE);
+    }
+
+    @Override
+    public long[] getMissLatencyGet() {
+        return missLatencyGet.getPercentiles();
+    }
+
+    @Override
+    public long[] getMissLatencyGetX() {
+        return missLatencyGetX.getPercentiles();
+    }
+
+    @Override
+    public long[] getInvalidationLatency() {
+        return invalidationLatency.getPercentiles();
+    }
+
     @Override
     public int getNumOpPut() {
         return getNumOp(Op.Type.PUT);
@@ -476,6 +639,11 @@ class JMXCacheMonitor extends PeriodicMonitor implements CacheMonitor, CacheMXBe
         return messageDelayMonitors.get(MessageDelayReason.LOCK).getTotalMicrosecondDelayPerSecond();
     }
     
+    @Override
+    public long[] getMessageDelayLatencyDueLock() {
+        return messageDelayMonitors.get(MessageDelayReason.LOCK).getMessageDelayPercentiles();
+    }
+    
     @Override
     public int getNumMessagesDelayedDueBackup() {
         return messageDelayMonitors.get(MessageDelayReason.BACKUP).getMessages();
@@ -496,6 +664,33 @@ class JMXCacheMonitor extends PeriodicMonitor implements CacheMonitor, CacheMXBe
         return messageDelayMonitors.get(MessageDelayReason.OTHER).getTotalMicrosecondDelayPerSecond();
     }
     
+    private String[] getHotLines(HotLineProfiler.Category category) {
+        final HotLineProfiler profiler = hotLineProfiler;
+        return profiler != null ? profiler.getHotLines(category) : new String[0];
+    }
+
+    @Override
+    public String[] getHotLinesByOwnershipTransfers() {
+        return getHotLines(HotLineProfiler.Category.OWNERSHIP_TRANSFERS);
+    }
+
+    @Override
+    public String[] getHotLinesByPendingWait() {
+        return getHotLines(HotLineProfiler.Category.PENDING_WAIT);
+    }
+
+    @Override
+    public String[] getHotLinesByLockDelay() {
+        return getHotLines(HotLineProfiler.Category.LOCK_DELAY);
+    }
+
+    @Override
+    public void resetHotLines() {
+        final HotLineProfiler profiler = hotLineProfiler;
+        if (profiler != null)
+            profiler.reset();
+    }
+
     @Override
     public int getHits() {
         return hits;
@@ -515,4 +710,19 @@ class JMXCacheMonitor extends PeriodicMonitor implements CacheMonitor, CacheMXBe
     public int getInvalidates() {
         return invalidates;
     }
+
+    @Override
+    public int getPrefetches() {
+        return prefetches;
+    }
+
+    @Override
+    public int getPrefetchHits() {
+        return prefetchHits;
+    }
+
+    @Override
+    public int getPrefetchWaste() {
+        return prefetchWaste;
+    }
 }
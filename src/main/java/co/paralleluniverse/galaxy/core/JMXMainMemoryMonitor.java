@@ -29,6 +29,8 @@ class JMXMainMemoryMonitor extends PeriodicMonitor implements MainMemoryMonitor,
     private final Counter ownerWritesCounter = new Counter();
     private final Counter ownersServedCounter = new Counter();
     private final Counter allocationCounter = new Counter();
+    private final Counter entryCacheHitsCounter = new Counter();
+    private final Counter entryCacheMissesCounter = new Counter();
     
     private long writes;
     private long transactions;
@@ -36,6 +38,8 @@ class JMXMainMemoryMonitor extends PeriodicMonitor implements MainMemoryMonitor,
     private long ownerWrites;
     private long ownersServed;
     private long allocations;
+    private long entryCacheHits;
+    private long entryCacheMisses;
 
     @ConstructorProperties({"name"})
     public JMXMainMemoryMonitor(String name) {
@@ -50,6 +54,8 @@ class JMXMainMemoryMonitor extends PeriodicMonitor implements MainMemoryMonitor,
         ownerWrites = ownerWritesCounter.get();
         ownersServed = ownersServedCounter.get();
         allocations = allocationCounter.get();
+        entryCacheHits = entryCacheHitsCounter.get();
+        entryCacheMisses = entryCacheMissesCounter.get();
         resetCounters();
     }
 
@@ -61,6 +67,8 @@ class JMXMainMemoryMonitor extends PeriodicMonitor implements MainMemoryMonitor,
         ownerWritesCounter.reset();
         ownersServedCounter.reset();
         allocationCounter.reset();
+        entryCacheHitsCounter.reset();
+        entryCacheMissesCounter.reset();
     }
 
     @Override
@@ -89,6 +97,16 @@ class JMXMainMemoryMonitor extends PeriodicMonitor implements MainMemoryMonitor,
         allocationCounter.add(count);
     }
     
+    @Override
+    public void addEntryCacheHit() {
+        entryCacheHitsCounter.inc();
+    }
+
+    @Override
+    public void addEntryCacheMiss() {
+        entryCacheMissesCounter.inc();
+    }
+
     @Override
     public int getObjectsServed() {
         return (int)objectsServed;
@@ -118,4 +136,20 @@ class JMXMainMemoryMonitor extends PeriodicMonitor implements MainMemoryMonitor,
     public int getAllocations() {
         return (int)allocations;
     }
+
+    @Override
+    public int getEntryCacheHits() {
+        return (int) entryCacheHits;
+    }
+
+    @Override
+    public int getEntryCacheMisses() {
+        return (int) entryCacheMisses;
+    }
+
+    @Override
+    public float getEntryCacheHitRate() {
+        final long total = entryCacheHits + entryCacheMisses;
+        return total > 0 ? (float) entryCacheHits / total : 0;
+    }
 }
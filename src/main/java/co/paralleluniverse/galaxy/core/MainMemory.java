@@ -26,12 +26,21 @@ import co.paralleluniverse.galaxy.core.Message.LineMessage;
 import co.paralleluniverse.galaxy.server.MainMemoryDB;
 import co.paralleluniverse.galaxy.server.MainMemoryEntry;
 import com.google.common.base.Throwables;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import java.beans.ConstructorProperties;
 import java.lang.reflect.Proxy;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
 
 /**
  *
@@ -42,9 +51,15 @@ public class MainMemory extends ClusterService implements MessageReceiver, NodeC
     private static final long INITIAL_REF_ID = 0xffffffffL + 1;
     private static final short SERVER = 0;
     private final Comm comm;
-    private final MainMemoryDB store;
+    private MainMemoryDB store;
     private final MainMemoryMonitor monitor;
     private final AtomicLong refCounter = new AtomicLong();
+    private boolean ownerDirectory = false;
+    private long entryCacheSize = 0;
+    private EntryCache entryCache;
+    private int processingThreads = 0;
+    private ExecutorService[] lanes; // line messages are partitioned among the lanes by line, so each line's are handled in order
+    private ExecutorService allocationLane;
 
     @ConstructorProperties({"name", "cluster", "store", "comm", "monitoringType"})
     public MainMemory(String name, Cluster cluster, MainMemoryDB store, Comm comm, MonitoringType monitoringType) {
@@ -62,6 +77,51 @@ public class MainMemory extends ClusterService implements MessageReceiver, NodeC
         comm.setReceiver(this);
     }
 
+    public void setOwnerDirectory(boolean ownerDirectory) {
+        assertDuringInitialization();
+        this.ownerDirectory = ownerDirectory;
+    }
+
+    @ManagedAttribute
+    public boolean isOwnerDirectory() {
+        return ownerDirectory;
+    }
+
+    public void setEntryCacheSize(long entryCacheSize) {
+        assertDuringInitialization();
+        this.entryCacheSize = entryCacheSize;
+    }
+
+    @ManagedAttribute
+    public long getEntryCacheSize() {
+        return entryCacheSize;
+    }
+
+    public void setProcessingThreads(int processingThreads) {
+        assertDuringInitialization();
+        this.processingThreads = processingThreads;
+    }
+
+    @ManagedAttribute
+    public int getProcessingThreads() {
+        return processingThreads;
+    }
+
+    @Override
+    protected void init() throws Exception {
+        super.init();
+        if (ownerDirectory)
+            this.store = new OwnerDirectory(store);
+        if (entryCacheSize > 0)
+            this.entryCache = new EntryCache(entryCacheSize);
+        if (processingThreads > 0) {
+            this.lanes = new ExecutorService[processingThreads];
+            for (int i = 0; i < lanes.length; i++)
+                lanes[i] = Executors.newSingleThreadExecutor(new ThreadFactoryBuilder().setNameFormat("galaxyMainMemory-" + i).setDaemon(true).build());
+            this.allocationLane = Executors.newSingleThreadExecutor(new ThreadFactoryBuilder().setNameFormat("galaxyMainMemoryAlloc").setDaemon(true).build());
+        }
+    }
+
     @Override
     protected void start(boolean master) {
         if (master) {
@@ -82,6 +142,18 @@ public class MainMemory extends ClusterService implements MessageReceiver, NodeC
 
     @Override
     protected void shutdown() {
+        if (lanes != null) {
+            allocationLane.shutdown();
+            for (ExecutorService lane : lanes)
+                lane.shutdown();
+            try {
+                allocationLane.awaitTermination(10, TimeUnit.SECONDS);
+                for (ExecutorService lane : lanes)
+                    lane.awaitTermination(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
         store.close();
     }
 
@@ -100,6 +172,93 @@ public class MainMemory extends ClusterService implements MessageReceiver, NodeC
 
     @Override
     public void receive(Message message) {
+        if (lanes == null) {
+            handleMessage(message);
+            return;
+        }
+
+        switch (message.getType()) {
+            case ALLOC_REF:
+                allocationLane.execute(task(message));
+                break;
+            case BACKUP_PACKET:
+                dispatch((BACKUP_PACKET) message);
+                break;
+            default:
+                if (message instanceof LineMessage)
+                    lanes[lane(((LineMessage) message).getLine())].execute(task(message));
+                else
+                    handleMessage(message);
+        }
+    }
+
+    int lane(long id) {
+        return (int) (((id * 0x9E3779B97F4A7C15L) >>> 32) % lanes.length);
+    }
+
+    private Runnable task(final Message message) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    handleMessage(message);
+                } catch (Exception e) {
+                    LOG.error("Exception while handling message " + message, e);
+                }
+            }
+        };
+    }
+
+    /**
+     * A backup packet must be handled after all earlier messages concerning any of its lines, and before all later ones. Its lines
+     * are therefore split by lane, and each lane writes its part in its own transaction, so no lane ever waits for another. The packet
+     * is acked once all of its parts have been committed, and not at all if any of them fails. A crash may leave some of the parts in
+     * the store but not others, which is no worse than a node crashing before all of its packets are acked.
+     */
+    private void dispatch(final BACKUP_PACKET packet) {
+        final List<List<BACKUP>> parts = new ArrayList<List<BACKUP>>(lanes.length);
+        for (int i = 0; i < lanes.length; i++)
+            parts.add(null);
+        int count = 0;
+        for (BACKUP backup : packet.getBackups()) {
+            final int lane = lane(backup.getLine());
+            if (parts.get(lane) == null) {
+                parts.set(lane, new ArrayList<BACKUP>());
+                count++;
+            }
+            parts.get(lane).add(backup);
+        }
+        if (count <= 1) {
+            int lane = 0;
+            while (count > 0 && parts.get(lane) == null)
+                lane++;
+            lanes[lane].execute(task(packet));
+            return;
+        }
+
+        final AtomicInteger remaining = new AtomicInteger(count);
+        final AtomicBoolean failed = new AtomicBoolean();
+        for (int i = 0; i < lanes.length; i++) {
+            final List<BACKUP> part = parts.get(i);
+            if (part == null)
+                continue;
+            lanes[i].execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        backup(packet, part);
+                    } catch (Exception e) {
+                        LOG.error("Exception while handling message " + packet, e);
+                        failed.set(true);
+                    }
+                    if (remaining.decrementAndGet() == 0 && !failed.get())
+                        send(Message.BACKUP_PACKETACK(packet));
+                }
+            });
+        }
+    }
+
+    private void handleMessage(Message message) {
 //        if (!getCluster().isMaster()) {
 //            LOG.debug("Ignoring message {} 'cause I'm just a slave.");
 //            return;
@@ -148,16 +307,21 @@ public class MainMemory extends ClusterService implements MessageReceiver, NodeC
                     LOG.debug("Owner of reserved line {} is now node {} (CAS)", hex(id), msg.getNode());
                 monitor.addOwnerWrite();
                 monitor.addObjectServed();
-                store.write(id, msg.getNode(), 1, new byte[0], null);
+                write(id, msg.getNode(), 1, new byte[0], null);
                 send(Message.PUTX(msg, id, new short[0], 0, 1, null));
                 return true;
             } else if ((owner = store.casOwner(id, SERVER, msg.getNode())) == msg.getNode()) { // if owner is server, then transfer ownership
-                MainMemoryEntry entry = store.read(id);
                 if (LOG.isDebugEnabled())
                     LOG.debug("Owner of line {} is now node {} (previously owned by server)", hex(id), msg.getNode());
                 monitor.addOwnerWrite();
                 monitor.addObjectServed();
-                send(Message.PUTX(msg, id, new short[0], 0, entry.version, ByteBuffer.wrap(entry.data)));
+                if (entryCache != null) {
+                    final EntryCache.Entry entry = read(id);
+                    send(Message.PUTX(msg, id, new short[0], 0, entry.version, entry.getData()));
+                } else {
+                    final MainMemoryEntry entry = store.read(id);
+                    send(Message.PUTX(msg, id, new short[0], 0, entry.version, ByteBuffer.wrap(entry.data)));
+                }
                 return true;
             }
             if (owner == -1 && !isReserved(id))
@@ -180,6 +344,30 @@ public class MainMemory extends ClusterService implements MessageReceiver, NodeC
         }
     }
 
+    private EntryCache.Entry read(long id) {
+        EntryCache.Entry entry = entryCache.get(id);
+        if (entry != null)
+            monitor.addEntryCacheHit();
+        else {
+            monitor.addEntryCacheMiss();
+            final MainMemoryEntry e = store.read(id);
+            entry = e != null ? entryCache.put(id, e) : null;
+        }
+        return entry;
+    }
+
+    private void write(long id, short owner, long version, byte[] data, Object txn) {
+        if (entryCache != null)
+            entryCache.invalidate(id);
+        store.write(id, owner, version, data, txn);
+    }
+
+    private void delete(long id, Object txn) {
+        if (entryCache != null)
+            entryCache.invalidate(id);
+        store.delete(id, txn);
+    }
+
     private void handleMessageInvalidate(Message.INV msg) {
         final long id = msg.getLine();
         final short owner = msg.getNode();
@@ -210,7 +398,7 @@ public class MainMemory extends ClusterService implements MessageReceiver, NodeC
 
         final Object txn = store.beginTransaction();
         try {
-            store.delete(id, txn);
+            delete(id, txn);
             store.commit(txn);
             send(Message.INVACK(msg));
         } catch (Exception e) {
@@ -228,16 +416,23 @@ public class MainMemory extends ClusterService implements MessageReceiver, NodeC
     }
 
     private void handleMessageBackup(BACKUP_PACKET msg) {
+        backup(msg, msg.getBackups());
+        send(Message.BACKUP_PACKETACK(msg));
+    }
+
+    /**
+     * Writes some or all of a backup packet's lines in a single transaction.
+     */
+    private void backup(BACKUP_PACKET msg, List<BACKUP> backups) {
         final Object txn = store.beginTransaction();
         try {
-            monitor.addTransaction(msg.getBackups().size());
-            for (BACKUP backup : msg.getBackups()) {
+            monitor.addTransaction(backups.size());
+            for (BACKUP backup : backups) {
                 if (LOG.isDebugEnabled())
                     LOG.debug("Backing up version {} of line {} data: {}", new Object[]{backup.getVersion(), hex(backup.getLine()), backup.getData() != null ? "(" + backup.getData().remaining() + " bytes)" : "null"});
-                store.write(backup.getLine(), msg.getNode(), backup.getVersion(), Persistables.toByteArray(backup.getData()), txn);
+                write(backup.getLine(), msg.getNode(), backup.getVersion(), Persistables.toByteArray(backup.getData()), txn);
             }
             store.commit(txn);
-            send(Message.BACKUP_PACKETACK(msg));
         } catch (Exception e) {
             LOG.error("Exception during DB operation. Aborting transaction.", e);
             store.abort(txn);
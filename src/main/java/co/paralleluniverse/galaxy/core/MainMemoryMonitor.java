@@ -29,4 +29,8 @@ interface MainMemoryMonitor {
     void addTransaction(int numWrites);
     
     void addAllocation(int count);
+
+    void addEntryCacheHit();
+
+    void addEntryCacheMiss();
 }
@@ -48,7 +48,8 @@ public class Message implements Streamable, Externalizable, Cloneable {
         BACKUP_PACKET, BACKUP_PACKETACK,
         ALLOC_REF, ALLOCED_REF,
         MSG, MSGACK,
-        ACK;
+        ACK,
+        BACKUP_SUMMARY;
         // INVACK can be sent w/o an INV (e.g. eviction). replied by ack. INVACKs don't timeout.
         // ACK never flows back to Cache (handled by Comm), but INVACK does
 
@@ -145,6 +146,10 @@ public class Message implements Streamable, Externalizable, Cloneable {
         return new BACKUP_PACKETACK(responseTo);
     }
 
+    public static BACKUP_SUMMARY BACKUP_SUMMARY(long[] digests) {
+        return new BACKUP_SUMMARY(digests);
+    }
+
     public static ALLOC_REF ALLOC_REF(short node, int num) {
         return new ALLOC_REF(node, num);
     }
@@ -177,6 +182,10 @@ public class Message implements Streamable, Externalizable, Cloneable {
         return new LineMessage(responseTo, Type.MSGACK);
     }
 
+    public static LineMessage MSGACK(INVOKE responseTo) {
+        return new LineMessage(responseTo, Type.MSGACK);
+    }
+
     public static LineMessage TIMEOUT(LineMessage responseTo) {
         return new LineMessage(responseTo, Type.TIMEOUT);
     }
@@ -235,6 +244,8 @@ public class Message implements Streamable, Externalizable, Cloneable {
                 return new BACKUP_PACKET();
             case BACKUP_PACKETACK:
                 return new BACKUP_PACKETACK();
+            case BACKUP_SUMMARY:
+                return new BACKUP_SUMMARY();
             case ALLOC_REF:
                 return new ALLOC_REF();
             case ALLOCED_REF:
@@ -614,6 +625,7 @@ public class Message implements Streamable, Externalizable, Cloneable {
 
     public static class LineMessage extends Message {
         private long line;
+        LineMessage nextPending; // link in the line's pending-messages queue (see Cache)
 
         public LineMessage(short[] nodes, Type type, long line) {
             super(nodes, type);
@@ -690,7 +702,9 @@ public class Message implements Streamable, Externalizable, Cloneable {
 
         @Override
         public LineMessage clone() {
-            return (LineMessage) super.clone();
+            final LineMessage clone = (LineMessage) super.clone();
+            clone.nextPending = null;
+            return clone;
         }
     }
     ///////////////////////////////////////////////////////////////////////
@@ -741,6 +755,8 @@ public class Message implements Streamable, Externalizable, Cloneable {
 
     ///////////////////////////////////////////////////////////////////////
     public static class GET extends LineMessage {
+        private boolean migrate;
+
         GET(Type type) {
             super(type);
         }
@@ -749,11 +765,46 @@ public class Message implements Streamable, Externalizable, Cloneable {
             super(node, type, line);
             assert type == Type.GET || type == Type.GETX;
         }
+
+        /**
+         * Whether the owner must transfer the line even if it is sticky (i.e. the requester can't ship its write instead).
+         */
+        public boolean isMigrate() {
+            return migrate;
+        }
+
+        public GET setMigrate(boolean migrate) {
+            this.migrate = migrate;
+            return this;
+        }
+
+        @Override
+        public int sizeNoHeader() {
+            return super.sizeNoHeader() + 1;
+        }
+
+        @Override
+        public void writeNoHeader(DataOutput out) throws IOException {
+            super.writeNoHeader(out);
+            out.writeBoolean(migrate);
+        }
+
+        @Override
+        public void readNoHeader(DataInput in) throws IOException {
+            super.readNoHeader(in);
+            migrate = in.readBoolean();
+        }
+
+        @Override
+        public String partialToString() {
+            return super.partialToString() + (migrate ? ", migrate" : "");
+        }
     }
 
     ///////////////////////////////////////////////////////////////////////
     public static class INVOKE extends LineMessage {
         private byte[] function;
+        private boolean voidFunction;
 
         INVOKE(Type type) {
             super(type);
@@ -762,6 +813,7 @@ public class Message implements Streamable, Externalizable, Cloneable {
         public INVOKE(Type type, short node, long line, LineFunction function) {
             super(node, type, line);
             this.function = Serialization.getInstance().write(function); // new JDKSerializer().write(function);
+            this.voidFunction = Cache.isVoidLineFunction(function);
             assert type == Type.INVOKE;
         }
 
@@ -769,14 +821,22 @@ public class Message implements Streamable, Externalizable, Cloneable {
             return (LineFunction) Serialization.getInstance().read(function); // new JDKSerializer().read(function);
         }
 
+        /**
+         * Whether the function is a {@code LineFunction<Void>}, in which case it has no result to send back.
+         */
+        public boolean isVoidFunction() {
+            return voidFunction;
+        }
+
         @Override
         public int sizeNoHeader() {
-            return super.sizeNoHeader() + 2 + (function != null ? function.length : 0);
+            return super.sizeNoHeader() + 1 + 2 + (function != null ? function.length : 0);
         }
 
         @Override
         public void writeNoHeader(DataOutput out) throws IOException {
             super.writeNoHeader(out);
+            out.writeBoolean(voidFunction);
             out.writeShort(function != null ? (short) function.length : 0);
             if (function != null)
                 out.write(function);
@@ -785,6 +845,7 @@ public class Message implements Streamable, Externalizable, Cloneable {
         @Override
         public void readNoHeader(DataInput in) throws IOException {
             super.readNoHeader(in);
+            voidFunction = in.readBoolean();
             final int dataLen = in.readUnsignedShort();
             if (dataLen == 0)
                 function = null;
@@ -1015,8 +1076,11 @@ public class Message implements Streamable, Externalizable, Cloneable {
 
     ///////////////////////////////////////////////////////////////////////
     public static class CHNGD_OWNR extends LineMessage {
+        private static final byte CERTAIN = 1;
+        private static final byte STICKY = 1 << 1;
         private short newOwner;
         private boolean certain;
+        private boolean sticky;
 
         public CHNGD_OWNR() {
             super(Type.CHNGD_OWNR);
@@ -1038,6 +1102,19 @@ public class Message implements Streamable, Externalizable, Cloneable {
             return newOwner;
         }
 
+        /**
+         * Whether this is the owner's reply to a GETX, saying it keeps the line (which is sticky), and would rather run the
+         * requester's writes.
+         */
+        public boolean isSticky() {
+            return sticky;
+        }
+
+        public CHNGD_OWNR setSticky(boolean sticky) {
+            this.sticky = sticky;
+            return this;
+        }
+
         @Override
         public int sizeNoHeader() {
             return super.sizeNoHeader() + 1 + 2;
@@ -1046,20 +1123,22 @@ public class Message implements Streamable, Externalizable, Cloneable {
         @Override
         public void writeNoHeader(DataOutput out) throws IOException {
             super.writeNoHeader(out);
-            out.writeBoolean(certain);
+            out.writeByte((certain ? CERTAIN : 0) | (sticky ? STICKY : 0));
             out.writeShort(newOwner);
         }
 
         @Override
         public void readNoHeader(DataInput in) throws IOException {
             super.readNoHeader(in);
-            certain = in.readBoolean();
+            final byte flags = in.readByte();
+            certain = (flags & CERTAIN) != 0;
+            sticky = (flags & STICKY) != 0;
             newOwner = in.readShort();
         }
 
         @Override
         public String partialToString() {
-            return super.partialToString() + ", newOwner: " + newOwner + ", certain: " + certain;
+            return super.partialToString() + ", newOwner: " + newOwner + ", certain: " + certain + (sticky ? ", sticky" : "");
         }
     }
     ///////////////////////////////////////////////////////////////////////
@@ -1236,6 +1315,54 @@ public class Message implements Streamable, Externalizable, Cloneable {
         }
     }
 
+    ///////////////////////////////////////////////////////////////////////
+    /**
+     * Sent by a slave when it connects to its master, summarizing the lines it already holds (see {@link Backup#summarizeOwned()}).
+     */
+    public static class BACKUP_SUMMARY extends Message {
+        private static final long serialVersionUID = 1L;
+        private long[] digests;
+
+        public BACKUP_SUMMARY(long[] digests) {
+            super((short) 0, Type.BACKUP_SUMMARY);
+            this.digests = digests;
+        }
+
+        public BACKUP_SUMMARY() {
+            super(Type.BACKUP_SUMMARY);
+        }
+
+        public long[] getDigests() {
+            return digests;
+        }
+
+        @Override
+        public int size1() {
+            return super.size1() + 4 + 8 * digests.length;
+        }
+
+        @Override
+        public void write1(DataOutput out) throws IOException {
+            super.write1(out);
+            out.writeInt(digests.length);
+            for (long digest : digests)
+                out.writeLong(digest);
+        }
+
+        @Override
+        public void read1(DataInput in) throws IOException {
+            super.read1(in);
+            digests = new long[in.readInt()];
+            for (int i = 0; i < digests.length; i++)
+                digests[i] = in.readLong();
+        }
+
+        @Override
+        public String partialToString() {
+            return super.partialToString() + ", buckets: " + digests.length;
+        }
+    }
+
     ///////////////////////////////////////////////////////////////////////
     public static class ALLOC_REF extends Message {
         private int num;
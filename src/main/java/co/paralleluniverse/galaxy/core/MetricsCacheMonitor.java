@@ -13,13 +13,16 @@
  */
 package co.paralleluniverse.galaxy.core;
 
+import co.paralleluniverse.common.monitoring.LatencyHistogram;
 import co.paralleluniverse.common.monitoring.Metrics;
 import co.paralleluniverse.galaxy.core.Message.Type;
+import com.codahale.metrics.Gauge;
 import com.codahale.metrics.Meter;
 import static com.codahale.metrics.MetricRegistry.name;
 import com.codahale.metrics.Timer;
 import java.util.EnumMap;
 import java.util.concurrent.TimeUnit;
+import org.cliffc.high_scale_lib.NonBlockingHashMapLong;
 
 
 /**
@@ -35,14 +38,25 @@ class MetricsCacheMonitor implements CacheMonitor {
     private final Meter misses = Metrics.meter(metric("misses"));
     private final Meter invalidates = Metrics.meter(metric("invalidates"));
     private final Meter stalePurges = Metrics.meter(metric("stalePurges"));
+    private final Meter prefetches = Metrics.meter(metric("prefetches"));
+    private final Meter prefetchHits = Metrics.meter(metric("prefetchHits"));
+    private final Meter prefetchWaste = Metrics.meter(metric("prefetchWaste"));
+    private final EnumMap<Message.Type, MissLatencyMonitor> missLatencyMonitors = new EnumMap<Message.Type, MissLatencyMonitor>(Message.Type.class);
+    private final Timer invalidationLatency = latencyTimer(metric("invalidationLatency"));
 
     public MetricsCacheMonitor() {
         for (Op.Type op : Op.Type.values())
-            opMonitors.put(op, Metrics.timer(name("co.paralleluniverse", "galaxy", "Cache", "ops", op.name())));
+            opMonitors.put(op, latencyTimer(name("co.paralleluniverse", "galaxy", "Cache", "ops", op.name())));
         for (Message.Type m : Message.Type.values())
             messageMonitors.put(m, new MessageMonitor(m));
         for (MessageDelayReason reason : MessageDelayReason.values())
             messageDelayMonitors.put(reason, new DelayedMessageMonitor(reason));
+        for (Message.Type response : new Message.Type[]{Message.Type.PUT, Message.Type.PUTX})
+            missLatencyMonitors.put(response, new MissLatencyMonitor(response));
+    }
+
+    private static Timer latencyTimer(String name) {
+        return Metrics.timer(name, new LatencyHistogram());
     }
 
     protected final String metric(String name) {
@@ -53,6 +67,19 @@ class MetricsCacheMonitor implements CacheMonitor {
     public void setMonitoredObject(Object obj) {
     }
 
+    @Override
+    public void setHotLineProfiler(final HotLineProfiler profiler) {
+        for (final HotLineProfiler.Category category : HotLineProfiler.Category.values()) {
+            Metrics.remove(metric("hotLines." + category.name()));
+            Metrics.register(metric("hotLines." + category.name()), new Gauge<String[]>() {
+                @Override
+                public String[] getValue() {
+                    return profiler.getHotLines(category);
+                }
+            });
+        }
+    }
+
     @Override
     public void addHit() {
         hits.mark();
@@ -84,8 +111,23 @@ class MetricsCacheMonitor implements CacheMonitor {
     }
 
     @Override
-    public void addOp(Op.Type type, long durationMicroSeconds) {
-        opMonitors.get(type).update(durationMicroSeconds, TimeUnit.MICROSECONDS);
+    public void addOp(Op.Type type, long durationNanos) {
+        opMonitors.get(type).update(durationNanos, TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public void addMissLatency(Type response, short owner, long durationNanos) {
+        missLatencyMonitors.get(response).addLatency(owner, durationNanos);
+    }
+
+    @Override
+    public void addInvalidationLatency(long durationNanos) {
+        invalidationLatency.update(durationNanos, TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public void addMessageDelay(MessageDelayReason reason, long delayNanos) {
+        messageDelayMonitors.get(reason).addMessageDelay(delayNanos);
     }
 
     @Override
@@ -100,6 +142,21 @@ class MetricsCacheMonitor implements CacheMonitor {
         stalePurges.mark(num);
     }
 
+    @Override
+    public void addPrefetch(int num) {
+        prefetches.mark(num);
+    }
+
+    @Override
+    public void addPrefetchHit() {
+        prefetchHits.mark();
+    }
+
+    @Override
+    public void addPrefetchWaste() {
+        prefetchWaste.mark();
+    }
+
     private static class MessageMonitor {
         private final Meter messagesSent;
         private final Meter messagesReceived;
@@ -121,18 +178,46 @@ class MetricsCacheMonitor implements CacheMonitor {
     private static class DelayedMessageMonitor {
         private final Meter messages;
         private final Timer delay;
+        private final Timer messageDelay;
 
         public DelayedMessageMonitor(MessageDelayReason reason) {
             this.messages = Metrics.meter(name("co.paralleluniverse", "galaxy", "Cache", "messages", "messagesDelayed", reason.name()));
             this.delay = Metrics.timer(name("co.paralleluniverse", "galaxy", "Cache", "messages", "delay", reason.name())); 
+            this.messageDelay = latencyTimer(name("co.paralleluniverse", "galaxy", "Cache", "messages", "messageDelay", reason.name()));
         }
 
         void addDelay(long nanos) {
             delay.update(nanos, TimeUnit.NANOSECONDS);
         }
 
+        void addMessageDelay(long nanos) {
+            messageDelay.update(nanos, TimeUnit.NANOSECONDS);
+        }
+
         void addMessages(int num) {
             messages.mark(num);
         }
     }
+
+    private static class MissLatencyMonitor {
+        private final Message.Type response;
+        private final Timer latency;
+        private final NonBlockingHashMapLong<Timer> latencyByOwner = new NonBlockingHashMapLong<Timer>();
+
+        public MissLatencyMonitor(Message.Type response) {
+            this.response = response;
+            this.latency = latencyTimer(name("co.paralleluniverse", "galaxy", "Cache", "missLatency", response.name()));
+        }
+
+        void addLatency(short owner, long nanos) {
+            latency.update(nanos, TimeUnit.NANOSECONDS);
+
+            Timer ownerLatency = latencyByOwner.get(owner);
+            if (ownerLatency == null) { // only allocates the first time we hear from an owner
+                ownerLatency = latencyTimer(name("co.paralleluniverse", "galaxy", "Cache", "missLatency", response.name(), "node" + owner));
+                latencyByOwner.putIfAbsent(owner, ownerLatency);
+            }
+            ownerLatency.update(nanos, TimeUnit.NANOSECONDS);
+        }
+    }
 }
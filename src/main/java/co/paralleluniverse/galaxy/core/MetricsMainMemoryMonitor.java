@@ -16,6 +16,7 @@ package co.paralleluniverse.galaxy.core;
 import co.paralleluniverse.common.monitoring.Metrics;
 import com.codahale.metrics.Meter;
 import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.RatioGauge;
 
 /**
  *
@@ -28,6 +29,18 @@ class MetricsMainMemoryMonitor implements MainMemoryMonitor {
     private final Meter ownerWrites = Metrics.meter(metric("ownerWrites"));
     private final Meter ownersServed = Metrics.meter(metric("ownersServed"));
     private final Meter allocations = Metrics.meter(metric("allocations"));
+    private final Meter entryCacheHits = Metrics.meter(metric("entryCacheHits"));
+    private final Meter entryCacheMisses = Metrics.meter(metric("entryCacheMisses"));
+
+    public MetricsMainMemoryMonitor() {
+        Metrics.remove(metric("entryCacheHitRate"));
+        Metrics.register(metric("entryCacheHitRate"), new RatioGauge() {
+            @Override
+            protected Ratio getRatio() {
+                return Ratio.of(entryCacheHits.getOneMinuteRate(), entryCacheHits.getOneMinuteRate() + entryCacheMisses.getOneMinuteRate());
+            }
+        });
+    }
 
     protected final String metric(String name) {
         return MetricRegistry.name("co.paralleluniverse", "galaxy", "MainMemory", name);
@@ -62,4 +75,14 @@ class MetricsMainMemoryMonitor implements MainMemoryMonitor {
     public void addAllocation(int count) {
         allocations.mark(count);
     }
+
+    @Override
+    public void addEntryCacheHit() {
+        entryCacheHits.mark();
+    }
+
+    @Override
+    public void addEntryCacheMiss() {
+        entryCacheMisses.mark();
+    }
 }
@@ -0,0 +1,101 @@
+/*
+ * Galaxy
+ * Copyright (c) 2012-2014, Parallel Universe Software Co. All rights reserved.
+ *
+ * This program and the accompanying materials are dual-licensed under
+ * either the terms of the Eclipse Public License v1.0 as published by
+ * the Eclipse Foundation
+ *
+ *   or (per the licensee's choosing)
+ *
+ * under the terms of the GNU Lesser General Public License version 3.0
+ * as published by the Free Software Foundation.
+ */
+package co.paralleluniverse.galaxy.core;
+
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+import it.unimi.dsi.fastutil.longs.LongSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Maps nodes to the IDs of the lines related to them in some way (e.g. the lines they own), so that when a node leaves the cluster,
+ * the cache only needs to visit the lines concerning that node.
+ * <p>
+ * The index is kept by the cache alongside the lines' fields, under the lines' monitors; its own synchronization only protects its
+ * internal structure, as lines concerning the same node may be modified concurrently. Each node's lines are split among several
+ * independently locked sets, so that modifying lines that concern the same node (e.g. lines owned by the same peer) contends
+ * only when they fall into the same set.
+ */
+class NodeLineIndex {
+    private static final int STRIPES = 16; // must be a power of 2
+    private final ConcurrentMap<Short, LongSet[]> lines = new ConcurrentHashMap<Short, LongSet[]>();
+
+    void add(short node, long id) {
+        if (node < 0)
+            return;
+        LongSet[] sets = lines.get(node);
+        if (sets == null) {
+            sets = new LongSet[STRIPES];
+            for (int i = 0; i < STRIPES; i++)
+                sets[i] = new LongOpenHashSet();
+            final LongSet[] prev = lines.putIfAbsent(node, sets);
+            if (prev != null)
+                sets = prev;
+        }
+        final LongSet set = sets[stripe(id)];
+        synchronized (set) {
+            set.add(id);
+        }
+    }
+
+    void remove(short node, long id) {
+        if (node < 0)
+            return;
+        final LongSet[] sets = lines.get(node);
+        if (sets == null)
+            return;
+        final LongSet set = sets[stripe(id)];
+        synchronized (set) {
+            set.remove(id);
+        }
+    }
+
+    /**
+     * Returns the IDs of the lines related to the given node, as they are at the time of the call.
+     */
+    long[] get(short node) {
+        final LongSet[] sets = lines.get(node);
+        if (sets == null)
+            return new long[0];
+        final LongArrayList ids = new LongArrayList();
+        for (LongSet set : sets) {
+            synchronized (set) {
+                ids.addAll(set);
+            }
+        }
+        return ids.toLongArray();
+    }
+
+    /**
+     * Returns the number of lines related to the given node.
+     */
+    int size(short node) {
+        final LongSet[] sets = lines.get(node);
+        if (sets == null)
+            return 0;
+        int size = 0;
+        for (LongSet set : sets) {
+            synchronized (set) {
+                size += set.size();
+            }
+        }
+        return size;
+    }
+
+    private static int stripe(long id) {
+        final int h = (int) (id ^ (id >>> 32)) * 0x9E3779B9; // consecutive ids are spread among the stripes
+        return h >>> (32 - Integer.numberOfTrailingZeros(STRIPES));
+    }
+}
@@ -16,6 +16,7 @@ package co.paralleluniverse.galaxy.core;
 import co.paralleluniverse.common.io.Persistable;
 import co.paralleluniverse.common.util.Enums;
 import co.paralleluniverse.galaxy.Grid;
+import co.paralleluniverse.galaxy.LineCallback;
 import com.google.common.util.concurrent.AbstractFuture;
 import com.google.common.util.concurrent.ListenableFuture;
 import java.nio.ByteBuffer;
@@ -24,6 +25,8 @@ import java.util.Objects;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /**
  *
@@ -49,16 +52,21 @@ class Op {
             return Enums.isIn(this, set);
         }
     }
+    private static final Logger LOG = LoggerFactory.getLogger(Op.class);
     private static final byte COMPLETED = 1;
     private static final byte CANCELLED = 2;
+    private static final OpFuture<Object> CALLBACK = new OpFuture<Object>(null); // marks a pending op completed through its callback
     public final Type type;
     public final long line;
     public final Transaction txn;
     public final Object data;
     private Object extra;
     private OpFuture<Object> future;
+    private LineCallback<Object> callback;
     private long startTime;
     private byte status;
+    Op nextPending; // link in the owning line's pending-ops queue (see Cache)
+    final Thread issuer = Thread.currentThread(); // the op is ordered after the writes this thread has issued before (see Cache.publishEarly)
 
     Op(Type type, long line, Object data, Object extra, Transaction txn) {
         this.type = type;
@@ -110,9 +118,21 @@ class Op {
         this.extra = extra;
     }
 
+    /**
+     * Completes this op through the given callback rather than through a future. Must be called before the op is run.
+     */
+    void setCallback(LineCallback<Object> callback) {
+        assert future == null && txn == null;
+        this.callback = callback;
+    }
+
+    boolean hasCallback() {
+        return callback != null;
+    }
+
     void createFuture() {
         assert future == null;
-        this.future = new OpFuture<Object>(this);
+        this.future = callback != null ? CALLBACK : new OpFuture<Object>(this);
     }
 
     public boolean hasFuture() {
@@ -120,20 +140,44 @@ class Op {
     }
 
     public ListenableFuture<Object> getFuture() {
+        assert future != CALLBACK;
         return future;
     }
 
     public void setResult(Object result) {
         setCompleted();
-        future.set(result);
+        if (callback != null)
+            complete(callback, line, result);
+        else
+            future.set(result);
     }
 
     public void setException(Throwable t) {
         setCompleted();
-        future.setException(t);
+        if (callback != null)
+            fail(callback, line, t);
+        else
+            future.setException(t);
+    }
+
+    static void complete(LineCallback<Object> callback, long line, Object result) {
+        try {
+            callback.completed(line, result);
+        } catch (Throwable e) {
+            LOG.error("Callback " + callback + " threw an exception.", e);
+        }
+    }
+
+    static void fail(LineCallback<Object> callback, long line, Throwable t) {
+        try {
+            callback.failed(line, t);
+        } catch (Throwable e) {
+            LOG.error("Callback " + callback + " threw an exception.", e);
+        }
     }
 
     public Object getResult() throws InterruptedException, ExecutionException {
+        assert future != CALLBACK;
         return future.get();
     }
 
@@ -207,6 +251,23 @@ class Op {
             this.op = op;
         }
 
+        @Override
+        public V get() throws InterruptedException, ExecutionException {
+            verifyNotBlockingCommThread();
+            return super.get();
+        }
+
+        @Override
+        public V get(long timeout, TimeUnit unit) throws InterruptedException, TimeoutException, ExecutionException {
+            verifyNotBlockingCommThread();
+            return super.get(timeout, unit);
+        }
+
+        private void verifyNotBlockingCommThread() {
+            if (!isDone() && Thread.currentThread() instanceof CommThread)
+                throw new IllegalStateException("Waiting for op " + op + " would block a comm thread (was a callback or listener blocking?)");
+        }
+
         @Override
         public boolean cancel(boolean mayInterruptIfRunning) {
             if (!getCache().cancelOp(op))
@@ -0,0 +1,384 @@
+/*
+ * Galaxy
+ * Copyright (c) 2012-2014, Parallel Universe Software Co. All rights reserved.
+ *
+ * This program and the accompanying materials are dual-licensed under
+ * either the terms of the Eclipse Public License v1.0 as published by
+ * the Eclipse Foundation
+ *
+ *   or (per the licensee's choosing)
+ *
+ * under the terms of the GNU Lesser General Public License version 3.0
+ * as published by the Free Software Foundation.
+ */
+package co.paralleluniverse.galaxy.core;
+
+import static co.paralleluniverse.common.logging.LoggingUtils.hex;
+import co.paralleluniverse.galaxy.server.BatchOwnerDB;
+import co.paralleluniverse.galaxy.server.MainMemoryDB;
+import co.paralleluniverse.galaxy.server.MainMemoryEntry;
+import it.unimi.dsi.fastutil.longs.Long2ShortMap;
+import it.unimi.dsi.fastutil.longs.Long2ShortOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+import it.unimi.dsi.fastutil.longs.LongSet;
+import it.unimi.dsi.fastutil.shorts.ShortArrayList;
+import java.io.PrintStream;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A {@link MainMemoryDB} that keeps line ownership in memory, in front of the actual store.
+ * <p>
+ * {@link #casOwner(long, short, short) casOwner} is answered from an in-memory directory, and only goes to the store the first time
+ * a line is seen. Ownership changes are written back to the store by a background thread, which wakes up once
+ * {@code writeBackBatchSize} changes have accumulated (or {@code maxWriteBackDelayNanos} after its last pass), and drains them all
+ * in a single pass, so a line that changes hands many times in a short period costs a single store update. If the store is a
+ * {@link BatchOwnerDB}, each pass is written in a single store transaction. Allocations made by this server are likewise kept in
+ * memory, so {@link #findAllocation(long) findAllocation} only goes to the store for allocations made before it was started.
+ * <p>
+ * Because the store does not see an ownership change until it has been written back, and a store's
+ * {@link #write(long, short, long, byte[], Object) write} may depend on the line's owner, a line's pending change is written back
+ * before the line is written (transactions leave all other lines' changes to the background thread). The directory is split into
+ * stripes, each a primitive map guarded by its own lock, which is never held while the store is accessed. The store is accessed
+ * concurrently by the writer thread and by the server's threads, and is relied upon to be thread-safe, as all of the stores are;
+ * the server never handles the same line on two threads at once.
+ */
+class OwnerDirectory implements MainMemoryDB {
+    private static final Logger LOG = LoggerFactory.getLogger(OwnerDirectory.class);
+    private static final short SERVER = 0;
+    private static final long MAX_WRITE_BACK_DELAY_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+    private static final int WRITE_BACK_BATCH_SIZE = 1024;
+    private static final int STRIPES = 64; // must be a power of 2
+    private final MainMemoryDB store;
+    private final long maxWriteBackDelayNanos;
+    private final int writeBackBatchSize;
+    private final Stripe[] stripes = new Stripe[STRIPES];
+    private final AtomicInteger dirtyCount = new AtomicInteger();
+    private final ConcurrentSkipListMap<Long, Allocation> allocations = new ConcurrentSkipListMap<Long, Allocation>();
+    private final Thread writer;
+    private volatile boolean closed;
+
+    OwnerDirectory(MainMemoryDB store) {
+        this(store, MAX_WRITE_BACK_DELAY_NANOS, WRITE_BACK_BATCH_SIZE);
+    }
+
+    OwnerDirectory(MainMemoryDB store, long maxWriteBackDelayNanos, int writeBackBatchSize) {
+        this.store = store;
+        this.maxWriteBackDelayNanos = maxWriteBackDelayNanos;
+        this.writeBackBatchSize = writeBackBatchSize;
+        for (int i = 0; i < STRIPES; i++)
+            stripes[i] = new Stripe();
+        this.writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writeBackLoop();
+            }
+        }, "galaxyOwnerDirectory");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    int size() {
+        int size = 0;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                size += stripe.owners.size();
+            }
+        }
+        return size;
+    }
+
+    private Stripe stripe(long id) {
+        return stripes[(int) (id ^ (id >>> 32)) & (STRIPES - 1)];
+    }
+
+    @Override
+    public short casOwner(long id, short oldNode, short newNode) {
+        final Stripe stripe = stripe(id);
+        for (;;) {
+            synchronized (stripe) {
+                final short current = stripe.owners.get(id);
+                if (current >= 0) {
+                    if (current != oldNode)
+                        return current;
+                    stripe.owners.put(id, newNode);
+                    changed(stripe, id, current);
+                    return newNode;
+                }
+            }
+            final short res = load(id, oldNode, newNode);
+            if (res != Short.MIN_VALUE)
+                return res;
+            // loaded concurrently
+        }
+    }
+
+    /**
+     * Performs the CAS on a line that isn't in the directory in the store, and adds the line to the directory.
+     *
+     * @return the result of the CAS, or {@code Short.MIN_VALUE} if the line has been added to the directory in the meantime.
+     */
+    private short load(long id, short oldNode, short newNode) {
+        final short res = store.casOwner(id, oldNode, newNode);
+        if (res < 0)
+            return res;
+        final Stripe stripe = stripe(id);
+        synchronized (stripe) {
+            final short current = stripe.owners.get(id);
+            if (current >= 0) {
+                if (res == newNode && res != current)
+                    changed(stripe, id, res); // we've changed the store's owner behind the directory's back; have the writer restore it
+                return Short.MIN_VALUE;
+            }
+            stripe.owners.put(id, res);
+        }
+        if (LOG.isDebugEnabled())
+            LOG.debug("Loaded owner of line {}: {}", hex(id), res);
+        return res;
+    }
+
+    /**
+     * Marks a line as needing to be written back. Must be called while holding the stripe's lock.
+     *
+     * @param previous the line's owner in the store
+     */
+    private void changed(Stripe stripe, long id, short previous) {
+        if (stripe.dirty.containsKey(id))
+            return;
+        stripe.dirty.put(id, previous);
+        if (dirtyCount.incrementAndGet() == writeBackBatchSize)
+            LockSupport.unpark(writer);
+    }
+
+    @Override
+    public void removeOwner(short node) {
+        store.removeOwner(node);
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                for (Long2ShortMap.Entry entry : stripe.owners.long2ShortEntrySet()) {
+                    if (entry.getShortValue() != node)
+                        continue;
+                    entry.setValue(SERVER); // the store has already done that...
+                    if (stripe.writing.contains(entry.getLongKey()))
+                        changed(stripe, entry.getLongKey(), node); // ... but a write-back in progress may undo it
+                }
+            }
+        }
+    }
+
+    @Override
+    public void allocate(short owner, long start, int num) {
+        store.allocate(owner, start, num);
+        allocations.put(start, new Allocation(start + num, owner));
+    }
+
+    @Override
+    public short findAllocation(long ref) {
+        final Map.Entry<Long, Allocation> entry = allocations.floorEntry(ref);
+        if (entry != null && ref < entry.getValue().end)
+            return entry.getValue().owner;
+        return store.findAllocation(ref);
+    }
+
+    @Override
+    public Object beginTransaction() {
+        return store.beginTransaction();
+    }
+
+    @Override
+    public void commit(Object txn) {
+        store.commit(txn);
+    }
+
+    @Override
+    public void abort(Object txn) {
+        store.abort(txn);
+    }
+
+    @Override
+    public void write(long id, short owner, long version, byte[] data, Object txn) {
+        writeBack(id); // the write may depend on the line's owner
+        store.write(id, owner, version, data, txn);
+    }
+
+    @Override
+    public MainMemoryEntry read(long id) {
+        return store.read(id);
+    }
+
+    @Override
+    public void delete(long id, Object txn) {
+        store.delete(id, txn);
+        final Stripe stripe = stripe(id);
+        synchronized (stripe) {
+            stripe.owners.remove(id);
+            if (stripe.dirty.containsKey(id)) {
+                stripe.dirty.remove(id);
+                dirtyCount.decrementAndGet();
+            }
+        }
+    }
+
+    @Override
+    public long getMaxId() {
+        return store.getMaxId();
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        LockSupport.unpark(writer);
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        writeBackAll();
+        store.close();
+    }
+
+    @Override
+    public void dump(PrintStream ps) {
+        writeBackAll();
+        store.dump(ps);
+    }
+
+    private void writeBackLoop() {
+        while (!closed) {
+            LockSupport.parkNanos(this, maxWriteBackDelayNanos);
+            try {
+                writeBackAll();
+            } catch (Exception e) {
+                LOG.error("Exception while writing back line owners.", e);
+            }
+        }
+    }
+
+    /**
+     * Writes back all pending changes, in a single store transaction if the store supports it.
+     */
+    private void writeBackAll() {
+        final LongArrayList ids = new LongArrayList();
+        final ShortArrayList previous = new ShortArrayList();
+        final ShortArrayList owners = new ShortArrayList();
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                if (stripe.dirty.isEmpty())
+                    continue;
+                for (Long2ShortMap.Entry entry : stripe.dirty.long2ShortEntrySet()) {
+                    final long id = entry.getLongKey();
+                    ids.add(id);
+                    previous.add(entry.getShortValue());
+                    owners.add(stripe.owners.get(id));
+                    stripe.writing.add(id);
+                }
+                dirtyCount.addAndGet(-stripe.dirty.size());
+                stripe.dirty.clear();
+            }
+        }
+        if (ids.isEmpty())
+            return;
+
+        boolean written = false;
+        try {
+            if (store instanceof BatchOwnerDB)
+                ((BatchOwnerDB) store).setOwners(ids.elements(), owners.elements(), ids.size());
+            else {
+                for (int i = 0; i < ids.size(); i++)
+                    writeOwner(ids.getLong(i), previous.getShort(i), owners.getShort(i));
+            }
+            written = true;
+            LOG.debug("Wrote back the owners of {} lines.", ids.size());
+        } finally {
+            for (int i = 0; i < ids.size(); i++)
+                doneWriting(ids.getLong(i), written, previous.getShort(i));
+        }
+    }
+
+    /**
+     * Writes the line's owner in the directory to the store, if it's changed since it was last written. When this returns, the
+     * store has the owner, even if the change is being written back concurrently by another thread.
+     */
+    private void writeBack(long id) {
+        final Stripe stripe = stripe(id);
+        final short previous;
+        final short owner;
+        synchronized (stripe) {
+            awaitWriting(stripe, id);
+            if (!stripe.dirty.containsKey(id))
+                return;
+            previous = stripe.dirty.remove(id);
+            dirtyCount.decrementAndGet();
+            owner = stripe.owners.get(id);
+            stripe.writing.add(id);
+        }
+        boolean written = false;
+        try {
+            writeOwner(id, previous, owner);
+            written = true;
+        } finally {
+            doneWriting(id, written, previous);
+        }
+    }
+
+    private void writeOwner(long id, short previous, short owner) {
+        short res = store.casOwner(id, previous, owner);
+        if (res != owner && res >= 0) // the store's owner has changed under us (by removeOwner); the directory's is the right one
+            res = store.casOwner(id, res, owner);
+        if (res != owner)
+            LOG.warn("Writing back owner {} of line {} failed. Store owner: {}", new Object[]{owner, hex(id), res});
+    }
+
+    private void doneWriting(long id, boolean written, short previous) {
+        final Stripe stripe = stripe(id);
+        synchronized (stripe) {
+            stripe.writing.remove(id);
+            if (!written && stripe.owners.containsKey(id))
+                changed(stripe, id, previous); // try again later
+            stripe.notifyAll();
+        }
+    }
+
+    /**
+     * Waits until a write-back of the line by another thread completes. Must be called while holding the stripe's lock.
+     */
+    private static void awaitWriting(Stripe stripe, long id) {
+        boolean interrupted = false;
+        while (stripe.writing.contains(id)) {
+            try {
+                stripe.wait();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+    }
+
+    private static class Stripe {
+        final Long2ShortMap owners = new Long2ShortOpenHashMap();
+        final Long2ShortMap dirty = new Long2ShortOpenHashMap(); // line -> owner last written to the store
+        final LongSet writing = new LongOpenHashSet(); // lines whose owners are being written back
+
+        Stripe() {
+            owners.defaultReturnValue((short) -1);
+            dirty.defaultReturnValue((short) -1);
+        }
+    }
+
+    private static class Allocation {
+        final long end;
+        final short owner;
+
+        Allocation(long end, short owner) {
+            this.end = end;
+            this.owner = owner;
+        }
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ * Galaxy
+ * Copyright (c) 2012-2014, Parallel Universe Software Co. All rights reserved.
+ *
+ * This program and the accompanying materials are dual-licensed under
+ * either the terms of the Eclipse Public License v1.0 as published by
+ * the Eclipse Foundation
+ *
+ *   or (per the licensee's choosing)
+ *
+ * under the terms of the GNU Lesser General Public License version 3.0
+ * as published by the Free Software Foundation.
+ */
+package co.paralleluniverse.galaxy.core;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A bounded, lossy map from line IDs to the last known owners of lines that are no longer in the cache.
+ * <p>
+ * The map is direct-mapped: each line hashes to a single slot, and a new hint simply replaces whatever the slot held. Each slot
+ * packs a 48-bit tag of the line's hash together with the owner into a single {@code long}, so the map is lock free and never
+ * allocates. A hint may therefore be lost or (very rarely, on a tag collision) be wrong; it is only ever used as a guess of where
+ * to send a request, and a wrong guess is corrected by the node's {@code CHNGD_OWNR} response.
+ */
+class OwnerHints {
+    private static final long EMPTY = 0L;
+    private final AtomicLongArray slots;
+    private final int mask;
+
+    /**
+     * @param capacity the number of hints to keep; rounded up to a power of two.
+     */
+    OwnerHints(int capacity) {
+        if (capacity < 1)
+            throw new IllegalArgumentException("capacity must be positive: " + capacity);
+        final int size = Integer.highestOneBit(capacity - 1) << 1;
+        this.slots = new AtomicLongArray(Math.max(size, 1));
+        this.mask = slots.length() - 1;
+    }
+
+    public int capacity() {
+        return slots.length();
+    }
+
+    public void put(long id, short owner) {
+        final long h = hash(id);
+        slots.lazySet(index(h), entry(h, owner));
+    }
+
+    /**
+     * Returns and removes the hint for the given line.
+     *
+     * @return the line's last known owner, or {@code -1} if unknown.
+     */
+    public short remove(long id) {
+        final long h = hash(id);
+        final int i = index(h);
+        final long entry = slots.get(i);
+        if (entry == EMPTY || (entry >>> 16) != tag(h))
+            return -1;
+        slots.compareAndSet(i, entry, EMPTY);
+        return (short) entry;
+    }
+
+    private int index(long h) {
+        return (int) h & mask;
+    }
+
+    private static long tag(long h) {
+        return h >>> 16;
+    }
+
+    private static long entry(long h, short owner) {
+        return (tag(h) << 16) | (owner & 0xFFFFL);
+    }
+
+    private static long hash(long id) { // a bijective mix (from MurmurHash3's finalizer)
+        id ^= id >>> 33;
+        id *= 0xff51afd7ed558ccdL;
+        id ^= id >>> 33;
+        id *= 0xc4ceb9fe1a85ec53L;
+        id ^= id >>> 33;
+        return id;
+    }
+}
@@ -18,6 +18,7 @@ import co.paralleluniverse.common.io.Streamable;
 import co.paralleluniverse.common.io.Streamables;
 import co.paralleluniverse.galaxy.CacheListener;
 import co.paralleluniverse.galaxy.ItemState;
+import co.paralleluniverse.galaxy.LineCallback;
 import co.paralleluniverse.galaxy.LineFunction;
 import co.paralleluniverse.galaxy.Store;
 import co.paralleluniverse.galaxy.StoreTransaction;
@@ -123,10 +124,6 @@ public class StoreImpl implements Store {
 
     @Override
     public <T> T invoke(long lineId, LineFunction<T> function) throws TimeoutException {
-//        if (Cache.isVoidLineFunction(function)) {
-//            cache.doOpAsync(Op.Type.INVOKE, lineId, (Object) function, null, null);
-//            return null;
-//        } else
         return (T) cache.doOp(Op.Type.INVOKE, lineId, (Object) function, null, null);
     }
 
@@ -265,6 +262,21 @@ public class StoreImpl implements Store {
         return getAsync(GET, id, nodeHint, null);
     }
 
+    @Override
+    public void getAsync(long id, LineCallback<byte[]> callback) {
+        cache.doOpWithCallback(GET, id, null, null, callback);
+    }
+
+    @Override
+    public void getAsync(long id, Persistable object, LineCallback<Persistable> callback) {
+        cache.doOpWithCallback(GET, nonReserved(id), nonNullPersistable(object), null, callback);
+    }
+
+    @Override
+    public void getAsync(long id, short nodeHint, LineCallback<byte[]> callback) {
+        cache.doOpWithCallback(GET, nonReserved(id), null, nodeHint, callback);
+    }
+
     @Override
     public ListenableFuture<byte[]> getFromOwnerAsync(long id, long ownerOf) {
         return getFromOwnerAsync(GET, id, ownerOf, null);
@@ -362,11 +374,7 @@ public class StoreImpl implements Store {
 
     @Override
     public <T> ListenableFuture<T> invokeAsync(long id, LineFunction<T> function) {
-        final ListenableFuture<T> res = (ListenableFuture<T>) cache.doOpAsync(Op.Type.INVOKE, id, (Object) function, null, null);
-//        if (Cache.isVoidLineFunction(function))
-//            return Futures.immediateFuture(null);
-//        else
-        return res;
+        return (ListenableFuture<T>) cache.doOpAsync(Op.Type.INVOKE, id, (Object) function, null, null);
     }
 
     @Override
@@ -389,6 +397,11 @@ public class StoreImpl implements Store {
         return cache.getListener(id);
     }
 
+    @Override
+    public void setWriteUpdate(long id, boolean value) {
+        cache.setWriteUpdate(id, value);
+    }
+
     @Override
     public void push(long id, short... toNodes) {
         try {
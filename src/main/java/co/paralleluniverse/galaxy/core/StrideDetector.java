@@ -0,0 +1,68 @@
+/*
+ * Galaxy
+ * Copyright (c) 2012-2014, Parallel Universe Software Co. All rights reserved.
+ *
+ * This program and the accompanying materials are dual-licensed under
+ * either the terms of the Eclipse Public License v1.0 as published by
+ * the Eclipse Foundation
+ *
+ *   or (per the licensee's choosing)
+ *
+ * under the terms of the GNU Lesser General Public License version 3.0
+ * as published by the Free Software Foundation.
+ */
+package co.paralleluniverse.galaxy.core;
+
+/**
+ * Detects a sequential or strided stream in the lines missed by a single thread.
+ * <p>
+ * A stride is confirmed once two consecutive accesses are the same (non-zero, and not too large) distance apart. Each thread has
+ * its own detector, so streams of different threads don't disturb each other, and the detector needs no synchronization.
+ */
+class StrideDetector {
+    static final int MAX_STRIDE = 64;
+    private long last;
+    private long stride;
+    private long prefetchStart;
+    private short prefetchOwner = -1;
+
+    /**
+     * Records an access to a line, and, if it confirms a stride, requests a prefetch from {@code owner} of the lines that follow it.
+     *
+     * @return {@code true} if the access confirmed a stride.
+     */
+    boolean access(long id, short owner) {
+        final long delta = id - last;
+        if (delta == 0)
+            return false; // the same access, retried
+        final boolean confirmed = delta == stride;
+        this.stride = Math.abs(delta) <= MAX_STRIDE ? delta : 0;
+        this.last = id;
+        if (confirmed && owner >= 0) {
+            this.prefetchStart = id + stride;
+            this.prefetchOwner = owner;
+            return true;
+        }
+        return false;
+    }
+
+    long getStride() {
+        return stride;
+    }
+
+    boolean hasPrefetch() {
+        return prefetchOwner >= 0;
+    }
+
+    long getPrefetchStart() {
+        return prefetchStart;
+    }
+
+    short getPrefetchOwner() {
+        return prefetchOwner;
+    }
+
+    void clearPrefetch() {
+        this.prefetchOwner = -1;
+    }
+}
@@ -23,6 +23,7 @@ import it.unimi.dsi.fastutil.longs.LongIterator;
 import it.unimi.dsi.fastutil.longs.LongLists;
 import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
 import it.unimi.dsi.fastutil.longs.LongSet;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Iterator;
@@ -72,11 +73,19 @@ public class Transaction extends StoreTransaction {
         return rollbackLog.containsKey(id);
     }
 
-    synchronized void recordRollback(long id, long version, boolean modified, byte[] data) {
+    /**
+     * @param data the line's pre-image, which is now owned by the transaction until it is either restored by a rollback or
+     *             released when the transaction ends.
+     */
+    synchronized void recordRollback(long id, long version, boolean modified, ByteBuffer data) {
         assert rollbackLog.get(id) == null;
         rollbackLog.put(id, new RollbackInfo(version, modified, data));
     }
 
+    synchronized void clearRollbacks() {
+        rollbackLog.clear();
+    }
+
     synchronized LongCollection getLines() {
         return lines != null ? lines : LongLists.EMPTY_LIST;
     }
@@ -123,9 +132,9 @@ public class Transaction extends StoreTransaction {
     public static class RollbackInfo {
         public final long version;
         public final boolean modified;
-        public final byte[] data;
+        public final ByteBuffer data;
 
-        public RollbackInfo(long version, boolean modified, byte[] data) {
+        public RollbackInfo(long version, boolean modified, ByteBuffer data) {
             this.version = version;
             this.modified = modified;
             this.data = data;
@@ -15,6 +15,7 @@ package co.paralleluniverse.galaxy.jdbc;
 
 import static co.paralleluniverse.common.logging.LoggingUtils.hex;
 import co.paralleluniverse.common.spring.Component;
+import co.paralleluniverse.galaxy.server.BatchOwnerDB;
 import co.paralleluniverse.galaxy.server.MainMemoryDB;
 import co.paralleluniverse.galaxy.server.MainMemoryEntry;
 import com.google.common.base.Throwables;
@@ -27,17 +28,32 @@ import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
 import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import javax.sql.DataSource;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
 
 /**
+ * A {@link MainMemoryDB} that stores the data in an RDBMS.
+ * <p>
+ * Each transaction, and each operation outside a transaction, checks out a connection (obtained from the {@code DataSource}, which
+ * may be a pooling one) along with its prepared statements, and returns it when done, so that the server's processing threads don't
+ * serialize on the database. Connections are kept open and reused, so the store holds as many connections as there have been
+ * concurrent transactions and operations, rather than one per thread. Within a transaction, line writes are batched, and sent to
+ * the database when the transaction commits (or when the transaction next deletes a line).
  *
  * @author pron
  */
-public class SQLDB extends Component implements MainMemoryDB {
+public class SQLDB extends Component implements BatchOwnerDB {
     private static final Logger LOG = LoggerFactory.getLogger(SQLDB.class);
     private final DataSource dataSource;
     private String username;
@@ -52,19 +68,9 @@ public class SQLDB extends Component implements MainMemoryDB {
     private String varbinaryType;
     private int maxItemSize = 1024;
     private boolean useUpdateableCursors = false;
-    private Connection conn;
-    private PreparedStatement casOwner;
-    private PreparedStatement getOwner;
-    private PreparedStatement deleteOwner;
-    private PreparedStatement insertLine;
-    private PreparedStatement setLine;
-    private PreparedStatement getLine;
-    private PreparedStatement deleteLine;
-    private PreparedStatement selectAll;
-    private PreparedStatement getMaxId;
-    private PreparedStatement addAllocation;
-    private PreparedStatement getAllocation;
-    private static final Object TRANSACTION = new Object();
+    private boolean useBatchUpdates = true;
+    private final Set<Session> sessions = Collections.newSetFromMap(new ConcurrentHashMap<Session, Boolean>());
+    private final Queue<Session> idleSessions = new ConcurrentLinkedQueue<Session>();
 
     @ConstructorProperties({"name", "dataSource"})
     public SQLDB(String name, DataSource dataSource) {
@@ -107,6 +113,16 @@ public class SQLDB extends Component implements MainMemoryDB {
         this.useUpdateableCursors = useUpdateableCursors;
     }
 
+    public void setUseBatchUpdates(boolean useBatchUpdates) {
+        assertDuringInitialization();
+        this.useBatchUpdates = useBatchUpdates;
+    }
+
+    @ManagedAttribute
+    public boolean isUseBatchUpdates() {
+        return useBatchUpdates;
+    }
+
     public void setBigintType(String bigintType) {
         assertDuringInitialization();
         this.bigintType = bigintType;
@@ -122,29 +138,39 @@ public class SQLDB extends Component implements MainMemoryDB {
         this.smallintType = smallintType;
     }
 
+    @ManagedAttribute
+    public int getNumConnections() {
+        return sessions.size();
+    }
+
     @Override
     protected void init() throws Exception {
         super.init();
 
         LOG.info("Connecting to database {}", dataSource);
-        if (username != null)
-            conn = dataSource.getConnection(username, password);
-        else
-            conn = dataSource.getConnection();
+        final Connection conn = connect();
         LOG.info("Connection successful");
 
-        initDbTypes();
+        try {
+            initDbTypes(conn);
 
-        this.table = schema + "." + tableName;
-        this.allocTable = schema + "." + allocationTableName;
-        initTable();
-        initPreparedStatements();
+            this.table = schema + "." + tableName;
+            this.allocTable = schema + "." + allocationTableName;
+            initTable(conn);
+        } finally {
+            conn.close();
+        }
+        release(acquire()); // fail early if the statements can't be prepared
+    }
 
-        conn.setAutoCommit(false);
-        conn.setTransactionIsolation(Connection.TRANSACTION_READ_COMMITTED);
+    private Connection connect() throws SQLException {
+        if (username != null)
+            return dataSource.getConnection(username, password);
+        else
+            return dataSource.getConnection();
     }
 
-    private void initTable() throws SQLException {
+    private void initTable(Connection conn) throws SQLException {
         try {
             try (Statement stmt = conn.createStatement()) {
                 String createTable = "CREATE TABLE " + table + " "
@@ -170,25 +196,7 @@ public class SQLDB extends Component implements MainMemoryDB {
         }
     }
 
-    private void initPreparedStatements() throws SQLException {
-        getMaxId();
-        dump(null);
-        insert(0, (short) 0, 0, null, null);
-        read(0);
-        write(0, (short) 0, 0, null, null);
-        delete(0, null);
-        removeOwner((short) 0);
-        if (useUpdateableCursors)
-            casOwnerUpdateableCursor(0, (short) 0, (short) 0);
-        else {
-            casOwnerUpdate(0, (short) 0, (short) 0);
-            getOwner(0);
-        }
-        allocate((short) 0, 0, 0);
-        findAllocation(0);
-    }
-
-    private void initDbTypes() throws SQLException {
+    private void initDbTypes(Connection conn) throws SQLException {
         if (bigintType == null || smallintType == null || varbinaryType == null) {
             final Map<Integer, String> types = new HashMap<Integer, String>();
             final DatabaseMetaData dmd = conn.getMetaData();
@@ -220,49 +228,80 @@ public class SQLDB extends Component implements MainMemoryDB {
             return varbinaryType + "(" + size + ")";
     }
 
+    /**
+     * Checks out an idle session, opening a new one if there is none.
+     */
+    private Session acquire() {
+        Session s = idleSessions.poll();
+        if (s == null) {
+            try {
+                s = new Session(connect());
+            } catch (SQLException e) {
+                throw Throwables.propagate(e);
+            }
+            sessions.add(s);
+            LOG.debug("Opened connection number {}", sessions.size());
+        }
+        return s;
+    }
+
+    /**
+     * Returns a session checked out with {@link #acquire() acquire}.
+     */
+    private void release(Session s) {
+        idleSessions.offer(s);
+    }
+
     @Override
     public void close() {
-        try {
-            conn.close();
-        } catch (SQLException e) {
-            throw Throwables.propagate(e);
+        SQLException ex = null;
+        for (Session s : sessions) {
+            try {
+                s.conn.close();
+            } catch (SQLException e) {
+                ex = e;
+            }
         }
+        sessions.clear();
+        idleSessions.clear();
+        if (ex != null)
+            throw Throwables.propagate(ex);
     }
 
     @Override
     public Object beginTransaction() {
-        return TRANSACTION;
+        return acquire();
     }
 
     @Override
     public void commit(Object txn) {
+        final Session s = (Session) txn;
         try {
             LOG.debug("COMMIT");
-            assert txn == TRANSACTION;
-            conn.commit();
+            s.flush();
+            s.conn.commit();
         } catch (SQLException e) {
-            throw Throwables.propagate(e);
+            throw Throwables.propagate(e); // the session is released when the caller aborts the transaction
         }
+        release(s);
     }
 
     @Override
     public void abort(Object txn) {
+        final Session s = (Session) txn;
         try {
             LOG.debug("ROLLBACK");
-            assert txn == TRANSACTION;
-            conn.rollback();
+            s.discard();
+            s.conn.rollback();
         } catch (SQLException e) {
             throw Throwables.propagate(e);
+        } finally {
+            release(s);
         }
     }
 
     @Override
     public void write(long id, short owner, long version, byte[] data, Object txn) {
-        if (setLine == null) {
-            setLine = prepareStatement("UPDATE " + table + " SET version = ?, data = ? WHERE id = ? AND owner = ?");
-            return;
-        }
-
         if (LOG.isDebugEnabled())
             LOG.debug("WRITE " + id + " ver: " + version + " data: (" + data.length + " bytes)");
 
@@ -270,39 +309,43 @@ public class SQLDB extends Component implements MainMemoryDB {
             LOG.error("Data length is {}, which is bigger than maxItemSize ({})", data.length, maxItemSize);
             throw new RuntimeException("Data too big.");
         }
+        final Session s = txn != null ? (Session) txn : acquire();
         try {
-            setLine.setLong(3, id);
-            setLine.setShort(4, owner);
-            setLine.setLong(1, version);
-            setLine.setBytes(2, data);
-            if (setLine.executeUpdate() < 1) {
+            if (txn != null && useBatchUpdates) {
+                s.batch(id, owner, version, data);
+                return;
+            }
+            s.setLine(id, owner, version, data);
+            if (s.setLine.executeUpdate() < 1) {
                 LOG.debug("Setting line {} failed. Inserting.", id);
-                insert(id, (short) owner, version, data, txn);
-            } else if (txn == null) // insert() commits
-                conn.commit();
+                s.insert(id, owner, version, data);
+            }
+            if (txn == null)
+                s.conn.commit();
         } catch (SQLException e) {
             throw Throwables.propagate(e);
+        } finally {
+            if (txn == null)
+                release(s);
         }
     }
 
     @Override
     public MainMemoryEntry read(long id) {
-        if (getLine == null) {
-            getLine = prepareStatement("SELECT version, data FROM " + table + "  WHERE id = ?");
-            return null;
-        }
-
+        final Session s = acquire();
         try {
-            getLine.setLong(1, id);
-            try (ResultSet rs = getLine.executeQuery()) {
+            s.getLine.setLong(1, id);
+            try (ResultSet rs = s.getLine.executeQuery()) {
                 rs.next();
                 final long version = rs.getLong(1);
                 final byte[] data = rs.getBytes(2);
-                conn.commit();
+                s.conn.commit();
                 return new MainMemoryEntry(version, data);
             }
         } catch (SQLException e) {
             throw Throwables.propagate(e);
+        } finally {
+            release(s);
         }
     }
 
@@ -311,36 +354,57 @@ public class SQLDB extends Component implements MainMemoryDB {
         if (LOG.isDebugEnabled())
             LOG.debug("CAS owner of {}: {} -> {}", new Object[]{id, oldNode, newNode});
 
+        final Session s = acquire();
         try {
             if (oldNode < 0) {
                 try {
-                    insert(id, newNode, -1, null, null);
+                    s.insert(id, newNode, -1, null);
+                    s.conn.commit();
                     LOG.debug("CAS owner succeeded (insert).");
                     return newNode;
                 } catch (SQLException e) {
                 }
                 LOG.debug("CAS owner failed (insert).");
-                return getOwner(id);
+                return getOwner(s, id);
             } else {
                 if (useUpdateableCursors)
-                    return casOwnerUpdateableCursor(id, oldNode, newNode);
+                    return casOwnerUpdateableCursor(s, id, oldNode, newNode);
                 else
-                    return casOwnerUpdate(id, oldNode, newNode);
+                    return casOwnerUpdate(s, id, oldNode, newNode);
             }
         } catch (SQLException e) {
             throw Throwables.propagate(e);
+        } finally {
+            release(s);
         }
     }
 
-    private short casOwnerUpdateableCursor(long id, short oldNode, short newNode) throws SQLException {
-        if (casOwner == null) {
-            casOwner = prepareStatement("SELECT owner FROM " + table + " WHERE id = ? FOR UPDATE", ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_UPDATABLE);
-            return 0;
+    @Override
+    public void setOwners(long[] ids, short[] owners, int count) {
+        final Session s = acquire();
+        try {
+            for (int i = 0; i < count; i++) {
+                s.setOwner.setShort(1, owners[i]);
+                s.setOwner.setLong(2, ids[i]);
+                if (useBatchUpdates)
+                    s.setOwner.addBatch();
+                else
+                    s.setOwner.executeUpdate(); // a line that doesn't exist (i.e. has been deleted) is simply not updated
+            }
+            if (useBatchUpdates)
+                s.setOwner.executeBatch();
+            s.conn.commit();
+        } catch (SQLException e) {
+            throw Throwables.propagate(e);
+        } finally {
+            release(s);
         }
+    }
 
+    private short casOwnerUpdateableCursor(Session s, long id, short oldNode, short newNode) throws SQLException {
         final short res;
-        casOwner.setLong(1, id);
-        try (ResultSet rs = casOwner.executeQuery()) {
+        s.casOwner.setLong(1, id);
+        try (ResultSet rs = s.casOwner.executeQuery()) {
             if (rs.next()) {
                 final short currentOwner = rs.getShort(1);
                 if (currentOwner != oldNode) {
@@ -351,7 +415,7 @@ public class SQLDB extends Component implements MainMemoryDB {
                     LOG.debug("CAS owner succeeded (UC).");
                     res = newNode;
                 }
-                conn.commit();
+                s.conn.commit();
                 return res;
             } else {
                 LOG.debug("CAS owner failed (UC).");
@@ -360,154 +424,120 @@ public class SQLDB extends Component implements MainMemoryDB {
         }
     }
 
-    private short casOwnerUpdate(long id, short oldNode, short newNode) throws SQLException {
-        if (casOwner == null) {
-            casOwner = prepareStatement("UPDATE " + table + " SET owner = ? WHERE id = ? AND owner = ?");
-            return 0;
-        }
-
+    private short casOwnerUpdate(Session s, long id, short oldNode, short newNode) throws SQLException {
         final short res;
-        casOwner.setLong(2, id);
-        casOwner.setShort(3, oldNode);
-        casOwner.setShort(1, newNode);
-        int rows = casOwner.executeUpdate();
+        s.casOwner.setLong(2, id);
+        s.casOwner.setShort(3, oldNode);
+        s.casOwner.setShort(1, newNode);
+        int rows = s.casOwner.executeUpdate();
         if (rows > 0) {
             LOG.debug("CAS owner succeeded.");
             res = newNode;
         } else {
             LOG.debug("CAS owner failed.");
-            res = getOwner(id);
+            res = getOwner(s, id);
         }
-        conn.commit();
+        s.conn.commit();
         return res;
     }
 
-    private short getOwner(long id) throws SQLException {
-        if (getOwner == null) {
-            getOwner = conn.prepareStatement("SELECT owner FROM " + table + " WHERE id = ?");
-            return 0;
-        }
-
-        getOwner.setLong(1, id);
-        try (ResultSet rs = getOwner.executeQuery()) {
+    private short getOwner(Session s, long id) throws SQLException {
+        s.getOwner.setLong(1, id);
+        try (ResultSet rs = s.getOwner.executeQuery()) {
             final short res = rs.next() ? rs.getShort(1) : (short) -1;
-            conn.commit();
+            s.conn.commit();
             return res;
         }
     }
 
-    private void insert(long id, short owner, long version, byte[] data, Object txn) throws SQLException {
-        if (insertLine == null) {
-            insertLine = prepareStatement("INSERT INTO " + table + " (id, owner, version, data) VALUES (?, ?, ?, ?)");
-            return;
-        }
-
-        insertLine.setLong(1, id);
-        insertLine.setShort(2, owner);
-        insertLine.setLong(3, version);
-        insertLine.setBytes(4, data);
-        insertLine.executeUpdate();
-
-        if (txn == null)
-            conn.commit();
-    }
-
     @Override
     public void delete(long id, Object txn) {
-        if (deleteLine == null) {
-            deleteLine = prepareStatement("DELETE FROM " + table + " WHERE id = ?");
-            return;
-        }
+        final Session s = txn != null ? (Session) txn : acquire();
         try {
-            deleteLine.setLong(1, id);
-            deleteLine.executeUpdate();
+            s.flush();
+            s.deleteLine.setLong(1, id);
+            s.deleteLine.executeUpdate();
             if (txn == null)
-                conn.commit();
+                s.conn.commit();
         } catch (SQLException e) {
             throw Throwables.propagate(e);
+        } finally {
+            if (txn == null)
+                release(s);
         }
     }
 
     @Override
     public void removeOwner(short node) {
-        if (deleteOwner == null) {
-            deleteOwner = prepareStatement("UPDATE " + table + " SET owner = 0 WHERE owner = ?");
-            return;
-        }
-
+        final Session s = acquire();
         try {
-            deleteOwner.setShort(1, node);
-            deleteOwner.executeUpdate();
-            conn.commit();
+            s.deleteOwner.setShort(1, node);
+            s.deleteOwner.executeUpdate();
+            s.conn.commit();
         } catch (SQLException e) {
             throw Throwables.propagate(e);
+        } finally {
+            release(s);
         }
     }
 
     @Override
     public void allocate(short owner, long start, int num) {
-        if (owner <= 0) {
-            addAllocation = prepareStatement("INSERT INTO " + allocTable + " (id, end, owner) VALUES (?, ?, ?)");
-            return;
-        }
-
+        final Session s = acquire();
         try {
-            addAllocation.setLong(1, start);
-            addAllocation.setLong(2, start + num);
-            addAllocation.setShort(3, owner);
-            addAllocation.executeUpdate();
-            conn.commit();
+            s.addAllocation.setLong(1, start);
+            s.addAllocation.setLong(2, start + num);
+            s.addAllocation.setShort(3, owner);
+            s.addAllocation.executeUpdate();
+            s.conn.commit();
         } catch (SQLException e) {
             throw Throwables.propagate(e);
+        } finally {
+            release(s);
         }
     }
 
     @Override
     public short findAllocation(long ref) {
-        if (ref <= 0) {
-            getAllocation = prepareStatement("SELECT owner FROM " + allocTable + " WHERE id <= ? AND end > ?");
-            return 0;
-        }
-
+        final Session s = acquire();
         try {
-            getAllocation.setLong(1, ref);
-            getAllocation.setLong(2, ref);
-            try (ResultSet rs = getAllocation.executeQuery()) {
+            s.getAllocation.setLong(1, ref);
+            s.getAllocation.setLong(2, ref);
+            try (ResultSet rs = s.getAllocation.executeQuery()) {
                 final short res = rs.next() ? rs.getShort(1) : -1;
-                conn.commit();
+                s.conn.commit();
                 return res;
             }
         } catch (SQLException e) {
             throw Throwables.propagate(e);
+        } finally {
+            release(s);
         }
     }
 
     @Override
     public long getMaxId() {
-        if (getMaxId == null) {
-            getMaxId = prepareStatement("SELECT MAX(id) FROM " + allocTable);
-            return 0;
-        }
-
-        try (ResultSet rs = getMaxId.executeQuery()) {
-            final long res = rs.next() ? rs.getLong(1) : 0;
-            conn.commit();
-            return res;
+        final Session s = acquire();
+        try {
+            try (ResultSet rs = s.getMaxId.executeQuery()) {
+                final long res = rs.next() ? rs.getLong(1) : 0;
+                s.conn.commit();
+                return res;
+            }
         } catch (SQLException e) {
             throw Throwables.propagate(e);
+        } finally {
+            release(s);
         }
     }
 
     @Override
     public void dump(PrintStream ps) {
-        if (selectAll == null) {
-            selectAll = prepareStatement("SELECT * FROM " + table);
-            return;
-        }
+        final Session s = acquire();
         try {
             ps.println("MEMORY");
             ps.println("===========");
-            try (ResultSet rs = selectAll.executeQuery()) {
+            try (ResultSet rs = s.selectAll.executeQuery()) {
                 while (rs.next()) {
                     final long id = rs.getLong("id");
                     final short owner = rs.getShort("owner");
@@ -515,31 +545,138 @@ public class SQLDB extends Component implements MainMemoryDB {
                     final byte[] data = rs.getBytes("data");
                     ps.println("Id : " + hex(id) + " owner: " + owner + " version: " + version + " data: (" + data.length + " bytes).");
                 }
-                conn.commit();
+                s.conn.commit();
             }
         } catch (SQLException e) {
             throw Throwables.propagate(e);
+        } finally {
+            release(s);
+        }
+    }
+
+    /**
+     * A connection and its prepared statements, used by one transaction or operation at a time.
+     */
+    private class Session {
+        final Connection conn;
+        final PreparedStatement casOwner;
+        final PreparedStatement getOwner;
+        final PreparedStatement setOwner;
+        final PreparedStatement deleteOwner;
+        final PreparedStatement insertLine;
+        final PreparedStatement setLine;
+        final PreparedStatement getLine;
+        final PreparedStatement deleteLine;
+        final PreparedStatement selectAll;
+        final PreparedStatement getMaxId;
+        final PreparedStatement addAllocation;
+        final PreparedStatement getAllocation;
+        private final List<BatchedWrite> batch = new ArrayList<BatchedWrite>();
+
+        Session(Connection conn) throws SQLException {
+            this.conn = conn;
+            conn.setAutoCommit(false);
+            conn.setTransactionIsolation(Connection.TRANSACTION_READ_COMMITTED);
+
+            if (useUpdateableCursors)
+                casOwner = prepareStatement("SELECT owner FROM " + table + " WHERE id = ? FOR UPDATE", ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_UPDATABLE);
+            else
+                casOwner = prepareStatement("UPDATE " + table + " SET owner = ? WHERE id = ? AND owner = ?");
+            getOwner = prepareStatement("SELECT owner FROM " + table + " WHERE id = ?");
+            setOwner = prepareStatement("UPDATE " + table + " SET owner = ? WHERE id = ?");
+            deleteOwner = prepareStatement("UPDATE " + table + " SET owner = 0 WHERE owner = ?");
+            insertLine = prepareStatement("INSERT INTO " + table + " (id, owner, version, data) VALUES (?, ?, ?, ?)");
+            setLine = prepareStatement("UPDATE " + table + " SET version = ?, data = ? WHERE id = ? AND owner = ?");
+            getLine = prepareStatement("SELECT version, data FROM " + table + "  WHERE id = ?");
+            deleteLine = prepareStatement("DELETE FROM " + table + " WHERE id = ?");
+            selectAll = prepareStatement("SELECT * FROM " + table);
+            getMaxId = prepareStatement("SELECT MAX(id) FROM " + allocTable);
+            addAllocation = prepareStatement("INSERT INTO " + allocTable + " (id, end, owner) VALUES (?, ?, ?)");
+            getAllocation = prepareStatement("SELECT owner FROM " + allocTable + " WHERE id <= ? AND end > ?");
         }
-    }
 
-    private PreparedStatement prepareStatement(String sql) {
-        try {
-            assertDuringInitialization();
-            return conn.prepareStatement(sql);
-        } catch (SQLException e) {
-            LOG.error("Error while preparing statement: " + sql, e);
-            throw new Error(e);
+        void setLine(long id, short owner, long version, byte[] data) throws SQLException {
+            setLine.setLong(3, id);
+            setLine.setShort(4, owner);
+            setLine.setLong(1, version);
+            setLine.setBytes(2, data);
         }
-    }
 
-    private PreparedStatement prepareStatement(String sql, int resultSetType, int resultSetConcurrency) {
-        try {
-            assertDuringInitialization();
-            return conn.prepareStatement(sql, resultSetType, resultSetConcurrency);
-        } catch (SQLException e) {
-            LOG.error("Error while preparing statement: " + sql, e);
-            throw new Error(e);
+        void insert(long id, short owner, long version, byte[] data) throws SQLException {
+            insertLine.setLong(1, id);
+            insertLine.setShort(2, owner);
+            insertLine.setLong(3, version);
+            insertLine.setBytes(4, data);
+            insertLine.executeUpdate();
+        }
+
+        void batch(long id, short owner, long version, byte[] data) throws SQLException {
+            setLine(id, owner, version, data);
+            setLine.addBatch();
+            batch.add(new BatchedWrite(id, owner, version, data));
+        }
+
+        /**
+         * Executes the batched writes, inserting the lines that could not be updated.
+         */
+        void flush() throws SQLException {
+            if (batch.isEmpty())
+                return;
+            try {
+                final int[] counts = setLine.executeBatch();
+                for (int i = 0; i < counts.length; i++) {
+                    final BatchedWrite w = batch.get(i);
+                    if (counts[i] == Statement.SUCCESS_NO_INFO) { // the driver won't tell us whether the line exists; redo the update alone
+                        setLine(w.id, w.owner, w.version, w.data);
+                        counts[i] = setLine.executeUpdate();
+                    }
+                    if (counts[i] < 1) {
+                        LOG.debug("Setting line {} failed. Inserting.", w.id);
+                        insert(w.id, w.owner, w.version, w.data);
+                    }
+                }
+            } finally {
+                batch.clear();
+            }
+        }
+
+        void discard() throws SQLException {
+            if (batch.isEmpty())
+                return;
+            batch.clear();
+            setLine.clearBatch();
+        }
+
+        private PreparedStatement prepareStatement(String sql) {
+            try {
+                return conn.prepareStatement(sql);
+            } catch (SQLException e) {
+                LOG.error("Error while preparing statement: " + sql, e);
+                throw new Error(e);
+            }
+        }
+
+        private PreparedStatement prepareStatement(String sql, int resultSetType, int resultSetConcurrency) {
+            try {
+                return conn.prepareStatement(sql, resultSetType, resultSetConcurrency);
+            } catch (SQLException e) {
+                LOG.error("Error while preparing statement: " + sql, e);
+                throw new Error(e);
+            }
         }
     }
 
+    private static class BatchedWrite {
+        final long id;
+        final short owner;
+        final long version;
+        final byte[] data;
+
+        BatchedWrite(long id, short owner, long version, byte[] data) {
+            this.id = id;
+            this.owner = owner;
+            this.version = version;
+            this.data = data;
+        }
+    }
 }
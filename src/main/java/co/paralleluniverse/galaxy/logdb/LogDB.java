@@ -0,0 +1,777 @@
+/*
+ * Galaxy
+ * Copyright (c) 2012-2014, Parallel Universe Software Co. All rights reserved.
+ *
+ * This program and the accompanying materials are dual-licensed under
+ * either the terms of the Eclipse Public License v1.0 as published by
+ * the Eclipse Foundation
+ *
+ *   or (per the licensee's choosing)
+ *
+ * under the terms of the GNU Lesser General Public License version 3.0
+ * as published by the Free Software Foundation.
+ */
+package co.paralleluniverse.galaxy.logdb;
+
+import static co.paralleluniverse.common.logging.LoggingUtils.hex;
+import co.paralleluniverse.common.spring.Component;
+import co.paralleluniverse.galaxy.server.BatchOwnerDB;
+import co.paralleluniverse.galaxy.server.MainMemoryDB;
+import co.paralleluniverse.galaxy.server.MainMemoryEntry;
+import com.google.common.base.Throwables;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import it.unimi.dsi.fastutil.longs.Long2LongMap;
+import it.unimi.dsi.fastutil.longs.Long2LongOpenHashMap;
+import it.unimi.dsi.fastutil.longs.Long2ShortMap;
+import it.unimi.dsi.fastutil.longs.Long2ShortOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+import it.unimi.dsi.fastutil.longs.LongSet;
+import java.beans.ConstructorProperties;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+
+/**
+ * A self-contained, log-structured store.
+ * <p>
+ * All changes are appended as records to a log made of fixed-size, memory-mapped segment files. The owner of every line, the
+ * location of the latest version of every line in the log, and the allocations are kept in memory, and rebuilt at startup by
+ * scanning the segments' record headers. Only the last segment, which may end with a record torn by a crash, has its record
+ * checksums verified. Like {@link co.paralleluniverse.galaxy.berkeleydb.BerkeleyDB BerkeleyDB}, the server owns all lines once
+ * the store is restarted.
+ * <p>
+ * The records of a transaction are appended together, as a single group record, when it's committed, so a crash never leaves
+ * part of a transaction in the log. When {@code sync} is on, concurrent commits share a single flush to disk. A background thread compacts segments whose share of live records falls below
+ * {@code compactionThreshold} by re-appending their live records and deleting the segment.
+ */
+public class LogDB extends Component implements BatchOwnerDB {
+    // Note: class must be public for Spring's auto generated javax.management.modelmbean.RequiredModelMBean to expose @ManagedAttribute
+
+    private static final Logger LOG = LoggerFactory.getLogger(LogDB.class);
+    private static final short SERVER = 0;
+    private static final byte LINE = 1;
+    private static final byte OWNER = 2;
+    private static final byte DELETE = 3;
+    private static final byte ALLOC = 4;
+    private static final byte GROUP = 5; // a committed transaction's records, one after the other; id holds their number
+    private static final int HEADER_SIZE = 4 + 4 + 1 + 8; // length, checksum, type, id
+    private static final int LINE_HEADER_SIZE = HEADER_SIZE + 2 + 8; // owner, version
+    private static final int OWNER_SIZE = HEADER_SIZE + 2; // owner
+    private static final int ALLOC_SIZE = HEADER_SIZE + 2 + 4; // owner, num
+    private static final long COMPACTION_PERIOD_MILLIS = 1000;
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".log";
+    private final File dir;
+    private int segmentSize = 64 * 1024 * 1024;
+    private boolean sync = false;
+    private boolean truncate = false;
+    private double compactionThreshold = 0.5;
+    //
+    private final Object lock = new Object(); // guards everything below
+    private final TreeMap<Integer, Segment> segments = new TreeMap<Integer, Segment>();
+    private Segment active;
+    private final Long2ShortMap owners = new Long2ShortOpenHashMap();
+    private final Long2LongMap lines = new Long2LongOpenHashMap(); // id -> location of the line's latest LINE record
+    private final Long2LongMap ownerRecords = new Long2LongOpenHashMap(); // id -> location of an OWNER record newer than the LINE record
+    private final TreeMap<Long, Allocation> allocations = new TreeMap<Long, Allocation>();
+    private long appended; // total number of bytes appended
+    //
+    private final Object syncLock = new Object();
+    private volatile long synced;
+    private ScheduledExecutorService compactor;
+
+    @ConstructorProperties({"name", "dir"})
+    public LogDB(String name, String dir) {
+        super(name);
+        this.dir = new File(dir);
+        owners.defaultReturnValue((short) -1);
+        lines.defaultReturnValue(-1L);
+        ownerRecords.defaultReturnValue(-1L);
+    }
+
+    @ManagedAttribute(currencyTimeLimit = -1, description = "The directory containing the log segments")
+    public String getDir() {
+        return dir.getPath();
+    }
+
+    public void setSegmentSize(int segmentSize) {
+        assertDuringInitialization();
+        this.segmentSize = segmentSize;
+    }
+
+    @ManagedAttribute
+    public int getSegmentSize() {
+        return segmentSize;
+    }
+
+    public void setSync(boolean sync) {
+        assertDuringInitialization();
+        this.sync = sync;
+    }
+
+    @ManagedAttribute
+    public boolean isSync() {
+        return sync;
+    }
+
+    public void setTruncate(boolean truncate) {
+        assertDuringInitialization();
+        this.truncate = truncate;
+    }
+
+    @ManagedAttribute
+    public boolean isTruncate() {
+        return truncate;
+    }
+
+    public void setCompactionThreshold(double compactionThreshold) {
+        assertDuringInitialization();
+        this.compactionThreshold = compactionThreshold;
+    }
+
+    @ManagedAttribute
+    public double getCompactionThreshold() {
+        return compactionThreshold;
+    }
+
+    @ManagedAttribute(description = "The number of log segments")
+    public int getNumSegments() {
+        synchronized (lock) {
+            return segments.size();
+        }
+    }
+
+    @Override
+    public void init() throws Exception {
+        super.init();
+
+        if (!dir.exists() && !dir.mkdirs())
+            throw new RuntimeException("cannot mkdir " + dir);
+
+        final List<Integer> seqs = new ArrayList<Integer>();
+        for (String fileName : dir.list()) {
+            if (fileName.startsWith(SEGMENT_PREFIX) && fileName.endsWith(SEGMENT_SUFFIX))
+                seqs.add(Integer.parseInt(fileName.substring(SEGMENT_PREFIX.length(), fileName.length() - SEGMENT_SUFFIX.length()), 16));
+        }
+        Integer[] sorted = seqs.toArray(new Integer[seqs.size()]);
+        Arrays.sort(sorted);
+
+        if (truncate) {
+            LOG.info("Truncating database, dir: {}", dir);
+            for (int seq : sorted) {
+                if (!segmentFile(seq).delete())
+                    throw new IOException("Cannot delete " + segmentFile(seq));
+            }
+            sorted = new Integer[0];
+        }
+
+        LOG.info("Recovering database from {} segments, dir: {}", sorted.length, dir);
+        synchronized (lock) {
+            for (int i = 0; i < sorted.length; i++) {
+                final Segment segment = openSegment(sorted[i]);
+                segments.put(segment.seq, segment);
+                recover(segment, i == sorted.length - 1);
+            }
+            if (segments.isEmpty())
+                this.active = newSegment(0);
+            else
+                this.active = segments.lastEntry().getValue();
+
+            // like BerkeleyDB, we assume the grid has been restarted along with the server. the owners in the log are simply
+            // ignored from now on, as the server will only ever be started from this state
+            for (long id : owners.keySet().toLongArray())
+                owners.put(id, SERVER);
+        }
+        LOG.info("Recovered {} lines.", owners.size());
+
+        this.compactor = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder().setNameFormat("galaxyLogDBCompactor-%d").setDaemon(true).build());
+        compactor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    compact();
+                } catch (Exception e) {
+                    LOG.error("Exception during compaction.", e);
+                }
+            }
+        }, COMPACTION_PERIOD_MILLIS, COMPACTION_PERIOD_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void close() {
+        if (compactor != null)
+            compactor.shutdownNow();
+        synchronized (lock) {
+            active.buffer.force();
+        }
+    }
+
+    ////////////////////////////////////////////////////////////////
+    @Override
+    public short casOwner(long id, short oldNode, short newNode) {
+        final long end;
+        synchronized (lock) {
+            final short current = owners.get(id);
+            if (current >= 0 ? current != oldNode : oldNode >= 0) {
+                if (LOG.isDebugEnabled())
+                    LOG.debug("CAS owner of {} failed. Current owner: {} wanted old owner: {}", new Object[]{hex(id), current, oldNode});
+                return current;
+            }
+            end = append(ownerRecord(id, newNode));
+        }
+        sync(end);
+        return newNode;
+    }
+
+    /**
+     * Appends the owner records as group records (as many as it takes for each to fit in a segment), with a single sync.
+     */
+    @Override
+    public void setOwners(long[] ids, short[] owners, int count) {
+        final long end;
+        synchronized (lock) {
+            final List<byte[]> records = new ArrayList<byte[]>();
+            int length = HEADER_SIZE;
+            for (int i = 0; i < count; i++) {
+                if (!this.owners.containsKey(ids[i]))
+                    continue; // deleted
+                if (length + OWNER_SIZE > segmentSize) {
+                    append(groupRecord(records));
+                    records.clear();
+                    length = HEADER_SIZE;
+                }
+                records.add(ownerRecord(ids[i], owners[i]));
+                length += OWNER_SIZE;
+            }
+            if (!records.isEmpty())
+                append(records.size() == 1 ? records.get(0) : groupRecord(records));
+            end = appended;
+        }
+        sync(end);
+    }
+
+    @Override
+    public void removeOwner(short node) {
+        final long end;
+        synchronized (lock) {
+            final List<Long> removed = new ArrayList<Long>();
+            for (Long2ShortMap.Entry entry : owners.long2ShortEntrySet()) {
+                if (entry.getShortValue() == node)
+                    removed.add(entry.getLongKey());
+            }
+            for (long id : removed)
+                append(ownerRecord(id, SERVER));
+            end = appended;
+        }
+        sync(end);
+    }
+
+    @Override
+    public void allocate(short owner, long start, int num) {
+        final long end;
+        synchronized (lock) {
+            end = append(allocRecord(start, owner, num));
+        }
+        sync(end);
+    }
+
+    @Override
+    public short findAllocation(long ref) {
+        synchronized (lock) {
+            final Map.Entry<Long, Allocation> entry = allocations.floorEntry(ref);
+            if (entry != null && ref < entry.getValue().end)
+                return entry.getValue().owner;
+            return -1;
+        }
+    }
+
+    @Override
+    public long getMaxId() {
+        synchronized (lock) {
+            return allocations.isEmpty() ? 0 : allocations.lastEntry().getValue().end - 1;
+        }
+    }
+
+    @Override
+    public Object beginTransaction() {
+        return new ArrayList<byte[]>();
+    }
+
+    @Override
+    public void commit(Object txn) {
+        final List<byte[]> records = records(txn);
+        if (records.isEmpty())
+            return;
+        final byte[] record = records.size() == 1 ? records.get(0) : groupRecord(records);
+        final long end;
+        synchronized (lock) {
+            end = append(record);
+        }
+        records.clear();
+        sync(end);
+    }
+
+    @Override
+    public void abort(Object txn) {
+        records(txn).clear();
+    }
+
+    @SuppressWarnings("unchecked")
+    private static List<byte[]> records(Object txn) {
+        return (List<byte[]>) txn;
+    }
+
+    @Override
+    public void write(long id, short owner, long version, byte[] data, Object txn) {
+        if (LOG.isDebugEnabled())
+            LOG.debug("WRITE " + hex(id) + " ver: " + version + " data: " + (data != null ? "(" + data.length + " bytes)" : "null"));
+
+        final int length = LINE_HEADER_SIZE + (data != null ? data.length : 0);
+        if (length > segmentSize) {
+            LOG.error("Data length is {}, which doesn't fit in a segment ({})", data.length, segmentSize);
+            throw new RuntimeException("Data too big.");
+        }
+        final ByteBuffer record = header(length, LINE, id);
+        record.putShort(owner); // replaced by the current owner, if any, when appended
+        record.putLong(version);
+        if (data != null)
+            record.put(data);
+        writeRecord(record.array(), txn);
+    }
+
+    @Override
+    public void delete(long id, Object txn) {
+        writeRecord(header(HEADER_SIZE, DELETE, id).array(), txn);
+    }
+
+    private void writeRecord(byte[] record, Object txn) {
+        if (txn != null) {
+            records(txn).add(record);
+            return;
+        }
+        final long end;
+        synchronized (lock) {
+            end = append(record);
+        }
+        sync(end);
+    }
+
+    @Override
+    public MainMemoryEntry read(long id) {
+        final Segment segment;
+        final int offset;
+        synchronized (lock) {
+            final long location = lines.get(id);
+            if (location < 0)
+                return null;
+            segment = segments.get(segment(location));
+            offset = offset(location);
+        }
+        // the segment may be compacted concurrently, but it stays mapped for as long as we hold it
+        final ByteBuffer buffer = segment.buffer.duplicate();
+        final int length = buffer.getInt(offset);
+        buffer.position(offset + HEADER_SIZE + 2);
+        final long version = buffer.getLong();
+        final byte[] data = new byte[length - LINE_HEADER_SIZE];
+        buffer.get(data);
+        return new MainMemoryEntry(version, data);
+    }
+
+    ////////////////////////////////////////////////////////////////
+    private static ByteBuffer header(int length, byte type, long id) {
+        final ByteBuffer record = ByteBuffer.allocate(length);
+        record.putInt(length);
+        record.putInt(0); // checksum
+        record.put(type);
+        record.putLong(id);
+        return record;
+    }
+
+    private static byte[] ownerRecord(long id, short owner) {
+        final ByteBuffer record = header(OWNER_SIZE, OWNER, id);
+        record.putShort(owner);
+        return record.array();
+    }
+
+    private static byte[] allocRecord(long start, short owner, int num) {
+        final ByteBuffer record = header(ALLOC_SIZE, ALLOC, start);
+        record.putShort(owner);
+        record.putInt(num);
+        return record.array();
+    }
+
+    private byte[] groupRecord(List<byte[]> records) {
+        int length = HEADER_SIZE;
+        for (byte[] record : records)
+            length += record.length;
+        if (length > segmentSize) {
+            LOG.error("Transaction length is {}, which doesn't fit in a segment ({})", length, segmentSize);
+            throw new RuntimeException("Transaction too big.");
+        }
+        final ByteBuffer group = header(length, GROUP, records.size());
+        for (byte[] record : records)
+            group.put(record);
+        return group.array();
+    }
+
+    /**
+     * Returns the record at the given position of a group record.
+     */
+    private static ByteBuffer member(ByteBuffer group, int position) {
+        return ((ByteBuffer) group.duplicate().position(position).limit(position + group.getInt(position))).slice();
+    }
+
+    private static int checksum(byte[] record) {
+        return checksum(record, record.length);
+    }
+
+    /**
+     * Returns the checksum of the record occupying the first {@code length} bytes of the given array.
+     */
+    private static int checksum(byte[] record, int length) {
+        final CRC32 crc = new CRC32();
+        crc.update(record, 8, length - 8);
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Appends a record to the log, and applies it.
+     *
+     * @return the log position following the record.
+     */
+    private long append(byte[] record) {
+        assert Thread.holdsLock(lock);
+        final ByteBuffer rec = ByteBuffer.wrap(record);
+        if (rec.get(8) == GROUP) {
+            LongSet deleted = null; // lines deleted earlier in the group don't have an owner by the time the group is applied
+            for (int position = HEADER_SIZE; position < record.length; position += rec.getInt(position)) {
+                final ByteBuffer member = member(rec, position);
+                if (member.get(8) == DELETE) {
+                    if (deleted == null)
+                        deleted = new LongOpenHashSet();
+                    deleted.add(member.getLong(9));
+                } else if (deleted == null || !deleted.contains(member.getLong(9)))
+                    setOwner(member);
+            }
+        } else
+            setOwner(rec);
+        rec.putInt(4, checksum(record));
+
+        if (active.end + record.length > segmentSize) {
+            if (sync)
+                active.buffer.force();
+            this.active = newSegment(active.seq + 1);
+        }
+        final int offset = active.end;
+        final ByteBuffer buffer = active.buffer.duplicate();
+        buffer.position(offset);
+        buffer.put(record);
+        active.end += record.length;
+        this.appended += record.length;
+
+        apply(active, offset, rec);
+        return appended;
+    }
+
+    /**
+     * Replaces the owner in a LINE record with the line's current owner, if any.
+     */
+    private void setOwner(ByteBuffer record) {
+        if (record.get(8) != LINE)
+            return;
+        final short owner = owners.get(record.getLong(9));
+        if (owner >= 0)
+            record.putShort(HEADER_SIZE, owner);
+    }
+
+    /**
+     * Updates the in-memory state with a record that's been appended (or recovered).
+     */
+    private void apply(Segment segment, int offset, ByteBuffer record) {
+        final int length = record.getInt(0);
+        if (record.get(8) == GROUP) { // the group's header is garbage once applied; its members are located individually
+            for (int position = HEADER_SIZE; position < length; position += record.getInt(position))
+                apply(segment, offset + position, member(record, position));
+            return;
+        }
+        final long location = location(segment.seq, offset);
+        final long id = record.getLong(9);
+        segment.live += length;
+        switch (record.get(8)) {
+            case LINE:
+                release(lines.put(id, location));
+                release(ownerRecords.remove(id));
+                owners.put(id, record.getShort(HEADER_SIZE));
+                break;
+            case OWNER:
+                release(ownerRecords.put(id, location));
+                owners.put(id, record.getShort(HEADER_SIZE));
+                break;
+            case DELETE:
+                release(lines.remove(id));
+                release(ownerRecords.remove(id));
+                owners.remove(id);
+                segment.tombstones += length;
+                break;
+            case ALLOC:
+                final short owner = record.getShort(HEADER_SIZE);
+                final int num = record.getInt(HEADER_SIZE + 2);
+                allocations.put(id, new Allocation(id + num, owner));
+                break;
+            default:
+                throw new AssertionError("Unknown record type " + record.get(8));
+        }
+    }
+
+    /**
+     * Marks a superseded record as garbage.
+     */
+    private void release(long location) {
+        if (location < 0)
+            return;
+        final Segment segment = segments.get(segment(location));
+        if (segment != null)
+            segment.live -= segment.buffer.getInt(offset(location));
+    }
+
+    /**
+     * Waits until the log is flushed to disk up to the given position, if {@code sync} is on. Whoever does the flush, flushes
+     * everything appended up to that point, so concurrent commits share a single flush.
+     */
+    private void sync(long position) {
+        if (!sync || synced >= position)
+            return;
+        synchronized (syncLock) {
+            if (synced >= position)
+                return; // another thread has flushed our records while we waited
+            final Segment segment;
+            final long end;
+            synchronized (lock) {
+                segment = active;
+                end = appended;
+            }
+            segment.buffer.force(); // previous segments have been forced when they were sealed
+            this.synced = end;
+        }
+    }
+
+    ////////////////////////////////////////////////////////////////
+    /**
+     * Rebuilds the in-memory state from a segment's records. Only their headers are read, in place, except in the last segment,
+     * where each record is copied (to a reused array) to verify its checksum.
+     */
+    private void recover(Segment segment, boolean last) throws IOException {
+        final ByteBuffer buffer = segment.buffer.duplicate();
+        byte[] scratch = last ? new byte[4096] : null;
+        int offset = 0;
+        while (offset + HEADER_SIZE <= segmentSize) {
+            final int length = buffer.getInt(offset);
+            if (length < HEADER_SIZE || offset + length > segmentSize)
+                break;
+            final ByteBuffer record = ((ByteBuffer) buffer.duplicate().position(offset).limit(offset + length)).slice();
+            if (last) {
+                if (scratch.length < length)
+                    scratch = new byte[Math.max(length, 2 * scratch.length)];
+                record.duplicate().get(scratch, 0, length);
+                if (record.getInt(4) != checksum(scratch, length)) {
+                    LOG.warn("Found a torn record at offset {} of segment {}. Discarding the rest of the segment.", offset, segment.seq);
+                    break;
+                }
+            }
+            apply(segment, offset, record);
+            offset += length;
+        }
+        segment.end = offset;
+        this.appended += offset;
+
+        if (last && offset + 4 <= segmentSize && buffer.getInt(offset) != 0) {
+            // clear the torn record, so that it won't be mistaken for a valid one once the segment is sealed
+            buffer.position(offset);
+            while (buffer.hasRemaining())
+                buffer.put((byte) 0);
+            segment.buffer.force();
+        }
+    }
+
+    void compact() {
+        final List<Segment> candidates = new ArrayList<Segment>();
+        synchronized (lock) {
+            final int oldest = segments.firstKey();
+            for (Segment segment : segments.values()) {
+                final int live = segment.live - (segment.seq == oldest ? segment.tombstones : 0);
+                if (segment != active && (live == 0 || live < compactionThreshold * segment.end))
+                    candidates.add(segment);
+            }
+        }
+        for (Segment segment : candidates)
+            compact(segment);
+    }
+
+    private void compact(Segment segment) {
+        LOG.debug("Compacting segment {} ({} out of {} bytes live)", new Object[]{segment.seq, segment.live, segment.end});
+        final ByteBuffer buffer = segment.buffer.duplicate();
+        final boolean oldest;
+        synchronized (lock) {
+            oldest = segments.firstKey() == segment.seq;
+        }
+        for (int offset = 0; offset < segment.end;) {
+            final int length = buffer.getInt(offset);
+            if (buffer.get(offset + 8) == GROUP) {
+                // the group's transaction has been committed, so its live members may be copied one by one
+                for (int position = offset + HEADER_SIZE; position < offset + length; position += buffer.getInt(position))
+                    compactRecord(segment, buffer, position, oldest);
+            } else
+                compactRecord(segment, buffer, offset, oldest);
+            offset += length;
+        }
+        final Segment current;
+        synchronized (lock) {
+            segments.remove(segment.seq);
+            current = active;
+        }
+        current.buffer.force(); // make sure the copies are on disk before the originals are gone
+        if (!segment.file.delete())
+            LOG.warn("Cannot delete compacted segment {}", segment.file);
+        LOG.debug("Compacted segment {}", segment.seq);
+    }
+
+    /**
+     * Re-appends the record at the given offset of a segment being compacted, if it's live.
+     */
+    private void compactRecord(Segment segment, ByteBuffer buffer, int offset, boolean oldest) {
+        final int length = buffer.getInt(offset);
+        final byte type = buffer.get(offset + 8);
+        final long id = buffer.getLong(offset + 9);
+        final long location = location(segment.seq, offset);
+        synchronized (lock) {
+            final boolean live;
+            switch (type) {
+                case LINE:
+                    live = lines.get(id) == location;
+                    break;
+                case OWNER:
+                    live = ownerRecords.get(id) == location;
+                    break;
+                case DELETE:
+                    live = !oldest && !owners.containsKey(id); // older segments may still hold the line
+                    break;
+                default:
+                    live = true;
+            }
+            if (live) {
+                final byte[] record = new byte[length];
+                buffer.position(offset);
+                buffer.get(record);
+                append(record);
+            }
+        }
+    }
+
+    ////////////////////////////////////////////////////////////////
+    private File segmentFile(int seq) {
+        return new File(dir, SEGMENT_PREFIX + String.format("%08x", seq) + SEGMENT_SUFFIX);
+    }
+
+    private Segment newSegment(int seq) {
+        try {
+            final Segment segment = openSegment(seq);
+            segments.put(seq, segment);
+            return segment;
+        } catch (IOException e) {
+            throw Throwables.propagate(e);
+        }
+    }
+
+    private Segment openSegment(int seq) throws IOException {
+        final File file = segmentFile(seq);
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            if (raf.length() < segmentSize)
+                raf.setLength(segmentSize);
+            final FileChannel channel = raf.getChannel();
+            final MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+            return new Segment(seq, file, buffer);
+        }
+    }
+
+    private static long location(int seq, int offset) {
+        return ((long) seq << 32) | offset;
+    }
+
+    private static int segment(long location) {
+        return (int) (location >>> 32);
+    }
+
+    private static int offset(long location) {
+        return (int) location;
+    }
+
+    private static class Segment {
+        final int seq;
+        final File file;
+        final MappedByteBuffer buffer; // the mapping remains valid after the file is closed (or deleted)
+        int end;
+        int live;
+        int tombstones;
+
+        Segment(int seq, File file, MappedByteBuffer buffer) {
+            this.seq = seq;
+            this.file = file;
+            this.buffer = buffer;
+        }
+    }
+
+    private static class Allocation {
+        final long end;
+        final short owner;
+
+        Allocation(long end, short owner) {
+            this.end = end;
+            this.owner = owner;
+        }
+    }
+
+    @Override
+    public void dump(PrintStream ps) {
+        ps.println();
+        ps.println("LOGDB " + dir.getAbsolutePath());
+        ps.println("=====================================");
+        ps.println();
+
+        ps.println("OWNERS");
+        ps.println("======");
+        synchronized (lock) {
+            for (Long2ShortMap.Entry entry : owners.long2ShortEntrySet())
+                ps.println("Id : " + hex(entry.getLongKey()) + " owner: " + entry.getShortValue() + "");
+        }
+        ps.println();
+
+        ps.println("MAIN STORE");
+        ps.println("==========");
+        final long[] ids;
+        synchronized (lock) {
+            ids = lines.keySet().toLongArray();
+        }
+        for (long id : ids) {
+            final MainMemoryEntry entry = read(id);
+            if (entry != null)
+                ps.println("Id : " + hex(id) + " version: " + entry.version + " data: (" + entry.data.length + " bytes).");
+        }
+        ps.println();
+    }
+}
@@ -37,6 +37,24 @@ public interface CacheMXBean extends PeriodicMXBean {
 
     int getNumOpPut(); // PUT
 
+    // LATENCIES - in microseconds: {50th, 90th, 99th, 99.9th percentile, max}
+    long[] getOpLatencyGet();
+
+    long[] getOpLatencyGetS();
+
+    long[] getOpLatencyGetX();
+
+    long[] getOpLatencySet();
+
+    long[] getOpLatencyInvoke();
+
+    long[] getMissLatencyGet(); // GET -> PUT
+
+    long[] getMissLatencyGetX(); // GETX -> PUTX
+
+    long[] getInvalidationLatency(); // INV -> last INVACK
+
+
     int getNumOpDel(); // DEL
 
     int getNumOpSend(); // SEND
@@ -87,11 +105,19 @@ public interface CacheMXBean extends PeriodicMXBean {
 
     int getInvalidates();
 
+    int getPrefetches();
+
+    int getPrefetchHits();
+
+    int getPrefetchWaste(); // prefetched lines evicted or invalidated before being accessed
+
     // Message processing delays
     int getNumMessagesDelayedDueLock();
 
     long getTotalMicrosecondDelayPerSecondDueLock();
 
+    long[] getMessageDelayLatencyDueLock();
+
     int getNumMessagesDelayedDueBackup();
 
     long getTotalMicrosecondDelayPerSecondDueBackup();
@@ -99,4 +125,13 @@ public interface CacheMXBean extends PeriodicMXBean {
     int getNumMessagesDelayedDueOther();
 
     long getTotalMicrosecondDelayPerSecondDueOther();
+
+    // HOT LINES (only when profiling is enabled) - "line: estimated count", hottest first
+    String[] getHotLinesByOwnershipTransfers();
+
+    String[] getHotLinesByPendingWait(); // microseconds
+
+    String[] getHotLinesByLockDelay(); // microseconds
+
+    void resetHotLines();
 }
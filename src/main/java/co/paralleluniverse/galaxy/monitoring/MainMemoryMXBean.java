@@ -29,4 +29,10 @@ public interface MainMemoryMXBean {
     int getWrites();
     
     int getAllocations();
+
+    int getEntryCacheHits();
+
+    int getEntryCacheMisses();
+
+    float getEntryCacheHitRate();
 }
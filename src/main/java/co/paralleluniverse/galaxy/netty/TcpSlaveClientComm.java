@@ -20,9 +20,16 @@ import co.paralleluniverse.galaxy.cluster.SlaveConfigurationListener;
 import co.paralleluniverse.galaxy.core.Backup;
 import co.paralleluniverse.galaxy.core.Message;
 import static co.paralleluniverse.galaxy.netty.IpConstants.*;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import java.beans.ConstructorProperties;
 import java.net.InetAddress;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import org.jboss.netty.channel.Channel;
 import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelPipeline;
+import org.jboss.netty.channel.ChannelStateEvent;
+import org.jboss.netty.channel.SimpleChannelUpstreamHandler;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -34,6 +41,7 @@ class TcpSlaveClientComm extends AbstractTcpClient {
 
     private static final Logger LOG = LoggerFactory.getLogger(TcpSlaveClientComm.class);
     private Backup backup;
+    private final ExecutorService summaryExecutor = Executors.newSingleThreadExecutor(new ThreadFactoryBuilder().setNameFormat("slave-summary-%d").setDaemon(true).build());
 
     @ConstructorProperties({"name", "cluster"})
     public TcpSlaveClientComm(String name, Cluster cluster) throws Exception {
@@ -80,6 +88,32 @@ class TcpSlaveClientComm extends AbstractTcpClient {
 //        });
 //        return pipeline;
 //    }
+
+    @Override
+    protected ChannelPipeline getPipeline() throws Exception {
+        final ChannelPipeline pipeline = super.getPipeline();
+        pipeline.addLast("summary", new SimpleChannelUpstreamHandler() {
+            @Override
+            public void channelConnected(ChannelHandlerContext ctx, ChannelStateEvent e) throws Exception {
+                // the master waits for our summary before it starts replicating, so that it only sends lines we don't have.
+                // summarizing locks every owned line, so it's done off the I/O thread
+                final Channel channel = ctx.getChannel();
+                summaryExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        final long[] summary = backup.summarizeOwned();
+                        if (!channel.isConnected())
+                            return;
+                        LOG.info("Sending summary of owned lines ({} buckets) to master.", summary.length);
+                        channel.write(Message.BACKUP_SUMMARY(summary));
+                    }
+                });
+                super.channelConnected(ctx, e);
+            }
+        });
+        return pipeline;
+    }
+
     @Override
     protected void postInit() throws Exception {
         super.postInit();
@@ -126,6 +160,7 @@ class TcpSlaveClientComm extends AbstractTcpClient {
     @Override
     public void shutdown() {
         getCluster().removeSlaveConfigurationListener(scListener);
+        summaryExecutor.shutdownNow();
 
         super.shutdown();
     }
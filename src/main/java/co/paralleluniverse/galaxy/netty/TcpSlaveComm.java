@@ -54,6 +54,41 @@ public class TcpSlaveComm extends ClusterService implements SlaveComm {
     public int getPort() {
         return server.getPort();
     }
+
+    public void setReplicationChunkSize(int replicationChunkSize) {
+        assertDuringInitialization();
+        server.setReplicationChunkSize(replicationChunkSize);
+    }
+
+    @ManagedAttribute
+    public int getReplicationChunkSize() {
+        return server.getReplicationChunkSize();
+    }
+
+    public void setReplicationWindow(int replicationWindow) {
+        assertDuringInitialization();
+        server.setReplicationWindow(replicationWindow);
+    }
+
+    @ManagedAttribute
+    public int getReplicationWindow() {
+        return server.getReplicationWindow();
+    }
+
+    @ManagedAttribute(description = "The number of lines streamed to new slaves")
+    public long getReplicatedLinesSent() {
+        return server.getReplicatedLinesSent();
+    }
+
+    @ManagedAttribute(description = "The number of lines streamed to new slaves and acknowledged by them")
+    public long getReplicatedLinesAcked() {
+        return server.getReplicatedLinesAcked();
+    }
+
+    @ManagedAttribute(description = "Whether a slave is currently being replicated to")
+    public boolean isReplicating() {
+        return server.isReplicating();
+    }
     
     @Override
     protected void postInit() throws Exception {
@@ -22,6 +22,7 @@ import co.paralleluniverse.galaxy.core.Message;
 import co.paralleluniverse.galaxy.core.Message.BACKUP;
 import co.paralleluniverse.galaxy.core.Message.BACKUP_PACKET;
 import co.paralleluniverse.galaxy.core.Message.BACKUP_PACKETACK;
+import co.paralleluniverse.galaxy.core.Message.BACKUP_SUMMARY;
 import co.paralleluniverse.galaxy.core.Message.LineMessage;
 import co.paralleluniverse.galaxy.core.SlaveComm;
 import static co.paralleluniverse.galaxy.netty.IpConstants.*;
@@ -34,10 +35,12 @@ import java.net.InetSocketAddress;
 import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.Iterator;
-import java.util.Map;
+import java.util.List;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import org.jboss.netty.channel.Channel;
 import org.jboss.netty.channel.ChannelFuture;
 import org.jboss.netty.channel.ChannelHandler;
@@ -50,6 +53,7 @@ import org.jboss.netty.channel.group.ChannelGroupFuture;
 import org.jboss.netty.channel.group.DefaultChannelGroup;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
 
 /**
  * Right now, because we can only have one slave anyway (due to consensus), this class has been simplified and assumes one slave.
@@ -60,6 +64,12 @@ import org.slf4j.LoggerFactory;
  * not wait until the previous has been acked by all before we inform Backup, so it's a little more effort to keep track of
  * multiple slaves (it would simply require some more bookkeeping).
  *
+ * When a slave connects, it sends a summary of the lines it already has (see {@link Backup#summarizeOwned()}), and then all lines
+ * owned by the master that the slave may not have are replicated to it in a stream of chunks, each a {@code BACKUP_PACKET}
+ * carrying many lines, whose id is the negated number of lines streamed up to and including it (so it can't be mistaken for a regular
+ * backup packet). The slave acks each chunk; no more than {@code replicationWindow} chunks may be unacked, and a chunk is only written
+ * when the channel is writable, so the master never buffers more than a few chunks.
+ *
  * @author pron
  */
 final class TcpSlaveServerComm extends AbstractTcpServer implements SlaveComm {
@@ -72,9 +82,13 @@ final class TcpSlaveServerComm extends AbstractTcpServer implements SlaveComm {
     private static final Logger LOG = LoggerFactory.getLogger(TcpSlaveServerComm.class);
     private Backup backup;
     private boolean sentSlave; // Set<Channel> sentSlaves; use a simple flag for one server, just to keep track. not really necessary with one slave.
-    private final ConcurrentMap<Channel, Iterator<BACKUP>> replIters = new ConcurrentHashMap<Channel, Iterator<BACKUP>>();
+    private final ConcurrentMap<Channel, Replication> replications = new ConcurrentHashMap<Channel, Replication>();
     private long lastId;
     private volatile Thread replThread;
+    private int replicationChunkSize = 1 << 20;
+    private int replicationWindow = 4;
+    private final AtomicLong replicatedLinesSent = new AtomicLong();
+    private final AtomicLong replicatedLinesAcked = new AtomicLong();
 
     @ConstructorProperties({"name", "cluster", "port"})
     public TcpSlaveServerComm(String name, Cluster cluster, int port) throws Exception {
@@ -117,6 +131,43 @@ final class TcpSlaveServerComm extends AbstractTcpServer implements SlaveComm {
         this.backup = backup;
     }
 
+    public void setReplicationChunkSize(int replicationChunkSize) {
+        assertDuringInitialization();
+        this.replicationChunkSize = replicationChunkSize;
+    }
+
+    @ManagedAttribute
+    public int getReplicationChunkSize() {
+        return replicationChunkSize;
+    }
+
+    public void setReplicationWindow(int replicationWindow) {
+        assertDuringInitialization();
+        if (replicationWindow < 1)
+            throw new IllegalArgumentException("replicationWindow must be positive: " + replicationWindow);
+        this.replicationWindow = replicationWindow;
+    }
+
+    @ManagedAttribute
+    public int getReplicationWindow() {
+        return replicationWindow;
+    }
+
+    @ManagedAttribute(description = "The number of lines streamed to new slaves")
+    public long getReplicatedLinesSent() {
+        return replicatedLinesSent.get();
+    }
+
+    @ManagedAttribute(description = "The number of lines streamed to new slaves and acknowledged by them")
+    public long getReplicatedLinesAcked() {
+        return replicatedLinesAcked.get();
+    }
+
+    @ManagedAttribute(description = "Whether a slave is currently being replicated to")
+    public boolean isReplicating() {
+        return !replications.isEmpty();
+    }
+
     @Override
     protected void postInit() throws Exception {
         super.postInit();
@@ -170,17 +221,23 @@ final class TcpSlaveServerComm extends AbstractTcpServer implements SlaveComm {
                     return;
                 }
 
-                replIters.put(ctx.getChannel(), backup.iterOwned());
-                synchronized (replIters) {
-                    replIters.notify();
-                }
+                replications.put(ctx.getChannel(), new Replication(ctx.getChannel())); // starts when the slave sends its summary
                 super.channelConnected(ctx, e);
             }
 
+            @Override
+            public void channelInterestChanged(ChannelHandlerContext ctx, ChannelStateEvent e) throws Exception {
+                if (ctx.getChannel().isWritable() && replications.containsKey(ctx.getChannel()))
+                    wakeReplicationThread();
+                super.channelInterestChanged(ctx, e);
+            }
+
             @Override
             public void channelDisconnected(ChannelHandlerContext ctx, ChannelStateEvent e) throws Exception {
                 ack(ctx, null);
-                replIters.remove(ctx.getChannel());
+                final Replication replication = replications.remove(ctx.getChannel());
+                if (replication != null && !replication.done)
+                    LOG.info("Slave disconnected after {} lines had been replicated to it.", replication.acked);
                 super.channelDisconnected(ctx, e);
             }
 
@@ -192,16 +249,33 @@ final class TcpSlaveServerComm extends AbstractTcpServer implements SlaveComm {
     protected void receive(ChannelHandlerContext ctx, Message message) {
         switch (message.getType()) {
             case BACKUP_PACKETACK:
-                ack(ctx, (BACKUP_PACKETACK) message);
+                if (((BACKUP_PACKETACK) message).getId() < 0)
+                    replicationAck(ctx, (BACKUP_PACKETACK) message);
+                else
+                    ack(ctx, (BACKUP_PACKETACK) message);
                 break;
             case INVACK:
                 invack(ctx, (LineMessage) message);
                 break;
+            case BACKUP_SUMMARY:
+                summary(ctx, (BACKUP_SUMMARY) message);
+                break;
             default:
                 LOG.warn("Unhandled message: {}", message);
         }
     }
 
+    private void summary(ChannelHandlerContext ctx, BACKUP_SUMMARY summary) {
+        final Replication replication = replications.get(ctx.getChannel());
+        if (replication == null || replication.summary != null) {
+            LOG.warn("Received unexpected summary from channel {}", ctx.getChannel());
+            return;
+        }
+        LOG.info("Received summary ({} buckets) from channel {}. Starting replication.", summary.getDigests().length, ctx.getChannel());
+        replication.summary = summary.getDigests();
+        wakeReplicationThread();
+    }
+
     private void ack(ChannelHandlerContext ctx, BACKUP_PACKETACK ack) {
 
 //        boolean allAck = false;
@@ -224,6 +298,24 @@ final class TcpSlaveServerComm extends AbstractTcpServer implements SlaveComm {
         backup.slavesAck(lastId);
     }
 
+    private void replicationAck(ChannelHandlerContext ctx, BACKUP_PACKETACK ack) {
+        final Replication replication = replications.get(ctx.getChannel());
+        if (replication == null) {
+            LOG.warn("Received replication ack {} from a slave that isn't being replicated to: {}", ack.getId(), ctx.getChannel());
+            return;
+        }
+        final long offset = -ack.getId();
+        LOG.debug("Slave {} has received {} replicated lines", ctx.getChannel(), offset);
+        replicatedLinesAcked.addAndGet(offset - replication.acked);
+        replication.acked = offset;
+        replication.unacked.decrementAndGet();
+        if (replication.done && replication.acked == replication.offset) {
+            replications.remove(ctx.getChannel());
+            LOG.info("Finished replicating {} lines to channel {}", replication.offset, ctx.getChannel());
+        } else
+            wakeReplicationThread();
+    }
+
     private void invack(ChannelHandlerContext ctx, LineMessage invack) {
         backup.slavesInvAck(invack.getLine());
     }
@@ -345,27 +437,27 @@ final class TcpSlaveServerComm extends AbstractTcpServer implements SlaveComm {
             public void run() {
                 try {
                     while (!Thread.interrupted()) {
-                        synchronized (replIters) {
-                            while (replIters.isEmpty())
-                                replIters.wait();
+                        synchronized (replications) {
+                            while (replications.isEmpty())
+                                replications.wait();
+                        }
+
+                        boolean wrote = false;
+                        for (Replication replication : replications.values()) {
+                            if (replication.iter == null) {
+                                if (replication.summary == null)
+                                    continue;
+                                replication.iter = backup.iterOwned(replication.summary);
+                            }
+                            while (!replication.done && replication.channel.isWritable() && replication.unacked.get() < replicationWindow) {
+                                replicateChunk(replication);
+                                wrote = true;
+                            }
                         }
 
-                        for (Iterator<Map.Entry<Channel, Iterator<BACKUP>>> entryIter = replIters.entrySet().iterator(); entryIter.hasNext();) {
-                            final Map.Entry<Channel, Iterator<BACKUP>> entry = entryIter.next();
-                            final Channel channel = entry.getKey();
-                            final Iterator<BACKUP> iter = entry.getValue();
-
-                            for (int i = 0; i < 10; i++) {
-                                if (iter.hasNext()) {
-                                    final BACKUP backup = iter.next();
-                                    LOG.debug("Replicating {} to channel {}", backup, channel);
-                                    channel.write(backup);
-                                } else {
-                                    channel.write(Message.BACKUP(-1, -1, null)); // marks the end of the stream
-                                    LOG.debug("Finished replicating to channel {}", channel);
-                                    entryIter.remove(); // we're done
-                                    break;
-                                }
+                        if (!wrote) {
+                            synchronized (replications) {
+                                replications.wait(100); // until a chunk is acked or a channel becomes writable
                             }
                         }
                     }
@@ -381,4 +473,55 @@ final class TcpSlaveServerComm extends AbstractTcpServer implements SlaveComm {
         replThread.start();
     }
 
+    private void wakeReplicationThread() {
+        synchronized (replications) {
+            replications.notify();
+        }
+    }
+
+    /**
+     * Writes the next chunk of the replication stream, or, if all lines have been streamed, the end-of-stream marker.
+     */
+    private void replicateChunk(Replication replication) {
+        final Channel channel = replication.channel;
+        final List<BACKUP> lines = new ArrayList<BACKUP>();
+        int size = 0;
+        while (size < replicationChunkSize && replication.iter.hasNext()) {
+            final BACKUP backup = replication.iter.next();
+            lines.add(backup);
+            size += LINE_OVERHEAD + (backup.getData() != null ? backup.getData().remaining() : 0);
+        }
+
+        if (lines.isEmpty()) {
+            channel.write(Message.BACKUP(-1, -1, null)); // marks the end of the stream
+            LOG.debug("Finished streaming {} lines to channel {}", replication.offset, channel);
+            replication.done = true;
+            if (replication.acked == replication.offset)
+                replications.remove(channel);
+            return;
+        }
+
+        replication.offset += lines.size();
+        replication.unacked.incrementAndGet();
+        replicatedLinesSent.addAndGet(lines.size());
+        final BACKUP_PACKET chunk = Message.BACKUP_PACKET(-replication.offset, lines);
+        LOG.debug("Replicating {} lines ({} bytes) to channel {}. Offset: {}", new Object[]{lines.size(), size, channel, replication.offset});
+        channel.write(chunk);
+    }
+    private static final int LINE_OVERHEAD = 20;
+
+    private static class Replication {
+        final Channel channel;
+        volatile long[] summary; // the slave's summary of the lines it already has
+        Iterator<BACKUP> iter; // created by the replication thread once the summary is received
+        final AtomicInteger unacked = new AtomicInteger(); // the number of chunks written but not yet acked
+        volatile long offset; // the number of lines streamed; written by the replication thread only, but read when acks arrive
+        volatile long acked; // the number of lines acked by the slave
+        volatile boolean done;
+
+        Replication(Channel channel) {
+            this.channel = channel;
+        }
+    }
+
 }
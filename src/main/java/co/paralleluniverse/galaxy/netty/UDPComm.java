@@ -1097,7 +1097,7 @@ public class UDPComm extends AbstractComm<InetSocketAddress> {
                 return;
             synchronized (this) {
                 boolean done = entry.removeNode(message.getNode());
-                if (message.getType() != Message.Type.ACK) {// this is a response - no need to wait for further acks
+                if (message.getType() != Message.Type.ACK && !isInvAck(entry.message, message)) {// this is a response - no need to wait for further acks
                     LOG.debug("Message {} is a reply to a broadcast! (discarding pending)", message);
                     if (!done)
                         releasePeers(entry, message.getNode());
@@ -1107,7 +1107,7 @@ public class UDPComm extends AbstractComm<InetSocketAddress> {
                         LOG.debug("Got ACK from {} to message {}", message.getNode(), entry.message);
                     final int numNodes = entry.nodes.size();
                     if (done) {
-                        if (entry.message instanceof LineMessage) {
+                        if (entry.message instanceof LineMessage && message.getType() == Message.Type.ACK) {
                             LOG.debug("Got all ACKs for message {}, but no response - sending NOT_FOUND to cache!", entry.message);
                             received.add(Message.NOT_FOUND((LineMessage) entry.message).setIncoming());
                         }
@@ -1142,6 +1142,13 @@ public class UDPComm extends AbstractComm<InetSocketAddress> {
             }
         }
 
+        /**
+         * A broadcast INV must reach every node, so, like an ACK, an INVACK from one node doesn't release the others.
+         */
+        private boolean isInvAck(Message request, Message response) {
+            return request.getType() == Message.Type.INV && response.getType() == Message.Type.INVACK;
+        }
+
         private void releasePeers(BroadcastEntry entry, short node) {
             final Message message = entry.message;
             for (ShortIterator it = entry.nodes.iterator(); it.hasNext();) {
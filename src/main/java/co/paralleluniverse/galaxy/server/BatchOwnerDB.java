@@ -0,0 +1,30 @@
+/*
+ * Galaxy
+ * Copyright (c) 2012-2014, Parallel Universe Software Co. All rights reserved.
+ *
+ * This program and the accompanying materials are dual-licensed under
+ * either the terms of the Eclipse Public License v1.0 as published by
+ * the Eclipse Foundation
+ *
+ *   or (per the licensee's choosing)
+ *
+ * under the terms of the GNU Lesser General Public License version 3.0
+ * as published by the Free Software Foundation.
+ */
+package co.paralleluniverse.galaxy.server;
+
+/**
+ * A {@link MainMemoryDB} that can set the owners of many lines at once, which the server uses to write back line ownership it keeps
+ * in memory.
+ */
+public interface BatchOwnerDB extends MainMemoryDB {
+    /**
+     * Sets the owners of the given lines, in a single store transaction. Unlike {@link #casOwner(long, short, short) casOwner}, the
+     * owners are set regardless of the lines' current owners. Lines that don't exist (i.e. have been deleted) are skipped.
+     *
+     * @param ids the lines
+     * @param owners the lines' owners
+     * @param count the number of lines, which may be smaller than the arrays' length
+     */
+    void setOwners(long[] ids, short[] owners, int count);
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright (c) 2014, Parallel Universe Software Co. All rights reserved.
+ *
+ * This program and the accompanying materials are dual-licensed under
+ * either the terms of the Eclipse Public License v1.0 as published by
+ * the Eclipse Foundation
+ *
+ *   or (per the licensee's choosing)
+ *
+ * under the terms of the GNU Lesser General Public License version 3.0
+ * as published by the Free Software Foundation.
+ */
+package co.paralleluniverse.common.monitoring;
+
+import com.codahale.metrics.Snapshot;
+import static co.paralleluniverse.common.monitoring.LatencyHistogram.*;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class LatencyHistogramTest {
+    @Test
+    public void whenSmallValueThenCountedExactly() {
+        for (long value = 0; value < 64; value++) {
+            assertEquals(value, index(value));
+            assertEquals(value, lowestValue((int) value));
+            assertEquals(value, highestValue((int) value));
+        }
+    }
+
+    @Test
+    public void whenBucketEdgeThenIndexRoundTrips() {
+        assertEquals(0, lowestValue(0));
+        for (int i = 0; i < NUM_BUCKETS; i++) {
+            final long lowest = lowestValue(i);
+            final long highest = highestValue(i);
+            assertTrue("bucket " + i, lowest <= highest);
+            assertEquals("lowest value of bucket " + i, i, index(lowest));
+            assertEquals("highest value of bucket " + i, i, index(highest));
+            if (i + 1 < NUM_BUCKETS)
+                assertEquals("bucket " + i + " is followed by bucket " + (i + 1), highest + 1, lowestValue(i + 1));
+        }
+        assertEquals(MAX_VALUE, highestValue(NUM_BUCKETS - 1));
+    }
+
+    @Test
+    public void testBucketWidthWithinPrecision() {
+        for (int i = 64; i < NUM_BUCKETS; i++) {
+            final long width = highestValue(i) - lowestValue(i) + 1;
+            assertTrue("bucket " + i, width * 32 <= lowestValue(i));
+        }
+    }
+
+    @Test
+    public void whenUniformThenQuantilesWithinPrecision() {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        for (long value = 1; value <= 100000; value++)
+            histogram.record(value);
+
+        final Snapshot snapshot = histogram.getSnapshot();
+        assertEquals(100000, snapshot.size());
+        assertEquals(1, snapshot.getMin());
+        assertEquals(100000, snapshot.getMax());
+        assertEquals(50000.5, snapshot.getMean(), 0.001);
+        assertWithinPrecision(50000, snapshot.getMedian());
+        assertWithinPrecision(75000, snapshot.get75thPercentile());
+        assertWithinPrecision(99000, snapshot.get99thPercentile());
+        assertWithinPrecision(99900, snapshot.get999thPercentile());
+        assertWithinPrecision(100000, snapshot.getValue(1.0));
+        assertTrue(snapshot.getValue(1.0) <= 100000); // capped by the max
+        assertWithinPrecision(1, snapshot.getValue(0.0));
+    }
+
+    @Test
+    public void whenBimodalThenQuantilesFallInTheRightMode() {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 0; i < 9000; i++)
+            histogram.record(1000);
+        for (int i = 0; i < 1000; i++)
+            histogram.record(5000000);
+
+        final Snapshot snapshot = histogram.getSnapshot();
+        assertWithinPrecision(1000, snapshot.getMedian());
+        assertWithinPrecision(1000, snapshot.getValue(0.9));
+        assertWithinPrecision(5000000, snapshot.getValue(0.901));
+        assertWithinPrecision(5000000, snapshot.get99thPercentile());
+        assertEquals(2, snapshot.getValues().length);
+    }
+
+    @Test
+    public void whenValueAboveMaxThenClamped() {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(Long.MAX_VALUE);
+        histogram.record(MAX_VALUE + 1);
+        histogram.record(-5); // counted as 0
+
+        assertEquals(3, histogram.getCount());
+        assertEquals(Long.MAX_VALUE, histogram.getMax());
+        final Snapshot snapshot = histogram.getSnapshot();
+        assertEquals(0, snapshot.getMin());
+        final long[] values = snapshot.getValues();
+        assertEquals(2, values.length); // 0 and the last bucket
+        assertTrue(values[1] <= MAX_VALUE);
+        assertWithinPrecision(MAX_VALUE, snapshot.getValue(1.0));
+    }
+
+    @Test
+    public void whenResetThenEmpty() {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        for (long value = 1; value <= 1000; value++)
+            histogram.record(value * 1000);
+        histogram.reset();
+
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getMax());
+        Snapshot snapshot = histogram.getSnapshot();
+        assertEquals(0, snapshot.size());
+        assertEquals(0, snapshot.getValues().length);
+        assertEquals(0.0, snapshot.getMedian(), 0.0);
+        assertEquals(0.0, snapshot.getMean(), 0.0);
+
+        histogram.record(200);
+        snapshot = histogram.getSnapshot();
+        assertEquals(1, snapshot.size());
+        assertEquals(200, snapshot.getMax());
+        assertWithinPrecision(200, snapshot.getMedian());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void whenQuantileOutOfRangeThenThrowException() {
+        new LatencyHistogram().getSnapshot().getValue(1.5);
+    }
+
+    private static void assertWithinPrecision(double expected, double actual) {
+        assertEquals(expected, actual, Math.max(1.0, expected / 32));
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright (c) 2014, Parallel Universe Software Co. All rights reserved.
+ *
+ * This program and the accompanying materials are dual-licensed under
+ * either the terms of the Eclipse Public License v1.0 as published by
+ * the Eclipse Foundation
+ *
+ *   or (per the licensee's choosing)
+ *
+ * under the terms of the GNU Lesser General Public License version 3.0
+ * as published by the Free Software Foundation.
+ */
+package co.paralleluniverse.common.util;
+
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import static org.junit.Assume.*;
+
+public class CoarseClockTest {
+    @Before
+    public void setUp() {
+        assumeFalse(CoarseClock.isRunning()); // started by another component in this JVM
+    }
+
+    @Test
+    public void whenNotStartedThenSystemTime() throws Exception {
+        final long before = System.currentTimeMillis();
+        final long t = CoarseClock.currentTimeMillis();
+        final long after = System.currentTimeMillis();
+
+        assertTrue(before <= t && t <= after);
+    }
+
+    @Test
+    public void whenStartedThenTimeAdvances() throws Exception {
+        CoarseClock.start();
+        try {
+            assertTrue(CoarseClock.isRunning());
+            final long t1 = CoarseClock.currentTimeMillis();
+            Thread.sleep(50);
+            final long t2 = CoarseClock.currentTimeMillis();
+
+            assertTrue(t2 > t1);
+            assertTrue(t2 <= System.currentTimeMillis());
+            assertTrue(System.currentTimeMillis() - t2 < 100);
+        } finally {
+            CoarseClock.stop();
+        }
+    }
+
+    @Test
+    public void testStartsAndStopsAreCounted() throws Exception {
+        CoarseClock.start();
+        CoarseClock.start();
+
+        CoarseClock.stop();
+        assertTrue(CoarseClock.isRunning());
+
+        CoarseClock.stop();
+        assertFalse(CoarseClock.isRunning());
+
+        final long before = System.currentTimeMillis();
+        assertTrue(CoarseClock.currentTimeMillis() >= before); // not frozen at the last tick
+    }
+
+    @Test
+    public void whenRestartedThenTimeAdvances() throws Exception {
+        CoarseClock.start();
+        CoarseClock.stop();
+        CoarseClock.start();
+        try {
+            final long t1 = CoarseClock.currentTimeMillis();
+            Thread.sleep(50);
+            assertTrue(CoarseClock.currentTimeMillis() > t1);
+        } finally {
+            CoarseClock.stop();
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void whenStoppedWithoutStartThenThrowException() {
+        CoarseClock.stop();
+    }
+}
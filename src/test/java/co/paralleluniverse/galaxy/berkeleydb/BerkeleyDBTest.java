@@ -0,0 +1,150 @@
+/*
+ * Galaxy
+ * Copyright (c) 2012-2014, Parallel Universe Software Co. All rights reserved.
+ *
+ * This program and the accompanying materials are dual-licensed under
+ * either the terms of the Eclipse Public License v1.0 as published by
+ * the Eclipse Foundation
+ *
+ *   or (per the licensee's choosing)
+ *
+ * under the terms of the GNU Lesser General Public License version 3.0
+ * as published by the Free Software Foundation.
+ */
+package co.paralleluniverse.galaxy.berkeleydb;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class BerkeleyDBTest {
+    File dir;
+    BerkeleyDB db;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = Files.createTempDirectory("bdb").toFile();
+        db = open();
+    }
+
+    @After
+    public void tearDown() {
+        db.close();
+        for (File f : dir.listFiles())
+            f.delete();
+        dir.delete();
+    }
+
+    private BerkeleyDB open() throws Exception {
+        return open(1000);
+    }
+
+    private BerkeleyDB open(int removeOwnerChunkSize) throws Exception {
+        final BerkeleyDB bdb = new BerkeleyDB("store", dir.getPath());
+        bdb.setRemoveOwnerChunkSize(removeOwnerChunkSize);
+        bdb.init();
+        return bdb;
+    }
+
+    private BerkeleyDB reopen() throws Exception {
+        db.close();
+        db = open();
+        return db;
+    }
+
+    @Test
+    public void testCasOwner() {
+        assertEquals(-1, db.casOwner(1234L, (short) 0, (short) 10)); // nonexistent
+        assertEquals(10, db.casOwner(1234L, (short) -1, (short) 10)); // create
+        assertEquals(10, db.casOwner(1234L, (short) -1, (short) 20));
+        assertEquals(10, db.casOwner(1234L, (short) 0, (short) 20));
+        assertEquals(20, db.casOwner(1234L, (short) 10, (short) 20));
+
+        db.removeOwner((short) 20);
+        assertEquals(0, db.casOwner(1234L, (short) 20, (short) 30));
+    }
+
+    @Test
+    public void testSetOwners() {
+        db.casOwner(1234L, (short) -1, (short) 10);
+        db.casOwner(1235L, (short) -1, (short) 10);
+        db.setOwners(new long[]{1234L, 1235L, 1236L, 0}, new short[]{20, 30, 40, 0}, 3);
+
+        assertEquals(20, db.casOwner(1234L, (short) 0, (short) 50)); // regardless of the current owner
+        assertEquals(30, db.casOwner(1235L, (short) 0, (short) 50));
+        assertEquals(-1, db.casOwner(1236L, (short) 0, (short) 50)); // nonexistent lines are skipped
+    }
+
+    @Test
+    public void whenReopenedThenServerOwnsAllLines() throws Exception {
+        db.casOwner(1234L, (short) -1, (short) 10);
+        db.write(1235L, (short) 20, 1, new byte[]{1, 2, 3}, null);
+        final int epoch = db.getEpoch();
+
+        reopen();
+
+        assertEquals(epoch + 1, db.getEpoch());
+        assertFalse(db.isRecoveredFromCrash());
+        assertEquals(0, db.casOwner(1234L, (short) 10, (short) 30));
+        assertEquals(0, db.casOwner(1235L, (short) -1, (short) 30));
+        assertEquals(30, db.casOwner(1235L, (short) 0, (short) 30));
+        assertArrayEquals(new byte[]{1, 2, 3}, db.read(1235L).data);
+    }
+
+    @Test
+    public void whenReopenedThenRemoveOwnerOnlyAffectsCurrentOwners() throws Exception {
+        db.casOwner(1234L, (short) -1, (short) 10);
+        reopen();
+
+        db.casOwner(1235L, (short) -1, (short) 10);
+        assertEquals(20, db.casOwner(1234L, (short) 0, (short) 20));
+        db.removeOwner((short) 10);
+
+        assertEquals(20, db.casOwner(1234L, (short) 0, (short) 30)); // not reset by removeOwner
+        assertEquals(0, db.casOwner(1235L, (short) 10, (short) 30));
+    }
+
+    @Test
+    public void whenOwnerRemovedAndRejoinsThenOnlyNewRecordsAreItsOwn() {
+        db.casOwner(1234L, (short) -1, (short) 10);
+        db.casOwner(1235L, (short) -1, (short) 20);
+        db.removeOwner((short) 10);
+
+        assertEquals(0, db.casOwner(1234L, (short) 10, (short) 30));
+        assertEquals(20, db.casOwner(1235L, (short) 0, (short) 30));
+
+        db.casOwner(1236L, (short) -1, (short) 10); // node 10 rejoins
+        assertEquals(10, db.casOwner(1236L, (short) 0, (short) 30));
+    }
+
+    @Test
+    public void whenOwnerRemovedThenRecordsRewrittenInBackground() throws Exception {
+        db.close();
+        db = open(7);
+
+        for (long id = 1000; id < 1100; id++)
+            db.casOwner(id, (short) -1, (short) (id % 2 == 0 ? 10 : 20));
+        db.removeOwner((short) 10);
+
+        for (int i = 0; db.getPendingRemoveOwnerTasks() > 0 && i < 100; i++)
+            Thread.sleep(50);
+        assertEquals(0, db.getPendingRemoveOwnerTasks());
+
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        db.printOwners(new PrintStream(out, true));
+        int rewritten = 0;
+        for (String line : out.toString().split("\n")) {
+            if (line.contains("owner: 0"))
+                assertTrue(line, line.endsWith("epoch: " + db.getEpoch()));
+            if (line.endsWith("epoch: " + db.getEpoch()))
+                rewritten++;
+        }
+        assertEquals(50, rewritten);
+        assertEquals(20, db.casOwner(1001L, (short) 0, (short) 30));
+    }
+}
@@ -22,15 +22,19 @@ package co.paralleluniverse.galaxy.core;
 import co.paralleluniverse.galaxy.CacheListener;
 import co.paralleluniverse.common.io.Persistable;
 import co.paralleluniverse.galaxy.AbstractCacheListener;
+import co.paralleluniverse.galaxy.LineCallback;
 import co.paralleluniverse.galaxy.LineFunction;
 import co.paralleluniverse.galaxy.RefNotFoundException;
 import co.paralleluniverse.galaxy.TimeoutException;
 import co.paralleluniverse.galaxy.cluster.NodeInfo;
 import com.google.common.base.Charsets;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.List;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
 
 import org.junit.After;
 import org.junit.AfterClass;
@@ -101,6 +105,7 @@ public class CacheTest {
     CacheMonitor monitor;
     boolean hasServer;
     long messageId = 0;
+    final List<Cache> caches = new ArrayList<Cache>(); // shut down after each test
 
 //    public CacheTest() {
 //        this.hasServer = true;
@@ -149,7 +154,7 @@ public class CacheTest {
         _cache.setReuseLines(false);
         _cache.setReuseSharerSets(false);
         _cache.setSynchronous(syncrhonous);
-        _cache.init();
+        init(_cache);
         // verify uninteresting interactions so that test can use verifyNoMoreInteractions().
         verify(monitor).setMonitoredObject(_cache);
         verify(comm).setReceiver(_cache);
@@ -158,12 +163,19 @@ public class CacheTest {
         return _cache;
     }
 
+    private void init(Cache _cache) throws Exception {
+        _cache.init();
+        caches.add(_cache);
+    }
+
     private void reset() throws Exception {
         setUp();
     }
 
     @After
     public void tearDown() {
+        for (Cache _cache : caches)
+            _cache.shutdown();
     }
 
     ///////////////////////////////////////////////////////////////////////
@@ -229,6 +241,22 @@ public class CacheTest {
         }
     }
 
+    /**
+     * The round-trip time of a miss is recorded by owner when the response arrives.
+     */
+    @Test
+    public void whenGetMissingLineAndPUTThenRecordMissLatency() throws Exception {
+        Object res = cache.runOp(new Op(GET, 1L, null));
+        assertThat(res, is(PENDING));
+
+        PUT(1, sh(10), 1, "hello");
+
+        verify(monitor).addMissLatency(eq(Type.PUT), eq(sh(10)), anyLong());
+
+        PUT(1, sh(10), 2, "hello"); // unsolicited
+        verify(monitor, times(1)).addMissLatency(any(Type.class), anyShort(), anyLong());
+    }
+
     /**
      * A GETX message is broadcast when getting, and getting X a missing line at the same time.
      */
@@ -472,6 +500,71 @@ public class CacheTest {
         assertModified(1234L, true);
     }
 
+    public static LineFunction<Void> appendfunc(final byte b) {
+        return new LineFunction<Void>() {
+            @Override
+            public Void invoke(LineAccess lineAccess) {
+                int size = lineAccess.getForRead().remaining();
+                ByteBuffer bb = lineAccess.getForWrite(size + 1);
+                bb.limit(size + 1);
+                bb.position(size);
+                bb.put(b);
+                return null;
+            }
+        };
+    }
+
+    @Test
+    public void whenVoidInvokeThenCompleteOnMSGACK() throws Exception {
+        setCommMsgCounter();
+        PUT(1234L, sh(10), 2, "hello");
+        final LineFunction<Void> appendfunc = appendfunc((byte) 1);
+        ListenableFuture<Object> future = cache.doOpAsync(Op.Type.INVOKE, 1234L, appendfunc, null, null);
+        final Message.INVOKE msg = Message.INVOKE(sh(10), 1234L, appendfunc);
+        verify(comm).send(argThat(equalTo(msg.setMessageId(2))));
+        assertThat(future.isDone(), is(false));
+        cache.receive(Message.MSGACK(msg));
+        assertThat(future.isDone(), is(true));
+        assertThat(future.get(), is(nullValue()));
+    }
+
+    @Test
+    public void whenHandleVoidInvokeThenMSGACKAndNoINVRES() throws Exception {
+        PUTX(1234L, sh(10), 2, "hello");
+        if (hasServer())
+            cache.receive(Message.INVACK(Message.INV(sh(0), 1234L, sh(10))));
+        assertState(1234L, E, null);
+        final Message.INVOKE msg = Message.INVOKE(sh(10), 1234L, appendfunc((byte) 1));
+        cache.receive(msg);
+        verify(comm).send(argThat(equalTo(Message.MSGACK(msg)))); // without waiting for the backup, like an INVRES
+        verify(comm, never()).send(argThat(equalTo(Message.INVRES(msg, 1234L, null))));
+        assertModified(1234L, true);
+    }
+
+    @Test
+    public void whenVoidInvokeIsHeldThenMSGACKOnceRunAndRunInOrder() throws Exception {
+        PUTX(1234L, sh(10), 2, "hello");
+        if (hasServer())
+            cache.receive(Message.INVACK(Message.INV(sh(0), 1234L, sh(10))));
+        final Message.INVOKE msg1 = Message.INVOKE(sh(10), 1234L, appendfunc((byte) 1));
+        final Message.INVOKE msg2 = Message.INVOKE(sh(10), 1234L, appendfunc((byte) 2));
+        msg2.setMessageId(msg1.getMessageId() + 1);
+        cache.receive(msg1);
+        assertModified(1234L, true); // so the next INVOKE is held until the backup completes
+        cache.receive(msg2);
+
+        verify(comm).send(argThat(equalTo(Message.MSGACK(msg1))));
+        verify(comm, never()).send(argThat(equalTo(Message.MSGACK(msg2)))); // not until it's run
+        assertThat(cache.getLine(1234L).getVersion(), is(3L));
+
+        cache.receive(Message.BACKUPACK(sh(0), 1234L, 3));
+        verify(comm).send(argThat(equalTo(Message.MSGACK(msg2))));
+        assertThat(cache.getLine(1234L).getVersion(), is(4L));
+        final ByteBuffer data = (ByteBuffer) cache.getLine(1234L).getData().duplicate().rewind();
+        assertThat(data.get(data.limit() - 2), is((byte) 1));
+        assertThat(data.get(data.limit() - 1), is((byte) 2));
+    }
+
     @Ignore // not true since c62a579 when the optimization in transitionToE has been removed
     @Test
     public void testHandleInvokeWhenO() throws Exception {
@@ -517,6 +610,39 @@ public class CacheTest {
         verify(comm).send(argThat(equalTo(Message.PUTX(getx, 1234L, sh(20, 30, 40, 50, 60), 0, 2, toBuffer("hello")))));
     }
 
+    /**
+     * Sharers beyond those kept inline in the line are all INVed, and the line becomes E once all of them INVACK.
+     */
+    @Test
+    public void whenMoreSharersThanKeptInlineThenINVAllBeforeE() throws Exception {
+        PUTX(1234L, sh(10), 2, "hello", 20, 30);
+        if (hasServer())
+            cache.receive(Message.INVACK(Message.INV(sh(0), 1234L, sh(10))));
+        cache.receive(Message.INVACK(Message.INV(sh(20), 1234L, sh(10))));
+        cache.receive(Message.INVACK(Message.INV(sh(30), 1234L, sh(10))));
+        assertState(1234L, E, null);
+
+        final short[] sharers = sh(20, 30, 40, 50, 60, 70, 80);
+        for (short sharer : sharers)
+            cache.receive(Message.GET(sharer, 1234L));
+        cache.receive(Message.GET(sh(80), 1234L)); // already a sharer
+        assertState(1234L, O, null);
+
+        final ListenableFuture<Object> future = cache.doOpAsync(SET, 1234L, toBuffer("bye"), null, null);
+        assertState(1234L, O, E);
+        for (short sharer : sharers)
+            verify(comm).send(argThat(equalTo(Message.INV(sharer, 1234L, sh(5)))));
+
+        for (int i = 0; i < sharers.length - 1; i++)
+            cache.receive(Message.INVACK(Message.INV(sharers[i], 1234L, sh(5))));
+        assertState(1234L, O, E);
+        assertThat(future.isDone(), is(false));
+
+        cache.receive(Message.INVACK(Message.INV(sharers[sharers.length - 1], 1234L, sh(5))));
+        assertState(1234L, E, null);
+        assertThat(future.isDone(), is(true));
+    }
+
     /**
      * When GET/X is received and not broadcast and line is not found, send CHNGD_OWNER
      */
@@ -571,31 +697,527 @@ public class CacheTest {
         INV(1234L, sh(10));
         Mockito.reset(comm); // to enable capture
 
-        cache.runOp(new Op(GET, 1234L, null));
+        cache.runOp(new Op(GET, 1234L, null));
+
+        when(cluster.getMaster(sh(20))).thenReturn(null);
+
+        LineMessage msg = (LineMessage) captureMessage();
+        cache.receive(Message.CHNGD_OWNR(msg, 1234L, sh(20), true));
+
+        verify(comm).send(argThat(equalTo(Message.GET(sh(10), 1234L))));
+    }
+
+    /**
+     * When an evicted line is requested again, then send GET to the owner we knew when it was evicted.
+     */
+    @Test
+    public void whenEvictedLineIsRequestedThenGETLastKnownOwner() throws Exception {
+        PUT(1234L, sh(10), 1, "x");
+        evict(1234L, false);
+        assertThat(cache.getLine(1234L), is(nullValue()));
+
+        Object res = cache.runOp(new Op(GET, 1234L, null));
+
+        assertThat(res, is(PENDING));
+        verify(comm).send(argThat(equalTo(Message.GET(sh(10), 1234L))));
+        verify(comm, never()).send(argThat(equalTo(Message.GET(sh(-1), 1234L))));
+    }
+
+    /**
+     * When the owner we knew of an evicted line no longer has it, then fall back to asking everyone.
+     */
+    @Test
+    public void whenLastKnownOwnerOfEvictedLineDoesntKnowThenGETAgain() throws Exception {
+        PUT(1234L, sh(10), 1, "x");
+        evict(1234L, false);
+        Mockito.reset(comm); // to enable capture
+
+        cache.runOp(new Op(GET, 1234L, null));
+
+        LineMessage msg = (LineMessage) captureMessage();
+        assertThat(msg.getNode(), is(sh(10)));
+        cache.receive(Message.CHNGD_OWNR(msg, 1234L, sh(-1), false));
+
+        verify(comm).send(argThat(equalTo(Message.GET(sh(-1), 1234L))));
+    }
+
+    /**
+     * When a thread misses on consecutive lines, then request the lines that follow from the owner of the stream.
+     */
+    @Test
+    public void whenSequentialMissesThenPrefetchNextLines() throws Exception {
+        cache = makePrefetchCache(2);
+        final long id = 0x100001000L;
+
+        missSequence(id, 3, sh(10));
+
+        verify(comm).send(argThat(equalTo(Message.GET(sh(10), id + 3))));
+        verify(comm).send(argThat(equalTo(Message.GET(sh(10), id + 4))));
+        verify(comm, never()).send(argThat(equalTo(Message.GET(sh(10), id + 5))));
+        verify(monitor).addPrefetch(2);
+        assertState(id + 3, I, S);
+    }
+
+    /**
+     * When a prefetched line is read, then count a prefetch hit and keep prefetching ahead of the stream.
+     */
+    @Test
+    public void whenPrefetchedLineIsReadThenPrefetchHitAndPrefetchAhead() throws Exception {
+        cache = makePrefetchCache(2);
+        final long id = 0x100001000L;
+
+        missSequence(id, 3, sh(10));
+        PUT(id + 3, sh(10), 1, "y");
+        assertState(id + 3, S, null);
+
+        Object res = cache.runOp(new Op(GET, id + 3, null));
+
+        assertThat(res, is(not(PENDING)));
+        verify(monitor).addPrefetchHit();
+        verify(comm).send(argThat(equalTo(Message.GET(sh(10), id + 5))));
+        verify(monitor, never()).addPrefetchWaste();
+    }
+
+    /**
+     * When a prefetched line is invalidated before it is read, then count it as wasted.
+     */
+    @Test
+    public void whenPrefetchedLineIsInvalidatedThenPrefetchWaste() throws Exception {
+        cache = makePrefetchCache(2);
+        final long id = 0x100001000L;
+
+        missSequence(id, 3, sh(10));
+        PUT(id + 3, sh(10), 1, "y");
+        INV(id + 3, sh(10));
+
+        verify(monitor).addPrefetchWaste();
+        cache.runOp(new Op(GET, id + 3, null));
+        verify(monitor, never()).addPrefetchHit();
+    }
+
+    /**
+     * Misses on each of the {@code n} lines starting at {@code first}, all owned by {@code owner}.
+     */
+    void missSequence(long first, int n, short owner) {
+        for (int i = 0; i < n; i++) {
+            assertThat(cache.runOp(new Op(GET, first + i, null)), is(PENDING));
+            PUT(first + i, owner, 1, "x");
+        }
+    }
+
+    Cache makePrefetchCache(int distance) throws Exception {
+        Cache _cache = new Cache("test", cluster, comm, storage, backup, monitor, 10000);
+        _cache.setReuseLines(false);
+        _cache.setReuseSharerSets(false);
+        _cache.setPrefetchDistance(distance);
+        init(_cache);
+        return _cache;
+    }
+
+    /**
+     * When a line we own is requested away shortly after we got it, again and again, then keep it and refuse the GETX.
+     */
+    @Test
+    public void whenLineMigratesRepeatedlyThenKeepItSticky() throws Exception {
+        cache = makeStickyCache(2);
+
+        final LineMessage getx = makeSticky(1234L);
+
+        verify(comm).send(argThat(equalTo(Message.CHNGD_OWNR(getx, 1234L, sh(5), true).setSticky(true))));
+        assertState(1234L, E, null);
+    }
+
+    /**
+     * When a line is sticky, then run shipped SETs, and transfer the line when the requester insists.
+     */
+    @Test
+    public void whenLineIsStickyThenRunShippedSetAndTransferOnMigrate() throws Exception {
+        cache = makeStickyCache(2);
+        makeSticky(1234L);
+
+        final Message.INVOKE invoke = Message.INVOKE(sh(30), 1234L, new Cache.SetFunction(serialize("z")));
+        cache.receive(invoke);
+
+        verify(comm).send(argThat(equalTo(Message.MSGACK(invoke))));
+        assertThat(deserialize(cache.runOp(new Op(GET, 1234L, null))), is("z"));
+        assertState(1234L, E, null);
+
+        cache.receive(Message.BACKUPACK(sh(0), 1234L, cache.getLine(1234L).getVersion()));
+        cache.receive(Message.GETX(sh(30), 1234L).setMigrate(true));
+
+        assertThat(cache.getLine(1234L).getState().isLessThan(O), is(true));
+        assertThat(cache.getLine(1234L).getOwner(), is(sh(30)));
+    }
+
+    /**
+     * When a shipped SET's value is longer than the line's current value, then the line holds the whole new value.
+     */
+    @Test
+    public void whenLineIsStickyThenRunShippedSetThatGrowsValue() throws Exception {
+        cache = makeStickyCache(2);
+        makeSticky(1234L);
+
+        final String value = "a value much longer than the line's current one";
+        cache.receive(Message.INVOKE(sh(30), 1234L, new Cache.SetFunction(serialize(value))));
+
+        assertThat(deserialize(cache.runOp(new Op(GET, 1234L, null))), is(value));
+    }
+
+    /**
+     * When a shipped SET's value is shorter than the line's current value, then the line holds only the new value.
+     */
+    @Test
+    public void whenLineIsStickyThenRunShippedSetThatShrinksValue() throws Exception {
+        cache = makeStickyCache(2);
+        makeSticky(1234L);
+
+        cache.receive(Message.INVOKE(sh(30), 1234L, new Cache.SetFunction(serialize("a value much longer than the line's current one"))));
+        cache.receive(Message.BACKUPACK(sh(0), 1234L, cache.getLine(1234L).getVersion()));
+        cache.receive(Message.INVOKE(sh(30), 1234L, new Cache.SetFunction(serialize("z"))));
+
+        assertThat(deserialize(cache.runOp(new Op(GET, 1234L, null))), is("z"));
+        assertThat(cache.getLine(1234L).getData().remaining(), is(serialize("z").length));
+    }
+
+    /**
+     * When the owner refuses our GETX because the line is sticky, then ship the pending SET to it as an INVOKE.
+     */
+    @Test
+    public void whenSetAndOwnerKeepsLineStickyThenShipSetAsInvoke() throws Exception {
+        PUT(1234L, sh(10), 1, "x");
+        Mockito.reset(comm); // to enable capture
+
+        final Op set = new Op(SET, 1234L, serialize("y"), null);
+        assertThat(cache.runOp(set), is(PENDING));
+        final LineMessage getx = (LineMessage) captureMessage();
+        cache.receive(Message.CHNGD_OWNR(getx, 1234L, sh(10), true).setSticky(true));
+
+        final Message.INVOKE invoke = Message.INVOKE(sh(10), 1234L, new Cache.SetFunction(serialize("y")));
+        verify(comm).send(argThat(equalTo(invoke)));
+        assertThat(set.getFuture().isDone(), is(false));
+
+        cache.receive(Message.MSGACK(invoke));
+        assertThat(set.getFuture().isDone(), is(true));
+        verify(comm, never()).send(argThat(equalTo(Message.GETX(sh(10), 1234L).setMigrate(true))));
+    }
+
+    /**
+     * When the owner has given up the line by the time our shipped SET arrives, then GETX the line from its new owner.
+     */
+    @Test
+    public void whenShippedSetAndOwnerGaveUpLineThenGETXNewOwner() throws Exception {
+        PUT(1234L, sh(10), 1, "x");
+        Mockito.reset(comm); // to enable capture
+        when(cluster.getMaster(sh(20))).thenReturn(makeNodeInfo(sh(20)));
+
+        final Op set = new Op(SET, 1234L, serialize("y"), null);
+        assertThat(cache.runOp(set), is(PENDING));
+        final LineMessage getx = (LineMessage) captureMessage();
+        Mockito.reset(comm);
+        cache.receive(Message.CHNGD_OWNR(getx, 1234L, sh(10), true).setSticky(true));
+
+        final LineMessage invoke = (LineMessage) captureMessage();
+        assertThat(invoke.getType(), is(Message.Type.INVOKE));
+        cache.receive(Message.CHNGD_OWNR(invoke, 1234L, sh(20), true));
+
+        verify(comm).send(argThat(equalTo(Message.GETX(sh(20), 1234L))));
+        assertThat(set.getFuture().isDone(), is(false));
+
+        cache.receive(Message.PUTX(Message.GETX(sh(20), 1234L), 1234L, null, 0, 2L, toBuffer("z")));
+        ackServerInv(1234L, sh(20));
+        assertThat(set.getFuture().isDone(), is(true));
+        assertThat(deserialize(cache.runOp(new Op(GET, 1234L, null))), is("y"));
+    }
+
+    /**
+     * When the owner refuses our GETX because the line is sticky, but we need the line, then GETX again with the migrate flag.
+     */
+    @Test
+    public void whenGetxInTransactionAndOwnerKeepsLineStickyThenGETXWithMigrate() throws Exception {
+        PUT(1234L, sh(10), 1, "x");
+        Mockito.reset(comm); // to enable capture
+
+        final Transaction txn = cache.beginTransaction();
+        assertThat(cache.runOp(new Op(GETX, 1234L, (Persistable) null, null, txn)), is(PENDING));
+        final LineMessage getx = (LineMessage) captureMessage();
+        cache.receive(Message.CHNGD_OWNR(getx, 1234L, sh(10), true).setSticky(true));
+
+        verify(comm).send(argThat(equalTo(Message.GETX(sh(10), 1234L).setMigrate(true))));
+        verify(comm, never()).send(argThat(ofType(Message.Type.INVOKE)));
+    }
+
+    /**
+     * Makes the line ping-pong between us and other nodes until we keep it.
+     *
+     * @return the refused GETX
+     */
+    LineMessage makeSticky(long id) {
+        PUTX(id, sh(10), 1, "x");
+        ackServerInv(id, sh(10));
+        cache.receive(Message.GETX(sh(20), id));
+        PUTX(id, sh(20), 2, "y");
+        ackServerInv(id, sh(20));
+        final LineMessage getx = Message.GETX(sh(30), id);
+        cache.receive(getx);
+        return getx;
+    }
+
+    void ackServerInv(long id, short previousOwner) {
+        if (hasServer)
+            cache.receive(Message.INVACK(Message.INV(sh(0), id, previousOwner)));
+    }
+
+    Cache makeStickyCache(int threshold) throws Exception {
+        Cache _cache = new Cache("test", cluster, comm, storage, backup, monitor, 10000);
+        _cache.setReuseLines(false);
+        _cache.setReuseSharerSets(false);
+        _cache.setStickyLineThreshold(threshold);
+        _cache.setStickyLineMillis(60000);
+        init(_cache);
+        return _cache;
+    }
+
+    /**
+     * When all read leases of a shared line have lapsed, then write it without INVs.
+     */
+    @Test
+    public void whenLeasesLapsedThenWriteWithoutINV() throws Exception {
+        cache = makeLeasedCache(20);
+        PUTX(1234L, sh(10), 1, "x");
+        ackServerInv(1234L, sh(10));
+        cache.receive(Message.GET(sh(20), 1234L));
+        assertState(1234L, O, null);
+
+        Thread.sleep(40);
+        Object res = cache.runOp(new Op(SET, 1234L, serialize("y"), null));
+
+        assertThat(res, is(not(PENDING)));
+        assertState(1234L, E, null);
+        verify(comm, never()).send(argThat(equalTo(Message.INV(sh(20), 1234L, sh(5)))));
+    }
+
+    /**
+     * When a sharer's read lease hasn't lapsed, then INV it, but complete the write once the lease lapses even without an INVACK.
+     */
+    @Test
+    public void whenLeaseUnexpiredThenINVAndCompleteWriteWhenLeaseLapses() throws Exception {
+        cache = makeLeasedCache(50);
+        PUTX(1234L, sh(10), 1, "x");
+        ackServerInv(1234L, sh(10));
+        cache.receive(Message.GET(sh(20), 1234L));
+
+        final Op set = new Op(SET, 1234L, serialize("y"), null);
+        assertThat(cache.runOp(set), is(PENDING));
+        verify(comm).send(argThat(equalTo(Message.INV(sh(20), 1234L, sh(5)))));
+
+        set.getFuture().get(2, TimeUnit.SECONDS);
+        assertState(1234L, E, null);
+    }
+
+    /**
+     * When our read lease of a shared line has lapsed, then GET the line again.
+     */
+    @Test
+    public void whenReadLeaseLapsedThenGETAgain() throws Exception {
+        cache = makeLeasedCache(20);
+        assertThat(cache.runOp(new Op(GET, 1234L, null)), is(PENDING));
+        PUT(1234L, sh(10), 1, "x");
+        assertThat(cache.runOp(new Op(GET, 1234L, null)), is(not(PENDING)));
+
+        Thread.sleep(40);
+        Object res = cache.runOp(new Op(GET, 1234L, null));
+
+        assertThat(res, is(PENDING));
+        assertState(1234L, I, S);
+        verify(comm).send(argThat(equalTo(Message.GET(sh(10), 1234L))));
+    }
+
+    /**
+     * When a pushed PUT is received with leased sharing, then it can be read until its lease (counted from its receipt) lapses.
+     */
+    @Test
+    public void whenPushedPUTThenReadUntilLeaseLapses() throws Exception {
+        cache = makeLeasedCache(50);
+        PUT(1234L, sh(10), 1, "x"); // not requested
+
+        assertThat(deserialize(cache.runOp(new Op(GET, 1234L, null))), is("x"));
+
+        Thread.sleep(100);
+        assertThat(cache.runOp(new Op(GET, 1234L, null)), is(PENDING));
+    }
+
+    /**
+     * When the owner pushes a line with leased sharing, then it INVs the receivers of the push until their leases have lapsed.
+     */
+    @Test
+    public void whenPushWithLeasesThenINVReceivers() throws Exception {
+        cache = makeLeasedCache(100);
+        PUTX(1234L, sh(10), 1, "x");
+        ackServerInv(1234L, sh(10));
+        Thread.sleep(150); // the leases granted before we got the line have lapsed
+
+        cache.runOp(new Op(PUSH, 1234L, sh(20, 30), null));
+        final Op set = new Op(SET, 1234L, serialize("y"), null);
+        assertThat(cache.runOp(set), is(PENDING));
+
+        verify(comm).send(argThat(equalTo(Message.INV(sh(20), 1234L, sh(5)))));
+        verify(comm).send(argThat(equalTo(Message.INV(sh(30), 1234L, sh(5)))));
+        assertState(1234L, O, E);
+    }
+
+    /**
+     * When GETS is run with leased sharing, then pin the line E, as a leased S copy may be written without INVs.
+     */
+    @Test
+    public void whenGETSWithLeasesThenPinLineE() throws Exception {
+        cache = makeLeasedCache(1000);
+        assertThat(cache.runOp(new Op(GET, 1234L, null)), is(PENDING));
+        PUT(1234L, sh(10), 1, "x");
+
+        final Op gets = new Op(GETS, 1234L, null);
+        assertThat(cache.runOp(gets), is(PENDING));
+        verify(comm).send(argThat(equalTo(Message.GETX(sh(10), 1234L))));
+
+        PUTX(1234L, sh(10), 2, "y");
+        ackServerInv(1234L, sh(10));
+        assertThat(deserialize((byte[]) gets.getFuture().get()), is("y"));
+        assertState(1234L, E, null);
+        assertLocked(1234L, true);
+
+        final LineMessage getx = Message.GETX(sh(20), 1234L);
+        cache.receive(getx);
+        verify(comm, never()).send(argThat(ofType(Message.Type.PUTX))); // held until the line is released
+    }
+
+    Cache makeLeasedCache(long leaseMillis) throws Exception {
+        Cache _cache = new Cache("test", cluster, comm, storage, backup, monitor, 10000);
+        _cache.setReuseLines(false);
+        _cache.setReuseSharerSets(false);
+        _cache.setMaxStaleReadMillis(leaseMillis);
+        _cache.setLeasedSharing(true);
+        init(_cache);
+        return _cache;
+    }
+
+    /**
+     * When CHNGD_OWNR is received as a response to a GETX, then re-send GETX to the new owner.
+     */
+    @Test
+    public void whenGetxAndCHNGD_OWNRThenGETXAgain() throws Exception {
+        PUT(1234L, sh(10), 1L, "foo");
+
+        when(cluster.getMaster(sh(20))).thenReturn(makeNodeInfo(sh(20)));
+
+        cache.runOp(new Op(GETX, 1234L, null));
+
+        LineMessage msg = (LineMessage) captureMessage();
+        cache.receive(Message.CHNGD_OWNR(msg, 1234L, sh(20), true));
+
+        verify(comm).send(argThat(equalTo(Message.GETX(sh(20), 1234L))));
+    }
+
+    @Test
+    public void whenOpWithCallbackHitsThenCallbackCalledImmediately() throws Exception {
+        PUT(1234L, sh(10), 1L, "foo");
+        final RecordingCallback callback = new RecordingCallback();
+
+        cache.doOpWithCallback(GET, 1234L, null, null, callback);
+
+        assertThat(callback.calls, is(1));
+        assertThat(callback.id, is(1234L));
+        assertThat(deserialize(callback.result), equalTo("foo"));
+        assertThat(callback.exception, is(nullValue()));
+    }
+
+    @Test
+    public void whenOpWithCallbackPendingThenCallbackCalledOnResponse() throws Exception {
+        final RecordingCallback callback = new RecordingCallback();
+
+        cache.doOpWithCallback(GET, 1234L, null, null, callback);
+        assertThat(callback.calls, is(0));
+
+        LineMessage msg = (LineMessage) captureMessage();
+        cache.receive(Message.PUT(msg, 1234L, 1L, toBuffer("foo")));
+
+        assertThat(callback.calls, is(1));
+        assertThat(deserialize(callback.result), equalTo("foo"));
+        assertThat(callback.exception, is(nullValue()));
+    }
+
+    @Test
+    public void whenOpWithCallbackFailsThenCallbackFailed() throws Exception {
+        final RecordingCallback callback = new RecordingCallback();
 
-        when(cluster.getMaster(sh(20))).thenReturn(null);
+        cache.doOpWithCallback(GET, id(1234), null, null, callback);
+        cache.receive(Message.NOT_FOUND(Message.GET(sh(-1), id(1234))));
+        if (hasServer)
+            cache.receive(Message.NOT_FOUND(Message.GET(sh(0), id(1234))));
+
+        assertThat(callback.calls, is(1));
+        assertThat(callback.exception, is(instanceOf(RefNotFoundException.class)));
+    }
+
+    @Test
+    public void whenCallbackThrowsThenExceptionNotPropagated() throws Exception {
+        final RecordingCallback callback = new RecordingCallback();
+        callback.throwOnCall = true;
 
+        cache.doOpWithCallback(GET, 1234L, null, null, callback);
         LineMessage msg = (LineMessage) captureMessage();
-        cache.receive(Message.CHNGD_OWNR(msg, 1234L, sh(20), true));
+        cache.receive(Message.PUT(msg, 1234L, 1L, toBuffer("foo"))); // doesn't throw
 
-        verify(comm).send(argThat(equalTo(Message.GET(sh(10), 1234L))));
+        assertThat(callback.calls, is(1));
+        assertState(1234L, S, null);
     }
 
     /**
-     * When CHNGD_OWNR is received as a response to a GETX, then re-send GETX to the new owner.
+     * A callback (or listener) that waits for an op blocks the comm thread it's called on, so that's not allowed.
      */
     @Test
-    public void whenGetxAndCHNGD_OWNRThenGETXAgain() throws Exception {
-        PUT(1234L, sh(10), 1L, "foo");
-
-        when(cluster.getMaster(sh(20))).thenReturn(makeNodeInfo(sh(20)));
+    public void whenWaitingForPendingOpOnCommThreadThenThrowException() throws Exception {
+        final ListenableFuture<Object> future = cache.doOpAsync(GET, 1234L, null, null, null);
+        final Throwable[] thrown = new Throwable[1];
+        final Thread thread = new CommThread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    future.get();
+                } catch (Throwable t) {
+                    thrown[0] = t;
+                }
+            }
+        }, "comm");
+        thread.start();
+        thread.join(5000);
 
-        cache.runOp(new Op(GETX, 1234L, null));
+        assertThat(thrown[0], is(instanceOf(IllegalStateException.class)));
+        assertThat(future.isDone(), is(false));
+    }
 
-        LineMessage msg = (LineMessage) captureMessage();
-        cache.receive(Message.CHNGD_OWNR(msg, 1234L, sh(20), true));
+    static class RecordingCallback implements LineCallback<Object> {
+        int calls;
+        long id;
+        Object result;
+        Throwable exception;
+        boolean throwOnCall;
+
+        @Override
+        public void completed(long id, Object result) {
+            this.calls++;
+            this.id = id;
+            this.result = result;
+            if (throwOnCall)
+                throw new RuntimeException("callback");
+        }
 
-        verify(comm).send(argThat(equalTo(Message.GETX(sh(20), 1234L))));
+        @Override
+        public void failed(long id, Throwable exception) {
+            this.calls++;
+            this.id = id;
+            this.exception = exception;
+            if (throwOnCall)
+                throw new RuntimeException("callback");
+        }
     }
 
     @Test
@@ -805,6 +1427,70 @@ public class CacheTest {
         verify(comm).send(argThat(equalTo(Message.INVACK(inv))));
     }
 
+    /**
+     * When a multicast INV is received for a line that isn't shared, INVACK it and leave the line alone
+     */
+    @Test
+    public void whenBroadcastINVAndNotSharerThenINVACKOnly() throws Exception {
+        PUT(1234L, sh(10), 1L, "hello");
+        INV(1234L, sh(10));
+        assertState(1234L, I, null);
+
+        final Message inv = Message.INV(sh(-1), 1234L, sh(10)).setMessageId(100).setIncoming().setNode(sh(20));
+        assertThat(inv.isBroadcast(), is(true));
+        cache.receive(inv);
+
+        verify(comm).send(argThat(equalTo(Message.INVACK((Message.INV) inv))));
+        assertState(1234L, I, null);
+        assertThat(cache.getLine(1234L).getOwner(), is(sh(10)));
+    }
+
+    /**
+     * When the number of sharers reaches the threshold, a single multicast INV is sent, and acks from non-sharers are ignored
+     */
+    @Test
+    public void whenManySharersAndMulticastInvalidationThenBroadcastINV() throws Exception {
+        cache = new Cache("test", cluster, comm, storage, backup, monitor, 10000);
+        cache.setReuseLines(false);
+        cache.setReuseSharerSets(false);
+        cache.setMulticastInvalidationThreshold(3);
+        init(cache);
+        final long id = Cache.MAX_RESERVED_REF_ID + 1234L; // broadcasts of reserved lines go to the server
+
+        PUTX(id, sh(10), 1, "hello", 20, 30, 40);
+        Object res = cache.runOp(new Op(GETX, id, null));
+        assertThat(res, is(PENDING));
+
+        verify(comm).send(argThat(equalTo(Message.INV(sh(-1), id, sh(10)))));
+        verify(comm, never()).send(argThat(equalTo(Message.INV(sh(20), id, sh(10)))));
+
+        cache.receive(Message.INVACK(Message.INV(sh(20), id, sh(10))));
+        cache.receive(Message.INVACK(Message.INV(sh(50), id, sh(10)))); // not a sharer
+        cache.receive(Message.INVACK(Message.INV(sh(30), id, sh(10))));
+        assertState(id, O, E);
+        cache.receive(Message.INVACK(Message.INV(sh(40), id, sh(10))));
+        if (hasServer)
+            cache.receive(Message.INVACK(Message.INV(sh(0), id, sh(10))));
+        assertState(id, E, null);
+
+        cache.receive(Message.INVACK(Message.INV(sh(60), id, sh(10)))); // late
+        assertState(id, E, null);
+    }
+
+    @Test
+    public void whenFewSharersAndMulticastInvalidationThenUnicastINV() throws Exception {
+        cache = new Cache("test", cluster, comm, storage, backup, monitor, 10000);
+        cache.setMulticastInvalidationThreshold(3);
+        init(cache);
+
+        PUTX(1234L, sh(10), 1, "hello", 20, 30);
+        cache.runOp(new Op(GETX, 1234L, null));
+
+        verify(comm).send(argThat(equalTo(Message.INV(sh(20), 1234L, sh(10)))));
+        verify(comm).send(argThat(equalTo(Message.INV(sh(30), 1234L, sh(10)))));
+        verify(comm, never()).send(argThat(equalTo(Message.INV(sh(-1), 1234L, sh(10)))));
+    }
+
     /**
      * When GETX is receive, inv slaves before responding with PUTX
      */
@@ -1371,6 +2057,209 @@ public class CacheTest {
         verify(comm, never()).send(any(Message.class));
     }
 
+    @Test
+    public void whenWriteUpdateThenPushNewVersionToInvalidatedSharersAfterBackup() throws Exception {
+        PUTX(1234L, sh(10), 1, "hello", 20, 30);
+        cache.setWriteUpdate(1234L, true);
+
+        Object res = cache.runOp(new Op(SET, 1234L, serialize("bye"), null));
+        assertThat(res, is(PENDING));
+        verify(comm).send(argThat(equalTo(Message.INV(sh(20), 1234L, sh(10)))));
+        verify(comm).send(argThat(equalTo(Message.INV(sh(30), 1234L, sh(10)))));
+
+        cache.receive(Message.INVACK(sh(20), 1234L));
+        cache.receive(Message.INVACK(sh(30), 1234L));
+        if (hasServer)
+            cache.receive(Message.INVACK(sh(0), 1234L));
+        assertState(1234L, E, null);
+        assertModified(1234L, true);
+        verify(comm, never()).send(argThat(equalTo(Message.PUT(sh(20), 1234L, 2L, toBuffer("bye")))));
+
+        cache.receive(Message.BACKUPACK(sh(0), 1234L, 2L));
+
+        verify(comm).send(argThat(equalTo(Message.PUT(sh(20), 1234L, 2L, toBuffer("bye")))));
+        verify(comm).send(argThat(equalTo(Message.PUT(sh(30), 1234L, 2L, toBuffer("bye")))));
+        assertState(1234L, O, null);
+    }
+
+    @Test
+    public void whenNoWriteUpdateThenDontPush() throws Exception {
+        PUTX(1234L, sh(10), 1, "hello", 20, 30);
+
+        cache.runOp(new Op(SET, 1234L, serialize("bye"), null));
+        cache.receive(Message.INVACK(sh(20), 1234L));
+        cache.receive(Message.INVACK(sh(30), 1234L));
+        if (hasServer)
+            cache.receive(Message.INVACK(sh(0), 1234L));
+        cache.receive(Message.BACKUPACK(sh(0), 1234L, 2L));
+
+        verify(comm, never()).send(argThat(equalTo(Message.PUT(sh(20), 1234L, 2L, toBuffer("bye")))));
+        assertState(1234L, E, null);
+    }
+
+    /**
+     * With early publishing, a write to a shared line completes before the sharers INVACK, but no other node can see it until they
+     * do.
+     */
+    @Test
+    public void whenEarlyPublishThenSetCompletesBeforeINVACKsButGETsAreHeld() throws Exception {
+        cache = makeEarlyPublishCache();
+        PUTX(1234L, sh(10), 1, "hello", 20, 30);
+
+        Object res = cache.runOp(new Op(SET, 1234L, serialize("bye"), null));
+        assertThat(res, is(not(PENDING)));
+        verify(comm).send(argThat(equalTo(Message.INV(sh(20), 1234L, sh(10)))));
+        verify(comm).send(argThat(equalTo(Message.INV(sh(30), 1234L, sh(10)))));
+        assertState(1234L, O, E);
+        assertModified(1234L, true);
+        assertVersion(1234L, 2);
+
+        final LineMessage get = Message.GET(sh(40), 1234L);
+        cache.receive(get);
+        cache.receive(Message.BACKUPACK(sh(0), 1234L, 2L));
+        cache.receive(Message.INVACK(sh(20), 1234L));
+        verify(comm, never()).send(argThat(equalTo(Message.PUT(get, 1234L, 2L, toBuffer("bye")))));
+
+        cache.receive(Message.INVACK(sh(30), 1234L));
+        if (hasServer)
+            cache.receive(Message.INVACK(sh(0), 1234L));
+        verify(comm).send(argThat(equalTo(Message.PUT(get, 1234L, 2L, toBuffer("bye")))));
+        verify(comm, never()).send(argThat(equalTo(Message.PUT(get, 1234L, 1L, toBuffer("hello")))));
+    }
+
+    /**
+     * A sharer that has pinned X delays its INVACK. If we've published a write to X early, then our later write to Y must not be
+     * visible before X's, or the sharer could see the new Y together with the old X.
+     */
+    @Test
+    public void whenEarlyPublishedLineNotINVACKedThenWritesToOtherLinesWait() throws Exception {
+        cache = makeEarlyPublishCache();
+        PUTX(1234L, sh(10), 1, "x", 20);
+        PUTX(5678L, sh(10), 1, "y");
+        assertState(5678L, E, null);
+
+        assertThat(cache.runOp(new Op(SET, 1234L, serialize("x1"), null)), is(not(PENDING)));
+
+        final Op sety = new Op(SET, 5678L, serialize("y1"), null);
+        assertThat(cache.runOp(sety), is(PENDING));
+        assertVersion(5678L, 1);
+
+        final Op getx = new Op(GETX, 1111L, null); // a new line can't be published early either
+        assertThat(cache.runOp(getx), is(PENDING));
+        PUTX(1111L, sh(10), 1, "z", 30);
+        assertThat(getx.getFuture().isDone(), is(false));
+
+        cache.receive(Message.INVACK(sh(20), 1234L));
+        if (hasServer)
+            cache.receive(Message.INVACK(sh(0), 1234L));
+        assertState(1234L, E, null);
+
+        assertThat(sety.getFuture().isDone(), is(true));
+        assertVersion(5678L, 2);
+        assertThat(getx.getFuture().isDone(), is(true)); // now it is the one published early
+        assertState(1111L, O, E);
+
+        final Op setx = new Op(SET, 1234L, serialize("x2"), null);
+        assertThat(cache.runOp(setx), is(PENDING));
+        cache.receive(Message.INVACK(sh(30), 1111L));
+        if (hasServer)
+            cache.receive(Message.INVACK(sh(0), 1111L));
+        assertThat(setx.getFuture().isDone(), is(true));
+    }
+
+    /**
+     * Only the writes issued by the thread that has published a line early are ordered after it; other threads' writes proceed, and
+     * may publish a line of their own early.
+     */
+    @Test
+    public void whenEarlyPublishedLineNotINVACKedThenOtherThreadsWritesProceed() throws Exception {
+        cache = makeEarlyPublishCache();
+        PUTX(1234L, sh(10), 1, "x", 20);
+        PUTX(5678L, sh(10), 1, "y");
+        PUTX(1111L, sh(10), 1, "z", 30);
+
+        assertThat(cache.runOp(new Op(SET, 1234L, serialize("x1"), null)), is(not(PENDING)));
+
+        assertThat(cache.runOp(issuedByAnotherThread(SET, 5678L, serialize("y1"))), is(not(PENDING)));
+        assertVersion(5678L, 2);
+        assertThat(cache.runOp(issuedByAnotherThread(SET, 1111L, serialize("z1"))), is(not(PENDING)));
+        assertState(1111L, O, E);
+        assertVersion(1111L, 2);
+
+        final Op sety = new Op(SET, 5678L, serialize("y2"), null);
+        assertThat(cache.runOp(sety), is(PENDING)); // still ordered after our write to 1234
+
+        cache.receive(Message.INVACK(sh(20), 1234L));
+        if (hasServer)
+            cache.receive(Message.INVACK(sh(0), 1234L));
+        assertThat(sety.getFuture().isDone(), is(true));
+        assertVersion(5678L, 3);
+    }
+
+    private static Op issuedByAnotherThread(final Op.Type type, final long line, final byte[] data) throws Exception {
+        final Op[] op = new Op[1];
+        final Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                op[0] = new Op(type, line, data, null);
+            }
+        });
+        thread.start();
+        thread.join();
+        return op[0];
+    }
+
+    /**
+     * The early published line may reach E because its last sharer has died rather than INVACKed.
+     */
+    @Test
+    public void whenEarlyPublishedLineLosesLastSharerToNodeRemovalThenWritesToOtherLinesProceed() throws Exception {
+        cache = makeEarlyPublishCache();
+        PUTX(1234L, sh(10), 1, "x", 20);
+        PUTX(5678L, sh(10), 1, "y");
+
+        assertThat(cache.runOp(new Op(SET, 1234L, serialize("x1"), null)), is(not(PENDING)));
+        final Op sety = new Op(SET, 5678L, serialize("y1"), null);
+        assertThat(cache.runOp(sety), is(PENDING));
+
+        if (hasServer)
+            cache.receive(Message.INVACK(sh(0), 1234L));
+        cache.nodeRemoved(sh(20));
+        assertState(1234L, E, null);
+
+        assertThat(sety.getFuture().isDone(), is(true));
+        assertVersion(5678L, 2);
+    }
+
+    /**
+     * A transaction that has already locked another line might publish both early.
+     */
+    @Test
+    public void whenEarlyPublishAndTransactionHasOtherLinesThenWaitForINVACKs() throws Exception {
+        cache = makeEarlyPublishCache();
+        PUTX(1234L, sh(10), 1, "x", 20);
+        PUTX(5678L, sh(10), 1, "y");
+        Transaction txn = cache.beginTransaction();
+
+        assertThat(cache.runOp(new Op(GETX, 5678L, (Persistable) null, null, txn)), is(not(PENDING)));
+        assertThat(cache.runOp(new Op(GETX, 1234L, (Persistable) null, null, txn)), is(PENDING));
+
+        cache.receive(Message.INVACK(sh(20), 1234L));
+        if (hasServer)
+            cache.receive(Message.INVACK(sh(0), 1234L));
+        assertState(1234L, E, null);
+        assertThat(cache.getLine(1234L).isLocked(), is(true));
+    }
+
+    Cache makeEarlyPublishCache() throws Exception {
+        Cache _cache = new Cache("test", cluster, comm, storage, backup, monitor, 10000);
+        _cache.setReuseLines(false);
+        _cache.setReuseSharerSets(false);
+        _cache.setEarlyPublish(true);
+        init(_cache);
+        return _cache;
+    }
+
     /**
      * When line is M, allow local operations (get and set).
      */
@@ -1563,6 +2452,72 @@ public class CacheTest {
         verify(backup).backup(1234, 3);
     }
 
+    /**
+     * Rollback restores the line's buffer from before the transaction, which is kept rather than copied.
+     */
+    @Test
+    public void whenRollbackThenRestorePreImage() throws Exception {
+        PUTX(1234L, sh(1), 1, "hello");
+        final ByteBuffer preImage = cache.getLine(1234L).getData();
+
+        Transaction txn = cache.beginTransaction();
+        cache.runOp(new Op(GETX, 1234L, (Persistable) null, null, txn));
+        set(1234L, "bye", txn);
+        set(1234L, "woohoo", txn);
+        assertVersion(1234, 3);
+        assertModified(1234, true);
+        verify(storage, never()).deallocateStorage(eq(1234L), same(preImage));
+
+        cache.rollback(txn);
+
+        assertVersion(1234, 1);
+        assertThat(cache.getLine(1234L).getData(), is(sameInstance(preImage)));
+        assertThat(get(1234L), is("hello"));
+
+        cache.endTransaction(txn, true);
+
+        verify(storage, never()).deallocateStorage(eq(1234L), same(preImage));
+    }
+
+    /**
+     * When the transaction commits, the pre-images are released.
+     */
+    @Test
+    public void whenCommitThenReleasePreImage() throws Exception {
+        PUTX(1234L, sh(1), 1, "hello");
+        final ByteBuffer preImage = cache.getLine(1234L).getData();
+
+        Transaction txn = cache.beginTransaction();
+        cache.runOp(new Op(GETX, 1234L, (Persistable) null, null, txn));
+        set(1234L, "bye", txn);
+        verify(storage, never()).deallocateStorage(eq(1234L), same(preImage));
+
+        cache.endTransaction(txn, false);
+
+        verify(storage).deallocateStorage(eq(1234L), same(preImage));
+        assertThat(get(1234L), is("bye"));
+    }
+
+    /**
+     * Writing the same data again doesn't modify the line, and so nothing needs to be rolled back.
+     */
+    @Test
+    public void whenTransactionWritesSameDataThenDontRecordRollback() throws Exception {
+        PUTX(1234L, sh(1), 1, "hello");
+        final ByteBuffer preImage = cache.getLine(1234L).getData();
+
+        Transaction txn = cache.beginTransaction();
+        cache.runOp(new Op(GETX, 1234L, (Persistable) null, null, txn));
+        set(1234L, "hello", txn);
+
+        assertVersion(1234, 1);
+        assertThat(cache.getLine(1234L).getData(), is(sameInstance(preImage)));
+        assertThat(txn.isRecorded(1234L), is(false));
+
+        cache.endTransaction(txn, false);
+        verify(storage, never()).deallocateStorage(eq(1234L), same(preImage));
+    }
+
     /**
      * When we receive GET or GETX, we flush the backups
      */
@@ -1692,6 +2647,65 @@ public class CacheTest {
         assertThat(cache.runOp(new Op(GET, 104, null)), is(PENDING));
     }
 
+    /**
+     * A PUT only prevents stale reads of lines invalidated before it.
+     */
+    @Test
+    public void whenInvalidatedAfterPUTFromSameOwnerThenAllowStaleRead() {
+        PUT(101L, sh(10), 1L, "1");
+        PUT(102L, sh(10), 1L, "2");
+        PUT(103L, sh(10), 1L, "3");
+
+        assertThat(cache.runOp(new Op(GET, 101, null)), is(not(PENDING)));
+        assertThat(cache.runOp(new Op(GET, 102, null)), is(not(PENDING)));
+        assertThat(cache.runOp(new Op(GET, 103, null)), is(not(PENDING)));
+
+        INV(101L, sh(10));
+        INV(102L, sh(10));
+        PUT(102L, sh(10), 2L, "2");
+        INV(103L, sh(10));
+
+        assertThat(cache.runOp(new Op(GET, 101, null)), is(PENDING));
+        assertThat(cache.runOp(new Op(GET, 103, null)), is(not(PENDING)));
+    }
+
+    /**
+     * Lines are only compared with the clock of the owner that stamped them, even when other owners' clocks are far ahead.
+     */
+    @Test
+    public void whenOtherOwnerClockIsAheadThenItsPUTsDontPreventStaleReads() {
+        for (long id = 201; id <= 210; id++) {
+            PUT(id, sh(20), 1L, "x");
+            assertThat(cache.runOp(new Op(GET, id, null)), is(not(PENDING)));
+            INV(id, sh(20));
+        }
+        PUT(101L, sh(10), 1L, "1");
+        assertThat(cache.runOp(new Op(GET, 101, null)), is(not(PENDING)));
+        INV(101L, sh(10)); // stamped with owner 10's clock, which is far behind owner 20's
+
+        PUT(210L, sh(20), 2L, "x");
+
+        assertThat(cache.runOp(new Op(GET, 101, null)), is(not(PENDING)));
+        assertThat(cache.runOp(new Op(GET, 201, null)), is(PENDING));
+    }
+
+    /**
+     * A stale line can only be read for maxStaleReadMillis after it was last accessed.
+     */
+    @Test
+    public void whenStaleLineTooOldThenDontRead() throws Exception {
+        cache.setMaxStaleReadMillis(20);
+
+        PUT(101L, sh(10), 1L, "1");
+        assertThat(cache.runOp(new Op(GET, 101, null)), is(not(PENDING)));
+        INV(101L, sh(10));
+        assertThat(cache.runOp(new Op(GET, 101, null)), is(not(PENDING)));
+
+        Thread.sleep(100);
+
+        assertThat(cache.runOp(new Op(GET, 101, null)), is(PENDING));
+    }
+
     @Test
     public void testCacheListeners() {
         CacheListener listener = mock(CacheListener.class);
@@ -2207,6 +3221,21 @@ public class CacheTest {
         verify(comm, never()).send(argThat(equalTo(Message.INV(sh(10), 3L, sh(20)))));
     }
 
+    @Test
+    public void whenOwnerChangedThenNodeRemovedOnlyAffectsNewOwner() throws Exception {
+        PUT(1L, sh(10), 1L, "11");
+        PUT(1L, sh(20), 2L, "11");
+        PUTX(2L, sh(20), 1L, "22", 10);
+        cache.receive(Message.INVACK(Message.INV(sh(0), 2L, sh(20))).setNode(sh(10)));
+
+        cache.nodeRemoved(sh(10));
+        assertState(1L, S, null);
+        assertState(2L, hasServer ? O : E, null); // the server is a sharer until it INVACKs
+
+        cache.nodeRemoved(sh(20));
+        assertState(1L, I, null);
+    }
+
     /**
      * Make sure an exception is thrown when putting or setting data larger than the maximum data item size.
      */
@@ -0,0 +1,129 @@
+/*
+ * Galaxy
+ * Copyright (c) 2012-2014, Parallel Universe Software Co. All rights reserved.
+ *
+ * This program and the accompanying materials are dual-licensed under
+ * either the terms of the Eclipse Public License v1.0 as published by
+ * the Eclipse Foundation
+ *
+ *   or (per the licensee's choosing)
+ *
+ * under the terms of the GNU Lesser General Public License version 3.0
+ * as published by the Free Software Foundation.
+ */
+package co.paralleluniverse.galaxy.core;
+
+import co.paralleluniverse.galaxy.core.HotLineProfiler.Category;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class HotLineProfilerTest {
+    @Test
+    public void whenFewLinesThenEstimatesAreExact() {
+        final HotLineProfiler profiler = new HotLineProfiler(1, 10);
+
+        for (int i = 0; i < 5; i++)
+            profiler.record(Category.OWNERSHIP_TRANSFERS, 0x10L, 1);
+        profiler.record(Category.OWNERSHIP_TRANSFERS, 0x20L, 3);
+        profiler.record(Category.OWNERSHIP_TRANSFERS, 0x30L, 0); // counted with a weight of 1
+
+        assertArrayEquals(new String[]{"10: 5", "20: 3", "30: 1"}, profiler.getHotLines(Category.OWNERSHIP_TRANSFERS));
+    }
+
+    @Test
+    public void whenManyLinesThenEstimatesNeverUnderCount() {
+        final HotLineProfiler profiler = new HotLineProfiler(1, 1000);
+
+        for (long id = 1; id <= 1000; id++) {
+            for (int i = 0; i < id % 7 + 1; i++)
+                profiler.record(Category.PENDING_WAIT, id, 10);
+        }
+
+        final String[] hot = profiler.getHotLines(Category.PENDING_WAIT);
+        assertEquals(1000, hot.length);
+        for (String line : hot) {
+            final long id = id(line);
+            assertTrue(line, count(line) >= (id % 7 + 1) * 10);
+        }
+    }
+
+    @Test
+    public void testTopKOrdering() {
+        final HotLineProfiler profiler = new HotLineProfiler(1, 3);
+
+        profiler.record(Category.LOCK_DELAY, 1L, 20);
+        profiler.record(Category.LOCK_DELAY, 2L, 50);
+        profiler.record(Category.LOCK_DELAY, 3L, 10);
+        profiler.record(Category.LOCK_DELAY, 3L, 30);
+
+        assertArrayEquals(new String[]{"2: 50", "3: 40", "1: 20"}, profiler.getHotLines(Category.LOCK_DELAY));
+    }
+
+    @Test
+    public void whenTopKFullThenColdestEvicted() {
+        final HotLineProfiler profiler = new HotLineProfiler(1, 3);
+
+        profiler.record(Category.LOCK_DELAY, 1L, 20);
+        profiler.record(Category.LOCK_DELAY, 2L, 50);
+        profiler.record(Category.LOCK_DELAY, 3L, 40);
+        profiler.record(Category.LOCK_DELAY, 4L, 10); // colder than all tracked lines
+        assertArrayEquals(new String[]{"2: 50", "3: 40", "1: 20"}, profiler.getHotLines(Category.LOCK_DELAY));
+
+        profiler.record(Category.LOCK_DELAY, 4L, 20); // now 30
+        assertArrayEquals(new String[]{"2: 50", "3: 40", "4: 30"}, profiler.getHotLines(Category.LOCK_DELAY));
+    }
+
+    @Test
+    public void testCategoriesAreSeparate() {
+        final HotLineProfiler profiler = new HotLineProfiler(1, 3);
+
+        profiler.record(Category.OWNERSHIP_TRANSFERS, 1L, 1);
+        profiler.record(Category.PENDING_WAIT, 2L, 100);
+
+        assertArrayEquals(new String[]{"1: 1"}, profiler.getHotLines(Category.OWNERSHIP_TRANSFERS));
+        assertArrayEquals(new String[]{"2: 100"}, profiler.getHotLines(Category.PENDING_WAIT));
+        assertEquals(0, profiler.getHotLines(Category.LOCK_DELAY).length);
+    }
+
+    @Test
+    public void whenSampledThenCountsScaledBySamplingRate() {
+        final int rate = 10;
+        final int events = 100000;
+        final HotLineProfiler profiler = new HotLineProfiler(rate, 3);
+
+        for (int i = 0; i < events; i++)
+            profiler.record(Category.OWNERSHIP_TRANSFERS, 0xabcL, 1);
+
+        final String[] hot = profiler.getHotLines(Category.OWNERSHIP_TRANSFERS);
+        assertEquals(1, hot.length);
+        assertEquals(0xabcL, id(hot[0]));
+        final long estimate = count(hot[0]);
+        assertEquals(0, estimate % rate);
+        assertTrue(hot[0], Math.abs(estimate - events) < events / 10);
+    }
+
+    @Test
+    public void whenResetThenNothingTracked() {
+        final HotLineProfiler profiler = new HotLineProfiler(1, 3);
+
+        profiler.record(Category.LOCK_DELAY, 1L, 20);
+        profiler.reset();
+        assertEquals(0, profiler.getHotLines(Category.LOCK_DELAY).length);
+
+        profiler.record(Category.LOCK_DELAY, 1L, 5);
+        assertArrayEquals(new String[]{"1: 5"}, profiler.getHotLines(Category.LOCK_DELAY));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void whenSamplingRateNotPositiveThenThrowException() {
+        new HotLineProfiler(0, 3);
+    }
+
+    private static long id(String hotLine) {
+        return Long.parseLong(hotLine.substring(0, hotLine.indexOf(':')), 16);
+    }
+
+    private static long count(String hotLine) {
+        return Long.parseLong(hotLine.substring(hotLine.indexOf(':') + 2));
+    }
+}
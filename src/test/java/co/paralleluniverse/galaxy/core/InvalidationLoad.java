@@ -0,0 +1,132 @@
+/*
+ * Galaxy
+ * Copyright (c) 2012-2014, Parallel Universe Software Co. All rights reserved.
+ *
+ * This program and the accompanying materials are dual-licensed under
+ * either the terms of the Eclipse Public License v1.0 as published by
+ * the Eclipse Foundation
+ *
+ *   or (per the licensee's choosing)
+ *
+ * under the terms of the GNU Lesser General Public License version 3.0
+ * as published by the Free Software Foundation.
+ */
+package co.paralleluniverse.galaxy.core;
+
+import co.paralleluniverse.common.monitoring.LatencyHistogram;
+import co.paralleluniverse.galaxy.core.Cache.State;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Measures the latency of the transition to E of a widely shared line, with unicast and with multicast invalidation, as a
+ * function of the number of sharers.
+ * <p>
+ * The cache runs in-process against a recording comm, and INVACKs are delivered as soon as the INVs are sent, so this measures
+ * the owner's own cost of sending the invalidations and collecting the acks, not network latency. With multicast, every node in
+ * the cluster (and not just the sharers) acks the broadcast INV.
+ */
+public class InvalidationLoad {
+    private static final int CLUSTER_SIZE = 128;
+    private static final int WARMUP = 2000;
+    private static final int ITERATIONS = 10000;
+    private static final short MY_NODE = 5;
+    private static final short OWNER = 10;
+    private static final List<Message> sent = new ArrayList<Message>();
+    private static long nextId = Cache.MAX_RESERVED_REF_ID + 1;
+    private static long messageId;
+
+    public static void main(String[] args) throws Exception {
+        System.out.println("sharers\tunicast (us, mean/p50/p99)\tmulticast (us, mean/p50/p99)");
+        for (int sharers = 1; sharers <= 64; sharers <<= 1) {
+            final LatencyHistogram unicast = run(sharers, 0);
+            final LatencyHistogram multicast = run(sharers, 1);
+            System.out.println(sharers + "\t" + format(unicast) + "\t" + format(multicast));
+        }
+    }
+
+    private static LatencyHistogram run(int numSharers, int multicastThreshold) throws Exception {
+        final Cache cache = new Cache("test", proxy(FullCluster.class), proxy(Comm.class), new HeapLocalStorage("test", null),
+                proxy(Backup.class), proxy(CacheMonitor.class), Long.MAX_VALUE);
+        cache.setReuseLines(false);
+        cache.setMulticastInvalidationThreshold(multicastThreshold);
+        cache.init();
+
+        final short[] sharers = new short[numSharers];
+        for (int i = 0; i < numSharers; i++)
+            sharers[i] = (short) (OWNER + 1 + i);
+
+        final LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 0; i < WARMUP + ITERATIONS; i++) {
+            final long id = nextId++;
+            cache.receive(Message.PUTX(Message.GETX(OWNER, id), id, sharers, 0, 1, ByteBuffer.allocate(8)).setMessageId(++messageId));
+            sent.clear();
+
+            final long start = System.nanoTime();
+            cache.runOp(new Op(Op.Type.GETX, id, null));
+            final List<Message> invs = new ArrayList<Message>(sent);
+            for (Message m : invs) {
+                if (m.getType() != Message.Type.INV)
+                    continue;
+                if (m.isBroadcast()) {
+                    for (short node = 1; node < CLUSTER_SIZE; node++) {
+                        if (node != MY_NODE)
+                            cache.receive(Message.INVACK(Message.INV(node, id, OWNER)));
+                    }
+                } else
+                    cache.receive(Message.INVACK((Message.LineMessage) m));
+            }
+            final long latency = System.nanoTime() - start;
+
+            if (cache.getLine(id).getState() != State.E)
+                throw new AssertionError("Line " + Long.toHexString(id) + " not in E: " + cache.getLine(id));
+            if (i >= WARMUP)
+                histogram.record(latency);
+        }
+        return histogram;
+    }
+
+    private static String format(LatencyHistogram histogram) {
+        final LatencyHistogram.HistogramSnapshot snapshot = histogram.getSnapshot();
+        return String.format("%.1f/%.1f/%.1f", snapshot.getMean() / 1000, snapshot.getMedian() / 1000, snapshot.get99thPercentile() / 1000);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T proxy(Class<T> iface) {
+        return (T) Proxy.newProxyInstance(iface.getClassLoader(), new Class<?>[]{iface}, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                switch (method.getName()) {
+                    case "send":
+                        sent.add((Message) args[0]);
+                        return null;
+                    case "getMyNodeId":
+                        return MY_NODE;
+                    case "isMaster":
+                    case "inv":
+                        return true;
+                    case "hashCode":
+                        return System.identityHashCode(proxy);
+                    case "equals":
+                        return proxy == args[0];
+                    case "toString":
+                        return method.getDeclaringClass().getSimpleName();
+                }
+                final Class<?> type = method.getReturnType();
+                if (type == boolean.class)
+                    return false;
+                if (type == short.class)
+                    return (short) 0;
+                if (type == int.class)
+                    return 0;
+                if (type == long.class)
+                    return 0L;
+                return null;
+            }
+        });
+    }
+}
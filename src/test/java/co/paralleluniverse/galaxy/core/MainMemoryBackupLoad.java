@@ -0,0 +1,123 @@
+/*
+ * Galaxy
+ * Copyright (c) 2012-2014, Parallel Universe Software Co. All rights reserved.
+ *
+ * This program and the accompanying materials are dual-licensed under
+ * either the terms of the Eclipse Public License v1.0 as published by
+ * the Eclipse Foundation
+ *
+ *   or (per the licensee's choosing)
+ *
+ * under the terms of the GNU Lesser General Public License version 3.0
+ * as published by the Free Software Foundation.
+ */
+package co.paralleluniverse.galaxy.core;
+
+import co.paralleluniverse.galaxy.Cluster;
+import co.paralleluniverse.galaxy.berkeleydb.BerkeleyDB;
+import co.paralleluniverse.galaxy.logdb.LogDB;
+import co.paralleluniverse.galaxy.server.MainMemoryDB;
+import java.io.File;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Measures the server's throughput of backup packets (i.e. of {@code MainMemory.handleMessageBackup}) with the BerkeleyDB store
+ * and with the log-structured store.
+ * <p>
+ * The server runs in-process against a no-op comm, and each packet writes {@link #LINES_PER_PACKET} lines, chosen round-robin out
+ * of {@link #NUM_LINES}, so this measures the store's transaction cost. Both stores run with their default durability, under which
+ * a commit survives a process crash but not an OS crash.
+ */
+public class MainMemoryBackupLoad {
+    private static final int WARMUP = 20000;
+    private static final int ITERATIONS = 100000;
+    private static final int LINES_PER_PACKET = 10;
+    private static final int NUM_LINES = 100000;
+    private static final int LINE_SIZE = 256;
+    private static final short NODE = 1;
+    private static long nextLine;
+    private static long packetId;
+
+    public static void main(String[] args) throws Exception {
+        System.out.println("store\tpackets/s\tlines/s");
+        for (String store : new String[]{"bdb", "logdb"}) {
+            final File dir = Files.createTempDirectory("galaxy-" + store).toFile();
+            try {
+                final double packetsPerSec = run(store, dir);
+                System.out.println(store + "\t" + String.format("%.0f", packetsPerSec) + "\t" + String.format("%.0f", packetsPerSec * LINES_PER_PACKET));
+            } finally {
+                for (File f : dir.listFiles())
+                    f.delete();
+                dir.delete();
+            }
+        }
+    }
+
+    private static double run(String storeType, File dir) throws Exception {
+        final MainMemoryDB store;
+        if (storeType.equals("bdb")) {
+            final BerkeleyDB bdb = new BerkeleyDB("store", dir.getPath());
+            bdb.init();
+            store = bdb;
+        } else {
+            final LogDB logdb = new LogDB("store", dir.getPath());
+            logdb.init();
+            store = logdb;
+        }
+        final MainMemory mm = new MainMemory("memory", proxy(Cluster.class), store, proxy(Comm.class), proxy(MainMemoryMonitor.class));
+        try {
+            for (int i = 0; i < WARMUP; i++)
+                mm.receive(packet());
+
+            final long start = System.nanoTime();
+            for (int i = 0; i < ITERATIONS; i++)
+                mm.receive(packet());
+            final long duration = System.nanoTime() - start;
+            return ITERATIONS * 1e9 / duration;
+        } finally {
+            store.close();
+        }
+    }
+
+    private static Message packet() {
+        final List<Message.BACKUP> backups = new ArrayList<Message.BACKUP>(LINES_PER_PACKET);
+        for (int i = 0; i < LINES_PER_PACKET; i++) {
+            final long line = Cache.MAX_RESERVED_REF_ID + 1 + (nextLine++ % NUM_LINES);
+            backups.add(Message.BACKUP(line, nextLine, ByteBuffer.allocate(LINE_SIZE)));
+        }
+        return Message.BACKUP_PACKET(++packetId, backups).setNode(NODE);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T proxy(Class<T> iface) {
+        return (T) Proxy.newProxyInstance(iface.getClassLoader(), new Class<?>[]{iface}, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                switch (method.getName()) {
+                    case "hashCode":
+                        return System.identityHashCode(proxy);
+                    case "equals":
+                        return proxy == args[0];
+                    case "toString":
+                        return method.getDeclaringClass().getSimpleName();
+                }
+                final Class<?> type = method.getReturnType();
+                if (type == boolean.class)
+                    return false;
+                if (type == short.class)
+                    return (short) 0;
+                if (type == int.class)
+                    return 0;
+                if (type == long.class)
+                    return 0L;
+                return null;
+            }
+        });
+    }
+}
@@ -23,7 +23,10 @@ import co.paralleluniverse.galaxy.server.MainMemoryEntry;
 import co.paralleluniverse.galaxy.server.MainMemoryDB;
 import java.nio.ByteBuffer;
 import java.util.Arrays;
+import java.util.HashSet;
 import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
 import co.paralleluniverse.galaxy.core.Message.LineMessage;
 import org.junit.After;
 import org.junit.AfterClass;
@@ -46,6 +49,8 @@ import co.paralleluniverse.galaxy.core.Message.BACKUP_PACKET;
 import co.paralleluniverse.common.io.Persistables;
 import co.paralleluniverse.galaxy.Cluster;
 import org.mockito.InOrder;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 
 /**
  *
@@ -172,6 +177,36 @@ public class MainMemoryTest {
         verifyNoMoreInteractions(monitor);
     }
 
+    /**
+     * When the entry cache is on, lines owned by the server are read from the store only once, until they're written
+     */
+    @Test
+    public void whenEntryCachedThenReplyPUTXWithoutRead() throws Exception {
+        mm.setEntryCacheSize(1 << 20);
+        mm.init();
+        when(store.casOwner(id(154), sh(0), sh(10))).thenReturn(sh(10));
+        when(store.casOwner(id(154), sh(0), sh(11))).thenReturn(sh(11));
+        when(store.read(id(154))).thenReturn(new MainMemoryEntry(1234, new byte[]{3, 4, 5}));
+
+        final LineMessage get1 = Message.GET(sh(10), id(154));
+        mm.receive(get1);
+        final LineMessage get2 = Message.GET(sh(11), id(154));
+        mm.receive(get2);
+
+        verify(store, times(1)).read(id(154));
+        verify(comm).send(argThat(equalTo(Message.PUTX(get1, id(154), new short[0], 0, 1234, ByteBuffer.wrap(new byte[]{3, 4, 5})))));
+        verify(comm).send(argThat(equalTo(Message.PUTX(get2, id(154), new short[0], 0, 1234, ByteBuffer.wrap(new byte[]{3, 4, 5})))));
+        verify(monitor).addEntryCacheMiss();
+        verify(monitor).addEntryCacheHit();
+
+        final BACKUP_PACKET bp = Message.BACKUP_PACKET(7, Arrays.asList(Message.BACKUP(id(154), 1235, randomBuffer(50))));
+        bp.setNode(sh(11));
+        mm.receive(bp);
+        mm.receive(get1);
+
+        verify(store, times(2)).read(id(154));
+    }
+
     /**
      * When GET is received and owner is not found but line is reserved, then create line and reply with PUTX
      */
@@ -227,6 +262,76 @@ public class MainMemoryTest {
         verifyNoMoreInteractions(monitor);
     }
 
+    /**
+     * When messages are handled by multiple threads, those concerning a single line are handled in order
+     */
+    @Test
+    public void whenProcessingThreadsThenLineMessagesInOrder() throws Exception {
+        mm.setProcessingThreads(4);
+        mm.init();
+        when(store.casOwner(anyLong(), eq(sh(0)), anyShort())).thenReturn(sh(20));
+
+        final BACKUP_PACKET bp = Message.BACKUP_PACKET(7, Arrays.asList(
+                Message.BACKUP(id(1), 4, randomBuffer(50)),
+                Message.BACKUP(id(2), 5, randomBuffer(50)),
+                Message.BACKUP(id(3), 6, randomBuffer(50))));
+        bp.setNode(sh(10));
+        for (int i = 1; i <= 3; i++)
+            mm.receive(Message.GET(sh(11), id(i)));
+        mm.receive(bp);
+        for (int i = 1; i <= 3; i++)
+            mm.receive(Message.GET(sh(12), id(i)));
+
+        verify(comm, timeout(1000).times(7)).send(any(Message.class));
+        verify(comm).send(argThat(equalTo(Message.BACKUP_PACKETACK(bp))));
+        for (int i = 1; i <= 3; i++) {
+            InOrder inOrder = inOrder(store);
+            inOrder.verify(store).casOwner(id(i), sh(0), sh(11));
+            inOrder.verify(store).write(eq(id(i)), eq(sh(10)), anyLong(), any(byte[].class), anyObject());
+            inOrder.verify(store).casOwner(id(i), sh(0), sh(12));
+        }
+        final int parts = lanes(id(1), id(2), id(3)); // each lane writes its part of the packet in its own transaction
+        verify(store, times(parts)).beginTransaction();
+        verify(store, times(parts)).commit(anyObject());
+    }
+
+    /**
+     * When a backup packet spans several lanes, each writes its part without waiting for the others, and the packet is acked once all
+     * parts are written
+     */
+    @Test
+    public void whenBackupPacketSpansLanesThenLanesDontWaitForEachOther() throws Exception {
+        mm.setProcessingThreads(4);
+        mm.init();
+        final long slow = id(1);
+        long other = id(2);
+        while (mm.lane(other) == mm.lane(slow))
+            other++;
+        final CountDownLatch release = new CountDownLatch(1);
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) throws Throwable {
+                release.await();
+                return null;
+            }
+        }).when(store).write(eq(slow), anyShort(), anyLong(), any(byte[].class), anyObject());
+
+        final BACKUP_PACKET bp = Message.BACKUP_PACKET(7, Arrays.asList(
+                Message.BACKUP(slow, 4, randomBuffer(50)),
+                Message.BACKUP(other, 5, randomBuffer(50))));
+        bp.setNode(sh(10));
+        mm.receive(bp);
+
+        verify(store, timeout(1000)).commit(anyObject()); // the other lane's part, while the slow one is still writing
+        verify(store).write(eq(other), eq(sh(10)), eq(5L), any(byte[].class), anyObject());
+        verify(comm, never()).send(any(Message.class));
+
+        release.countDown();
+        verify(comm, timeout(1000)).send(argThat(equalTo(Message.BACKUP_PACKETACK(bp))));
+        verify(store, times(2)).beginTransaction();
+        verify(store, times(2)).commit(anyObject());
+    }
+
     /////////////////////////////////////////////////////////////////////////////////
     short sh(int x) {
         return (short) x;
@@ -239,6 +344,13 @@ public class MainMemoryTest {
         return array;
     }
 
+    private int lanes(long... ids) {
+        final Set<Integer> lanes = new HashSet<Integer>();
+        for (long id : ids)
+            lanes.add(mm.lane(id));
+        return lanes.size();
+    }
+
     private long id(long id) {
         return MAX_RESERVED_REF_ID + id;
     }
@@ -25,6 +25,7 @@ import java.util.Collections;
 import java.util.Random;
 import co.paralleluniverse.galaxy.core.Message.BACKUP;
 import co.paralleluniverse.galaxy.core.Message.BACKUP_PACKET;
+import co.paralleluniverse.galaxy.core.Message.BACKUP_SUMMARY;
 import co.paralleluniverse.galaxy.core.Message.INV;
 import co.paralleluniverse.galaxy.core.Message.LineMessage;
 import co.paralleluniverse.galaxy.core.Message.MSG;
@@ -99,6 +100,8 @@ public class MessageTest {
     @Test
     public void testGETXSer() {
         testSerialize(Message.GETX((short) rand.nextInt(), rand.nextLong()));
+
+        testSerialize(Message.GETX((short) rand.nextInt(), rand.nextLong()).setMigrate(true));
     }
 
     @Test
@@ -140,6 +143,8 @@ public class MessageTest {
         final LineMessage m = new LineMessage((short) rand.nextInt(), Message.Type.GET, line);
         testSerialize(Message.CHNGD_OWNR(m, line, (short) rand.nextInt(), rand.nextBoolean()));
 
+        testSerialize(Message.CHNGD_OWNR(m, line, (short) rand.nextInt(), rand.nextBoolean()).setSticky(true));
+
         testSerialize(Message.CHNGD_OWNR((short) rand.nextInt(), rand.nextLong(), (short) rand.nextInt(), rand.nextBoolean()));
     }
 
@@ -188,6 +193,18 @@ public class MessageTest {
         testSerialize(Message.BACKUP_PACKET(rand.nextLong(), Collections.EMPTY_LIST));
     }
 
+    @Test
+    public void testBACKUP_SUMMARYSer() {
+        final long[] digests = new long[]{rand.nextLong(), 0, rand.nextLong()};
+        final BACKUP_SUMMARY m1 = Message.BACKUP_SUMMARY(digests);
+
+        final BACKUP_SUMMARY m2 = (BACKUP_SUMMARY) Message.fromByteArray(m1.toByteArray());
+        assertArrayEquals(digests, m2.getDigests());
+
+        final BACKUP_SUMMARY m3 = (BACKUP_SUMMARY) Message.fromByteBuffer(combine(m1.toByteBuffers()));
+        assertArrayEquals(digests, m3.getDigests());
+    }
+
     @Test
     public void testALLOC_REFSer() {
         testSerialize(Message.ALLOC_REF((short) rand.nextInt(), rand.nextInt()));
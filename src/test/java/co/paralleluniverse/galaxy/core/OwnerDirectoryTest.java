@@ -0,0 +1,190 @@
+/*
+ * Galaxy
+ * Copyright (c) 2012-2014, Parallel Universe Software Co. All rights reserved.
+ *
+ * This program and the accompanying materials are dual-licensed under
+ * either the terms of the Eclipse Public License v1.0 as published by
+ * the Eclipse Foundation
+ *
+ *   or (per the licensee's choosing)
+ *
+ * under the terms of the GNU Lesser General Public License version 3.0
+ * as published by the Free Software Foundation.
+ */
+package co.paralleluniverse.galaxy.core;
+
+import co.paralleluniverse.galaxy.server.BatchOwnerDB;
+import co.paralleluniverse.galaxy.server.MainMemoryDB;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+import org.mockito.InOrder;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+public class OwnerDirectoryTest {
+    MainMemoryDB store;
+    OwnerDirectory dir;
+
+    @Before
+    public void setUp() {
+        store = mockStore(MainMemoryDB.class);
+        dir = new OwnerDirectory(store);
+    }
+
+    private static <T extends MainMemoryDB> T mockStore(Class<T> clazz) {
+        final T store = mock(clazz);
+        when(store.casOwner(anyLong(), anyShort(), anyShort())).thenAnswer(new Answer<Short>() {
+            @Override
+            public Short answer(InvocationOnMock invocation) {
+                return (Short) invocation.getArguments()[2]; // CAS always succeeds
+            }
+        });
+        return store;
+    }
+
+    /**
+     * Replaces the directory with one whose writer only wakes up when {@code batchSize} changes have accumulated.
+     */
+    private void useDirectory(MainMemoryDB store, int batchSize) {
+        dir.close();
+        this.store = store;
+        this.dir = new OwnerDirectory(store, TimeUnit.HOURS.toNanos(1), batchSize);
+    }
+
+    @After
+    public void tearDown() {
+        dir.close();
+    }
+
+    @Test
+    public void whenLineKnownThenCasOwnerFromMemory() {
+        assertEquals(10, dir.casOwner(1234L, (short) 0, (short) 10));
+        assertEquals(10, dir.casOwner(1234L, (short) 0, (short) 20)); // CAS fails
+        assertEquals(20, dir.casOwner(1234L, (short) 10, (short) 20));
+        assertEquals(30, dir.casOwner(1234L, (short) 20, (short) 30));
+
+        verify(store).casOwner(1234L, (short) 0, (short) 10);
+        verify(store, timeout(1000)).casOwner(eq(1234L), anyShort(), eq((short) 30)); // written back
+        verify(store, atMost(3)).casOwner(anyLong(), anyShort(), anyShort());
+    }
+
+    @Test
+    public void whenWriteThenOwnerWrittenBackFirst() {
+        dir.casOwner(1234L, (short) 0, (short) 10);
+        dir.casOwner(1234L, (short) 10, (short) 20);
+        dir.write(1234L, (short) 20, 2, new byte[0], null);
+
+        InOrder inOrder = inOrder(store);
+        inOrder.verify(store).casOwner(1234L, (short) 10, (short) 20);
+        inOrder.verify(store).write(1234L, (short) 20, 2, new byte[0], null);
+    }
+
+    @Test
+    public void whenTransactionThenOnlyItsLinesWrittenBack() {
+        useDirectory(mockStore(MainMemoryDB.class), 1000);
+        dir.casOwner(1234L, (short) 0, (short) 10);
+        dir.casOwner(1234L, (short) 10, (short) 20);
+        dir.casOwner(5678L, (short) 0, (short) 10);
+        dir.casOwner(5678L, (short) 10, (short) 20);
+
+        final Object txn = dir.beginTransaction();
+        dir.write(1234L, (short) 20, 2, new byte[0], txn);
+        dir.commit(txn);
+
+        verify(store).casOwner(1234L, (short) 10, (short) 20);
+        verify(store, never()).casOwner(5678L, (short) 10, (short) 20);
+
+        dir.close();
+        verify(store).casOwner(5678L, (short) 10, (short) 20);
+    }
+
+    @Test
+    public void whenBatchStoreThenChangesWrittenBackInOneTransaction() {
+        final BatchOwnerDB batchStore = mockStore(BatchOwnerDB.class);
+        useDirectory(batchStore, 3);
+        for (long id = 1; id <= 3; id++) {
+            dir.casOwner(id, (short) 0, (short) 10);
+            dir.casOwner(id, (short) 10, (short) (20 + id));
+        }
+
+        final ArgumentCaptor<long[]> ids = ArgumentCaptor.forClass(long[].class);
+        final ArgumentCaptor<short[]> owners = ArgumentCaptor.forClass(short[].class);
+        verify(batchStore, timeout(1000)).setOwners(ids.capture(), owners.capture(), eq(3));
+        final long[] written = Arrays.copyOf(ids.getValue(), 3);
+        final short[] writtenOwners = Arrays.copyOf(owners.getValue(), 3);
+        for (int i = 0; i < 3; i++)
+            assertEquals(20 + written[i], writtenOwners[i]);
+        Arrays.sort(written);
+        assertArrayEquals(new long[]{1, 2, 3}, written);
+        verify(batchStore, times(3)).casOwner(anyLong(), anyShort(), anyShort()); // only the loads
+    }
+
+    @Test
+    public void whenNodeRemovedThenOtherLinesNotWrittenBack() {
+        useDirectory(mockStore(MainMemoryDB.class), 1000);
+        dir.casOwner(1234L, (short) 0, (short) 10);
+        dir.casOwner(5678L, (short) 0, (short) 20);
+        dir.casOwner(5678L, (short) 20, (short) 30);
+
+        dir.removeOwner((short) 10);
+
+        verify(store).removeOwner((short) 10);
+        verify(store, never()).casOwner(5678L, (short) 20, (short) 30);
+        assertEquals(0, dir.casOwner(1234L, (short) 10, (short) 20));
+    }
+
+    @Test
+    public void whenAllocatedThenFindAllocationFromMemory() {
+        dir.allocate((short) 5, 1000, 100);
+
+        assertEquals(5, dir.findAllocation(1000));
+        assertEquals(5, dir.findAllocation(1099));
+        verify(store).allocate((short) 5, 1000, 100);
+        verify(store, never()).findAllocation(anyLong());
+
+        when(store.findAllocation(1100)).thenReturn((short) -1);
+        assertEquals(-1, dir.findAllocation(1100));
+    }
+
+    @Test
+    public void whenTransactionOpenThenOtherThreadsStillUseTheStore() throws Exception {
+        final Object txn = dir.beginTransaction();
+        dir.write(1234L, (short) 10, 1, new byte[0], txn);
+
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            final Future<Short> res = executor.submit(new Callable<Short>() {
+                @Override
+                public Short call() {
+                    dir.read(5678L);
+                    return dir.casOwner(5678L, (short) 0, (short) 10);
+                }
+            });
+            assertEquals(10, (short) res.get(1, TimeUnit.SECONDS));
+        } finally {
+            executor.shutdownNow();
+        }
+        dir.commit(txn);
+        verify(store).commit(txn);
+    }
+
+    @Test
+    public void whenNodeRemovedThenServerOwnsItsLines() {
+        dir.casOwner(1234L, (short) 0, (short) 10);
+        dir.removeOwner((short) 10);
+
+        verify(store).removeOwner((short) 10);
+        assertEquals(0, dir.casOwner(1234L, (short) 10, (short) 20));
+        assertEquals(20, dir.casOwner(1234L, (short) 0, (short) 20));
+    }
+}
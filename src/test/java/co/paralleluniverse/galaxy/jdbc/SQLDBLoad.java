@@ -0,0 +1,93 @@
+/*
+ * Galaxy
+ * Copyright (c) 2012-2014, Parallel Universe Software Co. All rights reserved.
+ *
+ * This program and the accompanying materials are dual-licensed under
+ * either the terms of the Eclipse Public License v1.0 as published by
+ * the Eclipse Foundation
+ *
+ *   or (per the licensee's choosing)
+ *
+ * under the terms of the GNU Lesser General Public License version 3.0
+ * as published by the Free Software Foundation.
+ */
+package co.paralleluniverse.galaxy.jdbc;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.concurrent.CountDownLatch;
+import org.h2.jdbcx.JdbcDataSource;
+
+/**
+ * Measures the {@link SQLDB} store's throughput of backup transactions (as written by the server when handling a backup packet),
+ * with and without batch updates, and with one or several threads (i.e. connections), against an embedded H2 database.
+ * <p>
+ * Each transaction writes {@link #LINES_PER_PACKET} lines, and every thread writes its own set of lines, as the server's processing
+ * threads do.
+ */
+public class SQLDBLoad {
+    private static final int WARMUP = 5000;
+    private static final int ITERATIONS = 20000;
+    private static final int LINES_PER_PACKET = 10;
+    private static final int LINES_PER_THREAD = 10000;
+    private static final int LINE_SIZE = 256;
+    private static final short NODE = 1;
+
+    public static void main(String[] args) throws Exception {
+        System.out.println("batch\tthreads\tpackets/s\tlines/s");
+        for (boolean batch : new boolean[]{false, true}) {
+            for (int threads : new int[]{1, 4}) {
+                final File dir = Files.createTempDirectory("galaxy-sql").toFile();
+                try {
+                    final double packetsPerSec = run(dir, batch, threads);
+                    System.out.println(batch + "\t" + threads + "\t" + String.format("%.0f", packetsPerSec) + "\t" + String.format("%.0f", packetsPerSec * LINES_PER_PACKET));
+                } finally {
+                    for (File f : dir.listFiles())
+                        f.delete();
+                    dir.delete();
+                }
+            }
+        }
+    }
+
+    private static double run(File dir, boolean batch, int threads) throws Exception {
+        final JdbcDataSource dataSource = new JdbcDataSource();
+        dataSource.setURL("jdbc:h2:" + new File(dir, "galaxy").getPath() + ";INIT=CREATE SCHEMA IF NOT EXISTS pugalaxy");
+        final SQLDB store = new SQLDB("store", dataSource);
+        store.setBigintType("BIGINT");
+        store.setUseBatchUpdates(batch);
+        store.init();
+        try {
+            runThreads(store, threads, WARMUP);
+            final long start = System.nanoTime();
+            runThreads(store, threads, ITERATIONS);
+            final long duration = System.nanoTime() - start;
+            return ITERATIONS * 1e9 / duration;
+        } finally {
+            store.close();
+        }
+    }
+
+    private static void runThreads(final SQLDB store, final int threads, final int packets) throws InterruptedException {
+        final CountDownLatch done = new CountDownLatch(threads);
+        for (int i = 0; i < threads; i++) {
+            final long firstLine = 1000 + (long) i * LINES_PER_THREAD;
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    long nextLine = 0;
+                    for (int j = 0; j < packets / threads; j++) {
+                        final Object txn = store.beginTransaction();
+                        for (int k = 0; k < LINES_PER_PACKET; k++) {
+                            store.write(firstLine + (nextLine % LINES_PER_THREAD), NODE, nextLine, new byte[LINE_SIZE], txn);
+                            nextLine++;
+                        }
+                        store.commit(txn);
+                    }
+                    done.countDown();
+                }
+            }).start();
+        }
+        done.await();
+    }
+}
@@ -0,0 +1,198 @@
+/*
+ * Galaxy
+ * Copyright (c) 2012-2014, Parallel Universe Software Co. All rights reserved.
+ *
+ * This program and the accompanying materials are dual-licensed under
+ * either the terms of the Eclipse Public License v1.0 as published by
+ * the Eclipse Foundation
+ *
+ *   or (per the licensee's choosing)
+ *
+ * under the terms of the GNU Lesser General Public License version 3.0
+ * as published by the Free Software Foundation.
+ */
+package co.paralleluniverse.galaxy.jdbc;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import org.h2.jdbcx.JdbcDataSource;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class SQLDBTest {
+    private static final AtomicInteger dbCounter = new AtomicInteger();
+    SQLDB db;
+
+    @Before
+    public void setUp() throws Exception {
+        final JdbcDataSource dataSource = new JdbcDataSource();
+        dataSource.setURL("jdbc:h2:mem:galaxy" + dbCounter.incrementAndGet() + ";DB_CLOSE_DELAY=-1;INIT=CREATE SCHEMA IF NOT EXISTS pugalaxy");
+        db = new SQLDB("store", dataSource);
+        db.setBigintType("BIGINT"); // H2 also reports IDENTITY as a BIGINT type
+        db.init();
+    }
+
+    @After
+    public void tearDown() {
+        db.close();
+    }
+
+    @Test
+    public void testCasOwner() {
+        assertEquals(-1, db.casOwner(1234L, (short) 0, (short) 10)); // nonexistent
+        assertEquals(10, db.casOwner(1234L, (short) -1, (short) 10)); // create
+        assertEquals(10, db.casOwner(1234L, (short) -1, (short) 20));
+        assertEquals(10, db.casOwner(1234L, (short) 0, (short) 20));
+        assertEquals(20, db.casOwner(1234L, (short) 10, (short) 20));
+
+        db.removeOwner((short) 20);
+        assertEquals(0, db.casOwner(1234L, (short) 20, (short) 30));
+    }
+
+    @Test
+    public void testSetOwners() {
+        db.casOwner(1234L, (short) -1, (short) 10);
+        db.casOwner(1235L, (short) -1, (short) 10);
+        db.setOwners(new long[]{1234L, 1235L, 1236L, 0}, new short[]{20, 30, 40, 0}, 3);
+
+        assertEquals(20, db.casOwner(1234L, (short) 0, (short) 50)); // regardless of the current owner
+        assertEquals(30, db.casOwner(1235L, (short) 0, (short) 50));
+        assertEquals(-1, db.casOwner(1236L, (short) 0, (short) 50)); // nonexistent lines are skipped
+    }
+
+    @Test
+    public void whenBatchedThenWrittenOnCommit() {
+        db.casOwner(1000L, (short) -1, (short) 10);
+        db.write(1000L, (short) 10, 1, new byte[]{1}, null);
+
+        final Object txn = db.beginTransaction();
+        db.write(1000L, (short) 10, 2, new byte[]{2}, txn); // update
+        db.write(1001L, (short) 10, 1, new byte[]{3}, txn); // insert
+        db.write(1002L, (short) 10, 1, new byte[]{4}, txn); // insert
+        db.commit(txn);
+
+        assertEquals(2, db.read(1000L).version);
+        assertArrayEquals(new byte[]{2}, db.read(1000L).data);
+        assertArrayEquals(new byte[]{3}, db.read(1001L).data);
+        assertArrayEquals(new byte[]{4}, db.read(1002L).data);
+    }
+
+    @Test
+    public void whenAbortedThenBatchDiscarded() {
+        db.write(1000L, (short) 10, 1, new byte[]{1}, null);
+
+        Object txn = db.beginTransaction();
+        db.write(1000L, (short) 10, 2, new byte[]{2}, txn);
+        db.write(1001L, (short) 10, 1, new byte[]{3}, txn);
+        db.abort(txn);
+
+        txn = db.beginTransaction();
+        db.write(1002L, (short) 10, 1, new byte[]{4}, txn);
+        db.commit(txn);
+
+        assertEquals(1, db.read(1000L).version);
+        assertEquals(10, db.casOwner(1001L, (short) -1, (short) 10)); // wasn't inserted
+        assertArrayEquals(new byte[]{4}, db.read(1002L).data);
+    }
+
+    @Test
+    public void whenManyThreadsThenConnectionsShared() throws Exception {
+        final Thread[] threads = new Thread[4];
+        final Throwable[] errors = new Throwable[threads.length];
+        for (int i = 0; i < threads.length; i++) {
+            final int t = i;
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        for (int j = 0; j < 100; j++) {
+                            final long id = 1000 + t * 100 + j;
+                            final Object txn = db.beginTransaction();
+                            db.write(id, (short) 10, j, new byte[]{(byte) t}, txn);
+                            db.commit(txn);
+                            assertEquals(10 + t, db.casOwner(id, (short) 10, (short) (10 + t)));
+                        }
+                    } catch (Throwable e) {
+                        errors[t] = e;
+                    }
+                }
+            });
+            threads[i].start();
+        }
+        for (int i = 0; i < threads.length; i++) {
+            threads[i].join();
+            if (errors[i] != null)
+                throw new AssertionError(errors[i]);
+        }
+
+        assertTrue(db.getNumConnections() <= threads.length);
+        for (int t = 0; t < threads.length; t++)
+            assertArrayEquals(new byte[]{(byte) t}, db.read(1000 + t * 100 + 99).data);
+    }
+
+    @Test
+    public void whenTransactionDoneThenConnectionReused() {
+        assertEquals(1, db.getNumConnections());
+
+        final Object txn1 = db.beginTransaction();
+        final Object txn2 = db.beginTransaction(); // concurrent transactions on one thread
+        assertEquals(2, db.getNumConnections());
+        db.write(1000L, (short) 10, 1, new byte[]{1}, txn1);
+        db.write(1001L, (short) 10, 1, new byte[]{2}, txn2);
+        db.commit(txn2);
+        db.commit(txn1);
+
+        final Object txn3 = db.beginTransaction();
+        db.write(1002L, (short) 10, 1, new byte[]{3}, txn3);
+        db.commit(txn3);
+        db.read(1000L);
+        assertEquals(2, db.getNumConnections());
+    }
+
+    @Test
+    public void whenOperationDuringTransactionThenTransactionNotCommitted() {
+        final Object txn = db.beginTransaction();
+        db.write(1000L, (short) 20, 1, new byte[]{1}, txn);
+        assertEquals(10, db.casOwner(2000L, (short) -1, (short) 10)); // outside the transaction
+        db.abort(txn);
+
+        assertEquals(10, db.casOwner(1000L, (short) -1, (short) 10)); // wasn't inserted
+    }
+
+    @Test
+    public void whenTransactionCommittedOnAnotherThreadThenCommitted() throws Exception {
+        final Object txn = db.beginTransaction();
+        db.write(1000L, (short) 10, 1, new byte[]{1}, txn);
+        final Throwable[] error = new Throwable[1];
+        final Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    db.commit(txn);
+                } catch (Throwable e) {
+                    error[0] = e;
+                }
+            }
+        });
+        thread.start();
+        thread.join();
+        if (error[0] != null)
+            throw new AssertionError(error[0]);
+
+        assertArrayEquals(new byte[]{1}, db.read(1000L).data);
+    }
+
+    @Test
+    public void testAllocation() {
+        db.allocate((short) 10, 1000, 100);
+        db.allocate((short) 20, 1100, 100);
+
+        assertEquals(-1, db.findAllocation(999));
+        assertEquals(10, db.findAllocation(1000));
+        assertEquals(10, db.findAllocation(1099));
+        assertEquals(20, db.findAllocation(1100));
+        assertEquals(-1, db.findAllocation(1200));
+        assertEquals(1100, db.getMaxId());
+    }
+}
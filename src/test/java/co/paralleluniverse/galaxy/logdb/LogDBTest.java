@@ -0,0 +1,235 @@
+/*
+ * Galaxy
+ * Copyright (c) 2012-2014, Parallel Universe Software Co. All rights reserved.
+ *
+ * This program and the accompanying materials are dual-licensed under
+ * either the terms of the Eclipse Public License v1.0 as published by
+ * the Eclipse Foundation
+ *
+ *   or (per the licensee's choosing)
+ *
+ * under the terms of the GNU Lesser General Public License version 3.0
+ * as published by the Free Software Foundation.
+ */
+package co.paralleluniverse.galaxy.logdb;
+
+import co.paralleluniverse.galaxy.server.MainMemoryEntry;
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class LogDBTest {
+    File dir;
+    LogDB db;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = Files.createTempDirectory("logdb").toFile();
+        db = open(4096);
+    }
+
+    @After
+    public void tearDown() {
+        db.close();
+        for (File f : dir.listFiles())
+            f.delete();
+        dir.delete();
+    }
+
+    private LogDB open(int segmentSize) throws Exception {
+        final LogDB logdb = new LogDB("store", dir.getPath());
+        logdb.setSegmentSize(segmentSize);
+        logdb.init();
+        return logdb;
+    }
+
+    private LogDB reopen() throws Exception {
+        db.close();
+        db = open(db.getSegmentSize());
+        return db;
+    }
+
+    @Test
+    public void testCasOwner() {
+        assertEquals(-1, db.casOwner(1234L, (short) 0, (short) 10)); // nonexistent
+        assertEquals(10, db.casOwner(1234L, (short) -1, (short) 10)); // create
+        assertEquals(10, db.casOwner(1234L, (short) -1, (short) 20));
+        assertEquals(10, db.casOwner(1234L, (short) 0, (short) 20));
+        assertEquals(20, db.casOwner(1234L, (short) 10, (short) 20));
+
+        db.removeOwner((short) 20);
+        assertEquals(0, db.casOwner(1234L, (short) 20, (short) 30));
+    }
+
+    @Test
+    public void testSetOwners() {
+        db.casOwner(1234L, (short) -1, (short) 10);
+        db.casOwner(1235L, (short) -1, (short) 10);
+        db.setOwners(new long[]{1234L, 1235L, 1236L, 0}, new short[]{20, 30, 40, 0}, 3);
+
+        assertEquals(20, db.casOwner(1234L, (short) 0, (short) 50)); // regardless of the current owner
+        assertEquals(30, db.casOwner(1235L, (short) 0, (short) 50));
+        assertEquals(-1, db.casOwner(1236L, (short) 0, (short) 50)); // nonexistent lines are skipped
+    }
+
+    @Test
+    public void testWriteKeepsOwner() {
+        db.write(1234L, (short) 10, 1, new byte[]{1, 2, 3}, null);
+        assertEquals(20, db.casOwner(1234L, (short) 10, (short) 20));
+        db.write(1234L, (short) 10, 2, new byte[]{4, 5}, null); // owner only written for a new line
+        assertEquals(20, db.casOwner(1234L, (short) 10, (short) 30));
+
+        final MainMemoryEntry entry = db.read(1234L);
+        assertEquals(2, entry.version);
+        assertArrayEquals(new byte[]{4, 5}, entry.data);
+    }
+
+    @Test
+    public void testTransaction() {
+        Object txn = db.beginTransaction();
+        db.write(1L << 32, (short) 10, 1, new byte[]{1}, txn);
+        db.write((1L << 32) + 1, (short) 10, 1, new byte[]{2}, txn);
+        assertNull(db.read(1L << 32));
+        db.commit(txn);
+
+        txn = db.beginTransaction();
+        db.delete(1L << 32, txn);
+        db.abort(txn);
+
+        assertArrayEquals(new byte[]{1}, db.read(1L << 32).data);
+        assertArrayEquals(new byte[]{2}, db.read((1L << 32) + 1).data);
+    }
+
+    @Test
+    public void testAllocation() {
+        db.allocate((short) 10, 1000, 100);
+        db.allocate((short) 20, 1100, 100);
+
+        assertEquals(-1, db.findAllocation(999));
+        assertEquals(10, db.findAllocation(1000));
+        assertEquals(10, db.findAllocation(1099));
+        assertEquals(20, db.findAllocation(1100));
+        assertEquals(-1, db.findAllocation(1200));
+        assertEquals(1199, db.getMaxId());
+    }
+
+    @Test
+    public void testRecovery() throws Exception {
+        db.allocate((short) 10, 1000, 100);
+        for (int i = 0; i < 100; i++)
+            db.write(1000 + i, (short) 10, i, new byte[100], null); // spans several segments
+        db.casOwner(1000, (short) 10, (short) 20);
+        db.delete(1001, null);
+        db.write(1002, (short) 10, 200, new byte[]{7}, null);
+
+        reopen();
+
+        assertEquals(1099, db.getMaxId());
+        assertEquals(10, db.findAllocation(1050));
+        assertEquals(0, db.casOwner(1000, (short) 20, (short) 30)); // the server owns all lines after a restart
+        assertEquals(-1, db.casOwner(1001, (short) 10, (short) 30));
+        assertNull(db.read(1001));
+        assertEquals(200, db.read(1002).version);
+        assertArrayEquals(new byte[]{7}, db.read(1002).data);
+        assertEquals(50, db.read(1050).version);
+    }
+
+    @Test
+    public void whenTornRecordThenDiscarded() throws Exception {
+        db.write(1234L, (short) 10, 1, new byte[]{1, 2, 3}, null);
+        db.write(1235L, (short) 10, 1, new byte[]{4, 5, 6}, null);
+        db.close();
+
+        final File segment = dir.listFiles()[0];
+        try (RandomAccessFile raf = new RandomAccessFile(segment, "rw")) {
+            raf.seek(30 + 29); // the last byte of the second record (each record is 30 bytes long)
+            raf.write(0);
+        }
+
+        db = open(db.getSegmentSize());
+        assertArrayEquals(new byte[]{1, 2, 3}, db.read(1234L).data);
+        assertNull(db.read(1235L));
+
+        db.write(1236L, (short) 10, 1, new byte[]{7}, null);
+        reopen();
+        assertArrayEquals(new byte[]{7}, db.read(1236L).data);
+    }
+
+    @Test
+    public void whenTornTransactionThenDiscardedWhole() throws Exception {
+        final Object txn = db.beginTransaction();
+        db.write(1234L, (short) 10, 1, new byte[]{1}, txn);
+        db.write(1235L, (short) 10, 1, new byte[]{2}, txn);
+        db.commit(txn);
+        db.close();
+
+        final File segment = dir.listFiles()[0];
+        try (RandomAccessFile raf = new RandomAccessFile(segment, "rw")) {
+            raf.seek(17 + 28 + 27); // the last byte of the transaction (a group header followed by two 28-byte records)
+            raf.write(0);
+        }
+
+        db = open(db.getSegmentSize());
+        assertNull(db.read(1234L)); // the first record is intact, but its transaction isn't
+        assertNull(db.read(1235L));
+    }
+
+    @Test
+    public void testTransactionRecoveryAndCompaction() throws Exception {
+        for (int i = 0; i < 100; i++) {
+            final Object txn = db.beginTransaction();
+            db.write(1000 + (i % 10), (short) 10, i, new byte[100], txn);
+            db.write(2000 + (i % 10), (short) 10, i, new byte[100], txn);
+            db.commit(txn);
+        }
+        final Object txn = db.beginTransaction();
+        db.delete(1009, txn);
+        db.write(1009, (short) 10, 100, new byte[]{9}, txn);
+        db.commit(txn);
+        final int segments = db.getNumSegments();
+
+        reopen();
+        db.compact();
+
+        assertTrue(db.getNumSegments() < segments);
+        for (int i = 0; i < 9; i++) {
+            assertEquals(90 + i, db.read(1000 + i).version);
+            assertEquals(90 + i, db.read(2000 + i).version);
+        }
+        assertArrayEquals(new byte[]{9}, db.read(1009).data);
+
+        reopen();
+
+        for (int i = 0; i < 9; i++) {
+            assertEquals(90 + i, db.read(1000 + i).version);
+            assertEquals(90 + i, db.read(2000 + i).version);
+        }
+        assertEquals(100, db.read(1009).version);
+    }
+
+    @Test
+    public void testCompaction() throws Exception {
+        for (int i = 0; i < 200; i++)
+            db.write(1000 + (i % 10), (short) 10, i, new byte[100], null);
+        db.delete(1009, null);
+        final int segments = db.getNumSegments();
+        assertTrue(segments > 2);
+
+        db.compact();
+
+        assertTrue(db.getNumSegments() < segments);
+        for (int i = 0; i < 9; i++)
+            assertEquals(190 + i, db.read(1000 + i).version);
+        assertNull(db.read(1009));
+
+        reopen();
+
+        for (int i = 0; i < 9; i++)
+            assertEquals(190 + i, db.read(1000 + i).version);
+        assertNull(db.read(1009));
+    }
+}
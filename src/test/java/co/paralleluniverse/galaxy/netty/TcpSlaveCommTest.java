@@ -0,0 +1,278 @@
+/*
+ * Galaxy
+ * Copyright (c) 2012-2014, Parallel Universe Software Co. All rights reserved.
+ *
+ * This program and the accompanying materials are dual-licensed under
+ * either the terms of the Eclipse Public License v1.0 as published by
+ * the Eclipse Foundation
+ *
+ *   or (per the licensee's choosing)
+ *
+ * under the terms of the GNU Lesser General Public License version 3.0
+ * as published by the Free Software Foundation.
+ */
+package co.paralleluniverse.galaxy.netty;
+
+import co.paralleluniverse.galaxy.Cluster;
+import co.paralleluniverse.galaxy.cluster.NodeInfo;
+import co.paralleluniverse.galaxy.core.Backup;
+import co.paralleluniverse.galaxy.core.Cache;
+import co.paralleluniverse.galaxy.core.Message;
+import co.paralleluniverse.galaxy.core.Message.BACKUP;
+import co.paralleluniverse.galaxy.core.Message.BACKUP_PACKET;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+/**
+ * Tests the replication of a master's lines to a slave connecting to it, over a loopback connection.
+ */
+public class TcpSlaveCommTest {
+    static final int LINES = 1000;
+    static final int LINE_SIZE = 100;
+    static int testCount; // components register MBeans by name
+    TcpSlaveServerComm server;
+    TcpSlaveClientComm client;
+    MasterBackup masterBackup;
+    SlaveBackup slaveBackup;
+
+    @Before
+    public void setUp() throws Exception {
+        final int port;
+        try (ServerSocket socket = new ServerSocket(0)) {
+            port = socket.getLocalPort();
+        }
+        final InetAddress address = InetAddress.getLocalHost();
+        final NodeInfo masterNode = node("master", address, port);
+        final NodeInfo slaveNode = node("slave", address, port);
+
+        final Cluster masterCluster = cluster(masterNode);
+        when(masterCluster.isMaster()).thenReturn(true);
+        when(masterCluster.getNodeInfoByName("slave")).thenReturn(slaveNode);
+        when(masterCluster.getNodesByProperty(IpConstants.IP_ADDRESS, address)).thenReturn(Collections.singleton(slaveNode));
+
+        final Cluster slaveCluster = cluster(slaveNode);
+        when(slaveCluster.getNodeInfoByName("master")).thenReturn(masterNode);
+
+        testCount++;
+        masterBackup = new MasterBackup(LINES);
+        server = new TcpSlaveServerComm("server" + testCount, masterCluster, port);
+        server.setBackup(masterBackup);
+        server.setReplicationChunkSize(10 * LINE_SIZE);
+        server.setReplicationWindow(2);
+
+        slaveBackup = new SlaveBackup();
+        client = new TcpSlaveClientComm("client" + testCount, slaveCluster);
+        client.setBackup(slaveBackup);
+    }
+
+    @After
+    public void tearDown() {
+        client.shutdown();
+        server.shutdown();
+    }
+
+    private void start() throws Exception {
+        server.init();
+        server.start(true);
+        client.init();
+        client.reconnect("master");
+    }
+
+    @Test
+    public void whenSlaveConnectsThenStreamAllLinesInChunksFollowedByEndMarker() throws Exception {
+        start();
+
+        assertTrue(slaveBackup.done.await(10, TimeUnit.SECONDS));
+
+        final List<BACKUP_PACKET> chunks = slaveBackup.chunks;
+        long offset = 0;
+        for (BACKUP_PACKET chunk : chunks) {
+            assertTrue(chunk.getBackups().size() <= 10);
+            for (BACKUP backup : chunk.getBackups())
+                assertEquals(offset++, backup.getLine());
+            assertEquals(-offset, chunk.getId());
+        }
+        assertEquals(LINES, offset);
+        assertEquals(LINES / 10, chunks.size());
+        assertTrue(slaveBackup.endedAfterChunks);
+
+        awaitNotReplicating();
+        assertEquals(LINES, server.getReplicatedLinesSent());
+        assertEquals(LINES, server.getReplicatedLinesAcked());
+    }
+
+    @Test
+    public void whenChunksNotAckedThenStopAtWindow() throws Exception {
+        slaveBackup.ack = false;
+        start();
+
+        Thread.sleep(500);
+        assertEquals(2, slaveBackup.chunks.size()); // replicationWindow
+        assertEquals(1, slaveBackup.done.getCount());
+        assertTrue(server.isReplicating());
+
+        slaveBackup.ack = true;
+        slaveBackup.ackAll();
+
+        assertTrue(slaveBackup.done.await(10, TimeUnit.SECONDS));
+        assertEquals(LINES / 10, slaveBackup.chunks.size());
+        awaitNotReplicating();
+        assertEquals(LINES, server.getReplicatedLinesAcked());
+    }
+
+    @Test
+    public void whenSlaveConnectsThenMasterGetsItsSummary() throws Exception {
+        slaveBackup.summary = new long[]{1, 2, 3, 4};
+        start();
+
+        assertTrue(slaveBackup.done.await(10, TimeUnit.SECONDS));
+        assertArrayEquals(new long[]{1, 2, 3, 4}, masterBackup.summary);
+    }
+
+    private void awaitNotReplicating() throws InterruptedException {
+        for (int i = 0; server.isReplicating() && i < 100; i++)
+            Thread.sleep(50);
+        assertFalse(server.isReplicating());
+    }
+
+    private static NodeInfo node(String name, InetAddress address, int port) {
+        final NodeInfo node = mock(NodeInfo.class);
+        when(node.getName()).thenReturn(name);
+        when(node.getNodeId()).thenReturn((short) 1);
+        when(node.get(IpConstants.IP_ADDRESS)).thenReturn(address);
+        when(node.get(IpConstants.IP_SLAVE_PORT)).thenReturn(port);
+        return node;
+    }
+
+    private static Cluster cluster(NodeInfo me) {
+        final Cluster cluster = mock(Cluster.class);
+        when(cluster.getMyNodeId()).thenReturn((short) 1);
+        when(cluster.getMyNodeInfo()).thenReturn(me);
+        return cluster;
+    }
+
+    private class SlaveBackup extends NullBackup {
+        final List<BACKUP_PACKET> chunks = new CopyOnWriteArrayList<BACKUP_PACKET>();
+        final List<BACKUP_PACKET> unacked = new ArrayList<BACKUP_PACKET>();
+        final CountDownLatch done = new CountDownLatch(1);
+        volatile boolean ack = true;
+        volatile boolean endedAfterChunks;
+        long[] summary = new long[0];
+
+        @Override
+        public long[] summarizeOwned() {
+            return summary;
+        }
+
+        @Override
+        public synchronized void receive(Message message) {
+            switch (message.getType()) {
+                case BACKUP_PACKET:
+                    chunks.add((BACKUP_PACKET) message);
+                    unacked.add((BACKUP_PACKET) message);
+                    if (ack)
+                        ackAll();
+                    break;
+                case BACKUP:
+                    if (((BACKUP) message).getLine() < 0) {
+                        endedAfterChunks = unacked.isEmpty() && chunks.size() == LINES / 10;
+                        done.countDown();
+                    }
+                    break;
+                default:
+            }
+        }
+
+        synchronized void ackAll() {
+            for (BACKUP_PACKET chunk : unacked)
+                client.send(Message.BACKUP_PACKETACK(chunk));
+            unacked.clear();
+        }
+    }
+
+    private static class MasterBackup extends NullBackup {
+        final int lines;
+        volatile long[] summary;
+
+        MasterBackup(int lines) {
+            this.lines = lines;
+        }
+
+        @Override
+        public Iterator<BACKUP> iterOwned(long[] summary) {
+            this.summary = summary;
+            final List<BACKUP> backups = new ArrayList<BACKUP>(lines);
+            for (int i = 0; i < lines; i++)
+                backups.add(Message.BACKUP(i, 1, ByteBuffer.allocate(LINE_SIZE - 20)));
+            return backups.iterator();
+        }
+    }
+
+    private static class NullBackup implements Backup {
+        @Override
+        public void setCache(Cache cache) {
+        }
+
+        @Override
+        public boolean startBackup() {
+            return false;
+        }
+
+        @Override
+        public void backup(long id, long version) {
+        }
+
+        @Override
+        public void endBackup(boolean locked) {
+        }
+
+        @Override
+        public boolean inv(long id, short owner) {
+            return true;
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public Iterator<BACKUP> iterOwned() {
+            return iterOwned(new long[0]);
+        }
+
+        @Override
+        public long[] summarizeOwned() {
+            return new long[0];
+        }
+
+        @Override
+        public Iterator<BACKUP> iterOwned(long[] summary) {
+            return Collections.<BACKUP>emptyIterator();
+        }
+
+        @Override
+        public void receive(Message message) {
+        }
+
+        @Override
+        public void slavesAck(long id) {
+        }
+
+        @Override
+        public void slavesInvAck(long id) {
+        }
+    }
+}
@@ -273,11 +273,11 @@ public class UDPCommTest {
 
     @Test
     public void whenBroadcastAndReceiveReplyThenStopResendingAndNoTimeout() throws Exception {
-        final LineMessage m = Message.INV(sh(-1), id(1234L), sh(10));
+        final LineMessage m = Message.GET(sh(-1), id(1234L));
 
         comm.send(m);
         sleep(200);
-        comm.messageReceived(packet(Message.INVACK(m).setNode(sh(3)).setIncoming()));
+        comm.messageReceived(packet(Message.CHNGD_OWNR(m, id(1234L), sh(3), true).setNode(sh(3)).setIncoming()));
 
         verify(channel, atLeast(3)).write(argThat(equalTo(packet(m))), eq(GROUP));
 
@@ -307,6 +307,47 @@ public class UDPCommTest {
         verify(receiver, never()).receive(argThat(equalTo(Message.TIMEOUT(m))));
     }
 
+    @Test
+    public void whenBroadcastINVAndSomeINVACKsThenResendUnicastToTheRest() throws Exception {
+        final LineMessage m = Message.INV(sh(-1), id(1234L), sh(10));
+        comm.send(m);
+        sleep(200);
+        final Message ack = Message.INVACK(m).setNode(sh(3)).setIncoming();
+        comm.messageReceived(packet(ack));
+
+        verify(channel, atLeast(3)).write(argThat(equalTo(packet(m))), eq(GROUP));
+
+        sleep(200);
+
+        await();
+        verify(receiver).receive(argThat(equalTo(ack)));
+        verify(channel, atLeast(3)).write(argThat(equalTo(packet(m))), eq(node2Address));
+        verify(channel, atLeast(3)).write(argThat(equalTo(packet(m))), eq(node4Address));
+        verifyNoMoreInteractions(channel);
+    }
+
+    @Test
+    public void whenBroadcastINVAndAllINVACKsThenStopResendingAndNoNotFound() throws Exception {
+        final LineMessage m = Message.INV(sh(-1), id(1234L), sh(10));
+        comm.send(m);
+        sleep(200);
+        for (short node : sh(2, 3, 4))
+            comm.messageReceived(packet(Message.INVACK(m).setNode(node).setIncoming()));
+
+        verify(channel, atLeast(3)).write(argThat(equalTo(packet(m))), eq(GROUP));
+        sleep(100);
+        reset(channel);
+
+        sleep(300);
+
+        await();
+        verifyZeroInteractions(channel);
+        for (short node : sh(2, 3, 4))
+            verify(receiver).receive(argThat(equalTo(Message.INVACK(m).setNode(node))));
+        verify(receiver, never()).receive(argThat(equalTo(Message.NOT_FOUND(m))));
+        verify(receiver, never()).receive(argThat(equalTo(Message.TIMEOUT(m))));
+    }
+
     @Test
     public void whenUnicastBroadcastThenResendUnicastUntilResponse() throws Exception {
         comm.setMinimumNodesToMulticast(10);